@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Files
+import java.util.logging.FileHandler
+import java.util.logging.Handler
+import java.util.logging.Logger
+import java.util.logging.SimpleFormatter
+
+import bpipe.storage.LocalPipelineFile
+import groovy.transform.CompileStatic
+
+/**
+ * Measures the throughput of resolving command configurations with the compiled views of
+ * {@link CommandConfigResolver}, compared with merging the configuration for every command.
+ * Results are written in JMH's JSON format (see {@link MicroBenchmark}).
+ * <p>
+ * Log messages are written to a file, as they are when Bpipe runs a pipeline.
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=CommandConfigBenchmark
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class CommandConfigBenchmark {
+    
+    int stageCount = 50
+    
+    int commandCount = 20
+    
+    /**
+     * A configuration of a typical size: many default settings, and settings for each stage
+     * and for each tool, some of which depend on the inputs
+     */
+    String createConfig() {
+        StringBuilder text = new StringBuilder()
+        text.append("executor='slurm'\nqueue='batch'\naccount='genomics'\nprocs=1\nmemory='4g'\nwalltime=3600\n")
+        (1..30).each { int i -> text.append("setting_$i='value_$i'\n") }
+        text.append("env {\n")
+        (1..10).each { int i -> text.append("    VAR_$i='value_$i'\n") }
+        text.append("}\nstages {\n")
+        (1..stageCount).each { int i -> text.append("    stage_$i { memory='${i}g'; walltime=${i * 600} }\n") }
+        text.append("}\ncommands {\n")
+        (1..commandCount).each { int i -> 
+            text.append("    tool_$i { procs = { inputs -> Math.min(inputs.size(), 8) }; modules='tool_$i/1.0' }\n") 
+        }
+        text.append("}\n")
+        return text.toString()
+    }
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'resolveCommandConfig', params: [resolution: ['merged', 'compiled']], setup: this.&resolveCommandConfig),
+        ]
+    }
+    
+    /**
+     * Resolve the configuration of the next command, cycling through every combination of 
+     * stage and tool
+     */
+    Closure resolveCommandConfig(Map params) {
+        CommandConfigResolver compiled = CommandConfigResolver.theInstance
+        boolean merged = params.resolution == 'merged'
+        List<PipelineFile> inputs = (1..4).collect { int i -> (PipelineFile)new LocalPipelineFile("sample_${i}.bam") }
+        int next = 0
+        return {
+            int i = next++
+            String configName = "tool_${i % commandCount + 1}".toString()
+            String stage = "stage_${i % stageCount + 1}".toString()
+            Map cfg = merged ? 
+                CommandConfigResolver.resolveDirect(configName, stage, configName + ' input.bam', inputs) : 
+                compiled.resolve(configName, stage, configName + ' input.bam', inputs) 
+            assert cfg.procs == 4
+            return cfg
+        }
+    }
+    
+    static void main(String [] args) {
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-command-config-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+        
+        CommandConfigBenchmark benchmark = new CommandConfigBenchmark()
+            
+        File dir = Files.createTempDirectory('bpipe_command_config').toFile()
+        Logger root = Logger.getLogger('')
+        for(Handler h in root.handlers)
+            root.removeHandler(h)
+        FileHandler logHandler = new FileHandler(new File(dir, 'bpipe.log').path)
+        logHandler.formatter = new SimpleFormatter()
+        root.addHandler(logHandler)
+            
+        try {
+            Config.userConfig = (Map<String,Object>)new ConfigSlurper().parse(benchmark.createConfig())
+            MicroBenchmark.runAll(CommandConfigBenchmark.name, benchmark.benchmarks, filter, resultFile)
+        }
+        finally {
+            logHandler.close()
+            dir.deleteDir()
+        }
+    }
+}
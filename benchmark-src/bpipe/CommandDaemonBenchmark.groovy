@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import bpipe.cmd.CommandDaemon
+import bpipe.cmd.DaemonClient
+
+/**
+ * Compares the throughput of a Bpipe command run cold (starting a new JVM through 
+ * <code>bin/bpipe</code>, as previously) with the same command run by a 
+ * {@link CommandDaemon}, both through <code>bin/bpipe</code> and through a 
+ * {@link DaemonClient} as the agent does. Results are written in JMH's JSON format 
+ * (see {@link MicroBenchmark}), and the latency of each command is the inverse of its score.
+ * <p>
+ * Run in a directory where Bpipe has been run, with a staged Bpipe installation 
+ * (<code>./gradlew stage</code>). Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=CommandDaemonBenchmark [-PbenchmarkArgs=&lt;command&gt;]
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+class CommandDaemonBenchmark {
+    
+    String bpipeHome
+    
+    String command = 'status'
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'command', params: [client: ['cold', 'bpipe', 'agent']], setup: this.&command,
+                               warmupIterations: 1, iterations: 3, iterationMs: 2000),
+        ]
+    }
+    
+    /**
+     * Run the command in a new JVM (<code>cold</code>), or with the daemon, through 
+     * <code>bin/bpipe</code> (<code>bpipe</code>) or an in process client (<code>agent</code>)
+     */
+    Closure command(Map params) {
+        switch(params.client) {
+            case 'cold':
+                return { runBpipe(BPIPE_NO_DAEMON: 'true') }
+            case 'bpipe':
+                return { runBpipe([:]) }
+            default:
+                File dir = new File('.').absoluteFile
+                return { 
+                    Integer exitCode = DaemonClient.execute(dir, command, [], new StringWriter())
+                    assert exitCode != null
+                    return exitCode
+                }
+        }
+    }
+    
+    String runBpipe(Map<String,String> env) {
+        ProcessBuilder pb = new ProcessBuilder(bpipeHome + '/bin/bpipe', command)
+        pb.environment().putAll(env)
+        pb.redirectErrorStream(true)
+        Process p = pb.start()
+        String output = p.inputStream.text
+        p.waitFor()
+        return output
+    }
+    
+    static void main(String [] args) {
+        Runner.initializeLogging("0", "benchmark")
+        
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-command-daemon-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+        
+        CommandDaemonBenchmark benchmark = new CommandDaemonBenchmark(bpipeHome: System.getProperty('bpipe.home') ?: System.getenv('BPIPE_HOME'))
+        if(!benchmark.bpipeHome || !new File(benchmark.bpipeHome, 'bin/bpipe').exists()) {
+            System.err.println 'Please set bpipe.home or BPIPE_HOME to the Bpipe installation to test'
+            System.exit(1)
+        }
+        if(args.size() > 2)
+            benchmark.command = args[2]
+            
+        CommandDaemon daemon = new CommandDaemon()
+        daemon.start()
+        Thread server = Thread.start { daemon.serve() }
+        try {
+            println "\nRunning bpipe $benchmark.command\n"
+            MicroBenchmark.runAll(CommandDaemonBenchmark.name, benchmark.benchmarks, filter, resultFile)
+        }
+        finally {
+            DaemonClient.execute(new File('.'), 'shutdown', [], new StringWriter())
+            server.join(10000)
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Files
+import java.util.logging.Level
+import java.util.logging.Logger
+
+import bpipe.executor.LocalCommandExecutor
+import bpipe.storage.LocalFileSystemStorageLayer
+import groovy.transform.CompileStatic
+
+/**
+ * Measures the throughput of saving and loading commands with the {@link CommandStore},
+ * comparing the compact format with Java serialization, and the cost of the fsync options.
+ * Results are written in JMH's JSON format (see {@link MicroBenchmark}).
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=CommandStoreBenchmark
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class CommandStoreBenchmark {
+
+    File dir
+    
+    List<Command> commands
+
+    static Command createCommand(File dir, int id) {
+        Branch branch = new Branch(name: "sample_$id")
+        Command cmd = new Command(
+            id: String.valueOf(id),
+            stageId: "align_$id",
+            name: 'align',
+            branch: branch,
+            command: 'bwa mem -t 8 -R "@RG\\tID:sample\\tSM:sample" reference.fa sample_R1.fastq.gz sample_R2.fastq.gz | samtools sort -o sample.bam -',
+            outputs: (1..4).collect { int i -> new PipelineFile("sample_${id}.${i}.bam", new LocalFileSystemStorageLayer(), branch) },
+            status: CommandStatus.RUNNING,
+            createTimeMs: System.currentTimeMillis(),
+            dir: dir
+        )
+        cmd.rawProcessedConfig = [
+            executor: 'slurm', procs: 8, memory: '16g', walltime: '04:00:00', queue: 'batch',
+            account: 'genomics', modules: 'bwa samtools', env: [TMPDIR: '/scratch', LANG: 'C'], name: 'bwa'
+        ]
+        return cmd
+    }
+
+    static LocalCommandExecutor createExecutor(Command cmd) {
+        new LocalCommandExecutor(
+            id: cmd.id.toInteger(),
+            pid: 12345,
+            jobDir: ".bpipe/commandtmp/$cmd.id",
+            runningCommand: cmd.command,
+            startedAt: new Date()
+        )
+    }
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'save', params: [format: ['java', 'compact'], fsync: ['none', 'always', 'batch']], setup: this.&save),
+            new MicroBenchmark(name: 'load', params: [format: ['java', 'compact']], setup: this.&load),
+        ]
+    }
+
+    /**
+     * Save the next of 100 commands
+     */
+    Closure save(Map params) {
+        Config.userConfig.commandStore = [format: params.format, fsync: params.fsync]
+        CommandStore store = CommandStore.theInstance
+        int next = 0
+        return {
+            Command cmd = commands[next++ % commands.size()]
+            store.write(new File(dir, cmd.id), createExecutor(cmd), cmd)
+            return cmd
+        }
+    }
+
+    /**
+     * Load the next of 100 saved commands
+     */
+    Closure load(Map params) {
+        Config.userConfig.commandStore = [format: params.format]
+        CommandStore store = CommandStore.theInstance
+        for(Command cmd in commands) {
+            store.write(new File(dir, cmd.id), createExecutor(cmd), cmd)
+        }
+        long totalBytes = (long)commands.sum { Command cmd -> new File(dir, cmd.id).length() }
+        println "Mean size of $params.format records: ${totalBytes.intdiv(commands.size())} bytes"
+        
+        int next = 0
+        return {
+            Command cmd = commands[next++ % commands.size()]
+            CommandRecord record = store.read(new File(dir, cmd.id))
+            assert record.command.id == cmd.id
+            return record
+        }
+    }
+
+    static void main(String [] args) {
+        Config.userConfig = (Map<String,Object>)new ConfigObject()
+
+        // Logging is excluded from the cost of every operation
+        Logger.getLogger('').level = Level.WARNING
+
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-command-store-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+
+        CommandStoreBenchmark benchmark = new CommandStoreBenchmark(dir: Files.createTempDirectory('bpipe_command_store').toFile())
+        benchmark.commands = (1..100).collect { int id -> createCommand(benchmark.dir, id) }
+        try {
+            MicroBenchmark.runAll(CommandStoreBenchmark.name, benchmark.benchmarks, filter, resultFile)
+            CommandStore.theInstance.sync()
+        }
+        finally {
+            benchmark.dir.deleteDir()
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Files
+import java.util.logging.Level
+import java.util.logging.Logger
+
+import groovy.transform.CompileStatic
+
+/**
+ * Measures the time Bpipe spends reading configuration files when it starts, with and 
+ * without the {@link ConfigCache}. Every operation reads the configuration in a new JVM, as
+ * each run of Bpipe does, so that the cost of compiling the configuration files is included.
+ * The same JVM started without reading any configuration is measured as a baseline, so that
+ * the time spent reading the files is the difference from the baseline. Results are written
+ * in JMH's JSON format (see {@link MicroBenchmark}).
+ * <p>
+ * By default, the built in configuration is read together with a generated configuration
+ * of typical size. Other configuration files may be given instead.
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=ConfigLoadBenchmark [-PbenchmarkArgs="&lt;config file&gt; ..."]
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class ConfigLoadBenchmark {
+    
+    List<File> configFiles = []
+    
+    File cacheDir
+    
+    /**
+     * A configuration of a typical size, with settings for many stages and tools
+     */
+    static String createConfig() {
+        StringBuilder text = new StringBuilder()
+        text.append("executor='slurm'\nqueue='batch'\naccount='genomics'\nprocs=1\nmemory='4g'\nwalltime='01:00:00'\n")
+        text.append("stages {\n")
+        (1..50).each { int i -> text.append("    stage_$i { memory='${i}g'; walltime='0${i % 10}:00:00' }\n") }
+        text.append("}\ncommands {\n")
+        (1..20).each { int i -> text.append("    tool_$i { procs=${i % 8 + 1}; modules='tool_$i/1.0' }\n") }
+        text.append("}\n")
+        return text.toString()
+    }
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'readConfig', params: [config: ['none', 'parsed', 'cached']], setup: this.&readConfig,
+                               warmupIterations: 1, iterations: 5, iterationMs: 2000),
+        ]
+    }
+    
+    /**
+     * Start a new JVM, which reads no configuration (<code>none</code>), parses the configuration
+     * files (<code>parsed</code>) or reads them from the cache (<code>cached</code>)
+     */
+    Closure readConfig(Map params) {
+        String config = (String)params.config
+        List<File> files = config == 'none' ? [] : configFiles
+        boolean cached = config == 'cached'
+        
+        // The first run with the cache parses the files and stores them
+        cacheDir.deleteDir()
+        if(cached)
+            runChild(true, files)
+            
+        return { runChild(cached, files) }
+    }
+    
+    /**
+     * Read the configuration files in a new JVM
+     */
+    String runChild(boolean cached, List<File> files) {
+        List<String> command = [
+            System.getProperty('java.home') + '/bin/java', '-cp', System.getProperty('java.class.path'), 
+            ConfigLoadBenchmark.name, '--child', String.valueOf(cached), cacheDir.path
+        ] + files*.path
+        
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start()
+        String output = process.inputStream.text
+        if(process.waitFor() != 0)
+            throw new IllegalStateException("Reading configuration failed: $output")
+        return output
+    }
+    
+    /**
+     * Read the given configuration files as Bpipe does when it starts
+     */
+    static void readConfigs(boolean cached, File cacheDir, List<File> files) {
+        ConfigCache cache = ConfigCache.theInstance
+        cache.enabled = cached
+        cache.dir = cacheDir
+        cacheDir.mkdirs()
+        
+        ConfigSlurper slurper = new ConfigSlurper()
+        Map binding = [:]
+        slurper.setBinding(binding)
+        ConfigObject config = new ConfigObject()
+        for(File file in files) {
+            config.merge(cache.load(slurper, file, binding, 'default').config)
+        }
+    }
+    
+    static void main(String [] args) {
+        // Logging is excluded from the cost of reading the configuration
+        Logger.getLogger('').level = Level.WARNING
+        
+        if(args.size() > 0 && args[0] == '--child') {
+            readConfigs(args[1].toBoolean(), new File(args[2]), args.drop(3).collect { new File(it) })
+            return
+        }
+        
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-config-load-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+        
+        ConfigLoadBenchmark benchmark = new ConfigLoadBenchmark()
+        File dir = Files.createTempDirectory('bpipe_config_load').toFile()
+        try {
+            benchmark.cacheDir = new File(dir, 'cache')
+            if(args.size() > 2) {
+                benchmark.configFiles = args.drop(2).collect { new File(it) }
+            }
+            else {
+                File builtIn = new File(System.getProperty('bpipe.home', '.') + '/bpipe.config')
+                if(!builtIn.exists())
+                    builtIn = new File('src/main/config', 'bpipe.config')
+                File generated = new File(dir, 'bpipe.config')
+                generated.text = createConfig()
+                benchmark.configFiles = [builtIn, generated].grep { File f -> f.exists() }
+            }
+            
+            println "\nReading ${benchmark.configFiles*.path.join(', ')}\n"
+            MicroBenchmark.runAll(ConfigLoadBenchmark.name, benchmark.benchmarks, filter, resultFile)
+        }
+        finally {
+            dir.deleteDir()
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Files
+import java.util.logging.Level
+import java.util.logging.Logger
+
+import org.codehaus.groovy.control.CompilerConfiguration
+
+import bpipe.ast.DslCallTransformation
+import bpipe.storage.LocalPipelineFile
+import groovy.transform.CompileStatic
+
+/**
+ * Microbenchmarks of the parts of the core engine whose cost grows with the size of a 
+ * pipeline: input resolution, splitting inputs into branches, reading and writing output
+ * meta data, building the output dependency graph, splitting regions, buffering command
+ * output and making DSL calls from pipeline stages.
+ * <p>
+ * Most benchmarks are measured at two or more sizes, so that operations which scale worse
+ * than expected show up as a scaling exponent well above 1. Results are written in JMH's 
+ * JSON format (see {@link MicroBenchmark}).
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark [-PbenchmarkFilter=&lt;name filter&gt;]
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class CoreBenchmarks {
+    
+    File dir
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'inputResolution', params: [size: [50, 200], indexed: [true, false]], setup: this.&inputResolution),
+            new MicroBenchmark(name: 'inputSplitter', params: [size: [1000, 4000]], setup: this.&inputSplitter),
+            new MicroBenchmark(name: 'outputMetaDataSave', setup: this.&outputMetaDataSave),
+            new MicroBenchmark(name: 'outputMetaDataRead', setup: this.&outputMetaDataRead),
+            new MicroBenchmark(name: 'computeOutputGraph', params: [size: [500, 2000]], setup: this.&computeOutputGraph),
+            new MicroBenchmark(name: 'regionSetSplit', params: [size: [1000, 4000], parts: [40]], setup: this.&regionSetSplit),
+            new MicroBenchmark(name: 'outputLog', params: [size: [10, 100]], setup: this.&outputLog),
+            new MicroBenchmark(name: 'dslCalls', params: [compiled: [false, true]], setup: this.&dslCalls),
+        ]
+    }
+    
+    /**
+     * Resolve a reference to the output of the first stage from the last stage of a pipeline 
+     * of <code>size</code> stages, each with 20 outputs
+     */
+    Closure inputResolution(Map params) {
+        InputResolutionBenchmark pipeline = new InputResolutionBenchmark(stages: (int)params.size, filesPerStage: 20)
+        pipeline.createOutputs()
+        PipelineInput input = new PipelineInput([], [], new Aliases())
+        if(params.indexed) {
+            Map<List<PipelineFile>,PipelineFileIndex> indexes = new IdentityHashMap<List<PipelineFile>,PipelineFileIndex>()
+            return { input.resolveInputFromRawExtension('stage1\\.bam$', 'stage1.bam', pipeline.reverseOutputs, indexes) }
+        }
+        else
+            return { input.resolveInputFromRawExtension('stage1[.]bam$', 'stage1.bam', pipeline.reverseOutputs, null) }
+    }
+    
+    /**
+     * Split <code>size</code> paired, multi-lane FASTQ files into samples
+     */
+    Closure inputSplitter(Map params) {
+        int size = (int)params.size
+        List<PipelineFile> inputs = (List<PipelineFile>)(0..<size).collect { int i ->
+            new LocalPipelineFile("sample_${i.intdiv(8)}_L00${(i.intdiv(2)) % 4 + 1}_R${i % 2 + 1}.fastq.gz")
+        }
+        Collections.shuffle(inputs, new Random(0))
+        InputSplitter splitter = new InputSplitter()
+        return { splitter.split('sample_%_*.fastq.gz', inputs) }
+    }
+    
+    OutputMetaData createOutputMetaData(int i) {
+        PipelineFile file = new LocalPipelineFile(new File(dir, "sample_${i}.bam").path)
+        OutputMetaData metaData = new OutputMetaData(file)
+        metaData.outputFile = file
+        metaData.inputs = ["sample_${i}_R1.fastq.gz".toString(), "sample_${i}_R2.fastq.gz".toString()]
+        metaData.canonicalPath = metaData.outputFile.path
+        metaData.command = "bwa mem -t 8 reference.fa sample_${i}_R1.fastq.gz sample_${i}_R2.fastq.gz | samtools sort -o sample_${i}.bam -".toString()
+        metaData.commandId = String.valueOf(i)
+        metaData.stageName = 'align'
+        metaData.branchPath = "sample_$i"
+        metaData.tools = 'bwa: 0.7.17, samtools: 1.9'
+        metaData.propertyFile = new File(dir, "sample_${i}.bam.properties")
+        return metaData
+    }
+    
+    Closure outputMetaDataSave(Map params) {
+        List<OutputMetaData> outputs = (List<OutputMetaData>)(1..100).collect { int i -> createOutputMetaData(i) }
+        int next = 0
+        return { 
+            OutputMetaData metaData = outputs[next++ % outputs.size()]
+            metaData.save()
+            return metaData
+        }
+    }
+    
+    Closure outputMetaDataRead(Map params) {
+        List<File> files = (List<File>)(1..100).collect { int i -> 
+            OutputMetaData metaData = createOutputMetaData(i)
+            metaData.save()
+            metaData.propertyFile
+        }
+        int next = 0
+        return { 
+            OutputMetaData metaData = new OutputMetaData()
+            metaData.read(files[next++ % files.size()])
+            return metaData
+        }
+    }
+    
+    /**
+     * Build the dependency graph of <code>size</code> outputs, each depending on up to 3 
+     * outputs created before it, or on one of the pipeline's inputs
+     */
+    Closure computeOutputGraph(Map params) {
+        int size = (int)params.size
+        Random random = new Random(0)
+        List<OutputMetaData> outputs = []
+        for(int i=0; i<size; ++i) {
+            PipelineFile file = new ExistingFile("out${i}.txt")
+            OutputMetaData out = new OutputMetaData(file)
+            out.outputFile = file
+            out.canonicalPath = new File("out${i}.txt").canonicalPath
+            out.inputs = (List<String>)(0..<(1 + random.nextInt(3))).collect {
+                outputs && random.nextInt(5) > 0 ? outputs[random.nextInt(outputs.size())].outputPath : "input${random.nextInt(3)}.txt".toString()
+            }.unique()
+            out.timestamp = i
+            outputs << out
+        }
+        Collections.shuffle(outputs, random)
+        return { Dependencies.theInstance.computeOutputGraph(outputs) }
+    }
+    
+    /**
+     * Split <code>size</code> regions, spread across 24 chromosomes, into <code>parts</code> parts
+     */
+    Closure regionSetSplit(Map params) {
+        int size = (int)params.size
+        Random random = new Random(0)
+        RegionSet regions = new RegionSet()
+        for(int i=0; i<size; ++i) {
+            int start = 1000 * i + random.nextInt(500)
+            regions.addSequence(new Sequence(name: "chr${i % 24 + 1}".toString(), range: new GenomicRange(start..(start + 100 + random.nextInt(400)))))
+        }
+        int parts = (int)params.parts
+        return { regions.split(parts) }
+    }
+    
+    /**
+     * Buffer and discard <code>size</code> lines of command output in a branch's output log
+     */
+    Closure outputLog(Map params) {
+        String output = (1..(int)params.size).collect { int i -> "Processed $i of ${params.size} records" }.join('\n')
+        OutputLog log = new OutputLog('sample_1')
+        return { 
+            log.buffer(output)
+            log.buffer.setLength(0)
+            return log
+        }
+    }
+    
+    /**
+     * A stage making typical DSL calls: commands, a produce with a body, and references to
+     * the branch and the input. The stage is compiled with and without 
+     * {@link bpipe.ast.DslCallTransformation}, and its commands are not run.
+     */
+    Closure dslCalls(Map params) {
+        CompilerConfiguration config = new CompilerConfiguration()
+        if(params.compiled)
+            config.addCompilationCustomizers(new DslCallTransformation())
+            
+        Binding binding = new Binding()
+        new GroovyShell(binding, config).evaluate('''
+            stage = {
+                for(int i=0; i<5; ++i) {
+                    exec "echo $i > /dev/null"
+                }
+                produce('out.txt') {
+                    exec 'touch out.txt'
+                }
+                def name = branch.name
+                def inputs = input
+            }
+        ''')
+        
+        Branch branch = new Branch(name: 'sample_1')
+        PipelineContext ctx = new DslBenchmarkContext(branch)
+        Closure stage = (Closure)binding.getVariable('stage')
+        PipelineDelegate.setDelegateOn(ctx, stage)
+        return { stage.call() }
+    }
+    
+    static void main(String [] args) {
+        Config.userConfig = (Map<String,Object>)new ConfigObject()
+        
+        // Logging is excluded from the cost of every operation
+        Logger.getLogger('').level = Level.WARNING
+        
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-core-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+        
+        CoreBenchmarks benchmarks = new CoreBenchmarks(dir: Files.createTempDirectory('bpipe_core_benchmarks').toFile())
+        try {
+            MicroBenchmark.runAll(CoreBenchmarks.name, benchmarks.benchmarks, filter, resultFile)
+        }
+        finally {
+            benchmarks.dir.deleteDir()
+        }
+    }
+    
+    /**
+     * A context that discards commands instead of running them
+     */
+    static class DslBenchmarkContext extends PipelineContext {
+        
+        int commands = 0
+        
+        DslBenchmarkContext(Branch branch) {
+            super(null, [new PipelineStage(null)], (Set<Closure>)Collections.emptySet(), branch)
+            setInput([new LocalPipelineFile('sample_1.fastq.gz')])
+        }
+        
+        @Override
+        void exec(String cmd, boolean joinNewLines, String config, List<CommandDependency> dependencies) {
+            ++commands
+        }
+        
+        @Override
+        Object produceImpl(Object rawOut, Closure body, boolean explicit) {
+            return body.call()
+        }
+    }
+    
+    /**
+     * An output that is known to exist, so that building the graph does not 
+     * depend on the file system
+     */
+    static class ExistingFile extends LocalPipelineFile {
+        ExistingFile(String path) {
+            super(path)
+        }
+        
+        @Override
+        boolean exists() {
+            return true
+        }
+    }
+}
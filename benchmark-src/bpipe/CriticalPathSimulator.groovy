@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Replays the commands of a recorded run to compare the default order of granting resources
+ * (first come, first served) with granting them in order of remaining path length, as
+ * the {@link CriticalPathPlanner} does.
+ * <p>
+ * The dependencies between commands are inferred from the recorded run (see {@link PathHistory}),
+ * and each command is replayed with the duration it took and the threads it was allocated, on a 
+ * simulated pipeline limited to a given number of concurrent threads (as set by <code>-n</code>). 
+ * The path lengths used by the planner are taken from the recorded run itself, as if they had been 
+ * learned from a previous run.
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew simulate -Psimulator=CriticalPathSimulator -PsimulatorArgs="&lt;dir&gt;/.bpipe/results/1234.xml &lt;threads&gt;"
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+class CriticalPathSimulator {
+
+    /**
+     * Result of simulating a run with one policy
+     */
+    @CompileStatic
+    static class Result {
+
+        String policy
+
+        long makespanMs
+
+        long totalWaitMs
+
+        String toString() {
+            String.format("%-14s makespan=%10.1fs  total wait=%12.1fs", policy, makespanMs/1000.0d, totalWaitMs/1000.0d)
+        }
+    }
+
+    /**
+     * Number of threads that may be in use at once
+     */
+    int threads
+
+    long maxWaitMs = 300000L
+
+    @CompileStatic
+    Result simulate(List<CommandTiming> timings, boolean criticalPath) {
+
+        Map<CommandTiming,List<CommandTiming>> dependencies = PathHistory.inferDependencies(timings)
+
+        PathHistory history = new PathHistory()
+        if(criticalPath)
+            history.addRun(timings)
+
+        Map<CommandTiming,Integer> unfinishedDependencies = new IdentityHashMap<CommandTiming,Integer>()
+        Map<CommandTiming,List<CommandTiming>> dependents = new IdentityHashMap<CommandTiming,List<CommandTiming>>()
+        List<CommandTiming> ordered = PathHistory.order(timings)
+        for(CommandTiming t in ordered) {
+            List<CommandTiming> deps = dependencies[t]
+            unfinishedDependencies[t] = deps.size()
+            for(CommandTiming dep in deps)
+                dependents.get(dep, []).add(t)
+        }
+
+        Result result = new Result(policy: criticalPath ? 'critical-path' : 'fifo')
+
+        Map<PermitRequest,CommandTiming> waiting = new LinkedHashMap<PermitRequest,CommandTiming>()
+        Map<CommandTiming,Long> finishTimes = new IdentityHashMap<CommandTiming,Long>()
+        long sequence = 0L
+
+        Closure makeReady = { CommandTiming t, long now ->
+            PermitRequest request = new PermitRequest(
+                amount: Math.min(Math.max(t.threads, 1), threads),
+                priorityMs: criticalPath ? Math.max(0L, history.remainingMs(t.branchPath, t.stage, 0L)) : 0L,
+                requestTimeMs: now,
+                sequence: ++sequence
+            )
+            waiting[request] = t
+        }
+
+        for(CommandTiming t in ordered) {
+            if(unfinishedDependencies[t] == 0)
+                makeReady(t, 0L)
+        }
+
+        long now = 0L
+        int free = threads
+        while(!waiting.isEmpty() || !finishTimes.isEmpty()) {
+
+            List<PermitRequest> requests = new ArrayList<PermitRequest>(waiting.keySet())
+            List<PermitRequest> granted = criticalPath ?
+                CriticalPathPlanner.selectGrants(requests, free, now, maxWaitMs) : selectFifo(requests, free)
+
+            for(PermitRequest r in granted) {
+                CommandTiming t = waiting.remove(r)
+                free -= r.amount
+                result.totalWaitMs += now - r.requestTimeMs
+                finishTimes[t] = now + t.durationMs
+            }
+
+            if(finishTimes.isEmpty())
+                break
+
+            // Advance to the next command to finish
+            now = finishTimes.values().min()
+            List<CommandTiming> finished = finishTimes.findAll { it.value <= now }.keySet().toList()
+            for(CommandTiming t in finished) {
+                finishTimes.remove(t)
+                free += Math.min(Math.max(t.threads, 1), threads)
+                for(CommandTiming dependent in dependents.get(t, (List<CommandTiming>)[])) {
+                    int remaining = unfinishedDependencies[dependent] - 1
+                    unfinishedDependencies[dependent] = remaining
+                    if(remaining == 0)
+                        makeReady(dependent, now)
+                }
+            }
+            result.makespanMs = now
+        }
+
+        if(!waiting.isEmpty())
+            log.warning "${waiting.size()} commands could not be scheduled"
+
+        return result
+    }
+
+    /**
+     * Grant strictly in the order requested, until the first request that doesn't fit,
+     * as a plain {@link java.util.concurrent.Semaphore} does
+     */
+    @CompileStatic
+    static List<PermitRequest> selectFifo(List<PermitRequest> requests, int available) {
+        List<PermitRequest> result = []
+        for(PermitRequest r in requests.sort(false) { PermitRequest request -> request.sequence }) {
+            if(r.amount > available)
+                break
+            result << r
+            available -= r.amount
+        }
+        return result
+    }
+
+    static void main(String [] args) {
+
+        if(args.size() < 2) {
+            System.err.println "Usage: CriticalPathSimulator <result xml file> <threads>"
+            System.exit(1)
+        }
+
+        List<CommandTiming> timings = PathHistory.readResultFile(new File(args[0]))
+
+        CriticalPathSimulator simulator = new CriticalPathSimulator(threads: args[1].toInteger())
+
+        println "\nReplaying ${timings.size()} commands from ${args[0]} with $simulator.threads threads\n"
+
+        Result fifo = simulator.simulate(timings, false)
+        Result critical = simulator.simulate(timings, true)
+
+        println fifo
+        println critical
+
+        if(critical.makespanMs > 0)
+            println "\nMakespan speedup: " + String.format('%.2fx', fifo.makespanMs / (double)critical.makespanMs) + "\n"
+    }
+}
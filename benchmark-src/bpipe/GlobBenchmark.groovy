@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Files
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.logging.Level
+import java.util.logging.Logger
+
+import bpipe.storage.LocalFileSystemStorageLayer
+import groovy.transform.CompileStatic
+
+/**
+ * Measures repeated globbing of the same large directory from many concurrent
+ * branches, as happens when every branch of a pipeline calls <code>glob(...)</code>
+ * over a shared input directory, with and without the {@link DirectoryListingCache}.
+ * Results are written in JMH's JSON format (see {@link MicroBenchmark}).
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=GlobBenchmark
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class GlobBenchmark {
+
+    int branches = 100
+
+    int threads = 8
+
+    File dir
+    
+    ExecutorService pool
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'concurrentGlob', params: [size: [1000, 10000], cached: [false, true]], setup: this.&concurrentGlob),
+        ]
+    }
+
+    /**
+     * Glob a directory of <code>size</code> files once from each branch, each selecting that 
+     * branch's files, using <code>threads</code> threads
+     */
+    Closure concurrentGlob(Map params) {
+        File globDir = createTestDirectory(new File(dir, "files_${params.size}"), (int)params.size)
+        DirectoryListingCache cache = params.cached ? DirectoryListingCache.theInstance : null
+        cache?.clear()
+        return {
+            List<Future<List<String>>> results = (0..<branches).collect { int branch ->
+                pool.submit({
+                    FileGlobber globber = new FileGlobber(storage: new LocalFileSystemStorageLayer(), cache: cache)
+                    globber.glob(globDir.path + "/sample_${branch % 100}_*.fastq.gz")
+                } as Callable<List<String>>)
+            }
+            int matched = (int)results.sum { Future<List<String>> f -> f.get().size() }
+            assert matched > 0
+            return matched
+        }
+    }
+
+    static File createTestDirectory(File dir, int files) {
+        if(dir.exists())
+            return dir
+            
+        dir.mkdirs()
+        for(int i=0; i<files; ++i) {
+            new File(dir, "sample_${i % 100}_${i}.fastq.gz").text = ''
+        }
+
+        // Pipeline inputs usually already exist before the run starts: make the
+        // directory old enough for its listing to be cacheable
+        Files.setLastModifiedTime(dir.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 60000L))
+        return dir
+    }
+
+    static void main(String [] args) {
+        // Logging is excluded from the cost of every operation
+        Logger.getLogger('').level = Level.WARNING
+        
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-glob-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+
+        GlobBenchmark benchmark = new GlobBenchmark(dir: Files.createTempDirectory('bpipe_glob_benchmark').toFile())
+        benchmark.pool = Executors.newFixedThreadPool(benchmark.threads)
+        try {
+            MicroBenchmark.runAll(GlobBenchmark.name, benchmark.benchmarks, filter, resultFile)
+        }
+        finally {
+            benchmark.pool.shutdown()
+            benchmark.dir.deleteDir()
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.logging.Level
+import java.util.logging.Logger
+
+import bpipe.storage.LocalPipelineFile
+import groovy.transform.CompileStatic
+
+/**
+ * Measures resolution of <code>$input.ext</code> style references against the outputs of
+ * a deep pipeline, comparing the indexed lookup of plain extensions with testing an
+ * equivalent regular expression against every upstream output.
+ * <p>
+ * Each stage of the simulated pipeline outputs a number of files with an extension
+ * unique to that stage. Lookups are made from each stage in turn, alternately referencing 
+ * the output of a stage a random distance upstream and the original input at the top of 
+ * the pipeline. Results are written in JMH's JSON format (see {@link MicroBenchmark}).
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=InputResolutionBenchmark
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class InputResolutionBenchmark {
+
+    int stages = 300
+
+    int filesPerStage = 50
+
+    /**
+     * Outputs of each stage in reverse order (as they are searched), with the
+     * original inputs last
+     */
+    List<List<PipelineFile>> reverseOutputs
+
+    void createOutputs() {
+        reverseOutputs = (List<List<PipelineFile>>)(stages..1).collect { int stage ->
+            (List<PipelineFile>)LocalPipelineFile.from((1..filesPerStage).collect { int i -> "out/sample_${i}.stage${stage}.bam".toString() } as List<Object>)
+        }
+        reverseOutputs.add((List<PipelineFile>)LocalPipelineFile.from((1..filesPerStage).collect { int i -> "sample_${i}.fastq.gz".toString() } as List<Object>))
+    }
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'deepPipeline', params: [size: [100, 300], indexed: [false, true]], setup: this.&deepPipeline),
+        ]
+    }
+
+    /**
+     * Resolve a reference from the next stage of a pipeline of <code>size</code> stages
+     */
+    Closure deepPipeline(Map params) {
+        InputResolutionBenchmark pipeline = new InputResolutionBenchmark(stages: (int)params.size, filesPerStage: filesPerStage)
+        pipeline.createOutputs()
+        boolean indexed = (boolean)params.indexed
+        PipelineInput input = new PipelineInput([], [], new Aliases())
+
+        // Index of each stage's outputs is held for the whole run, as by each stage's context
+        Map<List<PipelineFile>,PipelineFileIndex> indexes = indexed ? new IdentityHashMap<List<PipelineFile>,PipelineFileIndex>() : null
+
+        Random random = new Random(0)
+        int lookups = 0
+        return {
+            int lookup = lookups++
+            int stage = lookup.intdiv(2) % pipeline.stages + 1
+            
+            // The current stage can only see stages upstream of itself
+            List<List<PipelineFile>> visible = pipeline.reverseOutputs.subList(pipeline.stages - stage + 1, pipeline.reverseOutputs.size())
+            String ext = (lookup % 2 == 0 || stage == 1) ? 'fastq.gz' : "stage${stage - 1 - random.nextInt(Math.min(stage - 1, 20))}.bam".toString()
+            String regex = indexed ? ext.replace('.', '\\.') + '$' : ext.replace('.', '[.]') + '$'
+            List<PipelineFile> result = input.resolveInputFromRawExtension(regex, ext, visible, indexes)
+            assert result != null && result.size() == pipeline.filesPerStage
+            return result
+        }
+    }
+
+    static void main(String [] args) {
+        // Logging is excluded from the cost of every operation
+        Logger.getLogger('').level = Level.WARNING
+        
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-input-resolution-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+        MicroBenchmark.runAll(InputResolutionBenchmark.name, new InputResolutionBenchmark().benchmarks, filter, resultFile)
+    }
+}
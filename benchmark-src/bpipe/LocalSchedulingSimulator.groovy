@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A command replayed by the {@link LocalSchedulingSimulator}
+ */
+@CompileStatic
+class SimulatedCommand {
+
+    String id
+
+    String stage
+
+    /**
+     * Time (relative to the start of the run) at which the command became ready to run
+     */
+    long readyMs
+
+    long durationMs
+
+    int threads = 1
+
+    long declaredMemoryMB = 0L
+
+    /**
+     * Peak RSS actually used by the command, 0 if unknown
+     */
+    long peakRssMB = 0L
+
+    // Populated by the simulation
+    long startMs = -1L
+
+    long reservedMB = 0L
+}
+
+/**
+ * Result of simulating a run with one scheduling policy
+ */
+@CompileStatic
+class SimulationResult {
+
+    String policy
+
+    long makespanMs
+
+    long totalWaitMs
+
+    long peakRssMB
+
+    /**
+     * Number of times the combined RSS of running commands exceeded the available memory
+     */
+    int oomEvents
+
+    String toString() {
+        String.format("%-14s makespan=%8.1fs  total wait=%10.1fs  peak RSS=%8dMB  OOM events=%d",
+            policy, makespanMs/1000.0d, totalWaitMs/1000.0d, peakRssMB, oomEvents)
+    }
+}
+
+/**
+ * Replays the command mix of a recorded run against a simulated machine to compare the
+ * default first-come-first-served admission of local commands (by declared resources)
+ * with the memory aware bin-packing of the {@link LocalMemoryScheduler}.
+ * <p>
+ * The command mix is read from the result file that Bpipe writes for each run
+ * (<code>.bpipe/results/&lt;pid&gt;.xml</code>). Each command is treated as becoming ready
+ * at the time it started in the recorded run, and as running for the duration it took and
+ * reaching the peak RSS that was captured for it. The per-stage memory history that the memory
+ * aware policy uses is taken to be the largest peak RSS of the stage in the recorded run,
+ * as if it had been learned from a previous run.
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew simulate -PsimulatorArgs="&lt;dir&gt;/.bpipe/results/1234.xml &lt;cores&gt; &lt;memory MB&gt;"
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+class LocalSchedulingSimulator {
+
+    int cores
+
+    long memoryMB
+
+    double rssHeadroom = 1.2d
+
+    long maxWaitMs = 120000L
+
+    @CompileStatic
+    SimulationResult simulate(List<SimulatedCommand> commands, boolean memoryAware) {
+
+        Map<String,Long> stagePeaks = [:]
+        for(SimulatedCommand c in commands) {
+            if(c.peakRssMB > 0)
+                stagePeaks[c.stage] = Math.max(c.peakRssMB, stagePeaks.get(c.stage, 0L))
+        }
+
+        List<SimulatedCommand> pending = commands.sort(false) { SimulatedCommand c -> c.readyMs }
+        List<SimulatedCommand> waiting = []
+        List<SimulatedCommand> running = []
+        Map<SchedulingRequest,SimulatedCommand> requests = [:]
+
+        SimulationResult result = new SimulationResult(policy: memoryAware ? 'memory-aware' : 'fifo-declared')
+
+        long now = 0L
+        int index = 0
+        boolean overCommitted = false
+        while(index < pending.size() || !waiting.isEmpty() || !running.isEmpty()) {
+
+            while(index < pending.size() && pending[index].readyMs <= now)
+                waiting << pending[index++]
+
+            running.removeAll { SimulatedCommand c -> c.startMs + c.durationMs <= now }
+
+            int freeThreads = cores - (int)(running.sum { SimulatedCommand c -> c.threads } ?: 0)
+            long usedMB = (long)(running.sum { SimulatedCommand c -> Math.max(c.reservedMB, c.peakRssMB) } ?: 0L)
+
+            List<SimulatedCommand> admitted
+            if(memoryAware) {
+                List<SchedulingRequest> waitingRequests = waiting.collect { SimulatedCommand c ->
+                    Long peak = stagePeaks[c.stage]
+                    SchedulingRequest r = new SchedulingRequest(
+                        commandId: c.id,
+                        stage: c.stage,
+                        threads: c.threads,
+                        declaredMemoryMB: c.declaredMemoryMB,
+                        memoryMB: peak != null ? (long)Math.ceil(peak * rssHeadroom) : c.declaredMemoryMB,
+                        requestTimeMs: c.readyMs
+                    )
+                    requests[r] = c
+                    return r
+                }
+                admitted = LocalMemoryScheduler.selectAdmissible(waitingRequests, freeThreads, memoryMB - usedMB, running.isEmpty(), now, maxWaitMs).collect { SchedulingRequest r ->
+                    SimulatedCommand c = requests[r]
+                    c.reservedMB = r.memoryMB
+                    return c
+                }
+                requests.clear()
+            }
+            else {
+                admitted = selectFifo(waiting, freeThreads, memoryMB - usedMB, running.isEmpty())
+            }
+
+            for(SimulatedCommand c in admitted) {
+                c.startMs = now
+                result.totalWaitMs += now - c.readyMs
+                waiting.remove(c)
+                running << c
+            }
+
+            long rssMB = (long)(running.sum { SimulatedCommand c -> c.peakRssMB } ?: 0L)
+            result.peakRssMB = Math.max(result.peakRssMB, rssMB)
+            if(rssMB > memoryMB) {
+                if(!overCommitted)
+                    ++result.oomEvents
+                overCommitted = true
+            }
+            else
+                overCommitted = false
+
+            // Advance to the next event
+            long next = Long.MAX_VALUE
+            if(index < pending.size())
+                next = pending[index].readyMs
+            for(SimulatedCommand c in running)
+                next = Math.min(next, c.startMs + c.durationMs)
+
+            if(next == Long.MAX_VALUE)
+                break
+
+            now = Math.max(next, now)
+            result.makespanMs = Math.max(result.makespanMs, now)
+        }
+
+        return result
+    }
+
+    /**
+     * Admit strictly in order of readiness, by declared resources, until the
+     * first command that doesn't fit.
+     */
+    @CompileStatic
+    static List<SimulatedCommand> selectFifo(List<SimulatedCommand> waiting, int freeThreads, long freeMemoryMB, boolean idle) {
+        List<SimulatedCommand> result = []
+        for(SimulatedCommand c in waiting) {
+            boolean fits = c.threads <= freeThreads && c.declaredMemoryMB <= freeMemoryMB
+            if(!fits && !(idle && result.isEmpty()))
+                break
+            c.reservedMB = c.declaredMemoryMB
+            freeThreads -= c.threads
+            freeMemoryMB -= c.declaredMemoryMB
+            result << c
+        }
+        return result
+    }
+
+    /**
+     * Read the command mix from a Bpipe result file
+     */
+    static List<SimulatedCommand> readResultFile(File resultFile) {
+
+        def dom = new XmlSlurper().parse(resultFile)
+
+        Closure<Long> toMs = { value ->
+            Date.parse(Pipeline.DATE_FORMAT, value.text()).time
+        }
+
+        List<SimulatedCommand> commands = []
+        dom.commands.command.each { cmd ->
+            if(cmd.start.text().startsWith('1970') || cmd.end.text().startsWith('1970'))
+                return
+
+            SimulatedCommand c = new SimulatedCommand(
+                id: cmd.id.text(),
+                stage: cmd.stage.text(),
+                readyMs: toMs(cmd.start),
+                durationMs: Math.max(0L, toMs(cmd.end) - toMs(cmd.start))
+            )
+
+            String procs = cmd.resources.procs.text()
+            if(procs.isInteger())
+                c.threads = procs.toInteger()
+
+            String memory = cmd.resources.memory.text()
+            if(memory) {
+                try {
+                    c.declaredMemoryMB = ResourceUnit.memory(memory).amount
+                }
+                catch(PipelineError e) {
+                    log.info "Ignoring unparseable memory value $memory for command $c.id"
+                }
+            }
+
+            String rss = cmd.utilisation.maxRssBytes.text()
+            if(rss.isLong())
+                c.peakRssMB = rss.toLong() >> 20
+
+            commands << c
+        }
+
+        long startMs = commands*.readyMs.min() ?: 0L
+        commands.each { it.readyMs -= startMs }
+
+        return commands
+    }
+
+    static void main(String [] args) {
+
+        if(args.size() < 3) {
+            System.err.println "Usage: LocalSchedulingSimulator <result xml file> <cores> <memory MB>"
+            System.exit(1)
+        }
+
+        List<SimulatedCommand> commands = readResultFile(new File(args[0]))
+
+        LocalSchedulingSimulator simulator = new LocalSchedulingSimulator(cores: args[1].toInteger(), memoryMB: args[2].toLong())
+
+        println "\nReplaying ${commands.size()} commands from ${args[0]} on $simulator.cores cores / $simulator.memoryMB MB\n"
+
+        SimulationResult fifo = simulator.simulate(commands, false)
+        SimulationResult packed = simulator.simulate(commands, true)
+
+        println fifo
+        println packed
+
+        if(packed.makespanMs > 0)
+            println "\nMakespan speedup: " + String.format('%.2fx', fifo.makespanMs / (double)packed.makespanMs) + "\n"
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.lang.management.ManagementFactory
+
+import groovy.json.JsonOutput
+import groovy.transform.CompileStatic
+
+/**
+ * A small harness for timing operations of the core engine, in the style of JMH.
+ * <p>
+ * For each combination of parameters, the setup closure is called with the parameter
+ * values and returns the operation to time. The operation is run repeatedly for a number of
+ * warmup iterations, whose results are discarded, and then for the measured iterations, each
+ * of which lasts at least <code>iterationMs</code> and gives the throughput in operations
+ * per second. The result of every operation is consumed so that the JIT cannot optimise
+ * the operation away.
+ * <p>
+ * Results are written in the JSON format produced by JMH, so that runs can be compared 
+ * with each other and with the same tools used for JMH results. When a benchmark has a
+ * <code>size</code> parameter, the time per operation between successive sizes is used to
+ * estimate how the operation scales (1 for linear, 2 for quadratic).
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class MicroBenchmark {
+    
+    String name
+    
+    /**
+     * Values of each parameter, every combination of which is measured
+     */
+    Map<String,List<Object>> params = [:]
+    
+    /**
+     * Called with the parameter values, returns the operation to time
+     */
+    Closure<Closure> setup
+    
+    int warmupIterations = 3
+    
+    int iterations = 5
+    
+    long iterationMs = 1000
+    
+    private int sink
+    
+    /**
+     * Run every combination of parameters, printing each result
+     * 
+     * @param prefix    prefix for the benchmark name in the results
+     * @return  the results, as JMH result maps
+     */
+    List<Map> run(String prefix) {
+        List<Map> results = []
+        for(Map<String,Object> combination in combinations(params)) {
+            Closure op = setup.call(combination)
+            
+            for(int i=0; i<warmupIterations; ++i)
+                measure(op)
+            List<Double> scores = (List<Double>)(1..iterations).collect { measure(op) }
+            
+            Map result = toResult(prefix + '.' + name, combination, scores)
+            results << result
+            printResult(result)
+        }
+        
+        printScaling(results)
+        return results
+    }
+    
+    /**
+     * @return  every combination of the given parameter values, varying the last parameter fastest
+     */
+    static List<Map<String,Object>> combinations(Map<String,List<Object>> params) {
+        List<Map<String,Object>> combinations = [[:]] as List<Map<String,Object>>
+        params.each { String param, List<Object> values ->
+            combinations = (List<Map<String,Object>>)combinations.collectMany { Map<String,Object> combination ->
+                values.collect { Object value -> combination + [(param): value] }
+            }
+        }
+        return combinations
+    }
+    
+    /**
+     * @return  operations per second
+     */
+    double measure(Closure op) {
+        long startNs = System.nanoTime()
+        long endNs = startNs + iterationMs * 1000000L
+        long ops = 0
+        long nowNs
+        while(true) {
+            Object result = op.call()
+            sink += System.identityHashCode(result)
+            ++ops
+            nowNs = System.nanoTime()
+            if(nowNs >= endNs)
+                break
+        }
+        return ops / ((nowNs - startNs) / 1.0e9d)
+    }
+    
+    Map toResult(String benchmark, Map<String,Object> combination, List<Double> scores) {
+        double mean = (double)scores.sum() / scores.size()
+        double sd = scores.size() > 1 ? Math.sqrt((double)scores.sum { double s -> (s - mean) * (s - mean) } / (scores.size() - 1)) : 0.0d
+        
+        // Half width of the 99.9% confidence interval, as reported by JMH
+        double error = 3.29d * sd / Math.sqrt(scores.size())
+        
+        return [
+            jmhVersion: 'bpipe',
+            benchmark: benchmark,
+            mode: 'thrpt',
+            threads: 1,
+            forks: 1,
+            jvm: System.getProperty('java.home'),
+            jvmArgs: ManagementFactory.runtimeMXBean.inputArguments,
+            jdkVersion: System.getProperty('java.version'),
+            vmName: System.getProperty('java.vm.name'),
+            vmVersion: System.getProperty('java.vm.version'),
+            warmupIterations: warmupIterations,
+            warmupTime: "$iterationMs ms".toString(),
+            measurementIterations: iterations,
+            measurementTime: "$iterationMs ms".toString(),
+            params: combination.collectEntries { String k, Object v -> [k, String.valueOf(v)] },
+            primaryMetric: [
+                score: mean,
+                scoreError: error,
+                scoreConfidence: [mean - error, mean + error],
+                scoreUnit: 'ops/s',
+                rawData: [scores]
+            ],
+            secondaryMetrics: [:]
+        ]
+    }
+    
+    void printResult(Map result) {
+        Map metric = (Map)result.primaryMetric
+        String params = ((Map)result.params).collect { k, v -> "$k=$v" }.join(', ')
+        println String.format('%-50s %14.1f +- %10.1f %s', "$name ($params)".toString(), (double)metric.score, (double)metric.scoreError, metric.scoreUnit)
+    }
+    
+    /**
+     * For results differing only in size, print the exponent of the growth in time per operation
+     */
+    void printScaling(List<Map> results) {
+        Map<String,List<Map>> groups = results.groupBy { Map result -> 
+            ((Map)result.params).findAll { k, v -> k != 'size' }.toString()
+        }
+        groups.each { String others, List<Map> group ->
+            for(int i=1; i<group.size(); ++i) {
+                Map small = group[i-1]
+                Map large = group[i]
+                if(!((Map)small.params).size || !((Map)large.params).size)
+                    continue
+                double sizeRatio = Double.parseDouble((String)((Map)large.params).size) / Double.parseDouble((String)((Map)small.params).size)
+                double timeRatio = (double)((Map)small.primaryMetric).score / (double)((Map)large.primaryMetric).score
+                println String.format('%-50s %14.2f', "  scaling ${((Map)small.params).size} -> ${((Map)large.params).size}".toString(), Math.log(timeRatio) / Math.log(sizeRatio))
+            }
+        }
+    }
+    
+    /**
+     * Run each of the benchmarks whose name contains the filter, and write their results
+     * to the given file
+     * 
+     * @param prefix    prefix for the benchmark names in the results
+     * @return  the results, as JMH result maps
+     */
+    static List<Map> runAll(String prefix, List<MicroBenchmark> benchmarks, String filter, File resultFile) {
+        List<Map> results = []
+        for(MicroBenchmark benchmark in benchmarks.grep { MicroBenchmark b -> b.name.contains(filter) }) {
+            results.addAll(benchmark.run(prefix))
+        }
+        writeResults(resultFile, results)
+        println "\nResults written to $resultFile\n"
+        return results
+    }
+    
+    /**
+     * Write results in JMH's JSON format
+     */
+    static void writeResults(File file, List<Map> results) {
+        if(file.parentFile != null)
+            file.parentFile.mkdirs()
+        file.text = JsonOutput.prettyPrint(JsonOutput.toJson(results))
+    }
+}
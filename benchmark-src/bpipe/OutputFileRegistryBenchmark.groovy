@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.logging.Level
+import java.util.logging.Logger
+
+import bpipe.OutputFileRegistry.FileRegistration
+import bpipe.storage.LocalPipelineFile
+import groovy.transform.CompileStatic
+
+/**
+ * Measures the throughput of output registration when many branches complete at once,
+ * as in a wide scatter, comparing the {@link OutputFileRegistry} with registration into a
+ * single synchronized map (as was done previously). Each operation registers the outputs 
+ * of every branch, divided between <code>threads</code> threads. Results are written in 
+ * JMH's JSON format (see {@link MicroBenchmark}).
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=OutputFileRegistryBenchmark
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class OutputFileRegistryBenchmark {
+
+    int branches = 20000
+
+    int filesPerBranch = 10
+    
+    List<Object> threads = [1, 2, 4, 8] as List<Object>
+
+    List<List<PipelineFile>> outputs
+    
+    ExecutorService pool
+
+    void createOutputs() {
+        outputs = (0..<branches).collect { int branch ->
+            (List<PipelineFile>)(0..<filesPerBranch).collect { int i ->
+                (PipelineFile)new LocalPipelineFile("sample_${branch}/sample_${branch}.${i}.bam")
+            }
+        }
+    }
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'registerOutputs', params: [threads: threads, map: ['synchronized', 'registry']], setup: this.&registerOutputs),
+        ]
+    }
+    
+    Closure registerOutputs(Map params) {
+        int threadCount = (int)params.threads
+        if(params.map == 'registry') {
+            OutputFileRegistry registry = OutputFileRegistry.theInstance
+            return {
+                registry.outputFiles.clear()
+                registerAll(threadCount) { String stageName, List<PipelineFile> files ->
+                    registry.registerIfAbsent(stageName, files).isEmpty()
+                }
+            }
+        }
+        else {
+            return {
+                Map<String, FileRegistration> outputFiles = Collections.synchronizedMap(new HashMap<String, FileRegistration>())
+                registerAll(threadCount) { String stageName, List<PipelineFile> files ->
+                    if(files.any { PipelineFile f -> outputFiles.containsKey(f.path) })
+                        return false
+                    for(PipelineFile file in files) {
+                        outputFiles[file.path] = new FileRegistration(stageName: stageName, file: file)
+                    }
+                    return true
+                }
+            }
+        }
+    }
+
+    /**
+     * Register the outputs of every branch, divided between the given number of threads
+     *
+     * @return  the number of branches registered
+     */
+    int registerAll(int threadCount, Closure<Boolean> register) {
+        List<Future<Integer>> results = (0..<threadCount).collect { int thread ->
+            pool.submit({
+                int count = 0
+                for(int branch = thread; branch < branches; branch += threadCount) {
+                    if(register("stage_$branch".toString(), outputs[branch]))
+                        ++count
+                }
+                return count
+            } as Callable<Integer>)
+        }
+        int registered = (int)results.sum { Future<Integer> f -> f.get() }
+        assert registered == branches
+        return registered
+    }
+
+    static void main(String [] args) {
+        // Logging is excluded from the cost of every operation
+        Logger.getLogger('').level = Level.WARNING
+        
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-output-registry-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+        
+        OutputFileRegistryBenchmark benchmark = new OutputFileRegistryBenchmark()
+        benchmark.createOutputs()
+        benchmark.pool = Executors.newFixedThreadPool((int)benchmark.threads.max { Object t -> (int)t })
+        try {
+            MicroBenchmark.runAll(OutputFileRegistryBenchmark.name, benchmark.benchmarks, filter, resultFile)
+        }
+        finally {
+            benchmark.pool.shutdown()
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.logging.Level
+import java.util.logging.Logger
+
+import groovy.transform.CompileStatic
+
+/**
+ * Compares the throughput of running short commands directly from the JVM with running them 
+ * through the {@link SpawnHelper}, with one or several threads spawning commands at once and 
+ * optionally with a large amount of the heap in use. Each operation runs one command from 
+ * each of <code>threads</code> threads. Results are written in JMH's JSON format 
+ * (see {@link MicroBenchmark}).
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkClass=SpawnBenchmark [-PbenchmarkArgs=&lt;heap MB&gt;]
+ * </pre>
+ * The heap must be large enough for the given amount of memory to be used (see <code>-Xmx</code>).
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class SpawnBenchmark {
+    
+    List<Object> threads = [1, 8] as List<Object>
+    
+    int heapMB = 0
+    
+    List<byte[]> ballast = []
+    
+    SpawnHelper helper
+    
+    ExecutorService pool
+    
+    /**
+     * The same status probe that is used for local commands
+     */
+    List<String> command = ['ps', '-o', 'ppid,ruser', '-p', String.valueOf(ProcessHandle.current().pid())]
+    
+    List<MicroBenchmark> getBenchmarks() {
+        [
+            new MicroBenchmark(name: 'spawn', params: [threads: threads, spawner: ['direct', 'helper']], setup: this.&spawn),
+        ]
+    }
+    
+    Closure spawn(Map params) {
+        int threadCount = (int)params.threads
+        Callable<ExecutedProcess> spawner = params.spawner == 'helper' ?
+            { helper.execute(command, null, 0L) } as Callable<ExecutedProcess> :
+            { Utils.startProcess([:], command) } as Callable<ExecutedProcess>
+            
+        return {
+            List<Future<ExecutedProcess>> results = (1..threadCount).collect { pool.submit(spawner) }
+            for(Future<ExecutedProcess> result in results)
+                assert result.get().exitValue == 0
+            return results
+        }
+    }
+    
+    void allocateBallast() {
+        for(int i=0; i<heapMB; ++i) {
+            byte [] block = new byte[1024*1024]
+            for(int j=0; j<block.length; j+=4096)
+                block[j] = (byte)1
+            ballast.add(block)
+        }
+    }
+    
+    static void main(String [] args) {
+        Config.userConfig = (Map<String,Object>)new ConfigObject()
+        
+        // Only the cost of spawning the commands is of interest
+        Logger.getLogger('').level = Level.WARNING
+        
+        File resultFile = new File(args.size() > 0 ? args[0] : 'bpipe-spawn-benchmarks.json')
+        String filter = args.size() > 1 ? args[1] : ''
+        
+        SpawnBenchmark benchmark = new SpawnBenchmark()
+        if(args.size() > 2)
+            benchmark.heapMB = args[2].toInteger()
+            
+        // As when Bpipe runs, the helper is started before the heap grows
+        benchmark.helper = SpawnHelper.theInstance
+        if(!benchmark.helper.start()) {
+            System.err.println 'The spawn helper could not be started'
+            System.exit(1)
+        }
+        benchmark.pool = Executors.newFixedThreadPool((int)benchmark.threads.max { Object t -> (int)t })
+        try {
+            benchmark.allocateBallast()
+            println "\nSpawning commands with ${benchmark.heapMB}MB of heap in use\n"
+            MicroBenchmark.runAll(SpawnBenchmark.name, benchmark.benchmarks, filter, resultFile)
+        }
+        finally {
+            benchmark.pool.shutdown()
+            benchmark.helper.stop()
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Files
+
+import groovy.transform.CompileStatic
+import groovy.util.slurpersupport.GPathResult
+
+/**
+ * Generates and runs synthetic pipelines of a given size, to measure how Bpipe itself 
+ * scales with the number of stages, branches and files.
+ * <p>
+ * Each pipeline splits <code>branches</code> input files into branches, each of which runs
+ * <code>stages</code> stages in sequence. Every stage reads all the outputs of the stage
+ * before it and creates <code>files</code> empty outputs with a stub command, so that
+ * the time taken is almost entirely spent by Bpipe. For each run, the wall clock time is 
+ * measured, and the peak heap use and thread count recorded by Bpipe in its results file are
+ * reported along with the number of files created, both as outputs and in the 
+ * <code>.bpipe</code> directory.
+ * <p>
+ * Each size may be given as a list (separated by <code>/</code>), in which case every 
+ * combination is run. Results are written in JMH's JSON format (see {@link MicroBenchmark}).
+ * Usage:
+ * <pre>
+ * ./gradlew syntheticBenchmark -PsyntheticSize=&lt;stages&gt;,&lt;branches&gt;,&lt;files&gt;
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class SyntheticPipelineBenchmark {
+    
+    String bpipeHome
+    
+    /**
+     * @return  the text of a pipeline with the given number of stages, each 
+     *          producing the given number of files
+     */
+    static String createPipeline(int stages, int files) {
+        StringBuilder script = new StringBuilder()
+        for(int i=1; i<=stages; ++i) {
+            script.append("""
+                stage_$i = {
+                    produce((1..$files).collect { "\${branch.name}.s${i}.\${it}.txt" }) {
+                        exec "cat \$inputs > /dev/null; touch \$outputs"
+                    }
+                }
+            """.stripIndent())
+        }
+        script.append('\nrun { "sample_%.txt" * [ ' + (1..stages).collect { "stage_$it" }.join(' + ') + ' ] }\n')
+        return script.toString()
+    }
+    
+    /**
+     * Generate and run a pipeline in a new directory
+     * 
+     * @return  the result, as a JMH result map
+     */
+    Map run(Map<String,Object> params) {
+        int stages = (int)params.stages
+        int branches = (int)params.branches
+        int files = (int)params.files
+        
+        File dir = Files.createTempDirectory("bpipe_synthetic_${stages}_${branches}_${files}").toFile()
+        try {
+            new File(dir, 'pipeline.groovy').text = createPipeline(stages, files)
+            List<String> inputs = (List<String>)(1..branches).collect { int i -> 
+                new File(dir, "sample_${i}.txt").text = "sample $i\n"
+                "sample_${i}.txt".toString()
+            }
+            
+            ProcessBuilder pb = new ProcessBuilder([bpipeHome + '/bin/bpipe', 'run', '-n', String.valueOf(params.threads), 'pipeline.groovy'] + inputs)
+            pb.directory(dir)
+            pb.redirectErrorStream(true)
+            pb.redirectOutput(new File(dir, 'bpipe.out'))
+            
+            long startNs = System.nanoTime()
+            int exitCode = pb.start().waitFor()
+            double seconds = (System.nanoTime() - startNs) / 1.0e9d
+            
+            File resultFile = new File(dir, '.bpipe/results').listFiles()?.find { File f -> f.name.endsWith('.xml') }
+            if(resultFile == null)
+                throw new IllegalStateException("Pipeline in $dir did not write a results file (exit code $exitCode):\n\n" + new File(dir, 'bpipe.out').text)
+            
+            GPathResult result = new XmlSlurper().parse(resultFile)
+            if(result.getProperty('succeeded').toString() != 'true')
+                throw new IllegalStateException("Pipeline in $dir failed:\n\n" + new File(dir, 'bpipe.out').text)
+                
+            GPathResult jvm = (GPathResult)result.getProperty('jvm')
+            int outputFiles = 0
+            int metaDataFiles = 0
+            dir.eachFileRecurse { File f ->
+                if(f.isFile()) {
+                    if(f.path.contains('/.bpipe/'))
+                        ++metaDataFiles
+                    else
+                        ++outputFiles
+                }
+            }
+            
+            Map<String,Double> secondary = [
+                peakHeapMB: Long.parseLong(jvm.getProperty('peakHeapBytes').toString()) / (1024*1024d),
+                peakThreads: Double.parseDouble(jvm.getProperty('peakThreads').toString()),
+                commands: (double)((GPathResult)((GPathResult)result.getProperty('commands')).getProperty('command')).size(),
+                outputFiles: (double)outputFiles,
+                metaDataFiles: (double)metaDataFiles,
+                filesTouched: (double)(outputFiles + metaDataFiles)
+            ]
+            
+            println String.format('%8d %8d %8d %8d %10.1f %10.0f %8.0f %10d %10d', 
+                stages, branches, files, params.threads, seconds, secondary.peakHeapMB, secondary.peakThreads, outputFiles, metaDataFiles)
+            
+            return toResult(params, seconds, secondary)
+        }
+        finally {
+            dir.deleteDir()
+        }
+    }
+    
+    Map toResult(Map<String,Object> params, double seconds, Map<String,Double> secondary) {
+        [
+            jmhVersion: 'bpipe',
+            benchmark: SyntheticPipelineBenchmark.name + '.run',
+            mode: 'ss',
+            threads: 1,
+            forks: 1,
+            jdkVersion: System.getProperty('java.version'),
+            warmupIterations: 0,
+            measurementIterations: 1,
+            params: params.collectEntries { String k, Object v -> [k, String.valueOf(v)] },
+            primaryMetric: [
+                score: seconds,
+                scoreError: 0.0d,
+                scoreConfidence: [seconds, seconds],
+                scoreUnit: 's/op',
+                rawData: [[seconds]]
+            ],
+            secondaryMetrics: secondary.collectEntries { String name, Double value ->
+                [name, [score: value, scoreError: 0.0d, scoreConfidence: [value, value], scoreUnit: name == 'peakHeapMB' ? 'MB' : '#', rawData: [[value]]]]
+            }
+        ]
+    }
+    
+    static List<Object> parseSizes(String value) {
+        (List<Object>)value.tokenize(',')*.toInteger()
+    }
+    
+    static void main(String [] args) {
+        if(args.size() < 3) {
+            System.err.println 'Usage: SyntheticPipelineBenchmark <stages> <branches> <files> [<threads>] [<results.json>]'
+            System.exit(1)
+        }
+        
+        SyntheticPipelineBenchmark benchmark = new SyntheticPipelineBenchmark(bpipeHome: System.getProperty('bpipe.home') ?: System.getenv('BPIPE_HOME'))
+        if(!benchmark.bpipeHome) {
+            System.err.println 'Please set bpipe.home or BPIPE_HOME to the Bpipe installation to test'
+            System.exit(1)
+        }
+        
+        Map<String,List<Object>> params = [
+            stages: parseSizes(args[0]),
+            branches: parseSizes(args[1]),
+            files: parseSizes(args[2]),
+            threads: parseSizes(args.size() > 3 ? args[3] : String.valueOf(Runtime.runtime.availableProcessors()))
+        ]
+        File resultFile = new File(args.size() > 4 ? args[4] : 'bpipe-synthetic-benchmarks.json')
+        
+        println ""
+        println String.format('%8s %8s %8s %8s %10s %10s %8s %10s %10s', 'stages', 'branches', 'files', 'threads', 'seconds', 'heap MB', 'jvm thr', 'outputs', 'metadata')
+        List<Map> results = MicroBenchmark.combinations(params).collect { Map<String,Object> combination ->
+            benchmark.run(combination)
+        }
+        
+        MicroBenchmark.writeResults(resultFile, results)
+        println "\nResults written to $resultFile\n"
+    }
+}
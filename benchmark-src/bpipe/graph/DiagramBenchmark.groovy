@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.graph
+
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryPoolMXBean
+import java.lang.management.MemoryType
+
+import bpipe.MicroBenchmark
+import groovy.transform.CompileStatic
+
+/**
+ * Measures the time and memory needed to draw diagrams of very large pipelines.
+ * <p>
+ * Synthetic pipelines are generated in which the input is split into many branches, each 
+ * running a chain of stages, followed by a merge and a final stage, with the given total
+ * number of nodes. Each is written in every format, both with every branch shown and with the 
+ * repeated branches collapsed into a group. The output is discarded, so that only the cost of
+ * collapsing, laying out and writing the diagram is measured.
+ * <p>
+ * Usage:
+ * <pre>
+ * ./gradlew diagramBenchmark [-PdiagramNodes=&lt;nodes&gt;]
+ * </pre>
+ * where <code>nodes</code> is a comma separated list of sizes (default: 10000,100000).
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class DiagramBenchmark {
+    
+    int stagesPerBranch = 10
+    
+    int iterations = 5
+    
+    /**
+     * Create a pipeline of about the given number of nodes
+     */
+    DiagramGraph createGraph(int nodes) {
+        DiagramGraph graph = new DiagramGraph()
+        int input = graph.addNode('input', 'input', 'resource')
+        int merge = -1
+        int branches = Math.max(1, (nodes - 3).intdiv(stagesPerBranch))
+        List<Integer> ends = []
+        for(int b=0; b<branches; ++b) {
+            int previous = input
+            for(int s=0; s<stagesPerBranch; ++s) {
+                int stage = graph.addNode("1_$b-$s".toString(), "stage_$s".toString(), 'stage')
+                graph.addEdge(previous, stage, 'stage')
+                previous = stage
+            }
+            ends << previous
+        }
+        merge = graph.addNode('2', '.', 'merge')
+        for(int end in ends)
+            graph.addEdge(end, merge, 'stage')
+        graph.addEdge(merge, graph.addNode('3', 'report', 'stage'), 'stage')
+        return graph
+    }
+    
+    Map run(Map<String,Object> params) {
+        DiagramGraph graph = createGraph((int)params.nodes)
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.threadMXBean
+        
+        CountingWriter w = new CountingWriter()
+        List<Double> seconds = []
+        long allocated = 0
+        long peakHeap = 0
+        for(int i=-2; i<iterations; ++i) { // the first two are a warmup
+            System.gc()
+            heapPools*.resetPeakUsage()
+            long startBytes = threads.currentThreadAllocatedBytes
+            long startNs = System.nanoTime()
+            
+            DiagramGraph drawn = params.collapse ? graph.collapse() : graph
+            w.count = 0
+            new DiagramWriter(graph: drawn).write((String)params.format, w)
+            
+            if(i >= 0) {
+                seconds << (System.nanoTime() - startNs) / 1.0e9d
+                allocated = threads.currentThreadAllocatedBytes - startBytes
+                peakHeap = Math.max(peakHeap, (long)heapPools.sum { MemoryPoolMXBean pool -> pool.peakUsage.used })
+            }
+        }
+        
+        Map result = new MicroBenchmark(name: 'render', iterations: iterations, warmupIterations: 2)
+                        .toResult(DiagramBenchmark.name + '.render', params, seconds)
+        double mean = (double)((Map)result.primaryMetric).score
+        result.mode = 'avgt'
+        result.primaryMetric = (Map)result.primaryMetric + [scoreUnit: 's/op']
+        result.secondaryMetrics = [
+            allocatedMB: metric(allocated / 1.0e6d, 'MB'),
+            peakHeapMB: metric(peakHeap / 1.0e6d, 'MB'),
+            outputMB: metric(w.count / 1.0e6d, 'MB'),
+            drawnNodes: metric((double)(params.collapse ? graph.collapse().nodeCount : graph.nodeCount), '#')
+        ]
+        
+        println String.format('%10d %10s %6s %10.3f %12.1f %10.1f %10.1f', 
+            graph.nodeCount, params.collapse, params.format, mean, allocated / 1.0e6d, peakHeap / 1.0e6d, w.count / 1.0e6d)
+        
+        return result
+    }
+    
+    static List<MemoryPoolMXBean> getHeapPools() {
+        ManagementFactory.memoryPoolMXBeans.grep { MemoryPoolMXBean pool -> pool.type == MemoryType.HEAP }
+    }
+    
+    static Map metric(double value, String unit) {
+        [score: value, scoreError: 0.0d, scoreConfidence: [value, value], scoreUnit: unit, rawData: [[value]]]
+    }
+    
+    /**
+     * Discards its output, counting the characters written to it
+     */
+    static class CountingWriter extends Writer {
+        
+        long count = 0
+        
+        @Override
+        void write(char[] buffer, int offset, int length) {
+            count += length
+        }
+        
+        @Override
+        void write(String value) {
+            count += value.length()
+        }
+        
+        @Override
+        void flush() {
+        }
+        
+        @Override
+        void close() {
+        }
+    }
+    
+    static void main(String [] args) {
+        Map<String,List<Object>> params = [
+            nodes: (List<Object>)(args.size() > 0 ? args[0] : '10000,100000').tokenize(',')*.toInteger(),
+            collapse: [false, true] as List<Object>,
+            format: DiagramWriter.FORMATS as List<Object>
+        ]
+        File resultFile = new File(args.size() > 1 ? args[1] : 'bpipe-diagram-benchmarks.json')
+        
+        println ""
+        println String.format('%10s %10s %6s %10s %12s %10s %10s', 'nodes', 'collapsed', 'format', 'seconds', 'alloc MB', 'heap MB', 'output MB')
+        
+        DiagramBenchmark benchmark = new DiagramBenchmark()
+        List<Map> results = MicroBenchmark.combinations(params).collect { Map<String,Object> combination ->
+            benchmark.run(combination)
+        }
+        
+        MicroBenchmark.writeResults(resultFile, results)
+        println "\nResults written to $resultFile\n"
+    }
+}
@@ -17,6 +17,10 @@
 #
 #    ./bpipe-slurm.sh status my_job_id
 #
+# Getting the status of several jobs at once
+#
+#    ./bpipe-slurm.sh status_batch my_job_id1 my_job_id2 ...
+#
 # Notes:
 #
 # None of the commands are guaranteed to succeed. An exit status of 0 for this script
@@ -91,7 +95,7 @@ DEFAULT_JOBTYPE=single	#Should be single, smp or mpi
 
 # Print a usage message
 usage () {
-   echo "usage: $program_name (start | stop ID | status ID)"
+   echo "usage: $program_name (start | stop ID | status ID | status_batch ID...)"
    echo "start needs these environment variables: $ESSENTIAL_ENV_VARS"
    echo "start will use these variables if defined: $OPTIONAL_ENV_VARS"
 }
@@ -344,6 +348,31 @@ status () {
    fi
 }
 
+# get the status of several jobs given their ids, printing one line per job 
+# in the form "<job id> <status>". Jobs that are waiting or running are found 
+# with a single call to squeue; the others are looked up individually so that 
+# their exit codes are reported
+status_batch () {
+   # make sure we have a job id on the command line
+   if [[ $# -ge 1 ]]
+   then
+         job_ids=`echo "$@" | tr ' ' ','`
+         squeue_output=`squeue --noheader --jobs=$job_ids --format="%i %T" 2> /dev/null`
+         for job_id in "$@"
+         do
+             job_state=`echo "$squeue_output" | awk -v id=$job_id '$1==id { print $2 }'`
+             case "$job_state" in
+                CONFIGURING|PENDING|SUSPENDED) echo "$job_id WAITING";;
+                COMPLETING|RUNNING) echo "$job_id RUNNING";;
+                *) job_status=`status $job_id` && echo "$job_id $job_status";;
+             esac
+         done
+   else
+         echo "$program_name ERROR: status_batch requires at least one job identifier"
+         exit $STATUS_MISSING_JOBID
+   fi
+}
+
 # run the whole thing
 main () {
    # check that we have at least one command
@@ -355,6 +384,8 @@ main () {
                       stop "$@";;
             status) shift
                       status "$@";;
+            status_batch) shift
+                      status_batch "$@";;
             *) usage
                exit $INCORRECT_FIRST_ARGUMENT
             ;;
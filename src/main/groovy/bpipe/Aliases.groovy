@@ -18,6 +18,12 @@ class Aliases {
     
     private HashMap<String,List<String>> aliasTargets = [:]
     
+    /**
+     * Incremented whenever an alias is added, so that indexes of files
+     * that include aliases can tell when they are out of date
+     */
+    volatile int version = 0
+    
     synchronized boolean isAliased(String path) {
         aliases.containsKey(path) || aliasTargets.containsKey(path)
     }
@@ -32,6 +38,7 @@ class Aliases {
         assert toFile != null
         aliases[fromPath] = new AliasMapping(from:fromPath, to:toFile)
         aliasTargets.get(toFile.toString(),(List<String>)[]).add(fromPath)
+        ++version
     }
     
     @CompileStatic
@@ -216,6 +216,15 @@ class BpipeParamsBinding extends Binding {
         }
     }
     
+    /**
+     * Consistent with {@link #getVariable}, stage local variables are included
+     */
+    @Override
+    boolean hasVariable(String name) {
+        Map<String,Object> locals = stageLocalVariables.get()
+        return (locals != null && locals.containsKey(name)) || super.hasVariable(name)
+    }
+    
     Object getVariable(String name) {
         if(stageLocalVariables.get()?.containsKey(name)) {
             return this.stageLocalVariables.get()[name]
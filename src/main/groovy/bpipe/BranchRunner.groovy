@@ -24,6 +24,7 @@
  */
 package bpipe
 
+import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Level
 
 import groovy.transform.CompileStatic
@@ -45,6 +46,20 @@ class BranchRunner implements Runnable {
     
     final boolean applyName
     
+    /**
+     * Estimated path length of the branch: branches with longer paths are started first
+     * (see {@link CriticalPathPlanner})
+     */
+    long priorityMs = 0L
+    
+    /**
+     * Order in which the branch was created, so that branches with the same priority start
+     * in the order they were created
+     */
+    final long sequence = nextSequence.incrementAndGet()
+    
+    private static final AtomicLong nextSequence = new AtomicLong()
+    
     public BranchRunner(Pipeline parent, Pipeline child, List<PipelineStage> priorStages, String childName, Closure segmentClosure, boolean applyName) {
         super();
         this.parent = parent;
@@ -55,6 +70,24 @@ class BranchRunner implements Runnable {
         this.applyName = applyName;
     }
 
+    /**
+     * @return  total size of the files the branch starts with, or 0 if not known
+     */
+    long getInputBytes() {
+        if(priorStages.isEmpty())
+            return 0L
+        long total = 0L
+        for(PipelineFile file in (List<PipelineFile>)Utils.box(priorStages[0].context.@output)) {
+            try {
+                total += file.length()
+            }
+            catch(Exception e) {
+                log.fine "Unable to determine size of $file: $e"
+            }
+        }
+        return total
+    }
+
     @Override
     public void run() {
         try {
@@ -101,36 +101,51 @@ class Check {
 		return details
 	}
     
+    /**
+     * Save the state of this check in the check journal, and update the timestamp of 
+     * its check file, which records when the check last executed.
+     */
     void save() {
         
-        Properties p = new Properties()
-        p.branch = branch
+        CheckJournal.forDirectory(Checker.CHECK_DIR).save(this)
+        
+        File file = getFile(stage,name,branchHash)
+        if(!file.createNewFile())
+            file.setLastModified(System.currentTimeMillis())
+    }
+    
+    /**
+     * @return  the state of this check as a map of string values, in the form 
+     *          stored by the {@link CheckJournal}
+     */
+    Map<String,String> toRecord() {
+        Map<String,String> record = [
+            key: getFile(stage,name,branchHash).name,
+            branch: branch,
+            stage: stage,
+            passed: passed ? "true" : "false",
+            override: override.toString(),
+            pguid: pguid,
+            script: script,
+            state: state
+        ]
+        
         if(branchHash)
-            p.branchHash = branchHash
-        p.stage = stage
-        p.passed = passed ? "true" : "false"
+            record.branchHash = branchHash
         
         if(message)
-            p.message = message
+            record.message = message
         
         if(executed)
-            p.executed = String.valueOf(executed.getTime())
+            record.executed = String.valueOf(executed.getTime())
         
         if(this.name)
-            p.name = this.name
-                
-        
-        if(override != null)
-            p.override = override.toString()
+            record.name = this.name
             
-        p.setProperty('pguid', pguid)
-        p.script = script
-		p.state = state
-        
         if(comment != null)
-            p.comment = comment
-        
-        p.store(getFile(stage,name,branchHash).newWriter(), "Bpipe Check Properties")
+            record.comment = comment
+            
+        return record
     }
     
     /**
@@ -154,7 +169,12 @@ class Check {
      */
     static Check getCheck(String stageName, String name, String branchHash) {
         File file = getFile(stageName, name, branchHash)
-        if(file.exists()) {
+        Map<String,String> record = CheckJournal.forDirectory(Checker.CHECK_DIR).getRecord(file.name)
+        if(record != null) {
+            new Check(branchHash:branchHash).load(record)
+        }
+        else
+        if(file.length() > 0) { // not in the journal: should only happen if the journal was removed
             new Check(branchHash:branchHash).load(file)
         }
         else {
@@ -174,7 +194,7 @@ class Check {
     }
     
     /**
-     * Load the details of a check from its properties file
+     * Load the details of a check from a properties file saved by earlier versions of Bpipe
      * 
      * @param file
      * @return
@@ -182,6 +202,19 @@ class Check {
     Check load(File file) {
         Properties p = new Properties()
         file.withReader { r -> p.load(r) }
+        return load(p)
+    }
+    
+    static Check fromRecord(Map<String,String> record) {
+        return new Check().load(record)
+    }
+    
+    /**
+     * Load the details of a check from a record of its state
+     * 
+     * @see #toRecord()
+     */
+    Check load(Map p) {
         this.branch = p.branch
         this.stage = p.stage
         this.executed = p.executed ? new Date(p.executed.toLong()) : null
@@ -225,7 +258,7 @@ class Check {
 		else {
 			this.state = 'fail'
 		}
-        this.save() 
+        this.save() 
         EventManager.instance.signal(PipelineEvent.CHECK_OVERRIDDEN, "Check overridden", getEventDetails())
     }
     
@@ -235,8 +268,7 @@ class Check {
      * @return
      */
     static List<Check> loadAll(File dir=Checker.CHECK_DIR) {
-        def allFiles = dir.listFiles().grep { File f -> f.name.endsWith(".properties") }
-        return allFiles.collect { new Check().load(it) }
+        return CheckJournal.forDirectory(dir).all
     }
 
     String toString() {
@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentHashMap
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * An append-only journal of the states of all the checks in a directory, with an in-memory
+ * index of the latest state of each check.
+ * <p>
+ * Each time a check is saved a single line describing it is appended to the journal, and
+ * readers only need to parse the lines appended since they last read it. This allows the
+ * checks of a pipeline with very many of them to be summarised without reading a file for
+ * every check.
+ * <p>
+ * Once the journal has more than {@link #compactThreshold} lines, and more than twice as 
+ * many lines as there are checks, it is rewritten with only the latest state of each check. 
+ * Processes appending to the journal hold a lock on it, so that no line is lost while it is 
+ * rewritten. A rewritten journal starts with a line identifying it, so that readers notice 
+ * that it was replaced and read it again from the start.
+ * <p>
+ * Checks saved by earlier versions of Bpipe as individual properties files are imported
+ * into the journal the first time the journal for a directory is read.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class CheckJournal {
+    
+    final static String JOURNAL_FILE_NAME = 'journal'
+    
+    /**
+     * Length of the line that starts a rewritten journal, including the newline
+     */
+    final static int GENERATION_LINE_LENGTH = 54
+    
+    /**
+     * Journals that have been loaded, indexed by the canonical path of their directory
+     */
+    private static ConcurrentHashMap<String,CheckJournal> journals = new ConcurrentHashMap<String,CheckJournal>()
+    
+    final File dir
+    
+    final File file
+    
+    /**
+     * Latest record for each check, indexed by the name of its check file
+     */
+    private final LinkedHashMap<String,Map<String,String>> records = new LinkedHashMap<String,Map<String,String>>()
+    
+    /**
+     * Keys of the checks, in the order in which they were first saved
+     */
+    private final List<String> keys = new ArrayList<String>()
+    
+    private final Map<String,Set<String>> byStage = [:]
+    
+    private final Map<String,Set<String>> byBranch = [:]
+    
+    private final Map<String,Set<String>> byState = [:]
+    
+    /**
+     * The journal is rewritten once it has more than this many lines, and more than twice as
+     * many lines as there are checks
+     */
+    int compactThreshold = 1000
+    
+    /**
+     * Number of bytes of the journal that have been read into the index
+     */
+    private long offset = 0
+    
+    /**
+     * Number of lines of the journal that have been read into the index
+     */
+    private int lineCount = 0
+    
+    /**
+     * Identifies the journal that has been read into the index, if it has been rewritten
+     */
+    private String generation = null
+    
+    CheckJournal(File dir) {
+        this.dir = dir
+        this.file = new File(dir, JOURNAL_FILE_NAME)
+    }
+    
+    /**
+     * @return the journal for the given check directory, up to date with any checks saved
+     *         since it was last read
+     */
+    static CheckJournal forDirectory(File dir) {
+        CheckJournal journal = journals.computeIfAbsent(dir.canonicalPath) { new CheckJournal(dir) }
+        journal.refresh()
+        return journal
+    }
+    
+    /**
+     * Append the given check to the journal
+     */
+    synchronized void save(Check check) {
+        Map<String,String> record = check.toRecord()
+        if(!file.exists())
+            migrate()
+        dir.mkdirs()
+        
+        byte [] line = (JsonOutput.toJson(record) + '\n').getBytes('UTF-8')
+        withJournal(true) { FileChannel channel ->
+            channel.position(channel.size())
+            channel.write(ByteBuffer.wrap(line))
+        }
+        
+        refresh()
+        
+        if(lineCount > compactThreshold && lineCount > 2 * keys.size())
+            compact()
+    }
+    
+    /**
+     * Read any lines appended to the journal since it was last read into the index
+     */
+    synchronized void refresh() {
+        
+        if(!file.exists()) {
+            migrate()
+            if(!file.exists())
+                return
+        }
+        
+        withJournal(false) { FileChannel channel ->
+            read(channel)
+        }
+    }
+    
+    /**
+     * Rewrite the journal with only the latest state of each check, in the order in which
+     * the checks were first saved
+     */
+    private void compact() {
+        int oldLineCount = lineCount
+        withJournal(true) { FileChannel channel ->
+            
+            // Include lines appended by other processes before the lock was acquired
+            read(channel)
+            
+            String newGeneration = UUID.randomUUID().toString()
+            File tmp = new File(dir, JOURNAL_FILE_NAME + '.tmp')
+            tmp.withOutputStream { OutputStream out ->
+                out.write((JsonOutput.toJson([generation: newGeneration]) + '\n').getBytes('UTF-8'))
+                for(String key in keys) {
+                    out.write((JsonOutput.toJson(records[key]) + '\n').getBytes('UTF-8'))
+                }
+            }
+            
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+            }
+            catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+            
+            offset = file.length()
+            lineCount = keys.size()
+            generation = newGeneration
+        }
+        log.info "Compacted check journal $file from $oldLineCount lines to $lineCount"
+    }
+    
+    /**
+     * Open the current journal file and pass it to the given action, retrying if the journal 
+     * is replaced while it is being opened.
+     * 
+     * @param lock  if true, the journal is created if necessary, opened for writing and 
+     *              locked while the action runs
+     */
+    private void withJournal(boolean lock, Closure action) {
+        while(true) {
+            Object keyBefore = getCurrentFileKey()
+            FileChannel channel = lock ? 
+                FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) 
+              : FileChannel.open(file.toPath(), StandardOpenOption.READ)
+            try {
+                // The lock is released when the channel is closed
+                if(lock)
+                    channel.lock()
+                    
+                // While the channel is open the file it refers to cannot be reused, so an 
+                // unchanged key means it is still the current journal
+                if(getCurrentFileKey() != keyBefore)
+                    continue
+                    
+                action(channel)
+                return
+            }
+            finally {
+                channel.close()
+            }
+        }
+    }
+    
+    /**
+     * Index the lines appended to the given journal since it was last read
+     */
+    private void read(FileChannel channel) {
+        long length = channel.size()
+        if(offset > 0 && (length < offset || readGeneration(channel) != generation)) {
+            log.info "Check journal $file was replaced: reloading"
+            clear()
+        }
+        
+        if(length == offset)
+            return
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)(length - offset))
+        channel.position(offset)
+        while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        byte [] bytes = buffer.array()
+            
+        // A line that is still being written is left to be read next time
+        int end = buffer.position()
+        while(end > 0 && bytes[end-1] != (byte)10)
+            --end
+            
+        JsonSlurper slurper = new JsonSlurper()
+        new String(bytes, 0, end, 'UTF-8').eachLine { String line ->
+            if(line.trim()) {
+                Map<String,String> record = (Map<String,String>)slurper.parseText(line)
+                if(record.generation != null)
+                    generation = record.generation
+                else {
+                    index(record)
+                    ++lineCount
+                }
+            }
+        }
+        offset += end
+    }
+    
+    /**
+     * @return  the generation recorded in the first line of the given journal, or null if
+     *          it has never been rewritten
+     */
+    private String readGeneration(FileChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocate(GENERATION_LINE_LENGTH)
+        channel.position(0)
+        while(buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        String first = new String(buffer.array(), 0, buffer.position(), 'UTF-8')
+        if(!first.startsWith('{"generation":') || first.indexOf('\n') < 0)
+            return null
+        return ((Map<String,String>)new JsonSlurper().parseText(first.substring(0, first.indexOf('\n')))).generation
+    }
+    
+    /**
+     * @return  the identity of the file currently at the path of the journal, or null 
+     *          if it does not exist or the file system does not provide one
+     */
+    private Object getCurrentFileKey() {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes).fileKey()
+        }
+        catch(NoSuchFileException e) {
+            return null
+        }
+    }
+    
+    /**
+     * @return all the checks in the journal, in the order in which they were first saved
+     */
+    synchronized List<Check> getAll() {
+        return records.values().collect { Map<String,String> record -> Check.fromRecord(record) }
+    }
+    
+    /**
+     * @return the number of checks in the journal
+     */
+    synchronized int size() {
+        return keys.size()
+    }
+    
+    /**
+     * @return  the checks in the given range of the order in which they were first saved
+     */
+    synchronized List<Check> getPage(int offset, int count) {
+        int end = Math.min(offset + count, keys.size())
+        if(offset >= end)
+            return []
+        return keys.subList(offset, end).collect { String key -> Check.fromRecord(records[key]) }
+    }
+    
+    /**
+     * @return  a list of all the checks in the journal that only loads them as they are accessed
+     */
+    PagedList<Check> getPaged(int pageSize=PagedList.DEFAULT_PAGE_SIZE) {
+        return new PagedList<Check>(size(), pageSize, { int offset, int count -> getPage(offset, count) })
+    }
+    
+    /**
+     * @return the check saved to the given check file name, or null if there is none
+     */
+    synchronized Check get(String key) {
+        Map<String,String> record = records[key]
+        return record != null ? Check.fromRecord(record) : null
+    }
+    
+    /**
+     * @return the latest saved state of the check saved to the given check file name, or 
+     *         null if there is none
+     */
+    synchronized Map<String,String> getRecord(String key) {
+        return records[key]
+    }
+    
+    /**
+     * Find checks by stage, branch and / or state. A null value matches any value.
+     */
+    synchronized List<Check> find(String stage, String branch, String state) {
+        Collection<String> keys = 
+            stage != null ? byStage.get(stage) :
+            branch != null ? byBranch.get(branch) :
+            state != null ? byState.get(state) : records.keySet()
+            
+        if(keys == null)
+            return []
+            
+        return keys.findAll { String key ->
+            Map<String,String> record = records[key]
+            (branch == null || record.branch == branch) && (state == null || record.state == state)
+        }.collect { String key -> 
+            Check.fromRecord(records[key]) 
+        }
+    }
+    
+    private void index(Map<String,String> record) {
+        String key = record.key
+        
+        // Replacing an existing check keeps its position in the order checks were first saved
+        Map<String,String> old = records.put(key, record)
+        if(old != null) {
+            byStage.get(old.stage)?.remove(key)
+            byBranch.get(old.branch)?.remove(key)
+            byState.get(old.state)?.remove(key)
+        }
+        else
+            keys.add(key)
+            
+        byStage.computeIfAbsent(record.stage) { new LinkedHashSet<String>() }.add(key)
+        byBranch.computeIfAbsent(record.branch) { new LinkedHashSet<String>() }.add(key)
+        byState.computeIfAbsent(record.state) { new LinkedHashSet<String>() }.add(key)
+    }
+    
+    private void clear() {
+        records.clear()
+        keys.clear()
+        byStage.clear()
+        byBranch.clear()
+        byState.clear()
+        offset = 0
+        lineCount = 0
+        generation = null
+    }
+    
+    /**
+     * Import checks saved as individual properties files by earlier versions of Bpipe.
+     * The files are left in place because they are still used to determine whether
+     * each check is up to date.
+     */
+    private void migrate() {
+        if(!dir.exists())
+            return
+            
+        List<File> legacyFiles = (dir.listFiles() as List<File>).findAll { File f -> f.name.endsWith('.properties') && f.length() > 0 }
+        if(legacyFiles.isEmpty())
+            return
+            
+        log.info "Importing ${legacyFiles.size()} checks from properties files into $file"
+        StringBuilder lines = new StringBuilder()
+        for(File legacyFile in legacyFiles) {
+            Map<String,String> record = new Check().load(legacyFile).toRecord()
+            record.key = legacyFile.name
+            lines.append(JsonOutput.toJson(record)).append('\n')
+        }
+        
+        File tmp = new File(dir, JOURNAL_FILE_NAME + '.tmp')
+        tmp.setText(lines.toString(), 'UTF-8')
+        if(!tmp.renameTo(file))
+            log.warning "Unable to move migrated checks into $file"
+    }
+}
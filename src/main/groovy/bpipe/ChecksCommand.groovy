@@ -51,7 +51,7 @@ class ChecksCommand extends BpipeCommand {
             out.println ""
             out.println "Could not find a Bpipe pipeline in this folder: has Bpipe been run here?"
             out.println ""
-            System.exit(1)
+            exit(1)
         }
         
         CliBuilder cli = new CliBuilder(usage: "bpipe override | bpipe checks", posix:true)
@@ -70,7 +70,7 @@ class ChecksCommand extends BpipeCommand {
         if(!opts || opts.h) {
             if(opts?.h)
                 cli.usage() 
-            System.exit(0)
+            exit(0)
         }
         
         if(opts.o || opts.f) {
@@ -90,13 +90,13 @@ class ChecksCommand extends BpipeCommand {
 		    if(opts.f)
 	        		setCheckState(checks, opts.f, opts.c?:null, false)
 				
-		    System.exit(0)
+		    exit(0)
         }
         
         printChecks(checks)
         
         if(opts.l) {
-            System.exit(0)
+            exit(0)
         }
         
         System.in.withReader { r ->
@@ -161,7 +161,7 @@ class ChecksCommand extends BpipeCommand {
             out.println ""
             out.println "Unable to find any checks matching name $checkId"
             out.println ""
-            System.exit(1)
+            exit(1)
         }
 	}
     
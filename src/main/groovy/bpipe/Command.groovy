@@ -27,8 +27,6 @@ package bpipe
 import groovy.transform.CompileStatic
 import groovy.util.logging.Log;
 
-import java.nio.file.Path
-
 import bpipe.executor.CommandExecutor
 import bpipe.executor.CommandUtilisation
 import bpipe.executor.ProbeCommandExecutor;;
@@ -149,86 +147,7 @@ class Command implements Serializable {
 
     @CompileStatic
     static Map getConfig(String configName, String name, String command, List<PipelineFile> inputs) {
-
-        // How to run the job?  look in user config
-        if(!configName && (command != null)) // preallocated executors use a null command
-            configName = command.trim().tokenize(' \t')[0].trim()
-        
-        log.info "Checking for configuration for command $configName"
-        
-        // Use default properties from root entries into user config
-        def defaultConfig = Config.userConfig.findAll { !(it.value instanceof Map) }
-        
-        // allow nested config for default container
-        if(Config.userConfig.containsKey('container')) {
-            defaultConfig.container = Config.userConfig.container
-        }
-        
-        // allow nested config for env
-        if(Config.userConfig.containsKey('env')) {
-            ConfigObject envCfg = (ConfigObject)Config.userConfig.env
-            // Have to convert to plain Map because ConfigObject is not Serializeable
-            defaultConfig.env = envCfg.collectEntries { [it.key, it.value] } 
-        }
-        
-        log.info "Default command properties: " + Utils.sanitiseConfig(defaultConfig)
-        
-        Map rawCfg = defaultConfig
-        
-        def stageConfig = (ConfigObject)(Config.userConfig.containsKey("stages")?Config.userConfig.stages[name]:null)
-        if(stageConfig && stageConfig instanceof Map)  {
-            // override properties in default config with those for the specific stage
-            rawCfg = defaultConfig + (Map<String,Object>)stageConfig
-        }
- 
-        def cmdConfig = (ConfigObject)(Config.userConfig.containsKey("commands")?Config.userConfig.commands[configName]:null)
-        if(cmdConfig && cmdConfig instanceof Map)  {
-            // override properties in default config with those for the specific command
-            rawCfg = rawCfg + (Map<String,Object>)cmdConfig
-        }
-        
-        // Make a new map
-        Map cfg = new HashMap(rawCfg)
-        
-        // Resolve inputs to files
-        List<Path> fileInputs = (List<Path>)(inputs == null ? [] : inputs.collect { it.toPath() })
-        
-        // Execute any executable properties that are closures
-        rawCfg.each { key, value ->
-            if(value instanceof Closure) {
-                
-                Closure valueClosure = (Closure)value
-                if(valueClosure.getMaximumNumberOfParameters() == 2) {
-                    cfg[key] = valueClosure(fileInputs,cfg)
-                }
-                else {
-                    cfg[key] = valueClosure(fileInputs)
-                }
-            }
-            
-            // Special case - walltime can be specified as integer number of seconds
-            if(key == 'walltime' && !(cfg[key] instanceof String)) {
-                cfg[key] = formatWalltime(cfg[key])
-                log.info "Converted walltime is " + cfg[key]
-            }
-        }
-        
-        if(cfg.containsKey('container') && (cfg.container instanceof CharSequence)) {
-            def containers = Config.userConfig.containers
-            if(!containers || !(containers instanceof Map) || !((Map)containers).containsKey(cfg.container.toString()))
-                throw new PipelineError("""
-                    Command specified container $cfg.container but this could not be resolved to any known configured container type.
-
-                    Please configure an entry named $cfg.container in the containers section of your bpipe.config file
-                """)
-
-           cfg.container = ((Map)containers)[cfg.container.toString()]
-        }
-        
-        // Ensure configuration knows its own name
-        cfg.name = configName
-        
-        return cfg
+        return CommandConfigResolver.theInstance.resolve(configName, name, command, inputs)
     }
     
     /**
@@ -255,15 +174,6 @@ class Command implements Serializable {
         this.cfg = config
     }
     
-    private static String formatWalltime(def walltime) {
-       // Treat as integer, convert to string
-       walltime = walltime.toInteger()
-       int hours = (int)Math.floor(walltime / 3600)
-       int minutes = (int)Math.floor((walltime - hours*3600)/60)
-       int seconds = walltime % 60
-       return String.format('%02d:%02d:%02d', hours, minutes, seconds )
-    }
-    
     public void setStatus(String statusValue) {
         
         if(statusValue != this.status?.name())
@@ -305,23 +215,14 @@ class Command implements Serializable {
        def tempCfg = Utils.configToMap(cfg)
           
        File saveFile = new File(dir, this.id)
-       Command me = this
        
-       saveFile.withObjectOutputStream { ois ->
-           ois.writeObject(e)
-           ois.writeObject(me)
-       } 
+       CommandStore.theInstance.write(saveFile, e, this)
        
        cfg = tempCfg
     }
     
     static Command load(File f) {
-        Command cmd
-        f.withObjectInputStream {
-            CommandExecutor exec = it.readObject()
-            cmd = it.readObject()
-        }
-        return cmd
+        return CommandStore.theInstance.read(f).command
     }
 
     boolean isResourcesSatisfied() {
@@ -341,11 +242,7 @@ class Command implements Serializable {
     }
     
     static Command readCommand(File saveFile) {
-        saveFile.withObjectInputStream { ois ->
-            CommandExecutor exe2 = ois.readObject()
-            Command c2 = ois.readObject()
-            return c2
-        }       
+        return CommandStore.theInstance.read(saveFile).command
     }
     
     String toString() {
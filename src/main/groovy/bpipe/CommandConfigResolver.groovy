@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Resolves the configuration of commands from the user configuration.
+ * <p>
+ * The configuration of a command is made by overlaying the <code>stages</code> entry for 
+ * its stage and the <code>commands</code> entry for its command name on the default values 
+ * at the root of the user configuration. Since a pipeline may create hundreds of thousands
+ * of commands from only a few stages and command names, each combination of these is merged
+ * only once, into a read only view that is shared by all the commands using it. Resolving
+ * the configuration of each command then only copies the view and evaluates the values that
+ * depend on the command's inputs (those given as closures).
+ * <p>
+ * Views are discarded when the user configuration is replaced (for example, when it is 
+ * reloaded, or read for a different environment), and when {@link #invalidate()} is called
+ * after the user configuration has been modified in place.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@Singleton
+class CommandConfigResolver {
+    
+    /**
+     * The merged configuration for a stage and command name
+     */
+    @CompileStatic
+    static class CompiledConfig {
+        
+        /**
+         * Merged values, in the order in which they are resolved
+         */
+        Map<Object,Object> values
+        
+        /**
+         * Keys of values that must be evaluated for each command
+         */
+        List<Object> dynamicKeys
+    }
+    
+    /**
+     * The user configuration that the compiled views were made from
+     */
+    private volatile Map userConfig
+    
+    /**
+     * Default values at the root of the user configuration, shared by all views
+     */
+    private Map<Object,Object> defaults
+    
+    private final ConcurrentHashMap<String,CompiledConfig> compiled = new ConcurrentHashMap<String,CompiledConfig>()
+    
+    /**
+     * Number of views compiled
+     */
+    int compilations = 0
+    
+    /**
+     * Resolve the configuration for a command, using the compiled view of the user configuration
+     * for its stage and command name. Unless the <code>commandConfigCache</code> setting is false, 
+     * in which case the configuration is merged for every command.
+     */
+    @CompileStatic
+    Map resolve(String configName, String name, String command, List<PipelineFile> inputs) {
+        
+        if(Config.userConfig.getOrDefault('commandConfigCache', true) == false)
+            return resolveDirect(configName, name, command, inputs)
+        
+        if(!configName && (command != null))
+            configName = commandName(command)
+        
+        CompiledConfig view = getCompiled(name, configName)
+        
+        Map cfg = new HashMap(view.values)
+        evaluate(view.values, view.dynamicKeys, cfg, inputs)
+        resolveContainer(cfg)
+        cfg.name = configName
+        return cfg
+    }
+    
+    /**
+     * Discard all compiled views, so that changes to the user configuration take effect
+     */
+    synchronized void invalidate() {
+        log.info "Discarding ${compiled.size()} compiled command configurations"
+        compiled.clear()
+        defaults = null
+        userConfig = null
+    }
+    
+    /**
+     * @return  the merged configuration for the given stage and command name, compiling it if
+     *          it was not compiled already from the current user configuration
+     */
+    @CompileStatic
+    CompiledConfig getCompiled(String name, String configName) {
+        String key = name + '\u0000' + configName
+        CompiledConfig view
+        if(Config.userConfig.is(this.userConfig)) {
+            view = compiled.get(key)
+            if(view != null)
+                return view
+        }
+            
+        synchronized(this) {
+            if(!Config.userConfig.is(this.userConfig)) {
+                invalidate()
+                userConfig = Config.userConfig
+            }
+            
+            view = compiled.get(key)
+            if(view == null) {
+                view = compile(name, configName)
+                compiled.put(key, view)
+            }
+        }
+        return view
+    }
+    
+    @CompileStatic
+    private CompiledConfig compile(String name, String configName) {
+        
+        if(defaults == null) {
+            defaults = defaultConfig()
+            log.info "Default command properties: " + Utils.sanitiseConfig((Map<String,Object>)defaults)
+        }
+        
+        Map<Object,Object> values = mergeStageAndCommand(defaults, name, configName)
+        
+        // Values that are closures depend on the inputs of each command, and walltimes given
+        // as numbers are converted after them, in the same order as they are merged
+        List<Object> dynamicKeys = values.findAll { Object key, Object value -> 
+            (value instanceof Closure) || (key == 'walltime' && !(value instanceof String)) 
+        }.collect { it.key }
+        
+        ++compilations
+        log.info "Compiled configuration for command $configName in stage $name: " + 
+            Utils.sanitiseConfig((Map<String,Object>)values.findAll { !defaults.containsKey(it.key) || !defaults[it.key].is(it.value) })
+        
+        return new CompiledConfig(values: Collections.unmodifiableMap(values), dynamicKeys: dynamicKeys)
+    }
+    
+    /**
+     * Resolve the configuration for a command by merging it from the user configuration 
+     * directly, as Bpipe did before compiled views were introduced
+     */
+    @CompileStatic
+    static Map resolveDirect(String configName, String name, String command, List<PipelineFile> inputs) {
+        
+        // How to run the job?  look in user config
+        if(!configName && (command != null)) // preallocated executors use a null command
+            configName = command.trim().tokenize(' \t')[0].trim()
+        
+        log.info "Checking for configuration for command $configName"
+        
+        Map<Object,Object> defaultConfig = defaultConfig()
+        
+        log.info "Default command properties: " + Utils.sanitiseConfig((Map<String,Object>)defaultConfig)
+        
+        Map rawCfg = mergeStageAndCommand(defaultConfig, name, configName)
+        
+        // Make a new map
+        Map cfg = new HashMap(rawCfg)
+        
+        evaluate(rawCfg, rawCfg.keySet().toList(), cfg, inputs)
+        
+        resolveContainer(cfg)
+        
+        // Ensure configuration knows its own name
+        cfg.name = configName
+        
+        return cfg
+    }
+    
+    /**
+     * @return  the configuration name implied by a command: its first word
+     */
+    @CompileStatic
+    static String commandName(String command) {
+        String trimmed = command.trim()
+        int end = 0
+        while(end < trimmed.length() && trimmed.charAt(end) != (char)' ' && trimmed.charAt(end) != (char)'\t')
+            ++end
+        return trimmed.substring(0, end).trim()
+    }
+    
+    /**
+     * @return the default properties from the root entries of the user config
+     */
+    @CompileStatic
+    private static Map<Object,Object> defaultConfig() {
+        
+        Map<Object,Object> defaultConfig = (Map<Object,Object>)Config.userConfig.findAll { !(it.value instanceof Map) }
+        
+        // allow nested config for default container
+        if(Config.userConfig.containsKey('container')) {
+            defaultConfig.container = Config.userConfig.container
+        }
+        
+        // allow nested config for env
+        if(Config.userConfig.containsKey('env')) {
+            Map envCfg = (Map)Config.userConfig.env
+            // Have to convert to plain Map because ConfigObject is not Serializeable
+            defaultConfig.env = envCfg.collectEntries { [it.key, it.value] } 
+        }
+        return defaultConfig
+    }
+    
+    /**
+     * @return  the default config overlaid with the config for the given stage, and then 
+     *          the config for the given command name
+     */
+    @CompileStatic
+    private static Map<Object,Object> mergeStageAndCommand(Map<Object,Object> defaultConfig, String name, String configName) {
+        Map<Object,Object> rawCfg = defaultConfig
+        
+        def stageConfig = (ConfigObject)(Config.userConfig.containsKey("stages")?((Map)Config.userConfig.stages)[name]:null)
+        if(stageConfig && stageConfig instanceof Map)  {
+            // override properties in default config with those for the specific stage
+            rawCfg = defaultConfig + (Map<Object,Object>)stageConfig
+        }
+ 
+        def cmdConfig = (ConfigObject)(Config.userConfig.containsKey("commands")?((Map)Config.userConfig.commands)[configName]:null)
+        if(cmdConfig && cmdConfig instanceof Map)  {
+            // override properties in default config with those for the specific command
+            rawCfg = rawCfg + (Map<Object,Object>)cmdConfig
+        }
+        return rawCfg
+    }
+    
+    /**
+     * Execute any of the given keys whose values are closures, and convert walltimes 
+     * given as numbers to strings.
+     * 
+     * @param rawCfg    the merged configuration
+     * @param keys      the keys to evaluate, in the order of the merged configuration
+     * @param cfg       the configuration to set the evaluated values in
+     */
+    @CompileStatic
+    private static void evaluate(Map rawCfg, List<Object> keys, Map cfg, List<PipelineFile> inputs) {
+        
+        if(keys.isEmpty())
+            return
+        
+        // Resolve inputs to files
+        List<Path> fileInputs = (List<Path>)(inputs == null ? [] : inputs.collect { it.toPath() })
+        
+        for(Object key in keys) {
+            Object value = rawCfg[key]
+            if(value instanceof Closure) {
+                
+                Closure valueClosure = (Closure)value
+                if(valueClosure.getMaximumNumberOfParameters() == 2) {
+                    cfg[key] = valueClosure(fileInputs,cfg)
+                }
+                else {
+                    cfg[key] = valueClosure(fileInputs)
+                }
+            }
+            
+            // Special case - walltime can be specified as integer number of seconds
+            if(key == 'walltime' && !(cfg[key] instanceof String)) {
+                cfg[key] = formatWalltime(cfg[key])
+                log.info "Converted walltime is " + cfg[key]
+            }
+        }
+    }
+    
+    private static String formatWalltime(def walltime) {
+       // Treat as integer, convert to string
+       walltime = walltime.toInteger()
+       int hours = (int)Math.floor(walltime / 3600)
+       int minutes = (int)Math.floor((walltime - hours*3600)/60)
+       int seconds = walltime % 60
+       return String.format('%02d:%02d:%02d', hours, minutes, seconds )
+    }
+    
+    @CompileStatic
+    private static void resolveContainer(Map cfg) {
+        if(cfg.containsKey('container') && (cfg.container instanceof CharSequence)) {
+            def containers = Config.userConfig.containers
+            if(!containers || !(containers instanceof Map) || !((Map)containers).containsKey(cfg.container.toString()))
+                throw new PipelineError("""
+                    Command specified container $cfg.container but this could not be resolved to any known configured container type.
+
+                    Please configure an entry named $cfg.container in the containers section of your bpipe.config file
+                """)
+
+           cfg.container = ((Map)containers)[cfg.container.toString()]
+        }
+    }
+    
+    @CompileStatic
+    static CommandConfigResolver getTheInstance() {
+        return CommandConfigResolver.instance
+    }
+}
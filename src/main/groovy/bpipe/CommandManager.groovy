@@ -32,9 +32,6 @@ import bpipe.executor.CustomCommandExecutor
 import bpipe.executor.LocalCommandExecutor;
 import bpipe.executor.ThrottledDelegatingCommandExecutor;
 import bpipe.executor.UtilisationCapturingExecutor;
-import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
-import java.util.concurrent.Future
 
 /**
  * Manages execution, persistence and stopping of commands executed
@@ -201,122 +198,15 @@ class CommandManager {
     /**
      * Stop all known commands.
      * <p>
-     * Looks in the file system for known commands and iterates over them all,
-     * stopping each one.
+     * Looks in the file system for known commands and stops them all, using
+     * bulk cancel commands where the executors support them.
+     * 
+     * @see CommandStopper
      */
     int stopAll() {
-        int parallelism = (int)Config.userConfig.getOrDefault('stopParallelism', 4)
-        long staggerMs = (long)Config.userConfig.getOrDefault('stopStaggerMs', 100L)
-
-        // First pass: deserialise all commands before starting any stops
-        List<List> commandsToStop = []
-        commandDir.eachFileMatch(~/[0-9]+/) { File f ->
-            log.info "Loading command info from $f.absolutePath"
-            CommandExecutor exec = null
-            Command cmd = null
-            try {
-                f.withObjectInputStream {
-                    exec = it.readObject()
-                    log.info "Stopping command $exec"
-                    try {
-                        cmd = it.readObject()
-                    }
-                    catch(Exception e) {
-                        log.info "Unable to read command details for $f.absolutePath : maybe legacy pipeline directory?"
-                    }
-                }
-
-                if(exec != null) {
-                    if(exec instanceof PooledExecutor && exec.poolConfig.get('persistent',false)) {
-                        println "Command $cmd.id is persistent command: ignoring"
-                    }
-                    else {
-                        commandsToStop << [f, exec, cmd]
-                    }
-                }
-                else {
-                    println "WARNING: stored command $f.absolutePath had null executor (internal error)"
-                }
-            }
-            catch(Throwable t) {
-                System.err.println("An unexpected error occured while loading command: $exec.\n\n${Utils.indent(t.message)}\n\nThe job may already be stopped; use 'bpipe cleancommands' to clear old commands.")
-            }
-        }
-
-        // Second pass: stop commands in parallel, staggering submissions to avoid scheduler bursts
-        List<Command> stoppedCommands = Collections.synchronizedList([])
-        ExecutorService pool = Executors.newFixedThreadPool(parallelism)
-        List<Future> futures = []
-
-        commandsToStop.eachWithIndex { entry, int i ->
-            if(i > 0 && staggerMs > 0)
-                Thread.sleep(staggerMs)
-            File f = entry[0]
-            CommandExecutor exec = entry[1]
-            Command cmd = entry[2]
-            futures << pool.submit({
-                try {
-                    safeStopExecutor(cmd, exec)
-                    if(cmd)
-                        stoppedCommands << cmd
-                    println "Successfully stopped command $cmd.id ($exec)"
-                }
-                catch(PipelineError e) {
-                    System.err.println("WARNING: $cmd.id\n\n${Utils.indent(e.message)}\n\nNote: this may occur if the job is already stopped; use 'bpipe cleancommands' to clear old commands.")
-                }
-                catch(Throwable t) {
-                    System.err.println("An unexpected error occured while stopping command: $exec.\n\n${Utils.indent(t.message)}\n\nThe job may already be stopped; use 'bpipe cleancommands' to clear old commands.")
-                }
-                finally {
-                    try {
-                        cleanup(f.name)
-                    }
-                    catch(Exception e) {
-                        log.severe "Failed to clean up command object $f.name: " + e
-                    }
-                }
-            } as Runnable)
-        }
-
-        pool.shutdown()
-        futures*.get()
-
-        log.info "Successfully stopped ${stoppedCommands.size()} commands"
-
-        for(Command cmd in stoppedCommands) {
-            try {
-                Utils.cleanup(cmd.outputs)
-            }
-            catch(Exception e) {
-                def msg = "Failed to cleanup one or more commands from $cmd.outputs: " + e.toString()
-                log.info msg
-                println "WARNING: $msg"
-            }
-        }
-
-        return stoppedCommands.size()
+        return new CommandStopper(this).stopAll()
     }
 
-    private void safeStopExecutor(Command cmd, CommandExecutor exec) {
-        Exception error
-        
-        if(exec.hasProperty('command'))
-            exec.command = cmd
-
-        try {
-            exec.stop()
-        }
-        catch(Exception e) {
-            error = e
-        }
-        finally {
-            exec.cleanup()
-        }
-        
-        if(error)
-            throw error
-    }
-    
     public void cleanup(Command cmd) {
         
         CommandExecutor e = cmd.executor
@@ -392,13 +282,7 @@ class CommandManager {
         }
         
         log.info "Loading command $commandId"
-        commandFile.withObjectInputStream { 
-            // First saved object is the CommandExecutor
-            it.readObject(); 
-            
-            // Second is the one we want, the command itself
-            it.readObject() 
-        }
+        return CommandStore.theInstance.read(commandFile).command
     }
     
     public List<Command> getCurrentCommands() {
@@ -420,32 +304,29 @@ class CommandManager {
             CommandExecutor cmdExec
             Command cmd
             try {
-                f.withObjectInputStream { 
-                    cmdExec = it.readObject()
-                    String status
-                    try {
-                        status = cmdExec.status()
-                    }
-                    catch(Exception e) {
-                        println "Status probe for command $cmdExec failed: $e"
-                    }
-                    
-                    try {
-                        cmd = it.readObject()
-                    }
-                    catch(Exception e) {
-                        System.err.println "WARN: unable to read saved command $f: " + e.message
-                        return
-                    }
-                    
-                    // Update the status
-                    if(statuses == null || status in statuses) {
-                        cmd.status = CommandStatus.valueOf(status)
-                        result.add(cmd) 
-                    }
-                    else
-                        log.info "Skip command with status $status"
+                CommandRecord record = CommandStore.theInstance.read(f)
+                cmdExec = record.executor
+                String status
+                try {
+                    status = cmdExec.status()
+                }
+                catch(Exception e) {
+                    println "Status probe for command $cmdExec failed: $e"
+                }
+                
+                cmd = record.command
+                if(cmd == null) {
+                    System.err.println "WARN: unable to read saved command $f"
+                    return
+                }
+                
+                // Update the status
+                if(statuses == null || status in statuses) {
+                    cmd.status = CommandStatus.valueOf(status)
+                    result.add(cmd) 
                 }
+                else
+                    log.info "Skip command with status $status"
             }
             catch(PipelineError e) {
               System.err.println("Failed to read details for command $f.name: $cmdExec.\n\n${Utils.indent(e.message)}")
@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.regex.Pattern
+
+import bpipe.executor.BulkStoppable
+import bpipe.executor.CommandExecutor
+import bpipe.executor.ThrottledDelegatingCommandExecutor
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Stops all the commands of a pipeline, as quickly as possible without overloading the scheduler.
+ * <p>
+ * Commands whose executors implement {@link BulkStoppable} are grouped by their stop command and 
+ * stopped in batches, with one scheduler command (eg: <code>scancel id1 id2 ...</code>) for each
+ * batch. Other commands are stopped one at a time, by their own executors. Up to 
+ * <code>stopParallelism</code> stop operations run at once, and each is started at least 
+ * <code>stopStaggerMs</code> after the previous one.
+ * <p>
+ * Progress is printed while commands are stopped, followed by a list of any commands that could not
+ * be stopped.
+ * <p>
+ * Configured in <code>bpipe.config</code> with:
+ * <ul>
+ * <li><code>stopParallelism</code> - stop operations that may run at once (default: 4)
+ * <li><code>stopStaggerMs</code> - minimum time between starting stop operations (default: 100)
+ * <li><code>stopBatchSize</code> - maximum jobs stopped by one scheduler command (default: 200)
+ * <li><code>stopCommands</code> - map from scheduler commands to the executables to use for 
+ *     them, eg: <code>[scancel: '/opt/slurm/bin/scancel']</code>
+ * </ul>
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+class CommandStopper {
+    
+    /**
+     * A command to be stopped, and the outcome of stopping it
+     */
+    @CompileStatic
+    static class StopRequest {
+        
+        File file
+        
+        Command command
+        
+        CommandExecutor executor
+        
+        boolean stopped = false
+        
+        String error
+        
+        /**
+         * @return the executor that actually runs the job, without any wrapping executor
+         */
+        CommandExecutor getJobExecutor() {
+            executor instanceof ThrottledDelegatingCommandExecutor ? 
+                ((ThrottledDelegatingCommandExecutor)executor).commandExecutor : executor
+        }
+        
+        String getCommandId() {
+            command?.id ?: file?.name
+        }
+    }
+    
+    final CommandManager commandManager
+    
+    int parallelism = 4
+    
+    long staggerMs = 100L
+    
+    int batchSize = 200
+    
+    Map<String,String> stopCommands = [:]
+    
+    /**
+     * Where progress and the final report are printed
+     */
+    PrintStream out = System.out
+    
+    private AtomicInteger stoppedCount = new AtomicInteger()
+    
+    private AtomicInteger failedCount = new AtomicInteger()
+    
+    private int total
+    
+    private long lastProgressMs = 0
+    
+    CommandStopper(CommandManager commandManager) {
+        this.commandManager = commandManager
+        this.parallelism = (int)Config.userConfig.getOrDefault('stopParallelism', parallelism)
+        this.staggerMs = (long)Config.userConfig.getOrDefault('stopStaggerMs', staggerMs)
+        this.batchSize = (int)Config.userConfig.getOrDefault('stopBatchSize', batchSize)
+        this.stopCommands = (Map<String,String>)Config.userConfig.getOrDefault('stopCommands', stopCommands)
+    }
+    
+    /**
+     * Stop all the commands saved in the command directory
+     * 
+     * @return the number of commands stopped
+     */
+    int stopAll() {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(parallelism, 1))
+        List<StopRequest> requests
+        try {
+            requests = load(pool)
+            stop(requests, pool)
+        }
+        finally {
+            pool.shutdown()
+        }
+        
+        List<StopRequest> stopped = requests.findAll { it.stopped }
+        log.info "Successfully stopped ${stopped.size()} commands"
+
+        for(StopRequest request in requests) {
+            try {
+                commandManager.cleanup(request.file.name)
+            }
+            catch(Exception e) {
+                log.severe "Failed to clean up command object $request.file.name: " + e
+            }
+        }
+        
+        for(StopRequest request in stopped) {
+            if(request.command == null)
+                continue
+            try {
+                Utils.cleanup(request.command.outputs)
+            }
+            catch(Exception e) {
+                def msg = "Failed to cleanup one or more commands from $request.command.outputs: " + e.toString()
+                log.info msg
+                out.println "WARNING: $msg"
+            }
+        }
+        
+        report(requests)
+
+        return stopped.size()
+    }
+    
+    /**
+     * Read the saved commands, in parallel
+     */
+    List<StopRequest> load(ExecutorService pool) {
+        List<File> files = (commandManager.commandDir.listFiles()?.findAll { it.name ==~ /[0-9]+/ } ?: []) as List<File>
+        List<Future<StopRequest>> futures = files.collect { File f ->
+            pool.submit({
+                loadRequest(f)
+            } as java.util.concurrent.Callable<StopRequest>)
+        }
+        return futures*.get().findAll { it != null }
+    }
+    
+    StopRequest loadRequest(File f) {
+        log.info "Loading command info from $f.absolutePath"
+        CommandExecutor exec = null
+        try {
+            CommandRecord record = CommandStore.theInstance.read(f)
+            exec = record.executor
+            Command cmd = record.command
+            
+            if(exec == null) {
+                out.println "WARNING: stored command $f.absolutePath had null executor (internal error)"
+                return null
+            }
+            
+            if(exec instanceof PooledExecutor && exec.poolConfig.get('persistent',false)) {
+                out.println "Command $cmd.id is persistent command: ignoring"
+                return null
+            }
+            
+            return new StopRequest(file: f, command: cmd, executor: exec)
+        }
+        catch(Throwable t) {
+            System.err.println("An unexpected error occured while loading command: $exec.\n\n${Utils.indent(t.message)}\n\nThe job may already be stopped; use 'bpipe cleancommands' to clear old commands.")
+            return null
+        }
+    }
+    
+    /**
+     * Stop the given commands, grouping those that can be stopped together
+     */
+    void stop(List<StopRequest> requests, ExecutorService pool) {
+        
+        total = requests.size()
+        stoppedCount.set(0)
+        failedCount.set(0)
+        
+        Map<List<String>, List<StopRequest>> bulk = requests.findAll { 
+            it.jobExecutor instanceof BulkStoppable && ((BulkStoppable)it.jobExecutor).jobId
+        }.groupBy { ((BulkStoppable)it.jobExecutor).bulkStopCommand }
+        
+        List<StopRequest> individual = requests.findAll { !(it.jobExecutor instanceof BulkStoppable) || !((BulkStoppable)it.jobExecutor).jobId }
+        
+        List<Closure> operations = []
+        bulk.each { List<String> command, List<StopRequest> commandRequests ->
+            commandRequests.collate(Math.max(batchSize,1)).each { List<StopRequest> batch ->
+                operations << { stopBatch(batch) }
+            }
+        }
+        individual.each { StopRequest request ->
+            operations << { stopIndividually(request) }
+        }
+        
+        log.info "Stopping ${requests.size()} commands using ${operations.size()} operations (${bulk.values().sum(0) { it.size() }} in bulk)"
+        out.println "Stopping ${requests.size()} commands" + (bulk ? " (" + bulk.collect { command, reqs -> "${reqs.size()} using ${command.join(' ')}" }.join(', ') + ")" : "")
+        
+        List<Future> futures = []
+        operations.eachWithIndex { Closure operation, int i ->
+            if(i > 0 && staggerMs > 0)
+                Thread.sleep(staggerMs)
+            futures << pool.submit({
+                try {
+                    operation()
+                }
+                catch(Throwable t) {
+                    log.severe "Unexpected error stopping commands: $t"
+                }
+            } as Runnable)
+        }
+        futures*.get()
+        
+        printProgress(true)
+    }
+    
+    /**
+     * Stop a batch of jobs with a single scheduler command. Jobs whose outcome cannot be
+     * determined from the output of the command are stopped individually.
+     */
+    void stopBatch(List<StopRequest> batch) {
+        
+        BulkStoppable first = (BulkStoppable)batch[0].jobExecutor
+        List<String> stopCommand = resolveCommand(first.bulkStopCommand)
+        List<String> jobIds = batch.collect { ((BulkStoppable)it.jobExecutor).jobId }
+        
+        List<StopRequest> retry = []
+        try {
+            ExecutedProcess result = Utils.executeCommand(stopCommand + jobIds)
+            List<String> lines = (result.err.toString() + '\n' + result.out.toString()).readLines().findAll { it.trim() }
+            
+            if(result.exitValue == 0) {
+                batch.each { it.stopped = true }
+            }
+            else
+            if(!lines.any { idPatternAny(jobIds).matcher(it).find() }) {
+                // The command failed without reporting on any job, eg: the scheduler is unavailable
+                log.info "Stop command ${stopCommand.join(' ')} failed with exit code $result.exitValue:\n" + lines.join('\n')
+                retry = batch
+            }
+            else {
+                // Schedulers report failures for each job, so jobs that are not mentioned were stopped,
+                // as were those where the message only says the job had already finished
+                log.info "Stop command ${stopCommand.join(' ')} returned exit code $result.exitValue for ${jobIds.size()} jobs. Output:\n" + lines.join('\n')
+                for(StopRequest request in batch) {
+                    BulkStoppable exec = (BulkStoppable)request.jobExecutor
+                    Pattern idPattern = idPatternAny([exec.jobId])
+                    List<String> messages = lines.findAll { idPattern.matcher(it).find() }
+                    if(messages.every { exec.isStoppedMessage(it) })
+                        request.stopped = true
+                    else {
+                        request.error = messages.join('\n')
+                        retry << request
+                    }
+                }
+            }
+        }
+        catch(Exception e) {
+            log.warning "Failed to stop ${jobIds.size()} jobs using ${stopCommand.join(' ')}: $e"
+            retry = batch.findAll { !it.stopped }
+        }
+        
+        for(StopRequest request in batch) {
+            if(request.stopped) {
+                cleanupExecutor(request)
+                stoppedCount.incrementAndGet()
+            }
+        }
+        printProgress(false)
+        
+        if(retry) {
+            log.info "Stopping ${retry.size()} jobs individually after bulk stop failed to stop them"
+            retry.each { stopIndividually(it) }
+        }
+    }
+    
+    /**
+     * Stop a command using its own executor
+     */
+    void stopIndividually(StopRequest request) {
+        CommandExecutor exec = request.executor
+        try {
+            if(exec.hasProperty('command'))
+                exec.command = request.command
+                
+            exec.stop()
+            request.stopped = true
+            stoppedCount.incrementAndGet()
+        }
+        catch(Exception e) {
+            request.error = e.message ?: e.toString()
+            failedCount.incrementAndGet()
+            log.warning "Failed to stop command $request.commandId ($exec): $e"
+        }
+        finally {
+            try {
+                exec.cleanup()
+            }
+            catch(Exception e) {
+                log.warning "Failed to clean up executor of command $request.commandId: $e"
+            }
+            printProgress(false)
+        }
+    }
+    
+    private void cleanupExecutor(StopRequest request) {
+        try {
+            CommandExecutor exec = request.jobExecutor
+            if(exec.hasProperty('command'))
+                exec.command = request.command
+            exec.cleanup()
+        }
+        catch(Exception e) {
+            log.warning "Failed to clean up executor of command $request.commandId: $e"
+        }
+    }
+    
+    @CompileStatic
+    private static Pattern idPatternAny(List<String> jobIds) {
+        Pattern.compile('(?<![A-Za-z0-9])(' + jobIds.collect { Pattern.quote(it) }.join('|') + ')(?![A-Za-z0-9])')
+    }
+    
+    /**
+     * Replace the executable of the given command with the one configured in 
+     * <code>stopCommands</code>, if any
+     */
+    @CompileStatic
+    List<String> resolveCommand(List<String> command) {
+        String executable = stopCommands?.get(command[0])
+        return executable ? [executable] + command.tail() : command
+    }
+    
+    private synchronized void printProgress(boolean last) {
+        long now = System.currentTimeMillis()
+        if(!last && now - lastProgressMs < 1000)
+            return
+        lastProgressMs = now
+        int failed = failedCount.get()
+        out.println "Stopped ${stoppedCount.get()} / $total commands" + (failed ? " ($failed failed)" : "")
+    }
+    
+    /**
+     * Print the commands that could not be stopped
+     */
+    void report(List<StopRequest> requests) {
+        List<StopRequest> failed = requests.findAll { !it.stopped }
+        if(!failed)
+            return
+            
+        int cols = (int)Config.config.getOrDefault('columns', 100)
+        out.println ""
+        out.println " ${failed.size()} Commands Could Not Be Stopped ".center(cols, "=")
+        for(StopRequest request in failed) {
+            out.println ""
+            out.println "Command $request.commandId (${request.jobExecutor.class.simpleName}):"
+            out.println ""
+            out.println Utils.indent(request.error ?: 'unknown error')
+        }
+        out.println ""
+        out.println "Note: this may occur if the jobs are already stopped; use 'bpipe cleancommands' to clear old commands."
+        out.println "=" * cols
+    }
+}
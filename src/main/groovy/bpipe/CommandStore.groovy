@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.channels.FileChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+import bpipe.executor.CommandExecutor
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A command and its executor, as saved in the commands directory
+ */
+@CompileStatic
+class CommandRecord {
+
+    CommandExecutor executor
+
+    /**
+     * The command: may be null if only the executor could be read
+     */
+    Command command
+}
+
+/**
+ * Saves and loads the state of commands and their executors to the files in
+ * <code>.bpipe/commands</code>.
+ * <p>
+ * Records are written in the compact format of {@link CompactRecordWriter}, preceded by a
+ * short header that identifies the format and its version. Files written by earlier
+ * versions of Bpipe with Java serialization are recognised and read as before.
+ * Each record is written to a temporary file which is then renamed over the existing
+ * file, so a reader never sees a partially written record.
+ * <p>
+ * Configured in the <code>commandStore</code> section of <code>bpipe.config</code>:
+ * <ul>
+ * <li><code>format</code> - <code>compact</code> (default) or <code>java</code> to write
+ *     records readable by older versions of Bpipe
+ * <li><code>fsync</code> - <code>none</code> (default) leaves flushing to the operating system,
+ *     <code>always</code> syncs each record before it is renamed into place, and <code>batch</code>
+ *     syncs records in the background every <code>batchIntervalMs</code> (default 200ms), so
+ *     that saves do not wait for the disk. Each file saved in the interval is still synced
+ *     separately, although a file saved several times in one interval is synced only once.
+ * </ul>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Singleton
+@Log
+class CommandStore {
+
+    final static byte [] MAGIC = [(byte)0x42, (byte)0x50, (byte)0x43, (byte)0x52] as byte[] // "BPCR"
+
+    final static int VERSION = 1
+
+    /**
+     * Files that have been renamed into place but not yet synced, in batch mode. A file
+     * saved again before it is synced only needs to be synced once.
+     */
+    private final Set<Path> unsynced = new LinkedHashSet<Path>()
+
+    private Thread syncThread = null
+
+    @CompileStatic
+    Map getConfig() {
+        Map cfg = (Map)Config.userConfig?.getOrDefault('commandStore', null)
+        return cfg ?: [:]
+    }
+
+    /**
+     * Save the given executor and command to the given file, replacing it atomically
+     */
+    @CompileStatic
+    void write(File file, CommandExecutor executor, Command command) {
+
+        Map cfg = getConfig()
+        String format = cfg.getOrDefault('format', 'compact')
+        String fsync = cfg.getOrDefault('fsync', 'none')
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(2048)
+        if(format == 'java') {
+            new ObjectOutputStream(bytes).withCloseable { ObjectOutputStream oos ->
+                oos.writeObject(executor)
+                oos.writeObject(command)
+            }
+        }
+        else {
+            encode(bytes, executor, command)
+        }
+
+        File tmp = new File(file.parentFile, file.name + '.tmp')
+        FileOutputStream out = new FileOutputStream(tmp)
+        try {
+            bytes.writeTo(out)
+            if(fsync == 'always')
+                out.channel.force(false)
+        }
+        finally {
+            out.close()
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        }
+        catch(AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+
+        if(fsync == 'batch')
+            scheduleSync(file.toPath(), (long)cfg.getOrDefault('batchIntervalMs', 200L))
+    }
+
+    /**
+     * Write the compact form of a record to the given stream
+     */
+    @CompileStatic
+    static void encode(OutputStream out, CommandExecutor executor, Command command) {
+        DataOutputStream dataOut = new DataOutputStream(out)
+        dataOut.write(MAGIC)
+        dataOut.writeByte(VERSION)
+        CompactRecordWriter writer = new CompactRecordWriter(dataOut)
+        writer.writeValue(executor)
+        writer.writeValue(command)
+        writer.flush()
+    }
+
+    /**
+     * Read a saved command, in either the compact or the legacy (Java serialized) format
+     */
+    @CompileStatic
+    CommandRecord read(File file) {
+        byte [] bytes = file.bytes
+        return decode(bytes, file.path)
+    }
+
+    @CompileStatic
+    static CommandRecord decode(byte [] bytes, String source) {
+        CommandRecord record = new CommandRecord()
+        if(isCompact(bytes)) {
+            int version = bytes[MAGIC.length]
+            if(version > VERSION)
+                throw new IOException("Saved command $source has format version $version, but this version of Bpipe only supports up to $VERSION")
+
+            int offset = MAGIC.length + 1
+            CompactRecordReader reader = new CompactRecordReader(new ByteArrayInputStream(bytes, offset, bytes.length - offset))
+            record.executor = (CommandExecutor)reader.readValue()
+            try {
+                record.command = (Command)reader.readValue()
+            }
+            catch(Exception e) {
+                log.warning "Unable to read command details from $source: $e"
+            }
+        }
+        else {
+            new ObjectInputStream(new ByteArrayInputStream(bytes)).withCloseable { ObjectInputStream ois ->
+                record.executor = (CommandExecutor)ois.readObject()
+                try {
+                    record.command = (Command)ois.readObject()
+                }
+                catch(Exception e) {
+                    log.info "Unable to read command details for $source : maybe legacy pipeline directory?"
+                }
+            }
+        }
+        return record
+    }
+
+    @CompileStatic
+    static boolean isCompact(byte [] bytes) {
+        if(bytes.length <= MAGIC.length)
+            return false
+        for(int i=0; i<MAGIC.length; ++i) {
+            if(bytes[i] != MAGIC[i])
+                return false
+        }
+        return true
+    }
+
+    @CompileStatic
+    private void scheduleSync(Path path, long intervalMs) {
+        synchronized(unsynced) {
+            unsynced.add(path)
+            if(syncThread == null) {
+                syncThread = new Thread({
+                    while(true) {
+                        Thread.sleep(intervalMs)
+                        sync()
+                    }
+                }, 'bpipe-command-sync')
+                syncThread.daemon = true
+                syncThread.start()
+                Runtime.runtime.addShutdownHook(new Thread({ sync() }))
+            }
+        }
+    }
+
+    /**
+     * Sync all records written since the last sync, and the directories containing them
+     */
+    @CompileStatic
+    void sync() {
+        List<Path> paths
+        synchronized(unsynced) {
+            if(unsynced.isEmpty())
+                return
+            paths = new ArrayList<Path>(unsynced)
+            unsynced.clear()
+        }
+
+        Set<Path> dirs = new LinkedHashSet<Path>()
+        for(Path path in paths) {
+            force(path)
+            if(path.parent != null)
+                dirs.add(path.parent)
+        }
+
+        // Syncing the directory makes the renames durable
+        for(Path dir in dirs) {
+            force(dir)
+        }
+        log.fine "Synced ${paths.size()} command records"
+    }
+
+    @CompileStatic
+    private static void force(Path path) {
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)
+            try {
+                channel.force(true)
+            }
+            finally {
+                channel.close()
+            }
+        }
+        catch(IOException e) {
+            // File may have since moved (eg: to the executed directory), and some
+            // platforms do not support syncing directories
+            log.fine "Unable to sync $path: $e"
+        }
+    }
+
+    static CommandStore getTheInstance() {
+        return CommandStore.instance
+    }
+}
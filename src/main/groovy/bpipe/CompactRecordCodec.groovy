@@ -0,0 +1,649 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.lang.reflect.Constructor
+import java.lang.reflect.Field
+import java.lang.reflect.Modifier
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+
+import org.codehaus.groovy.runtime.GStringImpl
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Type tags and reflection helpers shared by {@link CompactRecordWriter} and
+ * {@link CompactRecordReader}.
+ * <p>
+ * The format is a tree of tagged values. Simple values (strings, numbers, dates, files,
+ * enums) and collections are written directly. Objects of Bpipe's own classes are written
+ * field by field, by name, so that fields can be added or removed between versions without
+ * making existing records unreadable. These are recreated with their no-arg constructor,
+ * so objects of Bpipe classes without one, and of any other serializable class, are
+ * embedded using Java serialization instead. Class and field names are written once per record and then
+ * referred to by index, and objects referenced more than once are written once and then
+ * referred to by handle.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class CompactRecordCodec {
+
+    final static int NULL = 0
+    final static int TRUE = 1
+    final static int FALSE = 2
+    final static int INT = 3
+    final static int LONG = 4
+    final static int DOUBLE = 5
+    final static int STRING = 6
+    final static int DATE = 7
+    final static int FILE = 8
+    final static int ENUM = 9
+    final static int LIST = 10
+    final static int MAP = 11
+    final static int SET = 12
+    final static int OBJECT = 13
+    final static int REF = 14
+    final static int SERIALIZED = 15
+    final static int FLOAT = 16
+    final static int SHORT = 17
+    final static int BYTE = 18
+    final static int CHAR = 19
+    final static int ARRAY = 20
+    final static int GSTRING = 21
+
+    private final static Map<Class,List<Field>> fieldCache = new ConcurrentHashMap<Class,List<Field>>()
+
+    private final static Map<Class,Map<String,Map<String,Field>>> fieldsByClassCache = new ConcurrentHashMap<Class,Map<String,Map<String,Field>>>()
+
+    private final static Map<Class,Optional<Constructor>> constructorCache = new ConcurrentHashMap<Class,Optional<Constructor>>()
+
+    /**
+     * Whether objects of the given class are written field by field
+     */
+    static boolean isRecordClass(Class type) {
+        type.getName().startsWith('bpipe.') && Serializable.isAssignableFrom(type) && !type.isEnum() && noArgConstructor(type) != null
+    }
+
+    /**
+     * The classes of the hierarchy of type whose fields are persisted, most derived first.
+     * As with Java serialization, only serializable classes contribute fields.
+     */
+    static List<Class> persistedClasses(Class type) {
+        List<Class> result = []
+        for(Class c = type; c != null && Serializable.isAssignableFrom(c); c = c.superclass) {
+            result.add(c)
+        }
+        return result
+    }
+
+    /**
+     * The persisted fields declared by the given class: those that are not
+     * static, transient or synthetic
+     */
+    static List<Field> persistedFields(Class type) {
+        List<Field> fields = fieldCache.get(type)
+        if(fields == null) {
+            fields = type.declaredFields.toList().findAll { Field f ->
+                int mods = f.modifiers
+                !Modifier.isStatic(mods) && !Modifier.isTransient(mods) && !f.isSynthetic()
+            }
+            fields.each { Field f -> f.accessible = true }
+            fieldCache.put(type, fields)
+        }
+        return fields
+    }
+
+    /**
+     * The persisted fields of the hierarchy of type, keyed by the name of the class
+     * that declares them and then by field name
+     */
+    static Map<String,Map<String,Field>> persistedFieldsByClass(Class type) {
+        Map<String,Map<String,Field>> fields = fieldsByClassCache.get(type)
+        if(fields == null) {
+            fields = [:]
+            for(Class c in persistedClasses(type)) {
+                Map<String,Field> declared = persistedFields(c).collectEntries { Field f -> [f.name, f] }
+                fields.put(c.getName(), declared)
+            }
+            fieldsByClassCache.put(type, fields)
+        }
+        return fields
+    }
+
+    /**
+     * @return the no-arg constructor of the given class, or null if it is abstract or
+     *         has none
+     */
+    static Constructor noArgConstructor(Class type) {
+        Optional<Constructor> constructor = constructorCache.get(type)
+        if(constructor == null) {
+            Constructor found = null
+            if(!Modifier.isAbstract(type.modifiers)) {
+                try {
+                    found = type.getDeclaredConstructor()
+                    found.accessible = true
+                }
+                catch(NoSuchMethodException e) {
+                    // Not a record class
+                }
+            }
+            constructor = Optional.ofNullable(found)
+            constructorCache.put(type, constructor)
+        }
+        return constructor.orElse(null)
+    }
+
+    /**
+     * Create an instance of a record class to restore its fields into, using its no-arg
+     * constructor
+     * 
+     * @throws NoSuchMethodException if the class has no no-arg constructor
+     */
+    static Object newInstance(Class type) {
+        Constructor constructor = noArgConstructor(type)
+        if(constructor == null)
+            throw new NoSuchMethodException("Class $type.name has no no-arg constructor")
+        return constructor.newInstance()
+    }
+}
+
+/**
+ * Writes values in the format described by {@link CompactRecordCodec}
+ */
+@CompileStatic
+class CompactRecordWriter {
+
+    private final DataOutputStream out
+
+    private final Map<String,Integer> symbols = new HashMap<String,Integer>()
+
+    private final IdentityHashMap<Object,Integer> handles = new IdentityHashMap<Object,Integer>()
+
+    /**
+     * If true, GStrings are written so that they are read back as GStrings, rather than
+     * as Strings
+     */
+    boolean preserveGStrings = false
+
+    CompactRecordWriter(OutputStream out) {
+        this.out = out instanceof DataOutputStream ? (DataOutputStream)out : new DataOutputStream(out)
+    }
+
+    void writeValue(Object value) {
+
+        if(value == null) {
+            out.writeByte(CompactRecordCodec.NULL)
+            return
+        }
+
+        if(preserveGStrings && value instanceof GString) {
+            GString gstring = (GString)value
+            out.writeByte(CompactRecordCodec.GSTRING)
+            writeVarLong(gstring.strings.length)
+            for(String string in gstring.strings) {
+                writeString(string)
+            }
+            writeVarLong(gstring.values.length)
+            for(Object element in gstring.values) {
+                writeValue(element)
+            }
+        }
+        else
+        if(value instanceof CharSequence) {
+            out.writeByte(CompactRecordCodec.STRING)
+            writeString(value.toString())
+        }
+        else
+        if(value instanceof Boolean) {
+            out.writeByte(((Boolean)value) ? CompactRecordCodec.TRUE : CompactRecordCodec.FALSE)
+        }
+        else
+        if(value instanceof Integer) {
+            out.writeByte(CompactRecordCodec.INT)
+            writeVarLong(((Integer)value).longValue())
+        }
+        else
+        if(value instanceof Long) {
+            out.writeByte(CompactRecordCodec.LONG)
+            writeVarLong((Long)value)
+        }
+        else
+        if(value instanceof Double) {
+            out.writeByte(CompactRecordCodec.DOUBLE)
+            out.writeDouble((Double)value)
+        }
+        else
+        if(value instanceof Float) {
+            out.writeByte(CompactRecordCodec.FLOAT)
+            out.writeFloat((Float)value)
+        }
+        else
+        if(value instanceof Short) {
+            out.writeByte(CompactRecordCodec.SHORT)
+            out.writeShort((int)(Short)value)
+        }
+        else
+        if(value instanceof Byte) {
+            out.writeByte(CompactRecordCodec.BYTE)
+            out.writeByte((int)(Byte)value)
+        }
+        else
+        if(value instanceof Character) {
+            out.writeByte(CompactRecordCodec.CHAR)
+            out.writeChar((int)((Character)value).charValue())
+        }
+        else
+        if(value.getClass().is(Date)) {
+            out.writeByte(CompactRecordCodec.DATE)
+            writeVarLong(((Date)value).time)
+        }
+        else
+        if(value.getClass().is(File)) {
+            out.writeByte(CompactRecordCodec.FILE)
+            writeString(((File)value).path)
+        }
+        else
+        if(value instanceof Enum) {
+            out.writeByte(CompactRecordCodec.ENUM)
+            writeSymbol(((Enum)value).declaringClass.name)
+            writeSymbol(((Enum)value).name())
+        }
+        else
+        if(writeReference(value)) {
+            return
+        }
+        else
+        if(value instanceof Map) {
+            out.writeByte(CompactRecordCodec.MAP)
+            writeSymbol(value.getClass().name)
+            Map map = (Map)value
+            writeVarLong(map.size())
+            for(Map.Entry e in map.entrySet()) {
+                writeValue(e.key)
+                writeValue(e.value)
+            }
+        }
+        else
+        if(value instanceof List || value instanceof Set) {
+            out.writeByte(value instanceof List ? CompactRecordCodec.LIST : CompactRecordCodec.SET)
+            writeSymbol(value.getClass().name)
+            Collection values = (Collection)value
+            writeVarLong(values.size())
+            for(Object element in values) {
+                writeValue(element)
+            }
+        }
+        else
+        if(value.getClass().isArray() && !value.getClass().componentType.isPrimitive()) {
+            out.writeByte(CompactRecordCodec.ARRAY)
+            writeSymbol(value.getClass().componentType.name)
+            Object[] values = (Object[])value
+            writeVarLong(values.length)
+            for(Object element in values) {
+                writeValue(element)
+            }
+        }
+        else
+        if(CompactRecordCodec.isRecordClass(value.getClass())) {
+            writeObject(value)
+        }
+        else
+        if(value instanceof Serializable) {
+            out.writeByte(CompactRecordCodec.SERIALIZED)
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+            new ObjectOutputStream(bytes).withCloseable { ObjectOutputStream oos ->
+                oos.writeObject(value)
+            }
+            writeVarLong(bytes.size())
+            bytes.writeTo(out)
+        }
+        else {
+            throw new NotSerializableException(value.getClass().name)
+        }
+    }
+
+    private void writeObject(Object value) {
+        out.writeByte(CompactRecordCodec.OBJECT)
+        writeSymbol(value.getClass().name)
+
+        Map<String,Map<String,Field>> classes = CompactRecordCodec.persistedFieldsByClass(value.getClass())
+        writeVarLong(classes.size())
+        for(Map.Entry<String,Map<String,Field>> declared in classes) {
+            writeSymbol(declared.key)
+            writeVarLong(declared.value.size())
+            for(Field f in declared.value.values()) {
+                writeSymbol(f.name)
+                writeValue(f.get(value))
+            }
+        }
+    }
+
+    /**
+     * If the value has been written already, write a reference to it. Otherwise
+     * assign it a handle so that later references can refer to it.
+     *
+     * @return  true iff a reference was written
+     */
+    private boolean writeReference(Object value) {
+        Integer handle = handles.get(value)
+        if(handle != null) {
+            out.writeByte(CompactRecordCodec.REF)
+            writeVarLong(handle)
+            return true
+        }
+
+        if(value instanceof Map || value instanceof Collection || value.getClass().isArray() || CompactRecordCodec.isRecordClass(value.getClass()))
+            handles.put(value, handles.size())
+
+        return false
+    }
+
+    void writeString(String value) {
+        byte [] bytes = value.getBytes(StandardCharsets.UTF_8)
+        writeVarLong(bytes.length)
+        out.write(bytes)
+    }
+
+    void writeSymbol(String symbol) {
+        Integer index = symbols.get(symbol)
+        if(index != null) {
+            writeVarLong(index + 1)
+        }
+        else {
+            writeVarLong(0)
+            writeString(symbol)
+            symbols.put(symbol, symbols.size())
+        }
+    }
+
+    /**
+     * Write a zig-zag encoded variable length integer
+     */
+    void writeVarLong(long value) {
+        long v = (value << 1) ^ (value >> 63)
+        while((v & ~0x7FL) != 0L) {
+            out.writeByte((int)((v & 0x7FL) | 0x80L))
+            v = v >>> 7
+        }
+        out.writeByte((int)v)
+    }
+
+    void flush() {
+        out.flush()
+    }
+}
+
+/**
+ * Reads values written by {@link CompactRecordWriter}.
+ * <p>
+ * Fields that no longer exist in a class are ignored, as are objects of classes that
+ * no longer exist (which are read as null).
+ */
+@Log
+@CompileStatic
+class CompactRecordReader {
+
+    private final DataInputStream input
+
+    private final List<String> symbols = []
+
+    private final List<Object> handles = []
+
+    private final ClassLoader classLoader
+
+    CompactRecordReader(InputStream input, ClassLoader classLoader = CompactRecordReader.classLoader) {
+        this.input = input instanceof DataInputStream ? (DataInputStream)input : new DataInputStream(input)
+        this.classLoader = classLoader
+    }
+
+    Object readValue() {
+        int tag = input.readUnsignedByte()
+        // Groovy compiles each case of a switch to a dynamic isCase() call, even when
+        // statically compiled, so the tags are compared directly
+        if(tag == CompactRecordCodec.NULL)
+            return null
+        if(tag == CompactRecordCodec.TRUE)
+            return Boolean.TRUE
+        if(tag == CompactRecordCodec.FALSE)
+            return Boolean.FALSE
+        if(tag == CompactRecordCodec.INT)
+            return (Integer)(int)readVarLong()
+        if(tag == CompactRecordCodec.LONG)
+            return (Long)readVarLong()
+        if(tag == CompactRecordCodec.DOUBLE)
+            return (Double)input.readDouble()
+        if(tag == CompactRecordCodec.FLOAT)
+            return (Float)input.readFloat()
+        if(tag == CompactRecordCodec.SHORT)
+            return (Short)input.readShort()
+        if(tag == CompactRecordCodec.BYTE)
+            return (Byte)input.readByte()
+        if(tag == CompactRecordCodec.CHAR)
+            return (Character)input.readChar()
+        if(tag == CompactRecordCodec.STRING)
+            return readString()
+        if(tag == CompactRecordCodec.DATE)
+            return new Date(readVarLong())
+        if(tag == CompactRecordCodec.FILE)
+            return new File(readString())
+        if(tag == CompactRecordCodec.ENUM)
+            return readEnum()
+        if(tag == CompactRecordCodec.REF)
+            return handles[(int)readVarLong()]
+        if(tag == CompactRecordCodec.MAP)
+            return readMap()
+        if(tag == CompactRecordCodec.LIST || tag == CompactRecordCodec.SET)
+            return readCollection(tag == CompactRecordCodec.LIST)
+        if(tag == CompactRecordCodec.ARRAY)
+            return readArray()
+        if(tag == CompactRecordCodec.GSTRING)
+            return readGString()
+        if(tag == CompactRecordCodec.OBJECT)
+            return readObject()
+        if(tag == CompactRecordCodec.SERIALIZED) {
+            byte [] bytes = new byte[(int)readVarLong()]
+            input.readFully(bytes)
+            return new ByteArrayInputStream(bytes).withObjectInputStream(classLoader) { ObjectInputStream ois ->
+                ois.readObject()
+            }
+        }
+
+        throw new IOException("Unknown value type $tag in record")
+    }
+
+    private Object readEnum() {
+        String className = readSymbol()
+        String name = readSymbol()
+        Class type = findClass(className)
+        if(type == null)
+            return null
+        try {
+            return Enum.valueOf(type, name)
+        }
+        catch(IllegalArgumentException e) {
+            log.warning "Enum value $name no longer exists in $className"
+            return null
+        }
+    }
+
+    private Map readMap() {
+        Map map = (Map)newCollection(readSymbol(), Map, LinkedHashMap)
+        handles.add(map)
+        long size = readVarLong()
+        for(long i=0; i<size; ++i) {
+            Object key = readValue()
+            map.put(key, readValue())
+        }
+        return map
+    }
+
+    private Collection readCollection(boolean isList) {
+        Collection values = (Collection)newCollection(readSymbol(), isList ? List : Set, isList ? ArrayList : LinkedHashSet)
+        handles.add(values)
+        long size = readVarLong()
+        for(long i=0; i<size; ++i) {
+            values.add(readValue())
+        }
+        return values
+    }
+
+    private GString readGString() {
+        String[] strings = new String[(int)readVarLong()]
+        for(int i=0; i<strings.length; ++i) {
+            strings[i] = readString()
+        }
+        Object[] values = new Object[(int)readVarLong()]
+        for(int i=0; i<values.length; ++i) {
+            values[i] = readValue()
+        }
+        return new GStringImpl(values, strings)
+    }
+
+    private Object[] readArray() {
+        Class componentType = findClass(readSymbol()) ?: Object
+        Object[] values = (Object[])java.lang.reflect.Array.newInstance(componentType, (int)readVarLong())
+        handles.add(values)
+        for(int i=0; i<values.length; ++i) {
+            values[i] = readValue()
+        }
+        return values
+    }
+
+    /**
+     * Collections are recreated with their original class where that is a class with a
+     * public no-arg constructor (eg: ArrayList, LinkedHashMap), otherwise a default class
+     * is used (eg: for unmodifiable views)
+     */
+    private Object newCollection(String className, Class expectedType, Class defaultType) {
+        Class type = findClass(className)
+        if(type != null && expectedType.isAssignableFrom(type) && !Modifier.isAbstract(type.modifiers)) {
+            try {
+                Constructor c = type.getConstructor()
+                return c.newInstance()
+            }
+            catch(NoSuchMethodException e) {
+                // Fall through to default
+            }
+        }
+        return defaultType.getConstructor().newInstance()
+    }
+
+    private Object readObject() {
+        String className = readSymbol()
+        Class type = findClass(className)
+        Object value = null
+        if(type != null) {
+            try {
+                value = CompactRecordCodec.newInstance(type)
+            }
+            catch(ReflectiveOperationException e) {
+                log.warning "Unable to create object of class $className: object will be read as null ($e)"
+            }
+        }
+        else {
+            log.warning "Class $className of saved object no longer exists: object will be read as null"
+        }
+        handles.add(value)
+
+        int classCount = (int)readVarLong()
+        for(int i=0; i<classCount; ++i) {
+            String declaringClassName = readSymbol()
+            Map<String,Field> fields = fieldsOf(type, declaringClassName)
+            int fieldCount = (int)readVarLong()
+            for(int j=0; j<fieldCount; ++j) {
+                String fieldName = readSymbol()
+                Object fieldValue = readValue()
+                Field field = fields[fieldName]
+                if(field != null && value != null)
+                    setField(value, field, fieldValue)
+            }
+        }
+        return value
+    }
+
+    private Map<String,Field> fieldsOf(Class type, String declaringClassName) {
+        if(type == null)
+            return [:]
+        return CompactRecordCodec.persistedFieldsByClass(type).get(declaringClassName) ?: [:]
+    }
+
+    private void setField(Object target, Field field, Object value) {
+        try {
+            if(value == null && field.type.isPrimitive())
+                return
+            field.set(target, value)
+        }
+        catch(IllegalArgumentException e) {
+            // Type of field changed: try to convert
+            try {
+                field.set(target, org.codehaus.groovy.runtime.DefaultGroovyMethods.asType(value, field.type))
+            }
+            catch(Exception e2) {
+                log.warning "Unable to restore field $field.name of ${target.getClass().name} from saved value of type ${value?.getClass()?.name}"
+            }
+        }
+    }
+
+    private Class findClass(String name) {
+        try {
+            return Class.forName(name, false, classLoader)
+        }
+        catch(ClassNotFoundException e) {
+            return null
+        }
+    }
+
+    String readString() {
+        byte [] bytes = new byte[(int)readVarLong()]
+        input.readFully(bytes)
+        return new String(bytes, StandardCharsets.UTF_8)
+    }
+
+    String readSymbol() {
+        int index = (int)readVarLong()
+        if(index == 0) {
+            String symbol = readString()
+            symbols.add(symbol)
+            return symbol
+        }
+        return symbols[index - 1]
+    }
+
+    long readVarLong() {
+        long v = 0L
+        int shift = 0
+        while(true) {
+            int b = input.readUnsignedByte()
+            v |= ((long)(b & 0x7F)) << shift
+            if((b & 0x80) == 0)
+                break
+            shift += 7
+        }
+        return (v >>> 1) ^ -(v & 1L)
+    }
+}
@@ -27,6 +27,7 @@ package bpipe
 import java.util.Collections.SynchronizedList
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.Executors;
@@ -107,6 +108,11 @@ class Concurrency {
      */
     List<ThreadPoolExecutor> pools = Collections.synchronizedList([initPool()])
     
+    /**
+     * The total amount of each resource in {@link #resourceAllocations}
+     */
+    Map<String,Integer> resourceLimits = [:]
+    
     /**
      * Each resource allocation allocates resources for its resource type against
      * these resource allocations.
@@ -166,9 +172,12 @@ class Concurrency {
         // threads, it essentially disables the queueing and makes it so that any 
         // overflow from the pool results in a new thread being created.
         // 
+        // The queue here is unbounded like LinkedBlockingQueue, but ordered so that branches
+        // with the longest estimated paths start first (see CriticalPathPlanner). Branches 
+        // with equal priority start in the order they were created.
         return new ThreadPoolExecutor(numThreads, Integer.MAX_VALUE,
                                       0L, TimeUnit.MILLISECONDS,
-                                      new LinkedBlockingQueue<Runnable>(), 
+                                      new PriorityBlockingQueue<Runnable>(11, { Runnable a, Runnable b -> compareBranches(a,b) } as Comparator<Runnable>), 
 //                                      new SynchronousQueue<Runnable>(), 
 //                                      new ArrayBlockingQueue<Runnable>(Config.config.maxThreads), 
                                       threadFactory) {
@@ -193,6 +202,21 @@ class Concurrency {
     }
         
 
+    /**
+     * Order runnables waiting for a thread: branches with higher priority first, then in the order
+     * they were created
+     */
+    @CompileStatic
+    static int compareBranches(Runnable a, Runnable b) {
+        if(!(a instanceof BranchRunner) || !(b instanceof BranchRunner))
+            return 0
+        BranchRunner ba = (BranchRunner)a
+        BranchRunner bb = (BranchRunner)b
+        if(ba.priorityMs != bb.priorityMs)
+            return bb.priorityMs <=> ba.priorityMs
+        return ba.sequence <=> bb.sequence
+    }
+
     Map initResourceAllocations() {
 
         Map res = [ threads: new Semaphore(Config.config.maxThreads)]
@@ -205,6 +229,8 @@ class Concurrency {
             log.info "Setting maximum memory to $Config.config.maxMemoryMB from configuration / command line"
             res["memory"] = new Semaphore(Config.config.maxMemoryMB)
         }               
+        
+        res.each { String key, Semaphore semaphore -> resourceLimits[key] = semaphore.availablePermits() }
 		return res
     }
     
@@ -238,8 +264,13 @@ class Concurrency {
             }
         }
         
+        // Submit in priority order, since the first runnables go straight to free
+        // threads rather than through the queue
+        CriticalPathPlanner.theInstance.prioritise(runnables)
+        List<Runnable> ordered = runnables.sort(false) { Runnable a, Runnable b -> compareBranches(a,b) }
+        
         // Now put them in the thread pool
-        for(Runnable r in runnables) {
+        for(Runnable r in ordered) {
             pool.execute(r); 
         }
             
@@ -312,9 +343,13 @@ class Concurrency {
    /**
     * Called by parallel paths before they begin execution: enforces overall concurrency by blocking
     * the thread before it can start work. (ie. this method may block).
+    * 
+    * @param priorityMs the estimated remaining path of the command acquiring the resource. If the
+    *                   {@link CriticalPathPlanner} is enabled, waiting requests with higher priority
+    *                   are granted first.
     */
    @CompileStatic
-   void acquire(ResourceUnit resourceUnit) {
+   void acquire(ResourceUnit resourceUnit, long priorityMs=0L) {
        
        final long startTimeMs = System.currentTimeMillis()
        int amount = resourceUnit.amount
@@ -342,7 +377,11 @@ class Concurrency {
                amount = negotiateDynamicResources(resourceUnit, resource)
            }
            
-		   resource.acquire(amount)
+		   CriticalPathPlanner planner = CriticalPathPlanner.theInstance
+		   if(planner.enabled)
+		       planner.acquire(resource, amount, priorityMs)
+		   else
+		       resource.acquire(amount)
 		   resourceUnit.amount = amount
 	   }
       
@@ -354,6 +393,57 @@ class Concurrency {
            log.info "Thread " + Thread.currentThread().id + " acquired resource $resourceUnit.key in amount $amount"
    }
    
+   /**
+    * Acquire all the given resources for the given command.
+    * <p>
+    * If the command is managed by the {@link LocalMemoryScheduler} then the threads and
+    * memory resources are admitted together by the scheduler, based on measured
+    * and historical memory use. Otherwise, each resource is acquired in turn via
+    * {@link #acquire(ResourceUnit)}.
+    *
+    * @param command    the command requiring the resources
+    * @param resources  the resources to acquire. If the command is managed by the memory scheduler,
+    *                   a memory resource is added if not present so that the memory reserved
+    *                   by the scheduler is released with the other resources.
+    */
+   @CompileStatic
+   void acquireAll(Command command, List<ResourceUnit> resources) {
+
+       long priorityMs = CriticalPathPlanner.theInstance.priorityOf(command)
+
+       LocalMemoryScheduler scheduler = LocalMemoryScheduler.theInstance
+       if(!scheduler.isManaged(command)) {
+           resources.each { acquire(it, priorityMs) }
+           return
+       }
+
+       ResourceUnit threadUnit = resources.find { it.key == "threads" }
+       ResourceUnit memoryUnit = resources.find { it.key == "memory" }
+       if(memoryUnit == null) {
+           memoryUnit = new ResourceUnit(key: "memory", amount: 0)
+           resources.add(memoryUnit)
+       }
+
+       Semaphore threadSemaphore
+       Semaphore memorySemaphore
+       Integer memoryLimitMB
+       synchronized(resourceAllocations) {
+           threadSemaphore = resourceAllocations.get("threads")
+           memorySemaphore = resourceAllocations.get("memory")
+           memoryLimitMB = resourceLimits.get("memory")
+       }
+
+       if(threadUnit != null && threadSemaphore != null)
+           threadUnit.amount = negotiateDynamicResources(threadUnit, threadSemaphore)
+
+       scheduler.admit(command, threadUnit, memoryUnit, threadSemaphore, memorySemaphore, memoryLimitMB, priorityMs)
+
+       for(ResourceUnit resource in resources) {
+           if(resource.key != "threads" && resource.key != "memory")
+               acquire(resource, priorityMs)
+       }
+   }
+
    /**
 	* Waits until there is at least the specified amount of free space (in MB) on the local filesystem.
 	*
@@ -590,6 +680,7 @@ class Concurrency {
         }
         
        resource.release(resourceUnit.amount)
+       CriticalPathPlanner.theInstance.released()
        log.info "Thread " + Thread.currentThread().id + " releasing $resourceUnit.amount $resourceUnit.key"
    }
    
@@ -609,6 +700,7 @@ class Concurrency {
    
    void setLimit(String resourceName, int amount) {
        this.resourceAllocations.put(resourceName, new Semaphore(amount))
+       this.resourceLimits.put(resourceName, amount)
    }
    
    void initFromConfig(boolean override=true) {
@@ -113,6 +113,12 @@ class Config {
      */
     public static List<File> resolvedConfigFiles = []
     
+    /**
+     * The configuration files read by the most recent call to readUserConfig(), and how long
+     * each took to read
+     */
+    public static List<ConfigLoad> configLoads = []
+    
     /**
      * Return an element from the user config (bpipe.config) that is expected to be a List
      * (multiple valued element), but which can be provided as an actual list or a comma separated string
@@ -177,6 +183,8 @@ class Config {
     @CompileStatic
     public static void readUserConfig() {
         
+        long startMs = System.currentTimeMillis()
+        
         ConfigSlurper slurper = Config.config.environment == 'default' ? new ConfigSlurper() : new ConfigSlurper((String)Config.config.environment)
 
         Map binding = Runner.binding.getVariables().collectEntries {it}
@@ -238,8 +246,12 @@ class Config {
             log.info "No local configuration file found"
         }
         
+        List<ConfigLoad> loads = []
+        
         if(configFiles.bootstrapConfig) {
-            ConfigObject cfg = slurper.parse(configFiles.bootstrapConfig.text)
+            ConfigLoad bootstrapLoad = ConfigCache.theInstance.load(slurper, configFiles.bootstrapConfig, binding, (String)Config.config.environment)
+            loads << bootstrapLoad
+            ConfigObject cfg = bootstrapLoad.config
             binding.put('configPath', configFiles.bootstrapConfig.canonicalPath)
             if(cfg.containsKey('libs')) {
                 listValue(cfg,'libs').each {  lib ->
@@ -252,7 +264,9 @@ class Config {
                 binding.putAll((Map)cfg.parameters)
         }
         
-        Map<String,ConfigObject> configs = readParallelConfigs(slurper, configFiles)
+        Map<String,ConfigLoad> parallelLoads = readParallelConfigs(slurper, configFiles, binding)
+        loads.addAll(parallelLoads.values())
+        Map<String,ConfigObject> configs = (Map<String,ConfigObject>)parallelLoads.collectEntries { String name, ConfigLoad load -> [name, load.config] }
        
         ConfigObject finalConfig = configs.builtInConfig ?: new ConfigObject()
         
@@ -308,17 +322,22 @@ class Config {
        resolvedConfigFiles = configFiles.findAll { it.key != 'builtInConfig' && it.value.exists() }
                                         .collect { it.value }
        log.info "Resolved user config files for dev mode watching: $resolvedConfigFiles"
+       
+       Config.configLoads = loads
+       log.info "Read ${loads.size()} configuration files (${loads.count { it.cached }} from cache) in ${System.currentTimeMillis() - startMs}ms"
     }
     
-    private static Map<String,ConfigObject> readParallelConfigs(final ConfigSlurper slurper, Map configFiles) {
+    /**
+     * Read the given configuration files in parallel, using cached configurations where possible
+     * 
+     * @see ConfigCache
+     */
+    private static Map<String,ConfigLoad> readParallelConfigs(final ConfigSlurper slurper, Map configFiles, Map binding) {
+        final String environment = Config.config.environment
         return GParsPool.withPool(configFiles.size()) {
             return configFiles.grep { ((Map.Entry<String,File>)it).value.exists() }
                               .collectParallel { Map.Entry<String,File> e ->
-                                    File file = e.value
-                                    def name = e.key
-                                    Utils.time("Read config from $file") {
-                                        [name, slurper.parse(file.toURI().toURL())]
-                                    }
+                                    [e.key, ConfigCache.theInstance.load(slurper, e.value, binding, environment)]
                               }
                               .collectEntries()
         }
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+
+import org.codehaus.groovy.ast.CodeVisitorSupport
+import org.codehaus.groovy.ast.DynamicVariable
+import org.codehaus.groovy.ast.ModuleNode
+import org.codehaus.groovy.ast.expr.ArgumentListExpression
+import org.codehaus.groovy.ast.expr.CastExpression
+import org.codehaus.groovy.ast.expr.ClassExpression
+import org.codehaus.groovy.ast.expr.ClosureExpression
+import org.codehaus.groovy.ast.expr.ConstructorCallExpression
+import org.codehaus.groovy.ast.expr.MethodCallExpression
+import org.codehaus.groovy.ast.expr.MethodPointerExpression
+import org.codehaus.groovy.ast.expr.PropertyExpression
+import org.codehaus.groovy.ast.expr.StaticMethodCallExpression
+import org.codehaus.groovy.ast.expr.VariableExpression
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.Phases
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * The result of loading a single configuration file
+ */
+@CompileStatic
+class ConfigLoad {
+
+    File file
+
+    ConfigObject config
+
+    /**
+     * True if the configuration was read from the cache, rather than by running the file
+     */
+    boolean cached
+
+    /**
+     * Why the configuration could not be cached, if it could not
+     */
+    String reason
+
+    long timeMs
+
+    @Override
+    String toString() {
+        "$file.path: ${cached ? 'read from cache' : 'parsed'} in ${timeMs}ms" + (reason ? " (not cached: $reason)" : "")
+    }
+}
+
+/**
+ * Caches the parsed form of <code>bpipe.config</code> files, so that files which have not
+ * changed do not have to be compiled and run by {@link ConfigSlurper} every time Bpipe starts.
+ * <p>
+ * A configuration is only cached if its result depends on nothing but the text of the file,
+ * the selected environment and variables from the binding. Before a file is first cached,
+ * its syntax tree is checked: files that refer to classes (eg: <code>System.getenv()</code>),
+ * create objects, import classes, or call methods other than configuration blocks and simple
+ * operations on strings and collections are always parsed. The values of any variables the
+ * file refers to that are in the binding are part of the key of the cached configuration,
+ * and the configuration itself is only cached if all of its values are simple values
+ * (strings, numbers, booleans, lists and maps), so that closures, for example, are never cached.
+ * <p>
+ * Cached configurations are stored in the <code>configs</code> directory of the Bpipe
+ * database (<code>~/.bpipedb</code>) in the compact format of {@link CompactRecordWriter}.
+ * Each file's entry is keyed by a hash of its contents, the environment and the versions of
+ * Groovy and of the cache format, so a changed file is never read from the cache. Caching
+ * is turned off by setting the environment variable <code>BPIPE_CONFIG_CACHE</code> to
+ * <code>false</code>.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Singleton
+@Log
+class ConfigCache {
+
+    final static byte [] MAGIC = [(byte)0x42, (byte)0x50, (byte)0x43, (byte)0x43] as byte[] // "BPCC"
+
+    final static int VERSION = 1
+
+    /**
+     * Methods that may be called on values in a cached configuration: these only compute
+     * new values from their arguments
+     */
+    final static Set<String> PURE_METHODS = [
+        'stripIndent', 'stripMargin', 'trim', 'toString', 'toUpperCase', 'toLowerCase', 'capitalize',
+        'tokenize', 'split', 'join', 'replace', 'replaceAll', 'replaceFirst', 'substring', 'padLeft',
+        'padRight', 'startsWith', 'endsWith', 'contains', 'matches', 'indexOf', 'plus', 'minus',
+        'multiply', 'div', 'intdiv', 'mod', 'power', 'toInteger', 'toLong', 'toDouble', 'toBigDecimal',
+        'toBoolean', 'size', 'isEmpty', 'getAt', 'collect', 'collectEntries', 'collectMany', 'each',
+        'eachWithIndex', 'find', 'findAll', 'grep', 'any', 'every', 'inject', 'sum', 'max', 'min',
+        'unique', 'sort', 'reverse', 'flatten', 'keySet', 'values', 'put', 'putAll', 'add', 'addAll'
+    ] as Set
+
+    /**
+     * Properties of the script that gives access to things other than configuration values
+     */
+    final static Set<String> SCRIPT_PROPERTIES = ['binding', 'metaClass', 'class', 'properties'] as Set
+
+    /**
+     * Cached entries beyond this number are removed, least recently used first
+     */
+    int maxEntries = 1000
+
+    boolean enabled = System.getenv('BPIPE_CONFIG_CACHE') != 'false'
+
+    private File dir = null
+
+    @CompileStatic
+    File getDir() {
+        if(dir == null)
+            dir = BpipeDB.getFile('configs')
+        return dir
+    }
+
+    @CompileStatic
+    void setDir(File dir) {
+        this.dir = dir
+    }
+
+    /**
+     * Parse the given configuration file, or read it from the cache if it has been parsed
+     * with the same binding and environment before
+     *
+     * @param binding       the variables set on the slurper
+     * @param environment   the environment selected for the slurper
+     */
+    @CompileStatic
+    ConfigLoad load(ConfigSlurper slurper, File file, Map binding, String environment) {
+        long startMs = System.currentTimeMillis()
+        ConfigLoad result = new ConfigLoad(file: file)
+        try {
+            if(enabled)
+                loadCached(slurper, file, binding, environment, result)
+            else
+                result.reason = 'cache disabled'
+
+            if(result.config == null)
+                result.config = parse(slurper, file)
+        }
+        finally {
+            result.timeMs = System.currentTimeMillis() - startMs
+        }
+        log.info "Config $result"
+        return result
+    }
+
+    @CompileStatic
+    private void loadCached(ConfigSlurper slurper, File file, Map binding, String environment, ConfigLoad result) {
+
+        byte [] content = file.bytes
+
+        String key = digest(String.valueOf(VERSION), GroovySystem.version, String.valueOf(environment), content)
+
+        // The index records the variables the file refers to, or why it cannot be cached
+        File indexFile = new File(getDir(), key + '.idx')
+        Map index = (Map)readEntry(indexFile)
+        if(index == null) {
+            index = analyse(new String(content, StandardCharsets.UTF_8))
+            writeEntry(indexFile, index)
+        }
+        else
+            indexFile.setLastModified(System.currentTimeMillis())
+
+        if(index.reason) {
+            result.reason = (String)index.reason
+            return
+        }
+
+        // Values of the variables from the binding that the file refers to, as a list 
+        // that is empty if the variable is not set
+        Map<String,List> variables = new TreeMap<String,List>()
+        for(String name in (List<String>)index.variables) {
+            List value = binding.containsKey(name) ? [binding[name]] : []
+            String reason = checkValue(value, name)
+            if(reason != null) {
+                result.reason = reason
+                return
+            }
+            variables.put(name, value)
+        }
+
+        ByteArrayOutputStream variableBytes = new ByteArrayOutputStream()
+        CompactRecordWriter writer = new CompactRecordWriter(variableBytes)
+        writer.preserveGStrings = true
+        writer.writeValue(variables)
+        writer.flush()
+
+        File entryFile = new File(getDir(), key + '.' + digest((Object)variableBytes.toByteArray()).substring(0,16) + '.cfg')
+        ConfigObject config = (ConfigObject)readEntry(entryFile)
+        if(config != null) {
+            setConfigFile(config, file.toURI().toURL())
+            entryFile.setLastModified(System.currentTimeMillis())
+            result.config = config
+            result.cached = true
+            return
+        }
+
+        config = parse(slurper, file)
+        result.config = config
+        result.reason = checkValue(config, '')
+        if(result.reason == null) {
+            writeEntry(entryFile, config)
+            prune()
+        }
+    }
+
+    @CompileStatic
+    ConfigObject parse(ConfigSlurper slurper, File file) {
+        return slurper.parse(file.toURI().toURL())
+    }
+
+    /**
+     * Check whether the result of the given configuration script can be cached
+     *
+     * @return  a map with either the names of the variables the script refers to that are not
+     *          declared in it (<code>variables</code>), or a reason it cannot be cached
+     *          (<code>reason</code>)
+     */
+    @CompileStatic
+    static Map analyse(String text) {
+        ModuleNode module
+        try {
+            CompilationUnit unit = new CompilationUnit(CompilerConfiguration.DEFAULT, null, new GroovyClassLoader(ConfigCache.classLoader))
+            unit.addSource('bpipe_config.groovy', text)
+            unit.compile(Phases.SEMANTIC_ANALYSIS)
+            module = unit.AST.modules[0]
+        }
+        catch(Exception e) {
+            return [reason: 'unable to analyse file: ' + e.message]
+        }
+
+        if(module.imports || module.starImports || module.staticImports || module.staticStarImports)
+            return [reason: 'imports classes']
+
+        if(module.methods || module.classes.size() > 1)
+            return [reason: 'declares methods or classes']
+
+        ConfigScriptChecker checker = new ConfigScriptChecker()
+        module.statementBlock.visit(checker)
+        if(checker.reason)
+            return [reason: checker.reason]
+
+        return [variables: checker.variables.toList()]
+    }
+
+    /**
+     * @return  null if the given value can be stored in the cache, otherwise the reason it can not
+     */
+    @CompileStatic
+    static String checkValue(Object value, String path) {
+        if(value == null || value instanceof String || value instanceof Boolean || value instanceof Integer ||
+           value instanceof Long || value instanceof Double || value instanceof Float || value instanceof BigDecimal ||
+           value instanceof BigInteger)
+            return null
+
+        if(value instanceof GString)
+            return checkValues(((GString)value).values.toList(), path)
+
+        if(value.getClass() == ArrayList)
+            return checkValues((List)value, path)
+
+        if(value.getClass() == LinkedHashMap || value.getClass() == ConfigObject) {
+            for(Map.Entry e in ((Map)value).entrySet()) {
+                String entryPath = path ? path + '.' + e.key : String.valueOf(e.key)
+                String reason = checkValue(e.key, entryPath) ?: checkValue(e.value, entryPath)
+                if(reason != null)
+                    return reason
+            }
+            return null
+        }
+        return "$path has a value of type ${value.getClass().name}"
+    }
+
+    @CompileStatic
+    private static String checkValues(List values, String path) {
+        for(Object element in values) {
+            String reason = checkValue(element, path)
+            if(reason != null)
+                return reason
+        }
+        return null
+    }
+
+    /**
+     * Cached configurations do not know the file they were read from: set it, as
+     * {@link ConfigSlurper} does
+     */
+    @CompileStatic
+    private static void setConfigFile(Object value, URL url) {
+        if(value instanceof ConfigObject)
+            ((ConfigObject)value).configFile = url
+        if(value instanceof Map)
+            ((Map)value).values().each { setConfigFile(it, url) }
+        else
+        if(value instanceof List)
+            ((List)value).each { setConfigFile(it, url) }
+    }
+
+    @CompileStatic
+    private static Object readEntry(File file) {
+        if(!file.exists())
+            return null
+        try {
+            byte [] bytes = file.bytes
+            if(bytes.length <= MAGIC.length || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC))
+                return null
+            int offset = MAGIC.length
+            return new CompactRecordReader(new ByteArrayInputStream(bytes, offset, bytes.length - offset)).readValue()
+        }
+        catch(Exception e) {
+            log.warning "Unable to read cached configuration $file: $e"
+            return null
+        }
+    }
+
+    /**
+     * Write a cache entry, replacing any existing entry atomically so that concurrent
+     * Bpipe processes never read a partially written entry
+     */
+    @CompileStatic
+    private static void writeEntry(File file, Object value) {
+        File tmp = null
+        try {
+            file.parentFile.mkdirs()
+            tmp = Files.createTempFile(file.parentFile.toPath(), file.name, '.tmp').toFile()
+            tmp.withOutputStream { OutputStream out ->
+                out.write(MAGIC)
+                CompactRecordWriter writer = new CompactRecordWriter(out)
+                writer.preserveGStrings = true
+                writer.writeValue(value)
+                writer.flush()
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+            }
+            catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+            }
+        }
+        catch(Exception e) {
+            log.warning "Unable to write cached configuration $file: $e"
+            tmp?.delete()
+        }
+    }
+
+    /**
+     * Remove the least recently used files when there are more than {@link #maxEntries}. 
+     * An index is removed together with the entries for the same file, so that the index 
+     * of a file that is still in use is kept.
+     */
+    @CompileStatic
+    private void prune() {
+        File [] entries = getDir().listFiles()
+        if(entries == null || entries.length <= maxEntries)
+            return
+
+        Map<String,List<File>> byKey = (Map<String,List<File>>)entries.toList().groupBy { File f -> f.name.tokenize('.')[0] }
+        List<List<File>> oldest = byKey.values().toList().sort { List<File> files -> files*.lastModified().max() }
+        
+        int remaining = entries.length
+        for(List<File> files in oldest) {
+            if(remaining <= maxEntries.intdiv(2))
+                break
+            files*.delete()
+            remaining -= files.size()
+        }
+    }
+
+    @CompileStatic
+    static String digest(Object... parts) {
+        MessageDigest md = MessageDigest.getInstance('SHA-256')
+        for(Object part in parts) {
+            md.update(part instanceof byte[] ? (byte[])part : String.valueOf(part).getBytes(StandardCharsets.UTF_8))
+            md.update((byte)0)
+        }
+        return md.digest().encodeHex().toString()
+    }
+
+    @CompileStatic
+    static ConfigCache getTheInstance() {
+        return ConfigCache.instance
+    }
+}
+
+/**
+ * Finds anything in a configuration script that could make its result depend on more
+ * than its text and the variables it refers to
+ */
+@CompileStatic
+class ConfigScriptChecker extends CodeVisitorSupport {
+
+    /**
+     * Why the script can not be cached, or null if it can
+     */
+    String reason = null
+
+    /**
+     * Variables referred to by the script that are not declared in it
+     */
+    Set<String> variables = new TreeSet<String>()
+
+    @Override
+    void visitClassExpression(ClassExpression expression) {
+        reason = reason ?: "refers to class ${expression.type.name}"
+    }
+
+    @Override
+    void visitConstructorCallExpression(ConstructorCallExpression call) {
+        reason = reason ?: "creates an object of class ${call.type.name}"
+    }
+
+    @Override
+    void visitStaticMethodCallExpression(StaticMethodCallExpression call) {
+        reason = reason ?: "calls method ${call.method}"
+    }
+
+    @Override
+    void visitMethodPointerExpression(MethodPointerExpression expression) {
+        reason = reason ?: "refers to a method"
+    }
+
+    @Override
+    void visitCastExpression(CastExpression expression) {
+        if(!(expression.type.name in ['java.lang.String', 'java.lang.Integer', 'java.lang.Long', 'java.lang.Boolean', 'java.util.List', 'java.util.Map', 'int', 'long', 'boolean']))
+            reason = reason ?: "converts a value to ${expression.type.name}"
+        super.visitCastExpression(expression)
+    }
+
+    @Override
+    void visitMethodCallExpression(MethodCallExpression call) {
+        String name = call.methodAsString
+        if(call.isImplicitThis()) {
+            // Only blocks of configuration are allowed, eg: commands { ... }
+            List args = call.arguments instanceof ArgumentListExpression ? ((ArgumentListExpression)call.arguments).expressions : []
+            if(args.size() != 1 || !(args[0] instanceof ClosureExpression))
+                reason = reason ?: "calls method $name"
+        }
+        else
+        if(!(name in ConfigCache.PURE_METHODS)) {
+            reason = reason ?: "calls method $name"
+        }
+        super.visitMethodCallExpression(call)
+    }
+
+    @Override
+    void visitPropertyExpression(PropertyExpression expression) {
+        if(expression.propertyAsString in ConfigCache.SCRIPT_PROPERTIES)
+            reason = reason ?: "refers to ${expression.propertyAsString}"
+        super.visitPropertyExpression(expression)
+    }
+
+    @Override
+    void visitVariableExpression(VariableExpression expression) {
+        if(expression.accessedVariable instanceof DynamicVariable) {
+            if(expression.name in ConfigCache.SCRIPT_PROPERTIES)
+                reason = reason ?: "refers to ${expression.name}"
+            variables.add(expression.name)
+        }
+    }
+}
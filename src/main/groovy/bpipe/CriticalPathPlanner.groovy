@@ -0,0 +1,690 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Timing of a single command in a recorded run
+ */
+@CompileStatic
+class CommandTiming {
+
+    String id
+
+    String stage
+
+    /**
+     * Names of the branches enclosing the command, outermost first, separated by '/'
+     */
+    String branchPath = ""
+
+    long startMs
+
+    long endMs
+
+    int threads = 1
+
+    /**
+     * Total size of the inputs of the command, 0 if unknown
+     */
+    long inputBytes = 0L
+
+    long getDurationMs() {
+        Math.max(0L, endMs - startMs)
+    }
+
+    String toString() {
+        "CommandTiming(id=$id, stage=$stage, branch=$branchPath, duration=${durationMs}ms)"
+    }
+}
+
+/**
+ * Estimates of the remaining path length (the longest chain of commands still to run) for each
+ * stage and branch, learned from previous runs.
+ * <p>
+ * Bpipe does not record dependencies between commands, so they are inferred from each run: a command
+ * depends on the last command to finish before it started in its own branch, in each of the branches
+ * enclosing it and in each of the branches nested inside it. The remaining path of a command is then its
+ * own duration plus the longest remaining path of the commands that depend on it.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class PathHistory {
+
+    /**
+     * Sum and count of remaining path lengths, keyed on branch path and stage separated by a tab
+     */
+    Map<String,long[]> branchStageRemaining = [:]
+
+    Map<String,long[]> stageRemaining = [:]
+
+    /**
+     * Sum and count of the input size of the branches in which each stage ran
+     */
+    Map<String,long[]> stageBranchInputBytes = [:]
+
+    Map<String,long[]> branchRemaining = [:]
+
+    Map<String,long[]> branchInputBytes = [:]
+
+    /**
+     * Sum of path length and input size of branches at each depth, for estimating branches that
+     * have not been seen before from their inputs
+     */
+    Map<Integer,long[]> depthRates = [:]
+
+    int runs = 0
+
+    /**
+     * Add the commands of a recorded run to the history
+     */
+    void addRun(List<CommandTiming> timings) {
+        if(timings.isEmpty())
+            return
+
+        ++runs
+        Map<CommandTiming,Long> remaining = remainingPaths(timings)
+
+        // The first command of each branch (including those nested inside it) sets the
+        // path length and input size of the branch
+        Map<String,CommandTiming> branchStarts = [:]
+        for(CommandTiming t in order(timings)) {
+            for(String path in ancestors(t.branchPath, true)) {
+                if(!branchStarts.containsKey(path))
+                    branchStarts[path] = t
+            }
+        }
+
+        Map<String,Long> runBranchRemaining = [:]
+        for(CommandTiming t in timings) {
+            for(String path in ancestors(t.branchPath, true)) {
+                runBranchRemaining[path] = Math.max(runBranchRemaining.get(path, 0L), remaining[t])
+            }
+        }
+
+        runBranchRemaining.each { String path, Long ms ->
+            add(branchRemaining, path, ms)
+            long bytes = branchStarts[path].inputBytes
+            if(bytes > 0) {
+                add(branchInputBytes, path, bytes)
+                long[] rate = depthRates.get(depth(path), new long[2])
+                rate[0] += ms
+                rate[1] += bytes
+            }
+        }
+
+        // A stage may run more than once in a branch: its remaining path is from the first time
+        Map<String,Long> runStageRemaining = [:]
+        for(CommandTiming t in timings) {
+            String key = t.branchPath + '\t' + t.stage
+            runStageRemaining[key] = Math.max(runStageRemaining.get(key, 0L), remaining[t])
+        }
+
+        runStageRemaining.each { String key, Long ms ->
+            add(branchStageRemaining, key, ms)
+            int tab = key.indexOf('\t')
+            String path = key.substring(0, tab)
+            String stage = key.substring(tab+1)
+            add(stageRemaining, stage, ms)
+            long bytes = branchStarts[path].inputBytes
+            if(bytes > 0)
+                add(stageBranchInputBytes, stage, bytes)
+        }
+    }
+
+    /**
+     * @param inputBytes    size of the inputs to the branch, or 0 if not known
+     *
+     * @return  the estimated remaining path from the start of the given stage in the given branch,
+     *          or -1 if there is no history for the stage
+     */
+    long remainingMs(String branchPath, String stage, long inputBytes) {
+        long[] exact = branchStageRemaining[branchPath + '\t' + stage]
+        if(exact != null)
+            return mean(exact)
+
+        long[] forStage = stageRemaining[stage]
+        if(forStage == null)
+            return -1L
+
+        // Scale the typical remaining path of the stage by the size of this branch
+        long[] bytes = stageBranchInputBytes[stage]
+        if(inputBytes > 0 && bytes != null && mean(bytes) > 0)
+            return (long)(mean(forStage) * (inputBytes / (double)mean(bytes)))
+
+        return mean(forStage)
+    }
+
+    /**
+     * @param inputBytes    size of the inputs to the branch, or 0 if not known
+     *
+     * @return  the estimated path length of the given branch, or -1 if there is no history
+     *          for it
+     */
+    long branchMs(String branchPath, long inputBytes) {
+        long[] exact = branchRemaining[branchPath]
+        if(exact != null)
+            return mean(exact)
+
+        long[] rate = depthRates[depth(branchPath)]
+        if(inputBytes > 0 && rate != null && rate[1] > 0)
+            return (long)(inputBytes * (rate[0] / (double)rate[1]))
+
+        return -1L
+    }
+
+    /**
+     * Compute the remaining path of every command in a run: its own duration plus the longest
+     * remaining path of the commands that depend on it
+     */
+    static Map<CommandTiming,Long> remainingPaths(List<CommandTiming> timings) {
+        Map<CommandTiming,List<CommandTiming>> dependencies = inferDependencies(timings)
+        Map<CommandTiming,Long> remaining = new IdentityHashMap<CommandTiming,Long>()
+        List<CommandTiming> ordered = order(timings)
+
+        // Dependencies always precede the commands that depend on them, so visiting in
+        // reverse order finalises each command before it is propagated to its dependencies
+        Map<CommandTiming,Long> longestSuccessor = new IdentityHashMap<CommandTiming,Long>()
+        for(CommandTiming t in ordered.reverse()) {
+            long path = t.durationMs + longestSuccessor.get(t, 0L)
+            remaining[t] = path
+            for(CommandTiming dep in dependencies[t]) {
+                longestSuccessor[dep] = Math.max(longestSuccessor.get(dep, 0L), path)
+            }
+        }
+        return remaining
+    }
+
+    /**
+     * Infer the commands each command depended on in a recorded run
+     *
+     * @return  map from each command to the commands it depended on, all of which
+     *          precede it in {@link #order}
+     */
+    static Map<CommandTiming,List<CommandTiming>> inferDependencies(List<CommandTiming> timings) {
+
+        List<CommandTiming> ordered = order(timings)
+        Map<CommandTiming,Integer> index = new IdentityHashMap<CommandTiming,Integer>()
+        ordered.eachWithIndex { CommandTiming t, int i -> index[t] = i }
+
+        Map<String,List<CommandTiming>> byBranch = [:]
+        for(CommandTiming t in ordered)
+            byBranch.get(t.branchPath, []).add(t)
+
+        Map<String,List<String>> descendants = [:]
+        for(String path in byBranch.keySet()) {
+            for(String ancestor in ancestors(path, false))
+                descendants.get(ancestor, []).add(path)
+        }
+
+        Map<CommandTiming,List<CommandTiming>> result = new IdentityHashMap<CommandTiming,List<CommandTiming>>()
+        for(CommandTiming t in ordered) {
+            int tIndex = index[t]
+            List<String> related = ancestors(t.branchPath, true) + descendants.get(t.branchPath, (List<String>)[])
+            List<CommandTiming> deps = []
+            for(String path in related) {
+                CommandTiming latest = null
+                for(CommandTiming candidate in byBranch.get(path, (List<CommandTiming>)[])) {
+                    if(index[candidate] >= tIndex)
+                        break
+                    if(candidate.endMs <= t.startMs && (latest == null || candidate.endMs >= latest.endMs))
+                        latest = candidate
+                }
+                if(latest != null)
+                    deps << latest
+            }
+            result[t] = deps
+        }
+        return result
+    }
+
+    /**
+     * @return  the commands in the order they started, which is an order in which every command
+     *          follows the commands it may depend on
+     */
+    static List<CommandTiming> order(List<CommandTiming> timings) {
+        timings.sort(false) { CommandTiming a, CommandTiming b ->
+            if(a.startMs != b.startMs)
+                return a.startMs <=> b.startMs
+            if(a.id?.isLong() && b.id?.isLong())
+                return a.id.toLong() <=> b.id.toLong()
+            return a.id <=> b.id
+        }
+    }
+
+    /**
+     * @return  the paths of the branches enclosing the given branch, outermost first,
+     *          including the root branch (the empty path)
+     */
+    static List<String> ancestors(String branchPath, boolean includeSelf) {
+        List<String> result = [""]
+        if(branchPath) {
+            List<String> parts = branchPath.tokenize('/')
+            for(int i=1; i<parts.size(); ++i)
+                result << parts.subList(0, i).join('/')
+            result << branchPath
+        }
+        if(!includeSelf)
+            result.removeAt(result.size()-1)
+        return result
+    }
+
+    static int depth(String branchPath) {
+        branchPath ? branchPath.tokenize('/').size() : 0
+    }
+
+    private static void add(Map<String,long[]> totals, String key, long value) {
+        long[] total = totals.get(key, new long[2])
+        total[0] += value
+        total[1] += 1
+    }
+
+    private static long mean(long[] total) {
+        total[1] > 0 ? (long)(total[0] / total[1]) : 0L
+    }
+
+    /**
+     * Read the timings of the commands in a Bpipe result file
+     */
+    static List<CommandTiming> readResultFile(File resultFile) {
+        readTimings(new XmlSlurper().parse(resultFile))
+    }
+
+    /**
+     * Read the timings of the commands in a parsed Bpipe result file
+     */
+    @CompileStatic(groovy.transform.TypeCheckingMode.SKIP)
+    static List<CommandTiming> readTimings(def dom) {
+
+        Closure<Long> toMs = { value ->
+            Date.parse(Pipeline.DATE_FORMAT, value.text()).time
+        }
+
+        List<CommandTiming> timings = []
+        dom.commands.command.each { cmd ->
+            if(cmd.start.text().startsWith('1970') || cmd.end.text().startsWith('1970'))
+                return
+
+            CommandTiming t = new CommandTiming(
+                id: cmd.id.text(),
+                stage: cmd.stage.text(),
+                branchPath: cmd.branchPath.size() ? cmd.branchPath.text() : cmd.branch.text(),
+                startMs: toMs(cmd.start),
+                endMs: toMs(cmd.end)
+            )
+
+            String procs = cmd.resources.procs.text()
+            if(procs.isInteger())
+                t.threads = procs.toInteger()
+
+            t.inputBytes = cmd.inputs.input.collect { it.@bytes.text() }.findAll { it.isLong() }.sum { it.toLong() } ?: 0L
+
+            timings << t
+        }
+        return timings
+    }
+}
+
+/**
+ * A request for permits from a semaphore, waiting to be granted by the {@link CriticalPathPlanner}
+ */
+@CompileStatic
+class PermitRequest {
+
+    Semaphore semaphore
+
+    int amount
+
+    /**
+     * Estimated remaining path of the command making the request: the higher, the sooner it is granted
+     */
+    long priorityMs
+
+    long requestTimeMs
+
+    long sequence
+
+    boolean granted = false
+
+    String toString() {
+        "PermitRequest(amount=$amount, priority=${priorityMs}ms, sequence=$sequence)"
+    }
+}
+
+/**
+ * Orders work so that branches and commands with the longest remaining path through the
+ * pipeline start first.
+ * <p>
+ * When a pipeline splits into many branches, Bpipe by default starts them, and grants the thread
+ * and memory resources their commands request, in the order they arrive. If a few branches take much
+ * longer than the others (eg: samples with much more data) and happen to start last, the whole run
+ * waits for them at the end. When enabled, this planner estimates the remaining path length of
+ * each branch and command and uses it to order:
+ *
+ * <li>Branches waiting for a thread to run on
+ * <li>Commands waiting for <code>threads</code>, <code>memory</code> and other limited resources
+ * <li>Commands waiting to be submitted to a cluster or cloud executor
+ * <p>
+ * Estimates are learned from the result files of the most recent successful runs of the same pipeline
+ * script (see {@link PathHistory}). Branches and stages without history are estimated from the size of
+ * their inputs relative to those that have history, and otherwise from the duration configured
+ * for the stage, or the <code>walltime</code> configured for the command.
+ * <p>
+ * A request that has waited longer than <code>maxWaitMs</code> cannot be overtaken by
+ * others, so that requests with short estimates are not starved.
+ * <p>
+ * Configuration is via the <code>criticalPath</code> section of <code>bpipe.config</code>:
+ *
+ * <pre>
+ * criticalPath {
+ *     enabled = true
+ *     historyRuns = 5           // number of previous runs to learn from
+ *     maxWaitMs = 300000        // age after which a request cannot be overtaken
+ *     stages {                  // durations of stages that have no history
+ *         align = '02:00:00'
+ *     }
+ * }
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Singleton
+@Log
+class CriticalPathPlanner {
+
+    final static File RESULTS_DIR = new File(".bpipe/results")
+
+    /**
+     * Requests waiting for permits. Waiting threads wait on this list and it
+     * protects all the state of waiting requests.
+     */
+    final List<PermitRequest> waiting = []
+
+    private final AtomicInteger waitingCount = new AtomicInteger()
+
+    private final AtomicLong requestSequence = new AtomicLong()
+
+    /**
+     * Size of the inputs of each branch started in this run, keyed on branch path
+     */
+    final Map<String,Long> branchInputBytes = Collections.synchronizedMap([:])
+
+    PathHistory history = null
+
+    @CompileStatic
+    static CriticalPathPlanner getTheInstance() {
+        return CriticalPathPlanner.instance
+    }
+
+    @CompileStatic
+    Map getPlannerConfig() {
+        def cfg = Config.userConfig?.criticalPath
+        return cfg instanceof Map ? (Map)cfg : [:]
+    }
+
+    @CompileStatic
+    boolean isEnabled() {
+        return plannerConfig.enabled == true
+    }
+
+    @CompileStatic
+    synchronized PathHistory getHistory() {
+        if(history == null)
+            history = loadHistory()
+        return history
+    }
+
+    /**
+     * @return  the estimated remaining path of the given command, or 0 if the
+     *          planner is disabled or there is nothing to base an estimate on
+     */
+    @CompileStatic
+    long priorityOf(Command command) {
+        if(!isEnabled())
+            return 0L
+
+        String path = branchPath(command.branch)
+        long estimate = getHistory().remainingMs(path, command.name, branchInputBytes.get(path) ?: 0L)
+        if(estimate >= 0)
+            return estimate
+
+        def hint = ((Map)plannerConfig.stages)?.get(command.name) ?: command.rawProcessedConfig?.walltime
+        if(hint) {
+            try {
+                return Utils.walltimeToMs(hint)
+            }
+            catch(Exception e) {
+                log.warning "Unable to parse duration $hint for stage $command.name: $e"
+            }
+        }
+        return 0L
+    }
+
+    /**
+     * Set the priority of each of the given branches to its estimated path length,
+     * so that the longest are started first.
+     */
+    @CompileStatic
+    void prioritise(List<Runnable> runners) {
+        if(!isEnabled())
+            return
+
+        PathHistory pathHistory = getHistory()
+        for(Runnable r in runners) {
+            if(!(r instanceof BranchRunner))
+                continue
+
+            BranchRunner runner = (BranchRunner)r
+            String path = [branchPath(runner.parent.branch), runner.childName].findAll().join('/')
+            long bytes = runner.inputBytes
+            if(bytes > 0)
+                branchInputBytes[path] = bytes
+            runner.priorityMs = Math.max(0L, pathHistory.branchMs(path, bytes))
+            log.info "Estimated path length of branch $path is ${runner.priorityMs}ms (inputs: $bytes bytes)"
+        }
+    }
+
+    /**
+     * Acquire the given number of permits from the given semaphore, granting waiting requests
+     * in order of priority.
+     * <p>
+     * Permits must be released via {@link #released} (as well as released on the semaphore) so
+     * that waiting requests are considered again.
+     */
+    @CompileStatic
+    void acquire(Semaphore semaphore, int amount, long priorityMs) {
+        PermitRequest request = new PermitRequest(
+            semaphore: semaphore,
+            amount: amount,
+            priorityMs: priorityMs,
+            requestTimeMs: System.currentTimeMillis(),
+            sequence: requestSequence.incrementAndGet()
+        )
+
+        waitingCount.incrementAndGet()
+        try {
+            synchronized(waiting) {
+                waiting.add(request)
+                boolean acquired = false
+                try {
+                    while(true) {
+                        grant(semaphore)
+                        if(request.granted)
+                            break
+                        waiting.wait(1000L)
+                    }
+                    acquired = true
+                }
+                finally {
+                    // If interrupted, the request must not be granted later, and permits that were
+                    // granted to it while this thread was being interrupted are returned
+                    if(!acquired) {
+                        if(request.granted) {
+                            semaphore.release(amount)
+                            waiting.notifyAll()
+                        }
+                        else
+                            waiting.remove(request)
+                    }
+                }
+            }
+        }
+        finally {
+            waitingCount.decrementAndGet()
+        }
+    }
+
+    /**
+     * Notify waiting requests that permits have been released
+     */
+    @CompileStatic
+    void released() {
+        if(waitingCount.get() == 0)
+            return
+
+        synchronized(waiting) {
+            waiting.notifyAll()
+        }
+    }
+
+    /**
+     * Grant as many requests for the given semaphore as can be satisfied.
+     * <p>
+     * NOTE: caller must hold the monitor on {@link #waiting}
+     */
+    @CompileStatic
+    private void grant(Semaphore semaphore) {
+        List<PermitRequest> requests = waiting.findAll { it.semaphore.is(semaphore) }
+        long maxWaitMs = (long)(plannerConfig.maxWaitMs ?: 300000L)
+        List<PermitRequest> selected = selectGrants(requests, semaphore.availablePermits(), System.currentTimeMillis(), maxWaitMs)
+
+        boolean granted = false
+        for(PermitRequest r in selected) {
+            if(!semaphore.tryAcquire(r.amount))
+                break
+            r.granted = true
+            waiting.remove(r)
+            granted = true
+        }
+
+        if(granted)
+            waiting.notifyAll()
+    }
+
+    /**
+     * Choose which of the waiting requests to grant, highest priority first. Requests that do not fit
+     * in the available permits are skipped, unless they have waited longer than <code>maxWaitMs</code>,
+     * in which case no later request may overtake them.
+     * <p>
+     * This is a pure function of its inputs so that it can be shared by the
+     * <code>CriticalPathSimulator</code> (see benchmark-src).
+     *
+     * @return  the requests to grant, in the order they should be granted
+     */
+    @CompileStatic
+    static List<PermitRequest> selectGrants(List<PermitRequest> requests, int available, long nowMs, long maxWaitMs) {
+
+        List<PermitRequest> ordered = requests.sort(false) { PermitRequest a, PermitRequest b ->
+            boolean aStarving = (nowMs - a.requestTimeMs) > maxWaitMs
+            boolean bStarving = (nowMs - b.requestTimeMs) > maxWaitMs
+            if(aStarving != bStarving)
+                return aStarving ? -1 : 1
+            if(!aStarving && a.priorityMs != b.priorityMs)
+                return b.priorityMs <=> a.priorityMs
+            return a.sequence <=> b.sequence
+        }
+
+        List<PermitRequest> result = []
+        for(PermitRequest r in ordered) {
+            if(r.amount <= available) {
+                result << r
+                available -= r.amount
+            }
+            else
+            if((nowMs - r.requestTimeMs) > maxWaitMs) {
+                break
+            }
+        }
+        return result
+    }
+
+    /**
+     * @return  the names of the given branch and the branches enclosing it, outermost first,
+     *          separated by '/'
+     */
+    @CompileStatic
+    static String branchPath(Branch branch) {
+        List<String> names = []
+        for(Branch b = branch; b != null; b = b.parent) {
+            if(b.name)
+                names.add(0, b.name)
+        }
+        return names.join('/')
+    }
+
+    /**
+     * Learn path lengths from the most recent successful runs of the current pipeline script
+     */
+    private PathHistory loadHistory() {
+        PathHistory result = new PathHistory()
+        int historyRuns = (int)(plannerConfig.historyRuns ?: 5)
+
+        String script = null
+        try {
+            script = new File(Config.config.script).canonicalFile.absolutePath
+        }
+        catch(Exception e) {
+            log.info "Unable to determine pipeline script, using history of all runs: $e"
+        }
+
+        List<File> resultFiles = (RESULTS_DIR.listFiles()?.findAll { 
+            it.name.endsWith('.xml') && it.name != "${Config.config.pid}.xml".toString()
+        } ?: []).sort { -it.lastModified() }
+
+        long startMs = System.currentTimeMillis()
+        for(File f in resultFiles) {
+            if(result.runs >= historyRuns)
+                break
+            try {
+                def dom = new XmlSlurper().parse(f)
+                if(dom.succeeded.text() != 'true' || (script && dom.script.text() != script))
+                    continue
+                result.addRun(PathHistory.readTimings(dom))
+            }
+            catch(Exception e) {
+                log.warning "Unable to read run history from $f: $e"
+            }
+        }
+        log.info "Loaded path lengths from $result.runs previous runs in ${System.currentTimeMillis()-startMs}ms"
+        return result
+    }
+}
@@ -595,12 +595,221 @@ class Dependencies {
         println "\n$count files were preserved"
     }
    
+    /**
+     * Scan the given list of output file properties and reconstruct the 
+     * dependency graph of the input / output structure, including flags
+     * indicating which output files are 'up to date'. If a graph is given, the outputs
+     * are added to it.
+     * <p>
+     * A new graph is built by {@link #buildOutputGraph}, while outputs are added to an
+     * existing graph with {@link #computeOutputGraphRecursive}.
+     * 
+     * @param outputs   a List of OutputMetaData objects, loaded from the OutputMetaData files
+     *                  saved by Bpipe as each stage executed (see {@link #saveOutputs(PipelineContext)})
+     *                  
+     * @return          the root node in the graph of outputs
+     */
+    @CompileStatic
+    GraphEntry computeOutputGraph(List<OutputMetaData> outputs, GraphEntry rootTree = null, GraphEntry topRoot=null, List handledOutputs=[], boolean computeUpToDate=true) {
+        if(rootTree == null)
+            return buildOutputGraph(outputs, computeUpToDate)
+        else
+            return computeOutputGraphRecursive(outputs, rootTree, topRoot, handledOutputs, computeUpToDate)
+    }
+    
+    /**
+     * Build the output graph for the given outputs in time linear in the number of outputs
+     * and their inputs, producing the same graph as {@link #computeOutputGraphRecursive}.
+     * <p>
+     * Each output is first mapped from its canonical path, which gives the outputs that
+     * depend on it. The outputs are then divided into layers by a topological sort: the first
+     * layer contains the outputs that have only external inputs, and each output is in the
+     * layer after the last of the outputs it depends on. As in the recursive algorithm, 
+     * the first layer is grouped by inputs under a root node, and each later output gets an
+     * entry of its own, attached as a child of the entries of the outputs it depends on. 
+     * Up-to-date flags are then set layer by layer, from the last layer back to the first.
+     * <p>
+     * Where more than one output has the same canonical path, an input is attached only to
+     * the first of them.
+     */
+    @CompileStatic
+    GraphEntry buildOutputGraph(List<OutputMetaData> outputs, boolean computeUpToDate=true) {
+        
+        final int n = outputs.size()
+        
+        // Map each canonical path to the outputs having that path
+        Map<String,Object> producers = new HashMap<String,Object>(n*2)
+        for(int i=0; i<n; ++i) {
+            String path = outputs[i].canonicalPath
+            Object existing = producers.get(path)
+            if(existing == null)
+                producers.put(path, (Integer)i)
+            else
+            if(existing instanceof Integer)
+                producers.put(path, [(Integer)existing, i] as List<Integer>)
+            else
+                ((List<Integer>)existing).add(i)
+        }
+        
+        // For each output, the number of outputs it depends on and the outputs that depend on it
+        int [] pending = new int[n]
+        int [] dependentCounts = new int[n]
+        for(int i=0; i<n; ++i) {
+            for(String inp in outputs[i].canonicalInputs) {
+                Object producer = producers.get(inp)
+                if(producer instanceof Integer) {
+                    ++pending[i]
+                    ++dependentCounts[(Integer)producer]
+                }
+                else
+                if(producer != null) {
+                    for(Integer j in (List<Integer>)producer) {
+                        ++pending[i]
+                        ++dependentCounts[j]
+                    }
+                }
+            }
+        }
+        
+        int [][] dependents = new int[n][]
+        for(int i=0; i<n; ++i) {
+            dependents[i] = new int[dependentCounts[i]]
+            dependentCounts[i] = 0
+        }
+        for(int i=0; i<n; ++i) {
+            for(String inp in outputs[i].canonicalInputs) {
+                Object producer = producers.get(inp)
+                if(producer instanceof Integer) {
+                    int j = (Integer)producer
+                    dependents[j][dependentCounts[j]++] = i
+                }
+                else
+                if(producer != null) {
+                    for(Integer j in (List<Integer>)producer) {
+                        dependents[j][dependentCounts[j]++] = i
+                    }
+                }
+            }
+        }
+        
+        // Kahn's algorithm, one layer at a time. Each layer is sorted so that 
+        // outputs within a layer keep the order in which they were given
+        List<int[]> layers = []
+        int placed = 0
+        int [] layer = (0..<n).findAll { int i -> pending[i] == 0 } as int[]
+        while(layer.length > 0) {
+            layers.add(layer)
+            placed += layer.length
+            
+            int [] next = new int[n - placed]
+            int nextCount = 0
+            for(int i in layer) {
+                for(int j in dependents[i]) {
+                    if(--pending[j] == 0)
+                        next[nextCount++] = j
+                }
+            }
+            layer = Arrays.copyOf(next, nextCount)
+            Arrays.sort(layer)
+        }
+        
+        if(placed < n) {
+            throw new PipelineError("Unable to identify any outputs with only external inputs in: " + 
+                                     (0..<n).findAll { int i -> pending[i] > 0 }.collect { int i -> outputs[i].outputFile }.join('\n') + 
+                                     "\n\nThis may indicate a circular dependency in your pipeline")
+        }
+        
+        GraphEntry [] entryOf = new GraphEntry[n]
+        long [] maxTimestamps = new long[n]
+        List<List<GraphEntry>> layerEntries = new ArrayList<List<GraphEntry>>(layers.size())
+        
+        // First layer: outputs with only external inputs, grouped by their inputs
+        GraphEntry rootTree = new GraphEntry()
+        Map<OutputMetaData,Integer> firstLayerIndices = new IdentityHashMap<OutputMetaData,Integer>()
+        List<OutputMetaData> firstLayer = []
+        if(!layers.isEmpty()) {
+            for(int i in layers[0]) {
+                firstLayerIndices.put(outputs[i], i)
+                firstLayer << outputs[i]
+            }
+        }
+        
+        List<GraphEntry> firstEntries = []
+        Map<String,List> outputGroups = rootTree.groupOutputs(firstLayer)
+        for(List outputGroup in outputGroups.values()) {
+            GraphEntry childEntry = new GraphEntry(values: (List<OutputMetaData>)outputGroup)
+            for(OutputMetaData value in childEntry.values) {
+                int i = firstLayerIndices.get(value)
+                entryOf[i] = childEntry
+                maxTimestamps[i] = value.timestamp
+                value.maxTimestamp = value.timestamp
+            }
+            childEntry.parents << rootTree
+            rootTree.children << childEntry
+            firstEntries << childEntry
+        }
+        layerEntries << firstEntries
+        
+        // Later layers: an entry for each output, attached to the entries of its inputs
+        for(int l=1; l<layers.size(); ++l) {
+            List<GraphEntry> entries = new ArrayList<GraphEntry>(layers[l].length)
+            for(int i in layers[l]) {
+                OutputMetaData out = outputs[i]
+                GraphEntry entry = new GraphEntry(values: [out])
+                entryOf[i] = entry
+                long maxTimestamp = out.timestamp
+                for(String inp in out.canonicalInputs) {
+                    int j = firstProducer(producers.get(inp), outputs)
+                    if(j < 0)
+                        continue
+                        
+                    GraphEntry parentEntry = entryOf[j]
+                    if(!entry.parents.any { it.is(parentEntry) })
+                        parentEntry.children << entry
+                    entry.parents << parentEntry
+                    maxTimestamp = Math.max(maxTimestamp, maxTimestamps[j])
+                }
+                maxTimestamps[i] = maxTimestamp
+                out.maxTimestamp = maxTimestamp
+                entries << entry
+            }
+            layerEntries << entries
+        }
+        
+        log.info "Built output graph of $n outputs in ${layers.size()} layers"
+        
+        if(computeUpToDate) {
+            for(int l=layerEntries.size()-1; l>=0; --l) {
+                updateUpToDate(layerEntries[l])
+            }
+        }
+        return rootTree
+    }
+    
+    /**
+     * @return  the index of the first output having a path as mapped in the producers
+     *          of {@link #buildOutputGraph}, or -1 if there is none
+     */
+    @CompileStatic
+    private static int firstProducer(Object producer, List<OutputMetaData> outputs) {
+        if(producer == null)
+            return -1
+        if(producer instanceof Integer)
+            return outputs[(Integer)producer].outputFile.is(null) ? -1 : (Integer)producer
+        for(Integer j in (List<Integer>)producer) {
+            if(!outputs[j].outputFile.is(null))
+                return j
+        }
+        return -1
+    }
+    
     /**
      * Scan the given list of output file properties and reconstruct the 
      * dependency graph of the input / output structure, including flags
      * indicating which output files are 'up to date' based in input file
      * timestamps, existence of the file and presence of child outputs that
-     * need the files as dependencies.
+     * need the files as dependencies. Used to add outputs to an existing graph: 
+     * {@link #buildOutputGraph} builds the same graph from scratch much faster.
      * <p>
      * The algorithm below operates recursively: each layer of the tree is figured out
      * by finding the nodes that have no inputs in the list and removing them, and then 
@@ -621,7 +830,7 @@ class Dependencies {
      * @return          the root node in the graph of outputs
      */
     @CompileStatic
-    GraphEntry computeOutputGraph(List<OutputMetaData> outputs, GraphEntry rootTree = null, GraphEntry topRoot=null, List handledOutputs=[], boolean computeUpToDate=true) {
+    GraphEntry computeOutputGraphRecursive(List<OutputMetaData> outputs, GraphEntry rootTree = null, GraphEntry topRoot=null, List handledOutputs=[], boolean computeUpToDate=true) {
         
         // Special case: no outputs at all
         /*
@@ -639,7 +848,6 @@ class Dependencies {
         // from the list of outputs and recursively do the same for each output we discovered, building
         // the whole graph from the original inputs through to the final outputs
         
-        List allInputs = outputs*.inputs.flatten().unique() 
         Set allOutputs = outputs*.canonicalPath as Set
         
         // Find outputs with "external" inputs - these are the top layer of outputs which
@@ -722,7 +930,7 @@ class Dependencies {
         
         outputGroups.each { key, outputGroup ->
 //          log.info "Remaining outputs: " + remainingOutputs*.outputPath
-            computeOutputGraph(remainingOutputs, createdEntries[key], topRoot, handledOutputs)
+            computeOutputGraphRecursive(remainingOutputs, createdEntries[key], topRoot, handledOutputs)
 //          log.info "Handled outputs: " + handledOutputs*.outputPath + " Hashcode  " + handledOutputs.hashCode()
             remainingOutputs.removeAll(handledOutputs)
 //            log.info "There are ${remainingOutputs.size()} remaining outputs"
@@ -733,12 +941,25 @@ class Dependencies {
                 
         // After computing the child tree, use child information to mark this output as
         // "up to date" or "not up to date"
-        // an output is "up to date" if it is 
-        // a) it exists and newer than its inputs
-        // or
-        // b) it doesn't exist but is a non-leaf node and all its children are 'up to date'
-        // Here 'leaf node' means a final output as opposed to something that is only used
-        // as an intermediate step in calculating a final output.
+        updateUpToDate(entries)
+        
+//        log.info "Finished Output Graph".center(30,"=")
+        return rootTree
+    }
+    
+    /**
+     * Set the up-to-date flag of the outputs in each of the given entries, which must be 
+     * called after the flags for all their children have been set.
+     * <p>
+     * An output is "up to date" if it is 
+     * a) it exists and newer than its inputs
+     * or
+     * b) it doesn't exist but is a non-leaf node and all its children are 'up to date'
+     * Here 'leaf node' means a final output as opposed to something that is only used
+     * as an intermediate step in calculating a final output.
+     */
+    @CompileStatic
+    void updateUpToDate(List<GraphEntry> entries) {
         for(GraphEntry entry in entries) {
            
            if(entry.values.is(null))
@@ -806,9 +1027,6 @@ class Dependencies {
                 }
             }
         }
-        
-//        log.info "Finished Output Graph".center(30,"=")
-        return rootTree
     }
     
     @CompileStatic
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.DirectoryStream
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicLong
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * The names of the entries of a directory at the time it was listed
+ */
+@CompileStatic
+class DirectoryListing {
+
+    /**
+     * The absolute, normalized path of the directory
+     */
+    final Path dir
+
+    /**
+     * Names of the entries in the directory, sorted
+     */
+    final List<String> names
+
+    /**
+     * Modification time of the directory when it was listed, -1 if unknown
+     */
+    final long modifiedMs
+
+    final long listedAtMs
+
+    private volatile Set<String> directories
+
+    DirectoryListing(Path dir, List<String> names, long modifiedMs, long listedAtMs, Set<String> directories=null) {
+        this.dir = dir
+        this.names = names
+        this.modifiedMs = modifiedMs
+        this.listedAtMs = listedAtMs
+        this.directories = directories
+    }
+
+    boolean contains(String name) {
+        Collections.binarySearch(names, name) >= 0
+    }
+
+    /**
+     * @return  the names of entries that are directories. These are determined the first
+     *          time they are needed, since it requires a stat of every entry.
+     */
+    Set<String> getDirectories() {
+        if(directories == null) {
+            Set<String> result = new HashSet<String>()
+            for(String name in names) {
+                if(Files.isDirectory(dir.resolve(name)))
+                    result.add(name)
+            }
+            directories = result
+        }
+        return directories
+    }
+}
+
+/**
+ * Caches directory listings for the duration of a run, so that globs evaluated
+ * repeatedly (for example, in every branch of a pipeline) do not re-read the same
+ * directories.
+ * <p>
+ * A cached listing is only used while the modification time of the directory is unchanged.
+ * Because the modification time has limited resolution on some file systems, listings
+ * taken too soon after the directory was modified are not cached at all. Directories being
+ * watched by an {@link OutputDirectoryWatcher} are also invalidated when it sees files
+ * created or modified.
+ * <p>
+ * Only directories of the default (local) file system are cached.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Singleton
+@Log
+@CompileStatic
+class DirectoryListingCache {
+
+    /**
+     * Listings taken within this time of the directory last being modified are not
+     * cached, since further changes may not alter the modification time
+     */
+    final static long TIMESTAMP_RESOLUTION_MS = 2000L
+
+    int maxDirectories = 2000
+
+    final AtomicLong hits = new AtomicLong()
+
+    final AtomicLong misses = new AtomicLong()
+
+    /**
+     * Listings in least recently used order
+     */
+    private final LinkedHashMap<Path,DirectoryListing> listings = new LinkedHashMap<Path,DirectoryListing>(64, 0.75f, true)
+
+    /**
+     * Return a listing of the given directory, from the cache if the cached
+     * listing is still current
+     *
+     * @return  the listing, or null if the directory does not exist
+     */
+    DirectoryListing list(Path dir) {
+
+        Path key = dir.toAbsolutePath().normalize()
+
+        DirectoryListing cached
+        synchronized(listings) {
+            cached = listings.get(key)
+        }
+
+        if(cached != null && isCurrent(cached)) {
+            hits.incrementAndGet()
+            return cached
+        }
+
+        misses.incrementAndGet()
+
+        DirectoryListing listing = read(key)
+        synchronized(listings) {
+            if(listing != null && isCacheable(listing)) {
+                listings.put(key, listing)
+                if(listings.size() > maxDirectories) {
+                    Iterator<Path> i = listings.keySet().iterator()
+                    i.next()
+                    i.remove()
+                }
+            }
+            else {
+                listings.remove(key)
+            }
+        }
+        return listing
+    }
+
+    void invalidate(Path dir) {
+        Path key = dir.toAbsolutePath().normalize()
+        synchronized(listings) {
+            listings.remove(key)
+        }
+    }
+
+    void clear() {
+        synchronized(listings) {
+            listings.clear()
+        }
+        hits.set(0L)
+        misses.set(0L)
+    }
+
+    /**
+     * Read the entries of the given directory, without using the cache
+     *
+     * @return  the listing, or null if the directory does not exist
+     */
+    static DirectoryListing read(Path dir) {
+
+        if(!Files.isDirectory(dir))
+            return null
+
+        // Read the timestamp first: if the directory changes while being listed, the listing
+        // will then be seen as out of date next time
+        long modifiedMs = -1L
+        try {
+            modifiedMs = Files.getLastModifiedTime(dir).toMillis()
+        }
+        catch(IOException e) {
+            log.info "Unable to read modification time of $dir: $e"
+        }
+
+        long listedAtMs = System.currentTimeMillis()
+        List<String> names = new ArrayList<String>()
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir)
+        try {
+            for(Path p in stream) {
+                names.add(p.fileName.toString())
+            }
+        }
+        finally {
+            stream.close()
+        }
+        Collections.sort(names)
+
+        return new DirectoryListing(dir, names, modifiedMs, listedAtMs)
+    }
+
+    private static boolean isCacheable(DirectoryListing listing) {
+        listing.modifiedMs >= 0 &&
+        listing.dir.fileSystem.is(FileSystems.default) &&
+        listing.listedAtMs - listing.modifiedMs > TIMESTAMP_RESOLUTION_MS
+    }
+
+    private static boolean isCurrent(DirectoryListing listing) {
+        try {
+            return Files.getLastModifiedTime(listing.dir).toMillis() == listing.modifiedMs
+        }
+        catch(IOException e) {
+            return false
+        }
+    }
+
+    static DirectoryListingCache getTheInstance() {
+        return DirectoryListingCache.instance
+    }
+}
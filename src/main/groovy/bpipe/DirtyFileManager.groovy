@@ -24,6 +24,8 @@
  */
 package bpipe
 
+import java.util.concurrent.ConcurrentHashMap
+
 import groovy.transform.CompileStatic
 import groovy.util.logging.Log
 import groovyx.gpars.actor.Actors
@@ -37,9 +39,14 @@ import static bpipe.CommandManager.UNCLEAN_FILE_DIR
  * There are two records of files that are considered "in progress" or possibly not
  * having final status. These are:
  * 
- * <li>unclean files  - outputs of in progress commands
+ * <li>unclean files  - outputs of in progress commands, recorded in the {@link InProgressJournal}
+ *                      in <code>.bpipe/inprogress</code>
  * <li>dirty files    - files that could not be cleaned up even though they were the result
  *                      of failed commands
+ * <p>
+ * Unclean files are recorded against the thread running the stage that creates them.
+ * Earlier versions of Bpipe recorded them in a file per thread in <code>.bpipe/inprogress</code>:
+ * these are still read so that the outputs of a run by an earlier version are cleaned up.
  *                      
  * @author Simon Sadedin
  */
@@ -50,47 +57,49 @@ class DirtyFileManager {
     
     final public static File DIRT_FILE = new File(".bpipe/dirty.txt")
     
-    List dirtyFiles = []
+    final public static String JOURNAL_FILE_NAME = "journal"
+    
+    /**
+     * Files recorded as dirty in this run, so that each is only written to the dirty file once
+     */
+    final Set<String> dirtyFiles = ConcurrentHashMap.<String>newKeySet()
+    
+    private volatile InProgressJournal journal
     
     void add(List<PipelineFile> files) {
 
         // Store the list of output files so that if we are killed 
         // they can be cleaned up
+        if(!files)
+            return
         
-        String fileList = files?.join("\n") + '\n'
-        
-        File uncleanFilePath = this.getUncleanFile()
-        
-        if(!uncleanFilePath.exists()) {
-            uncleanFilePath.text = fileList 
-        }
-        else {
-            uncleanFilePath.append(fileList)
-        }
+        getJournal().add(Thread.currentThread().id, files.collect { it.toString() })
     }
     
+    /**
+     * Clear the unclean files recorded by the current thread
+     */
     void clear() {
-        getUncleanFile().delete()
+        clear(Thread.currentThread().id)
     }
     
     /**
-     * First delete and then initialize with blank contents the list of 
-     * unclean files
+     * Clear the unclean files recorded by the given thread
      */
-    File initUncleanFilePath() {
-        if(!UNCLEAN_FILE_DIR.exists()) 
-            UNCLEAN_FILE_DIR.mkdirs()
-            
-        File uncleanFilePath = getUncleanFile()   
-        if(uncleanFilePath.exists())
-            uncleanFilePath.delete()
-        uncleanFilePath.text = ""
-        
-        return uncleanFilePath
+    void clear(long threadId) {
+        getJournal().clear(threadId)
     }
     
-    File getUncleanFile() {
-        new File(UNCLEAN_FILE_DIR, String.valueOf(Thread.currentThread().id))        
+    InProgressJournal getJournal() {
+        InProgressJournal current = journal
+        if(current != null && current.file.parentFile == UNCLEAN_FILE_DIR)
+            return current
+            
+        synchronized(this) {
+            if(journal == null || journal.file.parentFile != UNCLEAN_FILE_DIR)
+                journal = new InProgressJournal(new File(UNCLEAN_FILE_DIR, JOURNAL_FILE_NAME))
+            return journal
+        }
     }
     
     /**
@@ -108,11 +117,17 @@ class DirtyFileManager {
          
         // Out of caution we don't remove output files if they existed before this stage ran.
         // Otherwise we might destroy existing data
-        def newOutputFiles = Utils.box(outputFiles).collect { it.toString() }.unique()
+        Set<String> uniqueOutputFiles = new LinkedHashSet<String>()
+        if(outputFiles != null) {
+            for(PipelineFile outputFile in outputFiles) {
+                uniqueOutputFiles.add(outputFile.toString())
+            }
+        }
+        List<String> newOutputFiles = new ArrayList<String>(uniqueOutputFiles)
         
         log.info "Identified ${newOutputFiles.size()} cleanup candidates: " + newOutputFiles
 
-        newOutputFiles.removeAll { fn ->
+        newOutputFiles.removeAll { String fn ->
             boolean keep = odw?.isPreexisting(fn)
             if(keep)
                 log.info "Keeping $fn because determined as pre-existing"
@@ -131,14 +146,27 @@ class DirtyFileManager {
      * <p>
      * This only happens when a file in unclean state cannot be deleted
      */
-    synchronized void markDirty(List<String> files) {
-        files.collect { new File(it).canonicalFile }.each { File file ->
-            List<String> dirtyFiles = []
-            if(DIRT_FILE.exists()) {
-                dirtyFiles = DIRT_FILE.readLines() 
+    void markDirty(List<String> files) {
+        List<String> newDirtyFiles = files.collect { 
+            new File(it).canonicalFile.absolutePath 
+        }.findAll { 
+            dirtyFiles.add(it) 
+        }
+        
+        if(!newDirtyFiles)
+            return
+        
+        synchronized(DIRT_FILE) {
+            // A dirty file left by a previous run may not end with a new line
+            String separator = ''
+            if(DIRT_FILE.length() > 0) {
+                new RandomAccessFile(DIRT_FILE, 'r').withCloseable { RandomAccessFile raf ->
+                    raf.seek(raf.length() - 1)
+                    if(raf.read() != (int)'\n'.charAt(0))
+                        separator = '\n'
+                }
             }
-            dirtyFiles.add(file.absolutePath)
-            DIRT_FILE.text = dirtyFiles.join("\n")
+            DIRT_FILE.append(separator + newDirtyFiles.join('\n') + '\n')
         }
     }
 
@@ -184,6 +212,7 @@ class DirtyFileManager {
             println "=" * cols
         }
         else {
+            getJournal().reset()
             uncleanFileManifests.each { File f ->
                 f.delete()
             }
@@ -191,20 +220,26 @@ class DirtyFileManager {
         }
     }
     
+    /**
+     * @return the files recording unclean files: the journal, and any per-thread files
+     *         written by earlier versions of Bpipe
+     */
     List<File> getUncleanManifests() {
         (CommandManager.UNCLEAN_FILE_DIR.listFiles()?:[]) as List<File>
     }
     
     List<String> getUncleanFilePaths() {
-        return getUncleanManifests().collectMany { File f ->
-              def lines = f.readLines()
-              def result = 
-                  lines.collect { it.trim() }
-                       .grep { it }
-                       .collect { it.toString() }
-              
-              return result
+        List<String> paths = []
+        for(File f in getUncleanManifests()) {
+            if(f.name == JOURNAL_FILE_NAME) {
+                paths.addAll(InProgressJournal.replay(f))
+            }
+            else
+            if(f.name.isLong()) {
+                paths.addAll(f.readLines().collect { it.trim() }.findAll { it })
+            }
         }
+        return paths
     }
     
     
@@ -230,6 +265,8 @@ class DirtyFileManager {
             log.info "Clearing ${filesToClear.size()} existing inprogress files"
             
             filesToClear*.delete()        
+            
+            getJournal().reset()
         }
         catch(Exception e) {
             log.warning "Unable to initialise cleanp processing: dirty files may carry over from previous run ($e)"
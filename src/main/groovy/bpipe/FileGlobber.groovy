@@ -1,61 +1,331 @@
 package bpipe
 
-import java.nio.file.Path
-import java.nio.file.DirectoryStream
 import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.regex.Matcher
 import java.util.regex.Pattern
 
 import bpipe.storage.StorageLayer
+import groovy.transform.CompileDynamic
 import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+import groovyx.gpars.GParsPool
 
+/**
+ * Resolves glob patterns and regular expressions to the files that match them
+ * within a storage layer.
+ * <p>
+ * Glob patterns may contain wildcards in any path segment, and a <code>**</code> segment
+ * matches any number of directories (including none). Directory listings come from the
+ * {@link DirectoryListingCache} so that repeated globbing of the same directories is cheap,
+ * and when a recursive glob reaches many directories at the same depth they are
+ * listed in parallel. Where the storage layer supports listing a whole tree in one
+ * operation (eg: an object store prefix listing) this is used for recursive globs
+ * instead of walking the tree.
+ */
+@Log
 @CompileStatic
 class FileGlobber {
-    
-    StorageLayer storage 
-    
+
+    final static String RECURSIVE_SEGMENT = '**'
+
+    StorageLayer storage
+
+    /**
+     * Cache of directory listings: if null, directories are read every time
+     */
+    DirectoryListingCache cache = DirectoryListingCache.theInstance
+
+    /**
+     * A recursive glob that reaches at least this many directories at the
+     * same depth lists them in parallel
+     */
+    int parallelThreshold = 16
+
+    int parallelism = 8
+
+    private final static Map<String,Pattern> segmentPatterns = new ConcurrentHashMap<String,Pattern>()
+
     List<String> glob(String globPattern) {
-        // Determine the base directory that will be searched
+
         Path patternPath = storage.toPath(globPattern.toString())
-        Path dir = resolveDir(patternPath)
-        
-        DirectoryStream stream = Files.newDirectoryStream(dir, patternPath.fileName.toString())
-        try {
-            List<String> result =
-                (List<String>)stream.collect { Path p ->
-                    p.normalize().toString()
-                }
-            return result
-        }
-        finally {
-            stream.close()
+        List<String> segments = patternPath.collect { Path p -> p.toString() }
+
+        // Determine the base directory that will be searched: all the leading
+        // segments that have no wildcards
+        Path base = patternPath.root ?: patternPath.fileSystem.getPath('.')
+        int firstWild = 0
+        while(firstWild < segments.size() - 1 && !isWild(segments[firstWild])) {
+            base = base.resolve(segments[firstWild++])
         }
-        
+
+        List<String> remaining = segments.subList(firstWild, segments.size())
+
+        Map<Path,DirectoryListing> snapshot = null
+        if(RECURSIVE_SEGMENT in remaining)
+            snapshot = listTree(base)
+
+        return match(base, remaining, snapshot).collect { Path p -> p.normalize().toString() }
     }
-    
+
     List<String> glob(Pattern globPattern) {
-        
+
         // Determine the base directory that will be searched
         Path patternPath = storage.toPath(globPattern.toString())
         Path dir = resolveDir(patternPath)
-        
+
         Pattern pattern = Pattern.compile(patternPath.fileName.toString())
-        
-        DirectoryStream stream = Files.newDirectoryStream(dir)
-        try {
-            List<String> result = stream.grep { Path p ->
-                    pattern.matcher(p.fileName.toString()).matches() 
-                }.collect { p -> 
-                    ((Path)p).normalize()
-                }*.toString()
-                
-            return result
+
+        DirectoryListing listing = list(dir, null)
+        if(listing == null)
+            return []
+
+        return listing.names.findAll { String name ->
+            pattern.matcher(name).matches()
+        }.collect { String name ->
+            dir.resolve(name).normalize().toString()
+        }
+    }
+
+    /**
+     * Find the paths under base matching the given sequence of glob segments
+     *
+     * @param snapshot  listings of the whole tree under base, if available
+     */
+    private List<Path> match(Path base, List<String> segments, Map<Path,DirectoryListing> snapshot) {
+
+        List<Path> current = [base]
+        for(int i=0; i<segments.size() && !current.isEmpty(); ++i) {
+
+            String segment = segments[i]
+            boolean last = (i == segments.size() - 1)
+
+            if(segment == RECURSIVE_SEGMENT) {
+                current = expandRecursive(current, snapshot)
+                if(!last)
+                    continue
+                segment = '*'
+            }
+
+            if(!isWild(segment)) {
+                current = current.findAll { Path dir ->
+                    exists(dir, segment, last, snapshot)
+                }.collect { Path dir ->
+                    dir.resolve(segment)
+                }
+                continue
+            }
+
+            Matcher matcher = segmentPattern(segment).matcher('')
+            List<DirectoryListing> listings = listAll(current, snapshot)
+            List<Path> next = []
+            for(int j=0; j<current.size(); ++j) {
+                DirectoryListing listing = listings[j]
+                if(listing == null)
+                    continue
+
+                Path dir = current[j]
+                for(String name in listing.names) {
+                    if(matcher.reset(name).matches() && (last || listing.directories.contains(name)))
+                        next.add(dir.resolve(name))
+                }
+            }
+            current = next
+        }
+        return current
+    }
+
+    /**
+     * Check for a literal path segment: this does not need the directory to be listed
+     * unless a listing of the whole tree is already available
+     */
+    private boolean exists(Path dir, String name, boolean last, Map<Path,DirectoryListing> snapshot) {
+        if(snapshot != null) {
+            DirectoryListing listing = snapshot[dir.toAbsolutePath().normalize()]
+            return listing != null && listing.contains(name) && (last || listing.directories.contains(name))
+        }
+        Path path = dir.resolve(name)
+        return last ? Files.exists(path) : Files.isDirectory(path)
+    }
+
+    /**
+     * @return  the given directories together with all the directories beneath them.
+     *          Symbolic links to directories are not followed.
+     */
+    private List<Path> expandRecursive(List<Path> dirs, Map<Path,DirectoryListing> snapshot) {
+        List<Path> result = []
+        List<Path> frontier = dirs
+        while(!frontier.isEmpty()) {
+            result.addAll(frontier)
+            List<DirectoryListing> listings = listAll(frontier, snapshot)
+            List<Path> next = []
+            for(int i=0; i<frontier.size(); ++i) {
+                DirectoryListing listing = listings[i]
+                if(listing == null)
+                    continue
+                for(String name in listing.names) {
+                    if(!listing.directories.contains(name))
+                        continue
+                    Path child = frontier[i].resolve(name)
+                    if(snapshot != null || !Files.isSymbolicLink(child))
+                        next.add(child)
+                }
+            }
+            frontier = next
+        }
+        return result
+    }
+
+    private List<DirectoryListing> listAll(List<Path> dirs, Map<Path,DirectoryListing> snapshot) {
+        if(snapshot == null && dirs.size() >= parallelThreshold)
+            return listParallel(dirs)
+        return dirs.collect { Path dir -> list(dir, snapshot) }
+    }
+
+    @CompileDynamic
+    private List<DirectoryListing> listParallel(List<Path> dirs) {
+        GParsPool.withPool(Math.min(parallelism, dirs.size())) {
+            dirs.collectParallel { Path dir ->
+                DirectoryListing listing = list(dir, null)
+
+                // Determine which entries are directories while still in parallel
+                listing?.directories
+                return listing
+            }
+        }
+    }
+
+    private DirectoryListing list(Path dir, Map<Path,DirectoryListing> snapshot) {
+        if(snapshot != null)
+            return snapshot[dir.toAbsolutePath().normalize()]
+        else
+        if(cache != null)
+            return cache.list(dir)
+        else
+            return DirectoryListingCache.read(dir)
+    }
+
+    /**
+     * If the storage layer can list everything under the given directory in
+     * one operation, build listings for the whole tree from that.
+     *
+     * @return  listings of base and every directory beneath it, keyed by absolute path,
+     *          or null if the storage does not support listing trees
+     */
+    private Map<Path,DirectoryListing> listTree(Path base) {
+
+        List<Path> files = storage.listRecursive(base)
+        if(files == null)
+            return null
+
+        Path root = base.toAbsolutePath().normalize()
+        Map<Path,Set<String>> children = [:]
+        Map<Path,Set<String>> directories = [:]
+        children[root] = new TreeSet<String>()
+        directories[root] = new HashSet<String>()
+
+        for(Path file in files) {
+            Path child = file.toAbsolutePath().normalize()
+            Path parent = child.parent
+            boolean childIsDirectory = false
+            while(parent != null && parent.startsWith(root)) {
+                children.computeIfAbsent(parent) { new TreeSet<String>() }.add(child.fileName.toString())
+                Set<String> parentDirectories = directories.computeIfAbsent(parent) { new HashSet<String>() }
+                if(childIsDirectory)
+                    parentDirectories.add(child.fileName.toString())
+                if(parent == root)
+                    break
+                child = parent
+                parent = parent.parent
+                childIsDirectory = true
+            }
+        }
+
+        long now = System.currentTimeMillis()
+        log.info "Listed ${files.size()} files in ${children.size()} directories under $base from storage $storage"
+        return (Map<Path,DirectoryListing>)children.collectEntries { Path dir, Set<String> names ->
+            [dir, new DirectoryListing(dir, new ArrayList<String>(names), -1L, now, directories[dir])]
         }
-        finally {
-            stream.close()
+    }
+
+    /**
+     * Convert a single path segment of a glob to a regular expression, supporting
+     * <code>*</code>, <code>?</code>, character classes and <code>{a,b}</code> alternatives
+     * with the same meaning as Java's "glob:" path matchers. Names are matched as strings
+     * because creating a Path for every entry of a large directory is expensive.
+     */
+    static Pattern segmentPattern(String segment) {
+        Pattern pattern = segmentPatterns.get(segment)
+        if(pattern != null)
+            return pattern
+
+        StringBuilder regex = new StringBuilder(segment.length() + 16)
+        boolean inGroup = false
+        boolean inClass = false
+        for(int i=0; i<segment.length(); ++i) {
+            char c = segment.charAt(i)
+            if(inClass) {
+                if(c == (char)']')
+                    inClass = false
+                else
+                if(c == (char)'\\' || c == (char)'[' || (c == (char)'&' ))
+                    regex.append('\\')
+                regex.append(c)
+                continue
+            }
+            switch(c) {
+                case '*':
+                    regex.append('.*')
+                    break
+                case '?':
+                    regex.append('.')
+                    break
+                case '[':
+                    inClass = true
+                    regex.append('[')
+                    if(i+1 < segment.length() && segment.charAt(i+1) == (char)'!') {
+                        regex.append('^')
+                        ++i
+                    }
+                    break
+                case '{':
+                    inGroup = true
+                    regex.append('(?:')
+                    break
+                case '}':
+                    if(inGroup) {
+                        inGroup = false
+                        regex.append(')')
+                    }
+                    else
+                        regex.append('\\}')
+                    break
+                case ',':
+                    regex.append(inGroup ? '|' : ',')
+                    break
+                case '\\':
+                    if(i+1 < segment.length())
+                        regex.append(Pattern.quote(String.valueOf(segment.charAt(++i))))
+                    break
+                default:
+                    if(Character.isLetterOrDigit(c) || c == (char)'_' || c == (char)'-')
+                        regex.append(c)
+                    else
+                        regex.append('\\').append(c)
+            }
         }
 
+        pattern = Pattern.compile(regex.toString())
+        if(segmentPatterns.size() < 10000)
+            segmentPatterns.put(segment, pattern)
+        return pattern
     }
-    
+
+    static boolean isWild(String segment) {
+        segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0 || segment.indexOf('[') >= 0 || segment.indexOf('{') >= 0
+    }
+
     Path resolveDir(Path child) {
         Path dir = child.parent
         if(dir == null) { // unqualified path
@@ -63,9 +333,9 @@ class FileGlobber {
         }
         return dir
     }
-    
+
     List<String> cleanupResult(List<String> results) {
-        results.collect { 
+        results.collect {
             it.startsWith('./') ? it.substring(2) : it
         }
     }
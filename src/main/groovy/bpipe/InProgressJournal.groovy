@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.ByteBuffer
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ConcurrentHashMap
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A write-ahead journal of the outputs of commands that are in progress, so that if Bpipe 
+ * is killed, the partially written outputs can be found and cleaned up.
+ * <p>
+ * Outputs are recorded against a key (the id of the thread running the stage). Adding 
+ * outputs appends a record for each of them, and clearing a key appends a single record
+ * that removes all of its outputs. On replay, the outputs that remain are those of keys
+ * that were not cleared after their outputs were added, which is the same as the 
+ * per-thread files that were previously kept in <code>.bpipe/inprogress</code>.
+ * <p>
+ * An in-memory copy of the outputs of each key is kept, so that clearing a key that has no
+ * outputs does not write anything, and so that the journal can be compacted: when the journal
+ * grows too large, the in-progress outputs are written to a new file which replaces it.
+ * <p>
+ * With <code>fsync</code> set to <code>batch</code> (the default), a record has been synced 
+ * to disk before {@link #add} or {@link #clear} returns. Syncs use group commit: a 
+ * thread that needs a sync while another sync is running waits for it, and then one
+ * sync covers all the records that were written in the meantime, so concurrent stages
+ * share the cost of a sync rather than queuing for one each. Set <code>fsync</code> to 
+ * <code>none</code> in the <code>inProgressJournal</code> section of <code>bpipe.config</code>
+ * to leave flushing to the operating system.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class InProgressJournal {
+    
+    /**
+     * The journal is compacted when it reaches this size, or twice the size of the 
+     * in-progress outputs, if that is larger
+     */
+    static long COMPACT_BYTES = 1024L * 1024L
+    
+    final File file
+    
+    /**
+     * In-progress outputs, by key
+     */
+    final ConcurrentHashMap<Long, Set<String>> entries = new ConcurrentHashMap<Long, Set<String>>()
+    
+    /**
+     * Whether records are synced to disk before they are acknowledged
+     */
+    Boolean sync = null
+    
+    /**
+     * Number of syncs performed, for diagnostics
+     */
+    long syncCount = 0
+    
+    private FileChannel channel
+    
+    private final Object writeLock = new Object()
+    
+    private final Object syncLock = new Object()
+    
+    /**
+     * Sequence number of the last record written
+     */
+    private long written = 0
+    
+    /**
+     * Sequence number of the last record known to be synced
+     */
+    private long synced = 0
+    
+    private boolean syncing = false
+    
+    private long compactBytes = COMPACT_BYTES
+    
+    InProgressJournal(File file) {
+        this.file = file
+    }
+    
+    /**
+     * Record the given paths as outputs in progress for the given key
+     */
+    void add(long key, Collection<String> paths) {
+        if(!paths)
+            return
+            
+        StringBuilder record = new StringBuilder()
+        for(String path in paths) {
+            record.append('+').append(key).append('\t').append(path).append('\n')
+        }
+        
+        long seq
+        synchronized(writeLock) {
+            entries.computeIfAbsent(key) { new LinkedHashSet<String>() }.addAll(paths)
+            seq = write(record.toString())
+        }
+        awaitSync(seq)
+    }
+    
+    /**
+     * Remove all the in-progress outputs for the given key
+     */
+    void clear(long key) {
+        long seq
+        synchronized(writeLock) {
+            Set<String> removed = entries.remove(key)
+            if(!removed)
+                return
+            seq = write('-' + key + '\n')
+        }
+        awaitSync(seq)
+    }
+    
+    /**
+     * @return all the outputs in progress in this process
+     */
+    List<String> getPaths() {
+        synchronized(writeLock) {
+            return (List<String>)entries.values().collectMany(new LinkedHashSet<String>()) { it }.toList()
+        }
+    }
+    
+    /**
+     * Close the journal. It will be reopened if more records are written.
+     */
+    void close() {
+        synchronized(writeLock) {
+            if(channel != null && sync)
+                channel.force(false)
+            channel?.close()
+            channel = null
+        }
+    }
+    
+    /**
+     * Discard all in-progress outputs and delete the journal
+     */
+    void reset() {
+        synchronized(writeLock) {
+            close()
+            entries.clear()
+            file.delete()
+        }
+    }
+    
+    /**
+     * Read the outputs that were in progress according to the given journal file. A partially
+     * written record at the end of the file is ignored.
+     */
+    static List<String> replay(File file) {
+        Map<Long, Set<String>> state = new LinkedHashMap<Long, Set<String>>()
+        if(!file.exists())
+            return []
+            
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)
+        int start = 0
+        int end
+        while((end = text.indexOf('\n', start)) >= 0) {
+            String line = text.substring(start, end)
+            start = end + 1
+            if(line.startsWith('+')) {
+                int tab = line.indexOf('\t')
+                if(tab < 0)
+                    continue
+                Long key = line.substring(1, tab).toLong()
+                state.computeIfAbsent(key) { new LinkedHashSet<String>() }.add(line.substring(tab+1))
+            }
+            else
+            if(line.startsWith('-')) {
+                state.remove(line.substring(1).toLong())
+            }
+        }
+        return (List<String>)state.values().collectMany(new LinkedHashSet<String>()) { it }.toList()
+    }
+    
+    /**
+     * Append a record to the journal. Must be called while holding the write lock.
+     * 
+     * @return the sequence number of the record
+     */
+    private long write(String record) {
+        FileChannel ch = open()
+        ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8))
+        while(buffer.hasRemaining())
+            ch.write(buffer)
+        ++written
+        
+        if(ch.size() > compactBytes)
+            compact()
+            
+        return written
+    }
+    
+    private FileChannel open() {
+        if(channel == null) {
+            if(sync == null)
+                sync = ((Map)Config.userConfig?.getOrDefault('inProgressJournal', null) ?: [:]).getOrDefault('fsync', 'batch') == 'batch'
+            file.parentFile?.mkdirs()
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+        }
+        return channel
+    }
+    
+    /**
+     * Replace the journal with one containing only the outputs in progress. Must be called
+     * while holding the write lock.
+     * <p>
+     * The new journal is synced before it replaces the old one, so all records written 
+     * before compaction are durable afterwards.
+     */
+    private void compact() {
+        long startMs = System.currentTimeMillis()
+        
+        StringBuilder content = new StringBuilder()
+        entries.each { Long key, Set<String> paths ->
+            for(String path in paths) {
+                content.append('+').append(key).append('\t').append(path).append('\n')
+            }
+        }
+        byte [] bytes = content.toString().getBytes(StandardCharsets.UTF_8)
+        
+        File tmp = new File(file.parentFile, file.name + '.tmp')
+        FileChannel tmpChannel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes)
+            while(buffer.hasRemaining())
+                tmpChannel.write(buffer)
+            if(sync)
+                tmpChannel.force(false)
+        }
+        finally {
+            tmpChannel.close()
+        }
+        
+        channel.close()
+        channel = null
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        }
+        catch(AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+        open()
+        
+        compactBytes = Math.max(COMPACT_BYTES, bytes.length * 2L)
+        
+        log.info "Compacted in-progress journal to ${bytes.length} bytes in ${System.currentTimeMillis() - startMs}ms"
+    }
+    
+    /**
+     * Wait until the record with the given sequence number has been synced, syncing it if
+     * no other thread is already doing so
+     */
+    private void awaitSync(long seq) {
+        if(!sync)
+            return
+            
+        while(true) {
+            synchronized(syncLock) {
+                while(syncing && synced < seq)
+                    syncLock.wait()
+                if(synced >= seq)
+                    return
+                syncing = true
+            }
+            
+            long target = 0
+            boolean succeeded = false
+            try {
+                FileChannel ch
+                synchronized(writeLock) {
+                    target = written
+                    ch = channel
+                }
+                try {
+                    ch?.force(false)
+                }
+                catch(ClosedChannelException e) {
+                    // The journal was compacted or closed after the records were written,
+                    // both of which sync them
+                }
+                succeeded = true
+            }
+            finally {
+                synchronized(syncLock) {
+                    if(succeeded) {
+                        synced = Math.max(synced, target)
+                        ++syncCount
+                    }
+                    syncing = false
+                    syncLock.notifyAll()
+                }
+            }
+        }
+    }
+}
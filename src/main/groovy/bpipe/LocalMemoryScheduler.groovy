@@ -0,0 +1,652 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.Semaphore
+
+import bpipe.executor.LocalCommandExecutor
+import bpipe.executor.ThrottledDelegatingCommandExecutor
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A request from a local command to be admitted for execution
+ */
+@CompileStatic
+class SchedulingRequest {
+
+    String commandId
+
+    String stage
+
+    /**
+     * Number of thread permits the command needs
+     */
+    int threads
+
+    /**
+     * Memory the command declared in its configuration (MB), 0 if none declared
+     */
+    long declaredMemoryMB
+
+    /**
+     * Memory the scheduler will actually reserve for the command (MB). This is based
+     * on the historical peak RSS of the stage when available, otherwise the declared
+     * amount.
+     */
+    long memoryMB
+
+    long requestTimeMs
+
+    /**
+     * Estimated remaining path of the command (see {@link CriticalPathPlanner}), 0 if not known
+     */
+    long priorityMs = 0L
+
+    boolean admitted = false
+
+    String toString() {
+        "SchedulingRequest(command=$commandId, stage=$stage, threads=$threads, memory=${memoryMB}MB, declared=${declaredMemoryMB}MB)"
+    }
+}
+
+/**
+ * Memory aware admission control for commands executed by the {@link LocalCommandExecutor}.
+ * <p>
+ * By default, local commands are admitted purely on the basis of the amounts they declare
+ * for the <code>threads</code> and <code>memory</code> resources. On machines with many cores
+ * and lots of memory this either oversubscribes memory (when commands don't declare memory)
+ * or leaves cores idle (when declared memory is very conservative). When enabled, this scheduler
+ * takes over admission of local commands, admitting them only when there is headroom in both CPU
+ * and memory:
+ *
+ * <li>The memory reserved for each command is estimated from the peak RSS observed for
+ *     the most recent commands of the same stage (with a configurable headroom factor), falling back
+ *     to the declared memory when no history exists. The reservation is never more than the 
+ *     <code>memory</code> limit, and a command that declares more memory than the limit fails.
+ * <li>Free memory is measured from the OS (<code>MemAvailable</code> in <code>/proc/meminfo</code>),
+ *     reduced by the expected further growth of commands that are already running
+ * <li>Waiting commands are packed into available headroom largest first (first-fit decreasing)
+ *     rather than first-come-first-served. A request that has waited longer than
+ *     <code>maxWaitMs</code> blocks smaller requests from overtaking it, so large commands
+ *     cannot be starved.
+ * <li>When a burst of commands arrives that does not fit, they simply wait (back pressure)
+ *     rather than being launched into an out-of-memory situation.
+ * <p>
+ * Configuration is via the <code>localScheduler</code> section of <code>bpipe.config</code>:
+ *
+ * <pre>
+ * localScheduler {
+ *     enabled = true
+ *     memoryReserveMB = 2048    // memory to always leave free
+ *     rssHeadroom = 1.2         // factor applied to historical peak RSS
+ *     maxWaitMs = 120000        // age after which a request cannot be overtaken
+ *     sampleIntervalMs = 5000   // how often RSS of running commands is sampled
+ *     defaultMemoryMB = 0       // reservation for commands with no history or declared memory
+ *     historyRuns = 5           // number of recent commands of each stage the peak RSS is taken from
+ * }
+ * </pre>
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Singleton
+@Log
+class LocalMemoryScheduler {
+
+    /**
+     * Where the per-stage peak RSS history is persisted between runs
+     */
+    final static File HISTORY_FILE = new File(".bpipe/scheduling/stage_peak_rss.properties")
+
+    /**
+     * Period for which a measured value of available memory is reused
+     */
+    final static long MEMINFO_CACHE_MS = 1000L
+
+    /**
+     * Requests waiting for admission. Waiting threads wait on this list and
+     * it is also the monitor that protects all admission state.
+     */
+    final List<SchedulingRequest> waiting = []
+
+    /**
+     * Commands that have been admitted and are currently running, keyed on command id
+     */
+    final Map<String,RunningLocalCommand> running = [:]
+
+    /**
+     * Peak RSS (MB) of the most recent commands of each stage, oldest first
+     */
+    Map<String,List<Long>> stagePeakRssMB = null
+
+    private long cachedAvailableMB = -1L
+
+    private long cachedAvailableTimeMs = 0L
+
+    private Thread samplerThread = null
+
+    @CompileStatic
+    static LocalMemoryScheduler getTheInstance() {
+        return LocalMemoryScheduler.instance
+    }
+
+    @CompileStatic
+    Map getSchedulerConfig() {
+        def cfg = Config.userConfig?.localScheduler
+        return cfg instanceof Map ? (Map)cfg : [:]
+    }
+
+    @CompileStatic
+    boolean isEnabled() {
+        return schedulerConfig.enabled == true
+    }
+
+    /**
+     * @return true if the given command should be admitted by this scheduler
+     */
+    @CompileStatic
+    boolean isManaged(Command command) {
+        if(!isEnabled())
+            return false
+
+        def exe = command.executor
+        if(exe instanceof ThrottledDelegatingCommandExecutor)
+            exe = ((ThrottledDelegatingCommandExecutor)exe).commandExecutor
+
+        return exe instanceof LocalCommandExecutor
+    }
+
+    /**
+     * Block until the given command can be admitted with the given amounts of threads and memory.
+     * <p>
+     * On return, the thread permits have been acquired from the <code>threads</code> semaphore,
+     * the memory reservation (if a memory semaphore is configured) has been acquired
+     * from the <code>memory</code> semaphore and <code>memoryUnit.amount</code> has been set to
+     * the amount reserved, so that a normal release of the resources returns the correct amounts.
+     * 
+     * @param memoryLimitMB total memory that can be reserved from the memory semaphore, 
+     *                      null if not known
+     * @param priorityMs    estimated remaining path of the command: commands with longer paths 
+     *                      are admitted first
+     * @throws PipelineError if the command declares more memory than the limit
+     */
+    @CompileStatic
+    void admit(Command command, ResourceUnit threadUnit, ResourceUnit memoryUnit, Semaphore threadSemaphore, Semaphore memorySemaphore, Integer memoryLimitMB, long priorityMs=0L) {
+
+        SchedulingRequest request = new SchedulingRequest(
+            commandId: command.id,
+            stage: command.name,
+            threads: threadUnit ? threadUnit.amount : 0,
+            declaredMemoryMB: memoryUnit.amount,
+            requestTimeMs: System.currentTimeMillis(),
+            priorityMs: priorityMs
+        )
+        request.memoryMB = estimateMemoryMB(request.stage, request.declaredMemoryMB)
+
+        if(memorySemaphore != null && memoryLimitMB != null && request.memoryMB > memoryLimitMB) {
+            if(request.declaredMemoryMB > memoryLimitMB)
+                throw new PipelineError("Command $command.id in stage $command.name requires ${request.declaredMemoryMB}MB of memory, but the memory limit is ${memoryLimitMB}MB")
+
+            // The estimate can only be reserved once nothing else holds any memory
+            log.warning "Estimated memory ${request.memoryMB}MB for $request exceeds the memory limit: reserving ${memoryLimitMB}MB"
+            request.memoryMB = memoryLimitMB
+        }
+
+        long sampleIntervalMs = (long)(schedulerConfig.sampleIntervalMs ?: 5000L)
+
+        log.info "Requesting admission for $request"
+
+        synchronized(waiting) {
+            waiting.add(request)
+            boolean acquired = false
+            try {
+                while(true) {
+                    schedule(threadSemaphore, memorySemaphore)
+                    if(request.admitted)
+                        break
+
+                    waiting.wait(Math.min(sampleIntervalMs, 1000L))
+                }
+                acquired = true
+            }
+            finally {
+                // If interrupted, the request must not be admitted later, and permits that were
+                // acquired for it while this thread was being interrupted are returned
+                if(!acquired) {
+                    if(request.admitted) {
+                        threadSemaphore?.release(request.threads)
+                        memorySemaphore?.release((int)request.memoryMB)
+                        waiting.notifyAll()
+                    }
+                    else
+                        waiting.remove(request)
+                }
+            }
+            running[command.id] = new RunningLocalCommand(command: command, request: request)
+        }
+
+        memoryUnit.amount = (int)request.memoryMB
+
+        long waitedMs = System.currentTimeMillis() - request.requestTimeMs
+        log.info "Admitted $request after $waitedMs ms"
+
+        startSampler(sampleIntervalMs)
+    }
+
+    /**
+     * Admit as many of the waiting requests as possible given current headroom.
+     * <p>
+     * NOTE: caller must hold the monitor on {@link #waiting}
+     */
+    @CompileStatic
+    private void schedule(Semaphore threadSemaphore, Semaphore memorySemaphore) {
+
+        if(waiting.isEmpty())
+            return
+
+        int freeThreads = threadSemaphore != null ? threadSemaphore.availablePermits() : Integer.MAX_VALUE
+        long freeMemoryMB = computeFreeMemoryMB(memorySemaphore)
+
+        List<SchedulingRequest> selected =
+            selectAdmissible(waiting, freeThreads, freeMemoryMB, running.isEmpty(), System.currentTimeMillis(), (long)(schedulerConfig.maxWaitMs ?: 120000L))
+
+        boolean admitted = false
+        for(SchedulingRequest r in selected) {
+            if(threadSemaphore != null && !threadSemaphore.tryAcquire(r.threads))
+                break
+
+            // A request admitted because nothing else is running may need more memory than is 
+            // free, if other commands hold memory: it waits until its full amount is available
+            if(memorySemaphore != null && !memorySemaphore.tryAcquire((int)r.memoryMB)) {
+                threadSemaphore?.release(r.threads)
+                break
+            }
+
+            r.admitted = true
+            waiting.remove(r)
+            admitted = true
+        }
+
+        if(admitted)
+            waiting.notifyAll()
+        else
+            log.info "No headroom for ${waiting.size()} waiting local commands (free threads=$freeThreads, free memory=${freeMemoryMB}MB)"
+    }
+
+    /**
+     * Choose which of the waiting requests to admit, packing the largest memory requests first
+     * among those with the same priority.
+     * <p>
+     * This is a pure function of its inputs so that it can be shared by the
+     * <code>LocalSchedulingSimulator</code> (see benchmark-src).
+     *
+     * @param waiting       requests awaiting admission
+     * @param freeThreads   thread permits currently available
+     * @param freeMemoryMB  memory headroom currently available
+     * @param idle          true if nothing is currently running, in which case the
+     *                      first request whose threads are free is admitted, even if it
+     *                      exceeds the memory headroom, to avoid deadlock
+     * @param nowMs         current time
+     * @param maxWaitMs     requests waiting longer than this may not be overtaken
+     *
+     * @return  the requests that should be admitted, in the order they should be admitted
+     */
+    @CompileStatic
+    static List<SchedulingRequest> selectAdmissible(List<SchedulingRequest> waiting, int freeThreads, long freeMemoryMB, boolean idle, long nowMs, long maxWaitMs) {
+
+        List<SchedulingRequest> ordered = waiting.sort(false) { SchedulingRequest a, SchedulingRequest b ->
+            boolean aStarving = (nowMs - a.requestTimeMs) > maxWaitMs
+            boolean bStarving = (nowMs - b.requestTimeMs) > maxWaitMs
+            if(aStarving != bStarving)
+                return aStarving ? -1 : 1
+            if(aStarving)
+                return a.requestTimeMs <=> b.requestTimeMs
+            if(a.priorityMs != b.priorityMs)
+                return b.priorityMs <=> a.priorityMs
+            if(a.memoryMB != b.memoryMB)
+                return b.memoryMB <=> a.memoryMB
+            if(a.threads != b.threads)
+                return b.threads <=> a.threads
+            return a.requestTimeMs <=> b.requestTimeMs
+        }
+
+        List<SchedulingRequest> result = []
+        for(SchedulingRequest r in ordered) {
+            boolean fits = (r.threads <= freeThreads) && (r.memoryMB <= freeMemoryMB)
+            if(!fits && idle && result.isEmpty() && r.threads <= freeThreads) {
+                log.warning "Admitting $r which exceeds available memory headroom (${freeMemoryMB}MB) because nothing else is running"
+                fits = true
+            }
+
+            if(fits) {
+                result << r
+                freeThreads -= r.threads
+                freeMemoryMB -= r.memoryMB
+            }
+            else
+            if((nowMs - r.requestTimeMs) > maxWaitMs) {
+                // Reserve remaining headroom for the starving request
+                break
+            }
+        }
+        return result
+    }
+
+    /**
+     * Memory that can be handed out to new commands: the lesser of the configured
+     * limit and the measured free memory less the expected growth of running commands.
+     */
+    @CompileStatic
+    private long computeFreeMemoryMB(Semaphore memorySemaphore) {
+        long free = memorySemaphore != null ? memorySemaphore.availablePermits() : Long.MAX_VALUE
+
+        long availableMB = readAvailableMemoryMB()
+        if(availableMB >= 0) {
+            long reserveMB = (long)(schedulerConfig.memoryReserveMB ?: 1024L)
+            long pendingGrowthMB = (long)(running.values().sum { RunningLocalCommand rc ->
+                Math.max(0L, rc.request.memoryMB - rc.currentRssMB)
+            } ?: 0L)
+            free = Math.min(free, availableMB - reserveMB - pendingGrowthMB)
+        }
+        return free
+    }
+
+    /**
+     * Estimate the memory a command in the given stage will use
+     *
+     * @return  the highest peak RSS of recent commands of the stage multiplied by the configured
+     *          headroom, or the declared memory if there is no history, or
+     *          the configured <code>defaultMemoryMB</code> if neither is available
+     */
+    @CompileStatic
+    long estimateMemoryMB(String stage, long declaredMemoryMB) {
+        Long peakMB = getStagePeakRssMB(stage)
+        if(peakMB == null)
+            return declaredMemoryMB > 0 ? declaredMemoryMB : (long)(schedulerConfig.defaultMemoryMB ?: 0L)
+
+        double headroom = (schedulerConfig.rssHeadroom ?: 1.2d) as double
+        return (long)Math.ceil(peakMB * headroom)
+    }
+
+    /**
+     * @return  the highest peak RSS of the recent commands of the given stage, or null if
+     *          there is no history for it
+     */
+    @CompileStatic
+    synchronized Long getStagePeakRssMB(String stage) {
+        if(stagePeakRssMB == null)
+            stagePeakRssMB = loadHistory()
+        List<Long> peaks = stagePeakRssMB[stage]
+        return peaks ? peaks.max() : null
+    }
+
+    /**
+     * Called when a command admitted by this scheduler has finished, to release
+     * its slot, record the peak RSS it reached and wake up waiting requests.
+     */
+    @CompileStatic
+    void commandFinished(Command command) {
+        RunningLocalCommand rc
+        synchronized(waiting) {
+            rc = running.remove(command.id)
+            waiting.notifyAll()
+        }
+
+        if(rc == null)
+            return
+
+        LocalCommandExecutor local = rc.localExecutor
+        if(local != null && rc.peakRssMB > 0)
+            local.peakRssBytes = rc.peakRssMB << 20
+
+        log.info "Command $command.id in stage $command.name finished with peak RSS ${rc.peakRssMB}MB (reserved ${rc.request.memoryMB}MB)"
+        if(rc.peakRssMB > 0)
+            recordPeakRss(command.name, rc.peakRssMB)
+    }
+
+    /**
+     * Add the peak RSS of a command to the history of its stage, replacing the oldest
+     * once the stage has <code>historyRuns</code> of them, so that the estimate falls
+     * again if the stage comes to use less memory
+     */
+    @CompileStatic
+    synchronized void recordPeakRss(String stage, long peakMB) {
+        if(stagePeakRssMB == null)
+            stagePeakRssMB = loadHistory()
+
+        int historyRuns = (int)(schedulerConfig.historyRuns ?: 5)
+        List<Long> peaks = stagePeakRssMB.computeIfAbsent(stage) { new ArrayList<Long>() }
+        peaks.add(peakMB)
+        while(peaks.size() > historyRuns)
+            peaks.remove(0)
+
+        saveHistory()
+    }
+
+    @CompileStatic
+    private Map<String,List<Long>> loadHistory() {
+        Map<String,List<Long>> result = [:]
+        if(!HISTORY_FILE.exists())
+            return result
+
+        Properties props = new Properties()
+        HISTORY_FILE.withInputStream { props.load(it) }
+        props.stringPropertyNames().each { String stage ->
+            List<Long> peaks = props.getProperty(stage).tokenize(',')*.trim().findAll { String value -> value.isLong() }.collect { String value -> value.toLong() }
+            if(peaks)
+                result[stage] = peaks
+        }
+        log.info "Loaded peak RSS history for ${result.size()} stages"
+        return result
+    }
+
+    @CompileStatic
+    private void saveHistory() {
+        try {
+            HISTORY_FILE.parentFile.mkdirs()
+            Properties props = new Properties()
+            stagePeakRssMB.each { String stage, List<Long> peaks -> props.setProperty(stage, peaks.join(',')) }
+            File tmp = new File(HISTORY_FILE.path + '.tmp')
+            tmp.withOutputStream { props.store(it, 'Peak RSS (MB) of recent commands of each stage') }
+            tmp.renameTo(HISTORY_FILE)
+        }
+        catch(Exception e) {
+            log.warning "Failed to save stage memory history: $e"
+        }
+    }
+
+    /**
+     * @return  memory available to new processes in MB according to the OS,
+     *          or -1 if it cannot be determined
+     */
+    @CompileStatic
+    long readAvailableMemoryMB() {
+        long now = System.currentTimeMillis()
+        if(now - cachedAvailableTimeMs < MEMINFO_CACHE_MS)
+            return cachedAvailableMB
+
+        cachedAvailableMB = -1L
+        File meminfo = new File('/proc/meminfo')
+        if(meminfo.exists()) {
+            String line = meminfo.readLines().find { String l -> l.startsWith('MemAvailable:') }
+            if(line)
+                cachedAvailableMB = (long)(line.tokenize()[1].toLong() / 1024)
+        }
+        cachedAvailableTimeMs = now
+        return cachedAvailableMB
+    }
+
+    @CompileStatic
+    private synchronized void startSampler(long sampleIntervalMs) {
+        if(samplerThread != null)
+            return
+
+        samplerThread = new Thread({
+            while(true) {
+                try {
+                    sampleRunning()
+                }
+                catch(Exception e) {
+                    log.warning "Failed to sample memory use of running commands: $e"
+                }
+                Thread.sleep(sampleIntervalMs)
+            }
+        })
+        samplerThread.daemon = true
+        samplerThread.name = 'local-memory-sampler'
+        samplerThread.start()
+    }
+
+    /**
+     * Update the current and peak RSS of every running command by summing the
+     * RSS of each command's process tree.
+     */
+    @CompileStatic
+    void sampleRunning() {
+        List<RunningLocalCommand> commands
+        synchronized(waiting) {
+            if(running.isEmpty())
+                return
+            commands = new ArrayList(running.values())
+        }
+
+        ProcessTable table = ProcessTable.read()
+        if(table == null)
+            return
+
+        for(RunningLocalCommand rc in commands) {
+            int pid = rc.pid
+            if(pid < 0)
+                continue
+            long rssMB = table.treeRssBytes(pid) >> 20
+            rc.currentRssMB = rssMB
+            rc.peakRssMB = Math.max(rc.peakRssMB, rssMB)
+        }
+    }
+}
+
+/**
+ * State of a command admitted by the {@link LocalMemoryScheduler}
+ */
+@CompileStatic
+class RunningLocalCommand {
+
+    Command command
+
+    SchedulingRequest request
+
+    volatile long currentRssMB = 0L
+
+    volatile long peakRssMB = 0L
+
+    LocalCommandExecutor getLocalExecutor() {
+        def exe = command.executor
+        if(exe instanceof ThrottledDelegatingCommandExecutor)
+            exe = ((ThrottledDelegatingCommandExecutor)exe).commandExecutor
+        return exe instanceof LocalCommandExecutor ? (LocalCommandExecutor)exe : null
+    }
+
+    int getPid() {
+        LocalCommandExecutor local = getLocalExecutor()
+        if(local == null)
+            return -1
+        local.readPID()
+        return local.pid
+    }
+}
+
+/**
+ * Snapshot of the parent and RSS of every process, read from <code>/proc</code>
+ */
+@CompileStatic
+class ProcessTable {
+
+    /**
+     * Size of the pages that RSS is counted in by <code>/proc/[pid]/stat</code>, which is
+     * larger than 4KB on some ARM and POWER systems
+     */
+    final static long PAGE_SIZE = readPageSize()
+
+    Map<Integer,List<Integer>> children = [:]
+
+    Map<Integer,Long> rssBytes = [:]
+
+    static long readPageSize() {
+        try {
+            String pageSize = 'getconf PAGESIZE'.execute().text.trim()
+            if(pageSize.isLong())
+                return pageSize.toLong()
+        }
+        catch(Exception e) {
+            // getconf is not available
+        }
+        return 4096L
+    }
+
+    /**
+     * @return  a process table, or null if /proc is not available
+     */
+    static ProcessTable read() {
+        File proc = new File('/proc')
+        if(!new File(proc, 'self/stat').exists())
+            return null
+
+        ProcessTable table = new ProcessTable()
+        for(File dir in proc.listFiles()) {
+            if(!dir.name.isInteger())
+                continue
+            try {
+                String stat = new File(dir, 'stat').text
+
+                // The command name is in brackets and may itself contain spaces
+                List<String> fields = stat.substring(stat.lastIndexOf(')')+2).tokenize(' ')
+                int pid = dir.name.toInteger()
+                int ppid = fields[1].toInteger()
+                table.rssBytes[pid] = fields[21].toLong() * PAGE_SIZE
+                table.children.get(ppid, []).add(pid)
+            }
+            catch(Exception e) {
+                // Process exited while we were reading it
+            }
+        }
+        return table
+    }
+
+    /**
+     * @return total RSS of the given process and all its descendants
+     */
+    long treeRssBytes(int pid) {
+        long total = 0L
+        List<Integer> pending = [pid]
+        while(!pending.isEmpty()) {
+            int next = pending.remove(pending.size()-1)
+            total += rssBytes.get(next, 0L)
+            List<Integer> kids = children[next]
+            if(kids)
+                pending.addAll(kids)
+        }
+        return total
+    }
+}
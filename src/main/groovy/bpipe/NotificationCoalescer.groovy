@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+
+import groovy.text.Template
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A notification that is ready to be sent: its template is resolved and its 
+ * details are complete.
+ */
+@CompileStatic
+class PendingNotification {
+    Map cfg
+    NotificationChannel channel
+    PipelineEvent event
+    String description
+    Template template
+    File templateFile
+    Map detail
+}
+
+/**
+ * Combines the notifications of a category that occur close together into a single
+ * digest notification.
+ * <p>
+ * The first notification in a category opens a window of <code>windowMs</code>, and all
+ * the notifications in the category that arrive within the window are sent together 
+ * when it closes. If the {@link NotificationRateLimiter} does not allow a notification to
+ * be sent at that time, the window is extended until it does, so that no notifications
+ * are lost to rate limiting.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class NotificationCoalescer {
+    
+    static class Digest {
+        String category
+        long intervalMs
+        int burst
+        List<PendingNotification> pending = []
+        boolean scheduled
+    }
+    
+    /**
+     * Renders each notification in a digest with its own template and details
+     */
+    static class DigestTemplate implements Template {
+        
+        List<PendingNotification> parts
+        
+        @Override
+        Writable make() {
+            return make([:])
+        }
+
+        @Override
+        Writable make(Map binding) {
+            StringBuilder text = new StringBuilder()
+            for(PendingNotification part in parts) {
+                if(text.length() > 0)
+                    text.append('\n\n')
+                text.append(part.template.make(part.detail).toString())
+            }
+            return new TextWritable(text: text.toString())
+        }
+    }
+    
+    static class TextWritable implements Writable {
+        String text
+        
+        @Override
+        Writer writeTo(Writer out) throws IOException {
+            out.write(text)
+            return out
+        }
+        
+        @Override
+        String toString() {
+            return text
+        }
+    }
+    
+    NotificationRateLimiter rateLimiter
+    
+    /**
+     * Sends a notification (or digest of notifications)
+     */
+    Closure deliver
+    
+    final ConcurrentHashMap<String, Digest> digests = new ConcurrentHashMap<String, Digest>()
+    
+    private ScheduledExecutorService scheduler
+    
+    /**
+     * Add the given notification to the digest for its category, opening a new 
+     * window for the category if one is not already open
+     */
+    void add(String category, long windowMs, long intervalMs, int burst, PendingNotification notification) {
+        Digest digest = digests.computeIfAbsent(category) { new Digest(category: category) }
+        synchronized(digest) {
+            digest.intervalMs = intervalMs
+            digest.burst = burst
+            digest.pending.add(notification)
+            if(digest.scheduled)
+                return
+            digest.scheduled = true
+        }
+        schedule(digest, windowMs)
+    }
+    
+    /**
+     * Send the notifications waiting in the given digest, if the rate limit allows,
+     * or otherwise try again when it will
+     * 
+     * @param force if true, send regardless of the rate limit
+     */
+    void flush(Digest digest, boolean force) {
+        List<PendingNotification> batch
+        synchronized(digest) {
+            if(digest.pending.isEmpty()) {
+                digest.scheduled = false
+                return
+            }
+            
+            if(!force) {
+                long waitMs = rateLimiter.tryAcquire(digest.category, digest.intervalMs, digest.burst, System.currentTimeMillis())
+                if(waitMs > 0) {
+                    log.info "Delaying ${digest.pending.size()} notifications in category $digest.category by ${waitMs}ms due to rate limit"
+                    schedule(digest, waitMs)
+                    return
+                }
+            }
+            
+            batch = digest.pending
+            digest.pending = []
+            digest.scheduled = false
+        }
+        
+        log.info "Sending ${batch.size()} notifications in category $digest.category"
+        deliver.call(combine(batch))
+    }
+    
+    /**
+     * Send all waiting notifications immediately and stop
+     */
+    void shutdown() {
+        for(Digest digest in digests.values()) {
+            flush(digest, true)
+        }
+        synchronized(this) {
+            scheduler?.shutdownNow()
+            scheduler = null
+        }
+    }
+    
+    /**
+     * @return  a single notification combining the given notifications, which are
+     *          all of the same category
+     */
+    static PendingNotification combine(List<PendingNotification> batch) {
+        
+        if(batch.size() == 1)
+            return batch[0]
+        
+        PendingNotification last = batch[-1]
+        String description = "${batch[0].description} (and ${batch.size()-1} more)"
+        
+        Map detail = new HashMap(last.detail)
+        detail.description = description
+        detail.digest = batch.collect { PendingNotification n -> 
+            [event: n.event, description: n.description, detail: n.detail]
+        }
+        
+        return new PendingNotification(
+            cfg: last.cfg,
+            channel: last.channel,
+            event: last.event,
+            description: description,
+            template: new DigestTemplate(parts: batch),
+            templateFile: last.templateFile,
+            detail: detail
+        )
+    }
+    
+    private void schedule(Digest digest, long delayMs) {
+        getScheduler().schedule({
+            try {
+                flush(digest, false)
+            }
+            catch(Throwable t) {
+                log.log(Level.SEVERE, "Failed to send notifications in category $digest.category", t)
+            }
+        } as Runnable, delayMs, TimeUnit.MILLISECONDS)
+    }
+    
+    private synchronized ScheduledExecutorService getScheduler() {
+        if(scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, 'bpipe-notification-digest')
+                    t.daemon = true
+                    return t
+                }
+            })
+        }
+        return scheduler
+    }
+}
@@ -29,7 +29,6 @@ import java.util.logging.Level;
 
 import org.codehaus.groovy.runtime.StackTraceUtils
 
-import groovy.text.SimpleTemplateEngine
 import groovy.transform.CompileStatic
 import groovy.util.logging.Log;
 
@@ -60,10 +59,24 @@ class NotificationManager {
     Map cfg
 	
 	/**
-	 * Time at which a message was last sent for each category of message
-	 * ("category" here being a combination of attributes; see computeMessageCategory)
+	 * Limits the rate of messages sent for each category of message
+	 * (the channel and the event)
 	 */
-	Map<String,Long> sendTimestamps = [:]
+	NotificationRateLimiter rateLimiter = new NotificationRateLimiter()
+    
+    /**
+     * Combines messages of the same category into digests, for channels that set <code>digestWindowMs</code>
+     */
+    NotificationCoalescer coalescer = new NotificationCoalescer(rateLimiter: rateLimiter, deliver: this.&deliver)
+    
+    /**
+     * Compiled templates, so that templates are not compiled for every message
+     */
+    TemplateCache templateCache = new TemplateCache()
+    
+    private Map checksEventDetail
+    
+    private List<Check> checksForEvent
     
     /**
      * Configured notification channels
@@ -183,6 +196,12 @@ class NotificationManager {
 	/**
 	 * Send the given notification, subject to constraints on sends that are configured for
 	 * the channel
+	 * <p>
+	 * The rate of notifications for each event is limited by the <code>interval</code> 
+	 * (minimum milliseconds between notifications) and <code>burst</code> settings of the channel.
+	 * If the channel sets <code>digestWindowMs</code>, notifications that occur within that time
+	 * are combined into a single digest, and notifications over the rate limit are delayed rather 
+	 * than dropped.
 	 */
 	void sendNotification(Map<String,Object> cfg, PipelineEvent evt, String desc, Map detail) {
         
@@ -204,20 +223,39 @@ class NotificationManager {
         NotificationChannel channel = cfg.channel
 		
 		long intervalMs = cfg.getOrDefault('interval',0)
+        int burst = cfg.getOrDefault('burst',1)
+        long digestWindowMs = cfg.getOrDefault('digestWindowMs',0)
 		
-		String category = cfg.type + "." + evt.name()
-		long lastNotificationTimeMs = sendTimestamps[category]?:0
+		String category = cfg.name + "." + evt.name()
+        
+        // Content sent explicitly, and reports (which are attached), are always sent individually
+        boolean coalesce = digestWindowMs > 0 && evt != PipelineEvent.SEND && evt != PipelineEvent.REPORT_GENERATED
 		
-		// Check timestamp of last send and whether we are within the interval limit for sends
-		// to this channel
-		long nowMs = System.currentTimeMillis()
-		if(intervalMs > 0 && lastNotificationTimeMs > 0) {
-			if(nowMs - lastNotificationTimeMs < intervalMs) {
-				log.info("Ignoring notification $desc for event $evt because it occurred too soon after the last notification")
-				return
-			}
+		// Check whether we are within the rate limit for sends to this channel
+		if(!coalesce && rateLimiter.tryAcquire(category, intervalMs, burst, System.currentTimeMillis()) > 0) {
+			log.info("Ignoring notification $desc for event $evt because it occurred too soon after the last notification")
+			return
 		}
         
+        PendingNotification notification = prepareNotification(cfg, channel, evt, desc, detail)
+        if(notification == null)
+            return
+            
+        if(coalesce)
+            coalescer.add(category, digestWindowMs, intervalMs, burst, notification)
+        else
+            deliver(notification)
+    }
+    
+    /**
+     * Resolve the template and compute the details for a notification
+     * 
+     * @return  the notification, or null if it cannot be sent
+     */
+    private PendingNotification prepareNotification(Map<String,Object> cfg, NotificationChannel channel, PipelineEvent evt, String desc, Map detail) {
+        
+        Map eventDetail = detail
+        
         // Figure out the right template name from the channel configuration
         String templateName = detail['template']
         if(templateName == null) {
@@ -247,7 +285,7 @@ class NotificationManager {
                 def msg = "WARNING: unable to send notification: template $templateName mapped to file $templateFile.absolutePath, but this file does not exist!"
                 log.severe(msg)
                 handleError(cfg, msg)
-                return
+                return null
             }
         }
         
@@ -273,7 +311,6 @@ class NotificationManager {
             
         //Pipeline pipeline = Pipeline.currentRuntimePipeline.get()?.rootPipeline
         
-        def engine = new SimpleTemplateEngine()
         detail += [
             date      : (new Date()),
             full_path : (new File(".").absoluteFile.canonicalPath),
@@ -285,22 +322,33 @@ class NotificationManager {
         ]
         
         if(evt == PipelineEvent.FINISHED) {
-            detail.checks = bpipe.Check.loadAll(); 
+            detail.checks = loadChecks(eventDetail)
         }
 
         def template
         if(templateFile != null) {
-            log.info "Generating template from file $templateFile.absolutePath"
-            template = engine.createTemplate(templateFile.getText())
+            template = templateCache.getTemplate(templateFile)
         }
         else {
             template = new DummyTemplate()
         }
-    	
-        sendTimestamps[category] = System.currentTimeMillis()
+        
+        return new PendingNotification(cfg: cfg, channel: channel, event: evt, description: desc, 
+                                       template: template, templateFile: templateFile, detail: detail)
+    }
+    
+    /**
+     * Send a notification to its channel
+     */
+    void deliver(PendingNotification notification) {
+        
+        Map cfg = notification.cfg
+        NotificationChannel channel = notification.channel
+        File templateFile = notification.templateFile
+        Map detail = notification.detail
 		
 		try {
-			channel.notify(evt, desc, template, detail)
+			channel.notify(notification.event, notification.description, notification.template, detail)
 		}
 		catch(Throwable t) {
 			log.warning("Failed to send notification via channel "+ channel + " with using template file ${templateFile?.absolutePath},configuration " + Utils.sanitiseConfig(cfg) + ": " + t)
@@ -319,6 +367,18 @@ class NotificationManager {
             }
 		}
 	}
+    
+    /**
+     * Load the checks to report for a FINISHED event. The same details are passed to each
+     * channel that receives the event, so the checks are only loaded once for all of them.
+     */
+    private synchronized List<Check> loadChecks(Map eventDetail) {
+        if(!eventDetail.is(checksEventDetail)) {
+            checksForEvent = bpipe.Check.loadAll()
+            checksEventDetail = eventDetail
+        }
+        return checksForEvent
+    }
 
     private void handleError(Map config, String msg) {
         if(config.getOrDefault('terminateOnError',false)) {
@@ -391,6 +451,7 @@ class NotificationManager {
    void shutdown() {
        if(!this.cfg)
            return 
+       this.coalescer.shutdown()
        this.cfg.notifications.each { id, channelCfg ->
            if(channelCfg.channel.respondsTo('close'))
                channelCfg.channel.close()
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.ConcurrentHashMap
+
+import groovy.transform.CompileStatic
+
+/**
+ * Limits the rate at which notifications are sent for each category of notification
+ * (see {@link NotificationManager}), as a token bucket.
+ * <p>
+ * Each category may send up to <code>burst</code> notifications at once, after which
+ * one further notification may be sent each <code>intervalMs</code>. With a burst of 1
+ * this is the same as requiring <code>intervalMs</code> between each notification sent.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class NotificationRateLimiter {
+    
+    static class Bucket {
+        double tokens
+        long updatedMs
+    }
+    
+    final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>()
+    
+    /**
+     * Attempt to take permission to send a notification in the given category
+     * 
+     * @return  0 if a notification may be sent now, otherwise the time in milliseconds
+     *          until the next notification may be sent
+     */
+    long tryAcquire(String category, long intervalMs, int burst, long nowMs) {
+        
+        if(intervalMs <= 0)
+            return 0
+            
+        int capacity = Math.max(burst, 1)
+        
+        Bucket bucket = buckets.computeIfAbsent(category) { 
+            new Bucket(tokens: capacity, updatedMs: nowMs) 
+        }
+        
+        synchronized(bucket) {
+            if(nowMs > bucket.updatedMs) {
+                bucket.tokens = Math.min((double)capacity, bucket.tokens + (nowMs - bucket.updatedMs) / (double)intervalMs)
+                bucket.updatedMs = nowMs
+            }
+            
+            if(bucket.tokens >= 1.0d) {
+                bucket.tokens -= 1.0d
+                return 0
+            }
+            return Math.max(1L, (long)Math.ceil((1.0d - bucket.tokens) * intervalMs))
+        }
+    }
+}
@@ -326,8 +326,10 @@ class OutputDirectoryWatcher extends Thread {
             // Update filename index
             files[fileName] = timestamp
 
-            // log.info "Path $path was updated / created"        
+            // log.info "Path $path was updated / created"
         }
+
+        DirectoryListingCache.theInstance.invalidate(this.directory)
     }
     
     @CompileStatic
@@ -1,30 +1,37 @@
 package bpipe
 
+import java.util.concurrent.ConcurrentHashMap
+
 import groovy.transform.CompileStatic
 
 /**
  * Tracks the output files that have been referenced in this pipeline run
- * 
+ * <p>
+ * Many branches may complete and register their outputs at the same time, so registrations
+ * are made directly in a {@link ConcurrentHashMap} with <code>putIfAbsent</code>: checking
+ * for a duplicate and registering a file is a single atomic operation, and branches
+ * registering different paths do not contend with each other.
+ *
  * @author simon.sadedin
  */
 @Singleton
 class OutputFileRegistry {
-    
+
     static class FileRegistration {
         String stageName
-        
+
         PipelineFile file
     }
-    
-    
+
+
     /**
-     * The internal set that tracks all the output files from this pipeline run
+     * The internal map that tracks all the output files from this pipeline run, indexed by path
      */
-    HashMap<String, FileRegistration> outputFiles = Collections.synchronizedMap(new HashMap<String, FileRegistration>())
-    
+    final ConcurrentHashMap<String, FileRegistration> outputFiles = new ConcurrentHashMap<String, FileRegistration>()
+
     /**
      * Register an output, checking that it has not already been registered.
-     * 
+     *
      * @param context
      * @param toRegister
      */
@@ -32,25 +39,76 @@ class OutputFileRegistry {
     void register(final PipelineContext context, final List<PipelineFile> toRegister, boolean failIfDuplicates) {
         if(toRegister == null || toRegister.isEmpty())
             return
-            
-        List<PipelineFile> alreadyRegistered = toRegister.findAll { it.path in outputFiles }
-        if(alreadyRegistered && failIfDuplicates) {
+
+        if(!failIfDuplicates) {
+            for(PipelineFile file in toRegister) {
+                outputFiles.put(file.path, new FileRegistration(stageName: context.stageName, file: file))
+            }
+            return
+        }
+
+        List<FileRegistration> alreadyRegistered = registerIfAbsent(context.stageName, toRegister)
+        if(alreadyRegistered) {
             throw new PipelineError(
                 """
                     Pipeline stage $context.stageName attempted to create one or more files that were already created in another pipeline stage:
-                """.stripIndent() + alreadyRegistered.collect { it.path + " : already created in " + outputFiles[it.path].stageName  }.join('\n'),
+                """.stripIndent() + alreadyRegistered.collect { it.file.path + " : already created in " + it.stageName  }.join('\n'),
                 context
             )
         }
-        
-        for(PipelineFile file in toRegister) { 
-            outputFiles[file.path] = new FileRegistration(stageName: context.stageName, file: file)
+    }
+
+    /**
+     * Register all of the given files for the given stage, or none of them if any
+     * were already registered.
+     *
+     * @return  the existing registrations that prevented the files being registered,
+     *          or an empty list if they were all registered
+     */
+    @CompileStatic
+    List<FileRegistration> registerIfAbsent(final String stageName, final List<PipelineFile> toRegister) {
+
+        List<FileRegistration> added = new ArrayList<FileRegistration>(toRegister.size())
+        List<FileRegistration> conflicts = []
+        for(PipelineFile file in toRegister) {
+            FileRegistration registration = new FileRegistration(stageName: stageName, file: file)
+            FileRegistration existing = outputFiles.putIfAbsent(file.path, registration)
+            if(existing == null)
+                added << registration
+            else
+            if(!added.contains(existing)) // the same file listed twice is not a conflict
+                conflicts << existing
+        }
+
+        if(conflicts) {
+            // Roll back so that a failed stage leaves no partial registration behind.
+            // Removal is conditional so a registration made by another branch since is never lost.
+            for(FileRegistration registration in added) {
+                outputFiles.remove(registration.file.path, registration)
+            }
         }
+        return conflicts
     }
-    
+
+    /**
+     * @return  true if the given path has been registered as an output of this pipeline run
+     */
+    @CompileStatic
+    boolean isRegistered(String path) {
+        return outputFiles.containsKey(path)
+    }
+
+    /**
+     * @return  the registration for the given path, or null if it is not an output of this pipeline run
+     */
+    @CompileStatic
+    FileRegistration getRegistration(String path) {
+        return outputFiles.get(path)
+    }
+
     @CompileStatic
     static OutputFileRegistry getTheInstance() {
         return OutputFileRegistry.instance
     }
-    
+
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import groovy.transform.CompileStatic
+
+/**
+ * A read only list whose elements are loaded a page at a time, as they are accessed.
+ * <p>
+ * Reports iterate over collections such as the commands, outputs and checks of a pipeline,
+ * which can have hundreds of thousands of entries. Presenting these as a <code>PagedList</code>
+ * means only one page of them needs to be materialised at a time, while templates can still
+ * use them exactly as they would any other list.
+ * <p>
+ * The size of the list is fixed when it is created, so a list over a collection that is still
+ * growing presents the elements that were present at that time.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class PagedList<T> extends AbstractList<T> {
+    
+    final static int DEFAULT_PAGE_SIZE = 500
+    
+    final int size
+    
+    final int pageSize
+    
+    /**
+     * Loads the page of elements beginning at the given offset, of at most the given size
+     */
+    private final Closure<List<T>> loader
+    
+    private int pageOffset = -1
+    
+    private List<T> page
+    
+    /**
+     * Number of pages that have been loaded
+     */
+    int loads = 0
+    
+    PagedList(int size, int pageSize, Closure<List<T>> loader) {
+        this.size = size
+        this.pageSize = Math.max(pageSize, 1)
+        this.loader = loader
+    }
+    
+    @Override
+    int size() {
+        return size
+    }
+    
+    @Override
+    synchronized T get(int index) {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index $index is outside list of size $size")
+            
+        int offset = index - (index % pageSize)
+        if(offset != pageOffset) {
+            page = loader(offset, Math.min(pageSize, size - offset))
+            pageOffset = offset
+            ++loads
+        }
+        
+        int pageIndex = index - offset
+        return pageIndex < page.size() ? page[pageIndex] : null
+    }
+    
+    /**
+     * A paged view of the elements currently in the given list, each page copied under the
+     * list's lock, so that it can be read while other threads add to the list.
+     */
+    static <T> PagedList<T> of(final List<T> list, int pageSize=DEFAULT_PAGE_SIZE) {
+        int size
+        synchronized(list) {
+            size = list.size()
+        }
+        return new PagedList<T>(size, pageSize, { int offset, int count ->
+            synchronized(list) {
+                new ArrayList<T>(list.subList(offset, Math.min(offset + count, list.size())))
+            }
+        })
+    }
+    
+    /**
+     * A paged view of the given elements, each transformed as its page is loaded
+     */
+    static <S,T> PagedList<T> collect(final List<S> source, int pageSize, final Closure<T> transform) {
+        return new PagedList<T>(source.size(), pageSize, { int offset, int count ->
+            source.subList(offset, offset + count).collect(transform)
+        })
+    }
+}
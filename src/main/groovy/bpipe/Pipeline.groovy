@@ -31,6 +31,9 @@ import groovy.time.TimeCategory
 import groovy.transform.CompileStatic
 
 import java.lang.annotation.Retention;
+import java.lang.management.ManagementFactory
+import java.lang.management.MemoryPoolMXBean
+import java.lang.management.MemoryType
 import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Method
 import java.nio.file.Files;
@@ -47,10 +50,14 @@ import java.util.logging.Logger
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream
 
+import org.codehaus.groovy.control.CompilerConfiguration
 import org.codehaus.groovy.reflection.CachedMethod;
 import org.codehaus.groovy.runtime.ReverseListIterator
 
+import bpipe.ast.DslCallTransformation
 import bpipe.cmd.GenerateDSLCommand
+import bpipe.graph.DiagramGraph
+import bpipe.graph.DiagramWriter
 import bpipe.graph.Graph;
 import bpipe.storage.StorageLayer
 import bpipe.storage.UnknownStoragePipelineFile
@@ -509,7 +516,7 @@ public class Pipeline implements ResourceRequestor {
         
         if(System.getenv("BPIPE_LIB")) {
             def pipeFolders = System.getenv("BPIPE_LIB").split(Utils.isWindows()?";":":").collect { new File(it) }
-            GroovyShell shell = new GroovyShell(pipelineBuilder.binding)
+            GroovyShell shell = new GroovyShell(pipelineBuilder.binding, scriptCompilerConfiguration)
             loadExternalStagesFromPaths(shell, pipeFolders, true, true)        
         }
 
@@ -1088,6 +1095,10 @@ public class Pipeline implements ResourceRequestor {
                 if(finishDate)
                     endDateTime(finishDate.format(DATE_FORMAT))
                 totalCommandTimeSeconds(commandTimeMs/1000)
+                jvm {
+                    peakHeapBytes(getPeakHeapBytes())
+                    peakThreads(ManagementFactory.threadMXBean.peakThreadCount)
+                }
                 
                 commands {
                    commandList.each {  Command cmd ->
@@ -1095,6 +1106,7 @@ public class Pipeline implements ResourceRequestor {
                             id(cmd.id)
                             stage(cmd.name)
                             branch(cmd.branch?.name?:"")
+                            branchPath(CriticalPathPlanner.branchPath(cmd.branch))
                             def regionVal = cmd.branch?.properties?.region
                             if(regionVal instanceof RegionValue && !regionVal.isEmpty()) {
                                 region {
@@ -1156,6 +1168,15 @@ public class Pipeline implements ResourceRequestor {
         log.info "Saved pipeline state in ${System.currentTimeMillis() - nowMs}ms"
     }
     
+    /**
+     * @return  the sum of the peak use of each heap memory pool. This is an upper bound on
+     *          the peak heap use of this run, since the pools may peak at different times.
+     */
+    @CompileStatic
+    static long getPeakHeapBytes() {
+        (long)ManagementFactory.memoryPoolMXBeans.findAll { MemoryPoolMXBean pool -> pool.type == MemoryType.HEAP }.sum(0L) { MemoryPoolMXBean pool -> pool.peakUsage.used }
+    }
+    
     void initializeRunLogs(List<String> inputFiles) {
         def cmdlog = CommandLog.cmdLog
         cmdlog.write("")
@@ -1314,7 +1335,7 @@ public class Pipeline implements ResourceRequestor {
     }
     
     private void loadExternalStages() {
-        GroovyShell shell = new GroovyShell(externalBinding)
+        GroovyShell shell = new GroovyShell(externalBinding, scriptCompilerConfiguration)
         def pipeFolders = [new File(System.properties["user.home"], "bpipes")]
         if(System.getenv("BPIPE_LIB")) {
             pipeFolders = System.getenv("BPIPE_LIB").split(Utils.isWindows()?";":":").collect { new File(it) }
@@ -1420,6 +1441,20 @@ public class Pipeline implements ResourceRequestor {
             }
     }
     
+    /**
+     * Compiler configuration for pipeline scripts and the libraries that they load.
+     * <p>
+     * Unless the <code>compileDslCalls</code> setting is false, the most common DSL calls in 
+     * pipeline stages are compiled into direct calls to the pipeline delegate (see
+     * {@link DslCallTransformation}).
+     */
+    static CompilerConfiguration getScriptCompilerConfiguration() {
+        CompilerConfiguration configuration = new CompilerConfiguration()
+        if(Config.userConfig?.getOrDefault('compileDslCalls', true) != false)
+            configuration.addCompilationCustomizers(new DslCallTransformation())
+        return configuration
+    }
+    
     /**
      * This method is invoked from code generated by the @Transform annotation
      * 
@@ -1485,7 +1520,7 @@ public class Pipeline implements ResourceRequestor {
             Pipeline pipeline = currentRuntimePipeline.get()
             Binding binding = new Binding()
             binding.variables = Runner.binding.variables.clone()
-            shell = new GroovyShell(binding)
+            shell = new GroovyShell(binding, scriptCompilerConfiguration)
             
             // Note: do not cache - different branches may need to load the same file
             // which caching would prevent
@@ -1496,7 +1531,7 @@ public class Pipeline implements ResourceRequestor {
             }
         }
         else  {
-            shell = new GroovyShell(Runner.binding)
+            shell = new GroovyShell(Runner.binding, scriptCompilerConfiguration)
             loadExternalStagesFromPaths(shell, [f])
         }
 
@@ -1519,6 +1554,7 @@ public class Pipeline implements ResourceRequestor {
     static synchronized void config(Closure cfgClosure) {
         ConfigObject newConfig = new ConfigSlurper().parse(new ClosureScript(closure:cfgClosure))
         Config.userConfig.merge(newConfig)
+        CommandConfigResolver.theInstance.invalidate()
         
         // In case there were any limits set, update the concurrency 
         // But we do not want to override settings from command line or bpipe.config here
@@ -1899,27 +1935,35 @@ public class Pipeline implements ResourceRequestor {
             log.info "Creating diagram $outputFileName"
             System.err.println "\nCreating diagram $outputFileName\n"
 
-            if(opts.f == "json")  {
-//                use(NodeListCategory) {
-//                    new File(outputFileName).text = root.toJson()
-//                }
-                
-                use(NodeListCategory) {
-                    new File(outputFileName).text =    
-                        JsonOutput.toJson(getNodeGraph(structure))
+            // DOT, SVG and JSON are written directly from the structure, without laying out
+            // a Swing model, so that they work for pipelines of any size
+            if(opts.f in DiagramWriter.FORMATS)  {
+                // JSON lists every stage unless grouping is asked for, since programs reading 
+                // it may expect a node for every stage
+                DiagramGraph graph = DiagramGraph.fromStructure(structure)
+                if(opts.c || (!opts.a && opts.f != 'json'))
+                    graph = graph.collapse()
+                    
+                new File(outputFileName).withWriter('UTF-8') { Writer w ->
+                    new DiagramWriter(graph: graph, vertical: Config.userConfig.diagramOrientation == "vertical").write(opts.f, w)
                 }
             }
             else
-            if(opts.f == "svg") 
-                new Graph(structure.root).renderSVG(outputFileName)
-            else
-            if(opts.f == "png" || !opts.f) 
+            if(opts.f == "png" || !opts.f) {
+                if(structure.nodes.size() > LARGE_DIAGRAM_NODES) 
+                    System.err.println "WARNING: this pipeline has ${structure.nodes.size()} stages, which may be slow to draw as a PNG image. Consider using -f svg instead.\n"
                 new Graph(structure.root).renderPNG(outputFileName)
+            }
             else
                 throw new PipelineError("Output format of ${opts.f} is not recognized / supported")
         } 
     }
     
+    /**
+     * Number of nodes above which a warning is printed that drawing a PNG diagram may be slow
+     */
+    final static int LARGE_DIAGRAM_NODES = 1000
+    
     /**
      * Convert information from the Node representation of the pipeline into
      * a list of nodes and edges suitable for export as a graph structure.
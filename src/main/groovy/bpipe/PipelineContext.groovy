@@ -101,7 +101,7 @@ class PipelineContext {
         this.extraBinding = extraBinding
         this.pipelineJoiners = pipelineJoiners
 
-        this.uncleanFilePath = DirtyFileManager.instance.initUncleanFilePath()
+        DirtyFileManager.instance.clear()
 
         this.threadId = Thread.currentThread().getId()
         this.branch = branch
@@ -152,8 +152,6 @@ class PipelineContext {
      */
     boolean customThreadResources = false
    
-    File uncleanFilePath
-    
     /**
      * Set of aliases to use for mapping file names
      */
@@ -426,7 +424,7 @@ class PipelineContext {
    @CompileStatic
    void setRawOutput(List outs) {
        
-	   this.@output = this.resolvePipelineFiles(outs)
+	   this.@output = new PipelineFileList(this.resolvePipelineFiles(outs))
            
        log.info("Setting raw outputs: " + Utils.logBig(this.@output, "outputs"))
    }
@@ -1020,6 +1018,35 @@ class PipelineContext {
      */
    List<PipelineFile> nextInputs
    
+   /**
+    * Indexes of output and nextInputs by file name and extension, for resolving 
+    * the inputs of later stages. Rebuilt when the indexed list or the aliases change.
+    */
+   private volatile PipelineFileIndex outputIndex = null
+   
+   private volatile PipelineFileIndex nextInputsIndex = null
+   
+   /**
+    * Return an index of either the output or the nextInputs of this stage
+    * 
+    * @param files  the output or nextInputs list of this context
+    */
+   @CompileStatic
+   PipelineFileIndex getFileIndex(List<PipelineFile> files, Aliases aliases) {
+       boolean isOutput = files.is(this.@output)
+       assert isOutput || files.is(this.nextInputs)
+       
+       PipelineFileIndex index = isOutput ? outputIndex : nextInputsIndex
+       if(index == null || !index.isCurrent(files, aliases)) {
+           index = new PipelineFileIndex(files, aliases)
+           if(isOutput)
+               outputIndex = index
+           else
+               nextInputsIndex = index
+       }
+       return index
+   }
+   
    
    @CompileStatic
    List<PipelineFile> getRawInput() {
@@ -3276,7 +3303,7 @@ class PipelineContext {
                 return new PipelineFile(pathValue, defaultStorage)
             }
             else
-            if(!OutputFileRegistry.theInstance.outputFiles.containsKey(pathValue)) {
+            if(!OutputFileRegistry.theInstance.isRegistered(pathValue)) {
                 throw new PipelineError(
                     """
                     Path $pathValue referenced via 'from' was created by a prior execution of a 
@@ -92,6 +92,11 @@ class PipelineDelegate {
         }
     }
     
+    /**
+     * DSL functions that take a list of files or patterns followed by a body
+     */
+    final static List<String> PRODUCE_METHODS = ["produce","transform","filter","preserve"]
+    
     def methodMissing(String name, args) {
         
         if(name in ['exec','python','groovy'] && args && args[0] instanceof GString) {
@@ -110,70 +115,11 @@ class PipelineDelegate {
  
         PipelineContext ctx = context.get()
         if(name == "from") {
-            if(args.size()<1) 
-                throw new IllegalArgumentException("from requires an argument: please supply a pattern or file extension that from should match on")
-                
-            Closure body = null
-            
-            def actualArgs 
-            Map options = [:]
-            if(args[0] instanceof Map) {
-                options = args[0]
-				args = args[1..-1]
-			}
-            
-            if(args[-1] instanceof Closure) {
-                actualArgs = args[0..-2] as List
-                body = args[-1]
-            }
-            else
-                actualArgs = args[0..-1]
-                
-            if(actualArgs[0] instanceof List && actualArgs.size()==1)
-                actualArgs = actualArgs[0]
-                
-            context.get().invokeMethod("fromImpl", [options, actualArgs, body] as Object[])
+            return fromCall(ctx, args)
         }
         else
-        if(name in ["produce","transform","filter","preserve"]) {
-            if((name == "transform") && !(args[-1] instanceof Closure)) {
-                args = (args as List) + [null]
-            }
-            else
-            if(name == "produce" && !(args[-1] instanceof Closure)) {
-                // No closure provided: the stage body itself acts as the produce body.
-                // Pass all args as files with a null body.
-                args = (args as List) + [null]
-            }
-            else
-            if(args.size()<2)
-                throw new IllegalArgumentException("$name requires an argument: please supply a file name or wild card expression matching files to be produced")
-
-            def actualArgs = args[0..-2] as List
-            if(actualArgs.size() == 1 && actualArgs[0] instanceof List) {
-                actualArgs = actualArgs[0]
-            }
-            def body = args[-1]
-            
-            def result 
-            
-            if(name == "produce") {
-                result = context.get().invokeMethod(name+"Impl", [actualArgs, body, true] as Object[])
-            }
-            else {
-                result = ctx.invokeMethod(name+"Impl", [actualArgs, body] as Object[])
-            }
-            
-//            if(name == "produce") {
-            if(false) {
-                // When the user has explicitly invoked "produce", we then assume that they have 
-                Pipeline pipeline = Pipeline.currentRuntimePipeline.get()
-                if(pipeline) {
-                    log.info "Setting name applied for branch $pipeline.branch because produce was explicitly invoked with arguments $args"
-                    pipeline.nameApplied = true
-                }
-            }
-            return result
+        if(name in PRODUCE_METHODS) {
+            return produceCall(ctx, name, args)
         }
         else
         if(name == "multi") {
@@ -203,6 +149,225 @@ class PipelineDelegate {
         }
     }
     
+    @CompileStatic
+    private Object fromCall(PipelineContext ctx, Object[] rawArgs) {
+        if(rawArgs.size()<1) 
+            throw new IllegalArgumentException("from requires an argument: please supply a pattern or file extension that from should match on")
+            
+        List args = rawArgs.toList()
+        Closure body = null
+        
+        List actualArgs 
+        Map options = [:]
+        if(args[0] instanceof Map) {
+            options = (Map)args[0]
+            args = args.subList(1, args.size())
+        }
+        
+        if(args[-1] instanceof Closure) {
+            actualArgs = args.subList(0, args.size()-1)
+            body = (Closure)args[-1]
+        }
+        else
+            actualArgs = args
+            
+        if(actualArgs.size()==1 && actualArgs[0] instanceof List)
+            actualArgs = (List)actualArgs[0]
+            
+        return ctx.fromImpl(options, actualArgs, body)
+    }
+    
+    @CompileStatic
+    private Object produceCall(PipelineContext ctx, String name, Object[] rawArgs) {
+        List args = rawArgs.toList()
+        if((name == "transform") && !(args[-1] instanceof Closure)) {
+            args << null
+        }
+        else
+        if(name == "produce" && !(args[-1] instanceof Closure)) {
+            // No closure provided: the stage body itself acts as the produce body.
+            // Pass all args as files with a null body.
+            args << null
+        }
+        else
+        if(args.size()<2)
+            throw new IllegalArgumentException("$name requires an argument: please supply a file name or wild card expression matching files to be produced")
+
+        List actualArgs = args.subList(0, args.size()-1)
+        if(actualArgs.size() == 1 && actualArgs[0] instanceof List) {
+            actualArgs = (List)actualArgs[0]
+        }
+        Closure body = (Closure)args[-1]
+        
+        if(name == "produce")
+            return ctx.produceImpl(actualArgs, body, true)
+        else
+        if(name == "transform")
+            return ctx.transformImpl((List<String>)actualArgs, body)
+        else
+        if(name == "filter")
+            return ctx.filterImpl((List<String>)actualArgs, body)
+        
+        ctx.preserveImpl(actualArgs, body)
+        return null
+    }
+    
+    /**
+     * Returns the pipeline delegate that a DSL call from a closure with the given delegate
+     * would be forwarded to, or null if it might be resolved somewhere else.
+     * <p>
+     * Closures inside a stage (for example, the body of a <code>produce</code>) forward 
+     * unresolved calls to their owner, which is also their default delegate, so the delegates 
+     * of enclosing closures are followed to find the pipeline delegate. Since the script is 
+     * searched before the delegate, variables of the same name in its binding prevent the 
+     * call from being forwarded.
+     * 
+     * @see bpipe.ast.DslCallTransformation
+     */
+    @CompileStatic
+    static PipelineDelegate getDslTarget(Object delegate, Object owner, String name) {
+        int depth = 0
+        while(delegate instanceof Closure && ++depth < MAX_DSL_CLOSURE_DEPTH)
+            delegate = ((Closure)delegate).delegate
+            
+        if(!(delegate instanceof PipelineDelegate))
+            return null
+            
+        PipelineDelegate target = (PipelineDelegate)delegate
+        if(target.context.get() == null)
+            return null
+            
+        if(owner instanceof Script && ((Script)owner).binding.hasVariable(name))
+            return null
+            
+        return target
+    }
+    
+    final static int MAX_DSL_CLOSURE_DEPTH = 20
+    
+    /**
+     * Called from code generated by {@link bpipe.ast.DslCallTransformation} to check that
+     * a DSL call can be made directly
+     */
+    @CompileStatic
+    static boolean isDslTarget(Object delegate, Object owner, String name) {
+        return getDslTarget(delegate, owner, name) != null
+    }
+    
+    /**
+     * Called from code generated by {@link bpipe.ast.DslCallTransformation} in place
+     * of a DSL function in a pipeline stage
+     */
+    @CompileStatic
+    static Object invokeDsl(Object delegate, Object owner, String name, Object[] args) {
+        return getDslTarget(delegate, owner, name).dispatch(name, args)
+    }
+    
+    /**
+     * Called from code generated by {@link bpipe.ast.DslCallTransformation} in place
+     * of a reference to a DSL property in a pipeline stage
+     */
+    @CompileStatic
+    static Object getDslProperty(Object delegate, Object owner, String name) {
+        return getDslTarget(delegate, owner, name).dslProperty(name)
+    }
+    
+    /**
+     * Statically compiled equivalent of {@link #methodMissing} for the most commonly used
+     * DSL functions. Any other call is passed to {@link #methodMissing}.
+     */
+    @CompileStatic
+    Object dispatch(String name, Object[] args) {
+        PipelineContext ctx = context.get()
+        if(name == "from") {
+            ctx.checkAndClearImplicits()
+            return fromCall(ctx, args)
+        }
+        else
+        if(name in PRODUCE_METHODS) {
+            ctx.checkAndClearImplicits()
+            return produceCall(ctx, name, args)
+        }
+        else
+        if(name == "multi") {
+            ctx.checkAndClearImplicits()
+            ctx.multiExec(args.toList())
+            return null
+        }
+        else
+        if(name == "forward") {
+            ctx.checkAndClearImplicits()
+            ctx.forwardImpl(args.toList())
+            return null
+        }
+        else
+        if(name == "exec" && isDirectExec(ctx, args)) {
+            GString gcmd = args[0] instanceof GString ? (GString)args[0] : null
+            ctx.checkAndClearImplicits(gcmd)
+            ctx.myDelegate = null
+            try {
+                String config = args.size() > 1 ? (String)args[1] : null
+                if(gcmd != null) {
+                    if(config == null)
+                        ctx.exec(gcmd)
+                    else
+                        ctx.exec(gcmd, config)
+                }
+                else {
+                    if(config == null)
+                        ctx.exec((String)args[0])
+                    else
+                        ctx.exec((String)args[0], config)
+                }
+                return null
+            }
+            finally {
+                ctx.myDelegate = this
+            }
+        }
+        return methodMissing(name, args)
+    }
+    
+    /**
+     * @return  true if the given arguments to exec would be passed directly to one of the
+     *          exec methods of the context by {@link #methodMissing}
+     */
+    @CompileStatic
+    private static boolean isDirectExec(PipelineContext ctx, Object[] args) {
+        if(ctx.currentBuilder != null)
+            return false
+        
+        if(args.size() < 1 || args.size() > 2 || !(args[0] instanceof String || args[0] instanceof GString))
+            return false
+            
+        if(args.size() == 2 && !(args[1] instanceof String))
+            return false
+            
+        return !(ctx.branch.getProperties().get('exec') instanceof Closure)
+    }
+    
+    /**
+     * Statically compiled equivalent of {@link #propertyMissing} for the most commonly 
+     * used DSL properties
+     */
+    @CompileStatic
+    Object dslProperty(String name) {
+        PipelineContext ctx = context.get()
+        switch(name) {
+            case "input":
+                return ctx.getInput()
+            case "inputs":
+                return ctx.getInputs()
+            case "output":
+                return ctx.getOutput()
+            case "outputs":
+                return ctx.getOutputs()
+            case "branch":
+                return ctx.branch
+        }
+        return propertyMissing(name)
+    }
+    
     final static Pattern OUTPUT_WITH_NUMBER_PATTERN = ~"output([0-9]{1,})\$"
 
     final static Pattern INPUT_WITH_NUMBER_PATTERN = ~"input([0-9]{1,})\$"
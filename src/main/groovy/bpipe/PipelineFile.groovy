@@ -39,6 +39,12 @@ class PipelineFile implements Serializable {
 	 */
     private def sourceBranch
     
+    /**
+     * For restoring saved commands, which set the fields afterwards
+     */
+    protected PipelineFile() {
+    }
+    
     protected PipelineFile(String path) {
         assert path != null
         this.path = path
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import groovy.transform.CompileStatic
+
+/**
+ * An index of a list of files by their names and file extensions, used to resolve
+ * references such as <code>$input.bam</code> without testing a regular expression
+ * against every upstream output.
+ * <p>
+ * Each file is indexed under its name and every suffix of its name following a '.'
+ * (eg: <code>sample.sorted.bam</code> is indexed under <code>sorted.bam</code> and
+ * <code>bam</code>), as well as under the names and suffixes of any aliases that map
+ * to it. An index is immutable: it records the list, its contents and the version of the
+ * aliases it was built from so that callers can tell when it needs to be rebuilt.
+ * For a {@link PipelineFileList}, the version of the list is enough to tell if it 
+ * has changed; other lists are compared element by element.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class PipelineFileIndex {
+
+    final List<PipelineFile> files
+
+    /**
+     * The files that were indexed, or null if the list is a {@link PipelineFileList}
+     */
+    private final PipelineFile [] snapshot
+
+    private final int listVersion
+
+    private final Aliases aliases
+
+    private final int aliasesVersion
+
+    private final Map<String, List<PipelineFile>> byName = new HashMap<String, List<PipelineFile>>()
+
+    private final Map<String, List<PipelineFile>> bySuffix = new HashMap<String, List<PipelineFile>>()
+
+    PipelineFileIndex(List<PipelineFile> files, Aliases aliases) {
+        this.files = files
+        if(files instanceof PipelineFileList) {
+            this.snapshot = null
+            this.listVersion = ((PipelineFileList)files).version
+        }
+        else {
+            this.snapshot = files.toArray(new PipelineFile[files.size()])
+            this.listVersion = 0
+        }
+        this.aliases = aliases
+        this.aliasesVersion = aliases != null ? aliases.version : 0
+
+        Set<String> names = new HashSet<String>()
+        Set<String> suffixes = new HashSet<String>()
+        for(PipelineFile file in files) {
+            if(!file)
+                continue
+
+            names.clear()
+            suffixes.clear()
+
+            String fileName = file.name
+            if(fileName != null)
+                addName(fileName, names, suffixes)
+
+            List<String> mappings = aliases?.getMappings(file)
+            if(mappings) {
+                for(String alias in mappings) {
+                    addName(alias.substring(alias.lastIndexOf('/')+1), names, suffixes)
+                }
+            }
+
+            // A file is listed once per key, even if several of its aliases share the key
+            for(String name in names)
+                byName.computeIfAbsent(name, { new ArrayList<PipelineFile>(1) }).add(file)
+            for(String suffix in suffixes)
+                bySuffix.computeIfAbsent(suffix, { new ArrayList<PipelineFile>(1) }).add(file)
+        }
+    }
+
+    private static void addName(String name, Set<String> names, Set<String> suffixes) {
+        names.add(name)
+        int dot = name.indexOf('.')
+        while(dot >= 0) {
+            suffixes.add(name.substring(dot+1))
+            dot = name.indexOf('.', dot+1)
+        }
+    }
+
+    /**
+     * @return  true if this index still reflects the given list of files and aliases
+     */
+    boolean isCurrent(List<PipelineFile> files, Aliases aliases) {
+        if(!files.is(this.files) || !aliases.is(this.aliases) || (aliases != null && aliases.version != aliasesVersion))
+            return false
+
+        if(snapshot == null)
+            return ((PipelineFileList)files).version == listVersion
+
+        if(files.size() != snapshot.length)
+            return false
+
+        int i = 0
+        for(PipelineFile file in files) {
+            if(!file.is(snapshot[i++]))
+                return false
+        }
+        return true
+    }
+
+    /**
+     * @return  files named exactly <code>name</code>, in the order they were listed
+     */
+    List<PipelineFile> withName(String name) {
+        return byName.getOrDefault(name, Collections.<PipelineFile>emptyList())
+    }
+
+    /**
+     * @return  files whose names end with '.' followed by <code>extension</code>, in the order they were listed
+     */
+    List<PipelineFile> withExtension(String extension) {
+        return bySuffix.getOrDefault(extension, Collections.<PipelineFile>emptyList())
+    }
+
+    /**
+     * Return the plain extension that a resolution pattern is equivalent to, or null if the
+     * pattern uses regular expression features beyond escaped dots and a trailing '$'.
+     * eg: <code>sorted\.bam$</code> is equivalent to the extension <code>sorted.bam</code>
+     */
+    static String literalExtension(String regex) {
+        String ext = regex.endsWith('$') ? regex.substring(0, regex.length()-1) : regex
+        ext = ext.replace('\\.', '\u0000')
+        for(int i=0; i<ext.length(); ++i) {
+            if(REGEX_CHARS.indexOf((int)ext.charAt(i)) >= 0)
+                return null
+        }
+        ext = ext.replace('\u0000', '.')
+        if(ext.isEmpty() || ext.startsWith('.'))
+            return null
+        return ext
+    }
+
+    private static final String REGEX_CHARS = '\\^$.|?*+()[]{}/'
+}
+
+/**
+ * A list of files that counts every change made to it, including replacing an element,
+ * so that a {@link PipelineFileIndex} of it can tell when it is out of date without 
+ * comparing its contents.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class PipelineFileList extends ArrayList<PipelineFile> {
+
+    private int replaced = 0
+
+    PipelineFileList() {
+    }
+
+    PipelineFileList(Collection<PipelineFile> files) {
+        super(files)
+    }
+
+    /**
+     * @return  a number that changes whenever the list is changed
+     */
+    int getVersion() {
+        return modCount + replaced
+    }
+
+    /**
+     * Replacing an element is not a structural change, so it is not counted by <code>modCount</code>
+     */
+    @Override
+    PipelineFile set(int index, PipelineFile file) {
+        ++replaced
+        return super.set(index, file)
+    }
+
+    /**
+     * The view returned by {@link ArrayList#subList} replaces elements without calling
+     * {@link #set}, so they are replaced through this list instead
+     */
+    @Override
+    List<PipelineFile> subList(int fromIndex, int toIndex) {
+        List<PipelineFile> view = super.subList(fromIndex, toIndex)
+        PipelineFileList owner = this
+        return new AbstractList<PipelineFile>() {
+            PipelineFile get(int i) { view.get(i) }
+            int size() { view.size() }
+            PipelineFile set(int i, PipelineFile file) { owner.set(fromIndex + i, file) }
+            void add(int i, PipelineFile file) { view.add(i, file) }
+            PipelineFile remove(int i) { view.remove(i) }
+        }
+    }
+}
@@ -25,6 +25,7 @@
 package bpipe
 
 import java.util.logging.Level;
+import java.util.concurrent.ConcurrentHashMap
 import java.util.logging.Logger
 import java.util.regex.Pattern
 
@@ -120,6 +121,12 @@ class PipelineInput {
      * Inputs for prioritisation in resolving files
      */
     List<List<PipelineFile>> resolutionStack = []
+    
+    /**
+     * Compiled patterns used by {@link #resolveInputFromRawExtension}, indexed by the 
+     * pattern they were derived from
+     */
+    private static final ConcurrentHashMap<String, Pattern[]> resolutionPatterns = new ConcurrentHashMap<String, Pattern[]>()
 
     PipelineInput(List<PipelineFile> input, List<PipelineStage> stages, Aliases aliases) {
         this.stages = stages;
@@ -322,7 +329,8 @@ class PipelineInput {
         List extList = Utils.box(exts)
         synchronized(stages) {
 
-            List<List<PipelineFile>> reverseOutputs = computeOutputStack()
+            Map<List<PipelineFile>,PipelineFileIndex> indexes = new IdentityHashMap<List<PipelineFile>,PipelineFileIndex>()
+            List<List<PipelineFile>> reverseOutputs = computeOutputStack(indexes)
 	        
             List<String> missingExts = []
 	        def filesWithExts = [extList,origs].transpose().collect { extsAndOrigs ->
@@ -332,7 +340,7 @@ class PipelineInput {
 	            String pattern = extOrigPair[0]
 	            String origName = extOrigPair[1]
                 
-	            List<PipelineFile> resolved = resolveInputFromExtension(pattern, origName, reverseOutputs)
+	            List<PipelineFile> resolved = resolveInputFromExtension(pattern, origName, reverseOutputs, indexes)
                 if(resolved == null)
                     missingExts << origName
                 return resolved
@@ -358,7 +366,7 @@ class PipelineInput {
     Map<String, String> utilisedMappings = [:]
     
     @CompileStatic
-    List<PipelineFile> resolveInputFromExtension(String pattern, String origName, List<List<PipelineFile>> reverseOutputs) {
+    List<PipelineFile> resolveInputFromExtension(String pattern, String origName, List<List<PipelineFile>> reverseOutputs, Map<List<PipelineFile>,PipelineFileIndex> indexes = null) {
 
         String customExt = origName.tokenize('.')[-1]
         if(customExt.endsWith('$'))
@@ -368,7 +376,7 @@ class PipelineInput {
         if(!mappings.is(null)) {
             for(String ext in mappings) {
                 String newExt = origName.substring(0, origName.size() - customExt.size()) + ext + '$'
-                def result = resolveInputFromRawExtension(newExt, origName, reverseOutputs)
+                def result = resolveInputFromRawExtension(newExt, origName, reverseOutputs, indexes)
                 if(!result.is(null)) {
                     for(r in result) {
                         utilisedMappings[r.path] =  ext
@@ -378,28 +386,65 @@ class PipelineInput {
             }
         }
         else
-            return resolveInputFromRawExtension(pattern, origName, reverseOutputs)
+            return resolveInputFromRawExtension(pattern, origName, reverseOutputs, indexes)
     }
 
+    /**
+     * Search the given outputs, in order, for files matching the given pattern, either
+     * exactly or as a file extension.
+     * <p>
+     * Patterns that are equivalent to a plain file extension (the usual case, eg: <code>$input.bam</code>)
+     * are looked up in an index of each list of outputs. The index of a stage's outputs is kept
+     * by its {@link PipelineContext}, so it is built once rather than scanned for every reference.
+     * Other patterns are tested against every file.
+     * 
+     * @param indexes   indexes already built for lists in reverseOutputs: indexes built for 
+     *                  other lists are added to it, if given
+     */
     @CompileStatic
-    List<PipelineFile> resolveInputFromRawExtension(String regex, String origName, List<List<PipelineFile>> reverseOutputs) {
+    List<PipelineFile> resolveInputFromRawExtension(String regex, String origName, List<List<PipelineFile>> reverseOutputs, Map<List<PipelineFile>,PipelineFileIndex> indexes = null) {
         
-            Pattern wholeMatch = ~('(^|^.*/)' + regex + '$')
-                
-            // Special case: treat a leading dot as a literal dot.
-            // ie: if the user specifies ".xml", they probably mean
-            // literally ".xml" and not "any character" + "xml"
-            if(regex.startsWith("."))
-                regex = "\\." + regex.substring(1)
+            String ext = PipelineFileIndex.literalExtension(regex)
+            if(ext != null) {
+                log.info "Resolving inputs with extension $ext"
+                for(s in reverseOutputs) {
+                    PipelineFileIndex index = indexes?.get(s)
+                    if(index == null) {
+                        index = new PipelineFileIndex(s, aliases)
+                        indexes?.put(s, index)
+                    }
                     
-            if(!regex.startsWith("\\.") )
-                regex = "\\." + regex
+                    List<PipelineFile> o = index.withName(ext)
+                    if(!o.isEmpty())
+                        return new ArrayList<PipelineFile>(o)
+                        
+                    o = index.withExtension(ext)
+                    if(!o.isEmpty())
+                        return new ArrayList<PipelineFile>(o)
+                }
+                return null
+            }
+        
+            Pattern [] patterns = resolutionPatterns.computeIfAbsent(regex) { String r ->
+                
+                Pattern wholeMatch = ~('(^|^.*/)' + r + '$')
                     
-            regex = '^.*' + regex
+                // Special case: treat a leading dot as a literal dot.
+                // ie: if the user specifies ".xml", they probably mean
+                // literally ".xml" and not "any character" + "xml"
+                if(r.startsWith("."))
+                    r = "\\." + r.substring(1)
+                        
+                if(!r.startsWith("\\.") )
+                    r = "\\." + r
+                        
+                return [wholeMatch, ~('^.*' + r)] as Pattern[]
+            }
             
-            Pattern regexPattern = ~regex
+            Pattern wholeMatch = patterns[0]
+            Pattern regexPattern = patterns[1]
             
-            log.info "Resolving inputs matching pattern $regex"
+            log.info "Resolving inputs matching pattern $regexPattern"
             for(s in reverseOutputs) {
 
 	            //log.info("Checking " + Utils.logBig(s, 'outputs'))
@@ -484,7 +529,7 @@ class PipelineInput {
      * provides an appropriate order for searching for inputs to a pipeline stage.
      */
     @CompileStatic
-    List<List<PipelineFile>> computeOutputStack() {
+    List<List<PipelineFile>> computeOutputStack(Map<List<PipelineFile>,PipelineFileIndex> indexes = null) {
         
         List relatedThreads = [Thread.currentThread().id, Pipeline.rootThreadId]
         
@@ -560,6 +605,14 @@ class PipelineInput {
                 outputsToAdd = splitFiles*.getAt(0)
                 prioritisedOutputs.addAll(splitFiles*.getAt(1))
             }
+            
+            // Lists that are still the stage's own outputs can use the index kept by its context
+            if(indexes != null) {
+                for(List<PipelineFile> files in outputsToAdd) {
+                    if(files.is(stage.context.@output) || files.is(stage.context.nextInputs))
+                        indexes.put(files, stage.context.getFileIndex(files, aliases))
+                }
+            }
             reverseOutputs.addAll(outputsToAdd)
         }
         
@@ -280,8 +280,12 @@ class PipelineStage {
         }
         finally {
             if(!joiner) {
-                if(!context.uncleanFilePath.delete())
-                    log.warning("Unable to delete in-progress command file $context.uncleanFilePath")
+                try {
+                    DirtyFileManager.theInstance.clear(context.threadId)
+                }
+                catch(IOException e) {
+                    log.warning("Unable to clear in-progress outputs for stage $displayName: $e")
+                }
             }
             
             OutputDirectoryWatcher.releaseDirectoryWatcher(context.outputDirectory)
@@ -24,13 +24,75 @@
  */
 package bpipe
 
-import groovy.text.GStringTemplateEngine;
-import groovy.text.SimpleTemplateEngine;
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+
+import groovy.text.Template
 import groovy.util.logging.Log;
 import groovy.xml.XmlUtil;
 
 @Log
 class ReportGenerator {
+    
+    /**
+     * Rendered sections of a report, so that sections that have not changed since the
+     * report was last generated do not need to be rendered again
+     */
+    static class SectionCache {
+        
+        static class Section {
+            Object version
+            String text
+        }
+        
+        final Map<Object,Section> sections = new ConcurrentHashMap<Object,Section>()
+        
+        /**
+         * Number of times a section was rendered rather than taken from the cache
+         */
+        int renders = 0
+        
+        /**
+         * Write a section of a report to the output of the template being rendered. If the 
+         * section was rendered before with the same version, the previous output is written
+         * instead of calling the body. A null version means the section is still changing,
+         * so it is always rendered.
+         */
+        void render(Map binding, Object key, Object version, Closure body) {
+            PrintWriter out = (PrintWriter)binding.out
+            Section section = version != null ? sections[key] : null
+            if(section != null && section.version == version) {
+                out.print(section.text)
+                return
+            }
+            
+            StringWriter text = new StringWriter()
+            binding.out = new PrintWriter(text)
+            try {
+                body()
+            }
+            finally {
+                binding.out = out
+            }
+            ++renders
+            
+            if(version != null)
+                sections[key] = new Section(version: version, text: text.toString())
+            out.print(text.toString())
+        }
+    }
+    
+    /**
+     * Templates are compiled once and shared by all reports
+     */
+    static TemplateCache templates = new TemplateCache()
+    
+    /**
+     * Sections of incrementally generated reports, indexed by the path of the report
+     */
+    static Map<String,SectionCache> sectionCaches = new ConcurrentHashMap<String,SectionCache>()
 
     public ReportGenerator() {
     }
@@ -41,6 +103,12 @@ class ReportGenerator {
      */
     Map reportBinding = null
     
+    /**
+     * If true, sections of the report that have not changed since it was last generated
+     * by this run are copied from the previous output rather than rendered again
+     */
+    boolean incremental = false
+    
     /**
      * Instantiates the specified template and generates it from the given pipeline
      *
@@ -58,7 +126,10 @@ class ReportGenerator {
         
         GraphEntry outputGraph = Dependencies.instance.getOutputGraph()
         
-        // We fill in the outputs for each node that is a pipeline stage
+        int pageSize = (int)(reportConfig.pageSize ?: PagedList.DEFAULT_PAGE_SIZE)
+        
+        // We fill in the outputs for each node that is a pipeline stage. The properties
+        // of outputs are only looked up as the template reads them.
         pipeline.node.breadthFirst().each { Node n ->
             if(n.attributes().type != 'stage')
                 return
@@ -68,7 +139,7 @@ class ReportGenerator {
             
             PipelineContext ctx = n.attributes().stage.context
             List<String> outputs = (Utils.box(ctx.@output) + ctx.inferredOutputs).unique()
-            n.attributes().outputs = outputs.collect { outputGraph.propertiesFor(it) }
+            n.attributes().outputs = PagedList.collect(outputs, pageSize) { outputGraph.propertiesFor(it) }
         }
         
         if(reportBinding == null) {
@@ -88,7 +159,9 @@ class ReportGenerator {
 //            return XmlUtil.escapeXml(String.valueOf(obj))
 //        }
         
-        reportBinding.commands = CommandManager.executedCommands
+        reportBinding.commands = PagedList.of(CommandManager.executedCommands, pageSize)
+        if(!reportBinding.containsKey('checks'))
+            reportBinding.checks = CheckJournal.forDirectory(Checker.CHECK_DIR).getPaged(pageSize)
         reportBinding.outputGraph =  outputGraph
         reportBinding.escape = Utils.&escape
         reportBinding.utils = new Utils()
@@ -101,6 +174,8 @@ class ReportGenerator {
         
         reportBinding.templatePath = templateFile.canonicalPath
         
+        bindSections(outputFile)
+        
         if(templateFileName.endsWith(".groovy")) {
             try {
                 reportBinding.outputFile = outputFile
@@ -116,25 +191,50 @@ class ReportGenerator {
         }
     }
     
+    /**
+     * Add the <code>section(key, version) { ... }</code> function that templates use to mark 
+     * sections of a report that only need to be rendered again if their version changes
+     */
+    void bindSections(File outputFile) {
+        if(incremental) {
+            SectionCache sectionCache = sectionCaches.computeIfAbsent(outputFile.canonicalPath) { new SectionCache() }
+            reportBinding.section = { Object key, Object version, Closure body -> 
+                sectionCache.render(reportBinding, key, version, body) 
+            }
+        }
+        else {
+            reportBinding.section = { Object key, Object version, Closure body -> body() }
+        }
+    }
+    
     void generateFromGStringTemplate(File templateFile, String outputDir, File outputFile) {
         
-        InputStream templateStream = new FileInputStream(templateFile)
-        
         // Sadly GStringTemplateEngine is not able to resolve classes
-        // that are in the classpath. I am not sure why. However SimpleTemplateEngine
-        // does. The advantage of GStringTemplateEngine would be that it can 
-        // generate templates that don't fit into memory. It is not really a 
-        // problem right now, but perhaps in the long term it would be nice to
-        // sort this out.
-//        GStringTemplateEngine e = new GStringTemplateEngine()
-        SimpleTemplateEngine e  = new SimpleTemplateEngine()
+        // that are in the classpath, so we use SimpleTemplateEngine. Its output is
+        // streamed to the file as it is rendered, so the report never has to fit in memory.
+        Template template = templates.getTemplate(templateFile)
         
         log.info "Generating output from template ${templateFile.absolutePath} to $outputFile.absolutePath"
-        templateStream.withReader { r ->
-            def template = e.createTemplate(r).make(reportBinding)
-            outputFile.text = template.toString()
+        
+        // Rendered to a temporary file and moved into place, so that a report generated
+        // while the pipeline is running is never seen partially written
+        File tmp = new File(outputFile.absoluteFile.parentFile, '.' + outputFile.name + '.tmp')
+        tmp.withWriter { Writer w ->
+            template.make(reportBinding).writeTo(w)
+        }
+        try {
+            Files.move(tmp.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
         }
-        templateStream.close()
+        catch(AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+    
+    /**
+     * @return  the <code>report</code> section of the user configuration
+     */
+    static Map getReportConfig() {
+        return (Map)Config.userConfig?.getOrDefault('report', null) ?: [:]
     }
     
     static File resolveTemplateFile(String templateFileName, List templateLocations=["html","templates"]) {
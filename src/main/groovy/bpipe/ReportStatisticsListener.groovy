@@ -25,6 +25,8 @@
 package bpipe
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean
+
 import groovy.util.logging.Log;
 
 import static bpipe.PipelineEvent.*
@@ -40,6 +42,16 @@ class ReportStatisticsListener implements PipelineEventListener {
     
     boolean notification = false
     
+    /**
+     * How often the report is regenerated while the pipeline runs. If zero, the report
+     * is only generated when the pipeline finishes.
+     */
+    long updateIntervalMs = 0
+    
+    private long lastUpdateMs = 0
+    
+    private final AtomicBoolean updating = new AtomicBoolean(false)
+    
     ReportStatisticsListener() {
         this("index","index.html")
     }
@@ -49,6 +61,7 @@ class ReportStatisticsListener implements PipelineEventListener {
         this.outputFileName = outputFileName
         this.outputDir = outputDir
         this.notification = notification
+        this.updateIntervalMs = (long)(ReportGenerator.reportConfig.updateIntervalMs ?: 0)
         EventManager.instance.addListener(PipelineEvent.STAGE_STARTED, this)
         EventManager.instance.addListener(PipelineEvent.STAGE_COMPLETED, this)
         EventManager.instance.addListener(PipelineEvent.COMMAND_CHECK, this)
@@ -77,6 +90,7 @@ class ReportStatisticsListener implements PipelineEventListener {
 			case STAGE_COMPLETED:
 				log.info "Annotating stage end time $ctx.stageName"
 				ctx.doc finishedAt: new Date(), elapsedMs: (System.currentTimeMillis() - ctx.documentation.startedAt.time)
+                updateDuringRun()
 			break
             
             case COMMAND_CHECK:
@@ -103,11 +117,41 @@ class ReportStatisticsListener implements PipelineEventListener {
 		}
 	}
     
-    def generateCustomReport(Pipeline pipeline) {
+    /**
+     * Regenerate the report in the background, if it has not been generated within the
+     * update interval. Only the sections of the report that changed since it was last
+     * generated are rendered again.
+     */
+    void updateDuringRun() {
+        
+        Pipeline pipeline = Pipeline.rootPipeline
+        if(updateIntervalMs <= 0 || pipeline == null)
+            return
+            
+        long now = System.currentTimeMillis()
+        if(now - lastUpdateMs < updateIntervalMs || !updating.compareAndSet(false, true))
+            return
+            
+        lastUpdateMs = now
+        Thread.startDaemon("report-update-$reportName") {
+            try {
+                generateCustomReport(pipeline)
+            }
+            catch(Exception e) {
+                // The pipeline is changing while the report is generated: the next update will catch up
+                log.warning "Unable to update report $reportName during run: $e"
+            }
+            finally {
+                updating.set(false)
+            }
+        }
+    }
+    
+    synchronized def generateCustomReport(Pipeline pipeline) {
         try {
           if(!pipeline.documentation.title)
             pipeline.documentation.title = "Pipeline Report"
-          new ReportGenerator().generateFromTemplate(pipeline, reportName + ".html", this.outputDir, this.outputFileName)
+          new ReportGenerator(incremental: updateIntervalMs > 0).generateFromTemplate(pipeline, reportName + ".html", this.outputDir, this.outputFileName)
         }
         catch(PipelineError e) {
             System.err.println "\nA problem occurred generating your report:"
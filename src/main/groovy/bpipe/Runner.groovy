@@ -44,6 +44,8 @@ import bpipe.agent.AgentRunner
 import bpipe.cmd.ArchiveCommand
 import bpipe.cmd.PreallocateCommand
 import bpipe.cmd.Stop;
+import bpipe.executor.CloudInstancePool
+import bpipe.processors.ContainerPool
 import bpipe.worx.WorxEventListener;
 
 import groovy.transform.CompileStatic;
@@ -114,7 +116,7 @@ class Runner {
           
     static CliBuilder stopCommandsCli = new CliBuilder(usage: "bpipe stopcommands\n", posix: true)
     
-    static CliBuilder diagramCli = new CliBuilder(usage: "bpipe diagram [-e] [-f <format>] <pipeline> <input1> <input2> ...\n", posix: true)
+    static CliBuilder diagramCli = new CliBuilder(usage: "bpipe diagram [-e] [-a|-c] [-f <format>] <pipeline> <input1> <input2> ...\n", posix: true)
     
     static CliBuilder registerCli = new CliBuilder(usage: "bpipe register [-e] [-f <format>] <pipeline> <input1> <input2> ...\n", posix: true)
     
@@ -186,6 +188,10 @@ class Runner {
         // Read user config early to ensure it's available for BpipeDB
         readUserConfig()
         
+        // Start the spawn helper while the heap is still small
+        if(SpawnHelper.enabled)
+            SpawnHelper.theInstance.start()
+        
         // Initialize database directories after config is read
         CENTRAL_JOB_DIR = BpipeDB.getFile("jobs")
         COMPLETED_DIR = BpipeDB.getFile("completed")
@@ -315,6 +321,13 @@ class Runner {
             exit(0)
         } 
         else
+        if(mode == "daemon") {
+            log.info("Starting command daemon")
+            Config.config["mode"] = mode
+            bpipe.cmd.CommandDaemon.main(args as List)
+            exit(0)
+        }
+        else
         if(mode == "stopcommands") {
             log.info("Stopping running commands")
             cli = stopCommandsCli
@@ -527,7 +540,7 @@ class Runner {
             Config.config.breakAt = ((String)opts['u']).split(",")
         }
 
-        def gcl = new GroovyClassLoader(Runner.class.classLoader.rootLoader)
+        def gcl = new GroovyClassLoader(Runner.class.classLoader.rootLoader, Pipeline.scriptCompilerConfiguration)
         
         if('parameters' in Config.userConfig) {
             Config.userConfig.parameters.collect { Map.Entry<String,Object> e ->
@@ -597,6 +610,8 @@ class Runner {
             script.run()
             normalShutdown=true
             ExecutorPool.shutdownAll()
+            CloudInstancePool.shutdownAll()
+            ContainerPool.shutdownAll()
             Poller.theInstance.executor.shutdown()
             DirectoryWatcherScheduler.theInstance.executor.shutdown()
             EventManager.theInstance.signal(PipelineEvent.SHUTDOWN, "Shutting down process $pid")
@@ -915,6 +930,12 @@ class Runner {
         
         ExecutorPool.shutdownAll()
         
+        CloudInstancePool.shutdownAll()
+        
+        ContainerPool.shutdownAll()
+        
+        SpawnHelper.theInstance.stop()
+        
         Poller.theInstance.executor.shutdown()
             
         // The normalShutdown flag is set to false by default, and only set to true
@@ -1220,7 +1241,9 @@ class Runner {
     static CliBuilder configureDiagramCli() {
         CliBuilder cli = diagramCli
         cli.with {
-            f "Set output format to 'png' or 'svg'", args:1
+            f "Set output format to 'png', 'svg', 'dot' or 'json'", args:1
+            a "Show every branch separately, rather than grouping branches that run the same stages"
+            c "Group branches that run the same stages (the default for all formats except 'json')"
         }
         return cli
     }
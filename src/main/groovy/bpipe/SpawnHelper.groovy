@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.nio.file.Files
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Runs short lived commands (status probes, job submissions, tool version probes) 
+ * through a small resident <code>bash</code> process, rather than forking them 
+ * directly from the Bpipe JVM.
+ * <p>
+ * Each process started by the JVM has to be forked (or spawned) from a process whose
+ * address space includes the whole Java heap, which becomes slow, and can fail when
+ * memory is overcommitted, once the heap is large and thousands of commands are run 
+ * each minute. The helper is started when Bpipe launches, while the heap is still small,
+ * and forks each command from itself instead.
+ * <p>
+ * Requests are written to the helper's standard input as NUL separated fields:
+ * <pre>
+ * R id dir out err argc arg1 ... argN     run a command
+ * K pid                                   send SIGTERM to a command that timed out
+ * </pre>
+ * Standard output and error of each command are written to files in a temporary directory,
+ * and the helper replies with a line when each command starts (<code>S id pid</code>) 
+ * and exits (<code>E id exitCode</code>), or <code>F id</code> if it could not be run
+ * at all. If the helper is not running, cannot be started, or a command cannot be 
+ * represented, {@link #execute} returns null and the caller runs the command with
+ * {@link ProcessBuilder} as usual.
+ * <p>
+ * The helper is enabled by setting <code>spawnHelper=true</code> in <code>bpipe.config</code>.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@Singleton
+class SpawnHelper {
+    
+    final static String SCRIPT = '''
+        run() {
+            local id=$1 dir=$2 out=$3 err=$4
+            shift 4
+            if ! cd "$dir" 2>/dev/null || ! type -P -- "$1" >/dev/null; then
+                echo "F $id"
+                return
+            fi
+            "$@" </dev/null >"$out" 2>"$err" &
+            local pid=$!
+            echo "S $id $pid"
+            wait $pid
+            echo "E $id $?"
+        }
+        while IFS= read -r -d '' op; do
+            if [[ $op == K ]]; then
+                IFS= read -r -d '' pid
+                kill "$pid" 2>/dev/null
+            else
+                IFS= read -r -d '' id; IFS= read -r -d '' dir; IFS= read -r -d '' out; IFS= read -r -d '' err
+                IFS= read -r -d '' n
+                args=()
+                for ((i=0; i<n; ++i)); do IFS= read -r -d '' arg; args+=("$arg"); done
+                run "$id" "$dir" "$out" "$err" "${args[@]}" &
+            fi
+        done
+    '''.stripIndent()
+    
+    /**
+     * A command submitted to the helper that has not yet exited
+     */
+    @CompileStatic
+    static class Spawn {
+        
+        List<String> args
+        
+        volatile String pid
+        
+        final CompletableFuture<Integer> exit = new CompletableFuture<Integer>()
+    }
+    
+    private Process helper
+    
+    private OutputStream requests
+    
+    private File spawnDir
+    
+    private final AtomicLong nextId = new AtomicLong()
+    
+    private final ConcurrentHashMap<Long,Spawn> running = new ConcurrentHashMap<Long,Spawn>()
+    
+    /**
+     * True while the helper is running and accepting requests
+     */
+    volatile boolean available = false
+    
+    /**
+     * Number of commands run through the helper
+     */
+    final AtomicLong spawns = new AtomicLong()
+    
+    @CompileStatic
+    static boolean isEnabled() {
+        Config.userConfig.getOrDefault('spawnHelper', false) == true
+    }
+    
+    /**
+     * Start the helper, if it is not already running. This does not check whether the
+     * helper is enabled: see {@link #isEnabled}.
+     * 
+     * @return true if the helper is running
+     */
+    @CompileStatic
+    synchronized boolean start() {
+        if(available)
+            return true
+            
+        try {
+            spawnDir = Files.createTempDirectory('bpipe-spawn').toFile()
+            
+            ProcessBuilder pb = new ProcessBuilder('bash', '-c', SCRIPT, 'bpipe-spawn-helper')
+            pb.redirectError(ProcessBuilder.Redirect.appendTo(new File(spawnDir, 'helper.err')))
+            Process process = pb.start()
+
+            helper = process
+            requests = new BufferedOutputStream(process.outputStream)
+            
+            Thread reader = new Thread({ readReplies(process) }, 'bpipe-spawn-helper')
+            reader.daemon = true
+            reader.start()
+            
+            available = true
+            log.info "Started spawn helper using $spawnDir for command output"
+        }
+        catch(Exception e) {
+            log.warning "Unable to start spawn helper, commands will be started directly: $e"
+            spawnDir?.deleteDir()
+        }
+        return available
+    }
+    
+    /**
+     * Stop the helper. Commands that are still running are allowed to finish, 
+     * but their results are no longer collected.
+     */
+    @CompileStatic
+    synchronized void stop() {
+        if(helper == null)
+            return
+            
+        available = false
+        try {
+            requests.close()
+        }
+        catch(IOException e) {
+            log.info "Error closing spawn helper: $e"
+        }
+        helper.waitFor(2, TimeUnit.SECONDS)
+        helper.destroy()
+        helper = null
+        spawnDir.deleteDir()
+    }
+    
+    /**
+     * Run the given command through the helper, waiting for it to exit
+     * 
+     * @param args      the command and its arguments
+     * @param dir       the directory to run the command in, or null for the current directory
+     * @param timeoutMs maximum time to wait for the command, after which it is terminated, 
+     *                  or 0 to wait indefinitely
+     * 
+     * @return  the exit code and output of the command, or null if the helper could not
+     *          run it, in which case it should be run directly
+     * @throws IOException  if the command was not found, or the helper failed while it was running
+     */
+    @CompileStatic
+    ExecutedProcess execute(List<String> args, File dir, long timeoutMs) throws IOException {
+        
+        if(!available || args.isEmpty() || args.any { String arg -> arg.indexOf(0) >= 0 })
+            return null
+            
+        long id = nextId.incrementAndGet()
+        Spawn spawn = new Spawn(args: args)
+        running.put(id, spawn)
+        
+        File outFile = new File(spawnDir, "${id}.out")
+        File errFile = new File(spawnDir, "${id}.err")
+        try {
+            send(['R', String.valueOf(id), (dir ?: new File('.')).absolutePath, outFile.path, errFile.path, String.valueOf(args.size())] + args)
+        }
+        catch(IOException e) {
+            running.remove(id)
+            log.warning "Unable to send command to spawn helper, commands will be started directly: $e"
+            available = false
+            return null
+        }
+        spawns.incrementAndGet()
+        
+        ExecutedProcess result = new ExecutedProcess(out: new StringBuilder(), err: new StringBuilder())
+        try {
+            result.exitValue = timeoutMs > 0 ? spawn.exit.get(timeoutMs, TimeUnit.MILLISECONDS) : spawn.exit.get()
+        }
+        catch(TimeoutException e) {
+            log.info "Command $id (pid $spawn.pid) run by spawn helper timed out after $timeoutMs ms"
+            result.timedOut = true
+            result.exitValue = -1
+            if(spawn.pid != null)
+                send(['K', spawn.pid])
+        }
+        catch(ExecutionException e) {
+            throw (IOException)e.cause
+        }
+        finally {
+            running.remove(id)
+        }
+        
+        if(outFile.exists())
+            result.out.append(outFile.text)
+        if(errFile.exists())
+            result.err.append(errFile.text)
+        outFile.delete()
+        errFile.delete()
+        
+        return result
+    }
+    
+    @CompileStatic
+    private void send(List<String> fields) throws IOException {
+        synchronized(requests) {
+            for(String field in fields) {
+                requests.write(field.bytes)
+                requests.write(0)
+            }
+            requests.flush()
+        }
+    }
+    
+    @CompileStatic
+    private void readReplies(Process process) {
+        try {
+            process.inputStream.eachLine { String line ->
+                List<String> fields = line.tokenize(' ')
+                Spawn spawn = running.get(fields[1].toLong())
+                if(spawn == null) // already timed out
+                    return
+                
+                switch(fields[0]) {
+                    case 'S':
+                        spawn.pid = fields[2]
+                        break
+                    case 'E':
+                        spawn.exit.complete(fields[2].toInteger())
+                        break
+                    case 'F':
+                        spawn.exit.completeExceptionally(new IOException("Cannot run program \"${spawn.args[0]}\": not found"))
+                        break
+                }
+            }
+        }
+        catch(Exception e) {
+            log.warning "Error reading from spawn helper: $e"
+        }
+        
+        if(available)
+            log.warning "Spawn helper exited unexpectedly, commands will be started directly"
+        available = false
+        
+        // Commands in flight may or may not have run, so they cannot simply be retried
+        for(Spawn spawn in running.values()) {
+            spawn.exit.completeExceptionally(new IOException("Spawn helper exited while running command: " + spawn.args.join(' ')))
+        }
+    }
+    
+    @CompileStatic
+    static SpawnHelper getTheInstance() {
+        return SpawnHelper.instance
+    }
+}
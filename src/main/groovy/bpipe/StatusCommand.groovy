@@ -100,7 +100,7 @@ class StatusCommand extends BpipeCommand {
                 
                     This may indicate that the Bpipe process was terminated in an unexpected manner.
                 """
-                System.exit(1)
+                exit(1)
             }
             
             GPathResult dom = new XmlSlurper().parse(resultFile)
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import groovy.text.SimpleTemplateEngine
+import groovy.text.Template
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Caches compiled templates so that each template file is only compiled once, rather
+ * than for every notification that is sent or report that is generated.
+ * <p>
+ * A cached template is reused for as long as the file it was compiled from has the same 
+ * modification time and size, so editing a template while a pipeline runs still takes effect.
+ * Compiled templates can be shared between threads: each call to <code>make</code> creates
+ * a new instance of the underlying template script.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class TemplateCache {
+    
+    static class Entry {
+        long lastModified
+        long length
+        Template template
+    }
+    
+    final ConcurrentHashMap<String, Entry> templates = new ConcurrentHashMap<String, Entry>()
+    
+    /**
+     * Number of times a template file was compiled
+     */
+    final AtomicInteger compilations = new AtomicInteger()
+    
+    /**
+     * @return  the compiled template for the given file, compiling it only if it has 
+     *          not been compiled before or has changed since it was compiled
+     */
+    Template getTemplate(File templateFile) {
+        String key = templateFile.absolutePath
+        long lastModified = templateFile.lastModified()
+        long length = templateFile.length()
+        
+        Entry entry = templates.get(key)
+        if(entry != null && entry.lastModified == lastModified && entry.length == length)
+            return entry.template
+            
+        log.info "Compiling template from file $templateFile.absolutePath"
+        
+        // Compilation is rare now, so a new engine each time avoids sharing its 
+        // internal state between threads
+        Template template = new SimpleTemplateEngine().createTemplate(templateFile.getText())
+        templates.put(key, new Entry(lastModified: lastModified, length: length, template: template))
+        compilations.incrementAndGet()
+        return template
+    }
+}
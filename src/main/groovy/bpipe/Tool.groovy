@@ -123,21 +123,15 @@ class Tool {
             log.info "Probing version of tool using probe command $realizedCommand"
             
             File dir = new File(Config.config.script).absoluteFile.parentFile
-            ProcessBuilder pb = new ProcessBuilder(['bash','-c',realizedCommand] as String[]).directory(dir)
-            Process process = pb.start()
-            
-            StringWriter output = new StringWriter()
-            StringWriter errorOutput = new StringWriter()
-            process.consumeProcessOutput(output, errorOutput)
-            int exitCode = process.waitFor()
-            if(exitCode == 0) {
-                version = output.toString().trim()
+            ExecutedProcess result = Utils.executeCommand(['bash','-c',realizedCommand], dir: dir)
+            if(result.exitValue == 0) {
+                version = result.out.toString().trim()
                 probeSucceeded = true
             }
             else
             if(installExe != "Rscript") {
                 version = "Unable to determine version (error occured, see log)" 
-                log.info "Probe command $realizedCommand failed with error output: " + errorOutput.toString()
+                log.info "Probe command $realizedCommand failed with error output: " + result.err.toString()
             }
             probed = true
         }
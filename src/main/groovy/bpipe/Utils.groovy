@@ -992,6 +992,13 @@ class Utils {
      * <p>
      * An optional closure will be executed as a delegate of the ProcessBuilder created
      * to allow configuration.
+     * <p>
+     * Commands that are not configured with a closure, and whose output is collected rather
+     * than written to a stream given in the options, are run through the {@link SpawnHelper}
+     * if it has been enabled (<code>spawnHelper=true</code>) and is running.
+     * <p>
+     * With the <code>quiet</code> option, the command is only logged at level FINE, for 
+     * commands such as status probes that are run very often.
      * 
      * @param startCmd  List of objects (will be converted to strings) as args to command
      * @return Map with exitValue, err and out keys
@@ -1001,12 +1008,39 @@ class Utils {
         
         List<String> stringified = startCmd*.toString()
         
-        log.info "Executing command: " + stringified.join(' ')
-        if(options) {
-            log.info "Command options are: " + options
+        if(options.quiet) {
+            log.fine "Executing command: " + stringified.join(' ')
+        }
+        else {
+            log.info "Executing command: " + stringified.join(' ')
+            if(options) {
+                log.info "Command options are: " + options
+            }
         }
         
+        ExecutedProcess result = null
+        if(builder == null && options.out == null && options.err == null && SpawnHelper.enabled) 
+            result = SpawnHelper.theInstance.execute(stringified, (File)options.dir, options.timeout ? (long)options.timeout : 0L)
+            
+        if(result == null)
+            result = startProcess(options, stringified, builder)
+        
+        if(options.throwOnError && result.exitValue != 0 && !result.timedOut) 
+            throw new Exception("Command returned exit code ${result.exitValue}: " + stringified.join(" ") + "\n\nOutput: $result.out\n\nStd Err:\n\n$result.err")
+            
+        return result
+    }
+    
+    /**
+     * Execute the given command directly with a {@link ProcessBuilder}, accepting the same 
+     * options as {@link #executeCommand}
+     */
+    @CompileStatic
+    static ExecutedProcess startProcess(Map options, List<String> stringified, Closure builder = null) {
+        
         ProcessBuilder pb = new ProcessBuilder(stringified)
+        if(options.dir)
+            pb.directory((File)options.dir)
         if(builder != null) {
             builder.delegate = pb
             builder()
@@ -1015,8 +1049,8 @@ class Utils {
         Process p = pb.start()
         ExecutedProcess result = new ExecutedProcess()
         Utils.withStreams(p) {
-            Appendable out = (Appendable)options.out ?: new StringBuilder()
-            Appendable err = (Appendable)options.err ?: new StringBuilder()
+            Appendable out = options.out != null ? (Appendable)options.out : new StringBuilder()
+            Appendable err = options.err != null ? (Appendable)options.err : new StringBuilder()
             
             // Note: observed issue with hang here on Broad cluster
             // seems to be related to hang inside OS / NFS call. Maybe use forwarder for this?
@@ -1026,7 +1060,8 @@ class Utils {
             Thread outThread = TextDumper.consumeProcessOutputStream(source, p, out)
             Thread errThread = TextDumper.consumeProcessErrorStream(source, p, err)
 
-            log.info "Waiting for process exit: $p (timeout = $options.timeout)"
+            if(!options.quiet)
+                log.info "Waiting for process exit: $p (timeout = $options.timeout)"
 
             if(options.timeout) {
                 long startTimeMs = System.currentTimeMillis()
@@ -1052,19 +1087,16 @@ class Utils {
             outThread.join()
             errThread.join()
 
-            log.info "Process $p exited with code $result.exitValue"
+            if(!options.quiet)
+                log.info "Process $p exited with code $result.exitValue"
             result.err = err
             result.out = out
         }        
-        
-        if(options.throwOnError && result.exitValue != 0 && !result.timedOut) 
-            throw new Exception("Command returned exit code ${result.exitValue}: " + stringified.join(" ") + "\n\nOutput: $result.out\n\nStd Err:\n\n$result.err")
-            
         return result
     }
     
     static Map<String,Boolean> checkProcessesRunning(List<String> pids) {
-        String info = "ps -o ppid,ruser -p ${pids.join(' ')}".execute().text
+        String info = executeCommand((List<Object>)(['ps', '-o', 'ppid,ruser', '-p'] + pids), quiet: true).out.toString()
         Map results = pids.collectEntries { [it, Boolean.FALSE] }
         def lines = info.split("\n")*.trim()
         for(line in lines) {
@@ -1076,7 +1108,7 @@ class Utils {
     
     @CompileStatic
     static boolean isProcessRunning(String pid) {
-        String info = "ps -o ppid,ruser -p ${pid}".execute().text
+        String info = executeCommand((List<Object>)['ps', '-o', 'ppid,ruser', '-p', pid], quiet: true).out.toString()
         def lines = info.split("\n")*.trim()
         if(lines.size()>1)  {
             info = lines[1].split(" ")[1]; 
@@ -156,6 +156,15 @@ abstract class Agent extends TimerTask {
     
     @CompileStatic
     AgentCommandRunner processCommand(Map<String,Object> commandAttributes, Closure onRun = null) {
+        return processCommand(commandAttributes, false, onRun)
+    }
+    
+    /**
+     * @param permitHeld    if true, the caller has already acquired a concurrency permit for
+     *                      this command, and ownership of it passes to the runner
+     */
+    @CompileStatic
+    AgentCommandRunner processCommand(Map<String,Object> commandAttributes, boolean permitHeld, Closure onRun) {
         try {
             ++this.executed
             BpipeCommand command = createCommandFromAttributes(commandAttributes)
@@ -169,6 +178,7 @@ abstract class Agent extends TimerTask {
             validateCommand(command)
             AgentCommandRunner runner = new AgentCommandRunner(createConnection(), (Long)commandAttributes.id, command, outputMode, onRun)
             runner.concurrency = this.concurrency
+            runner.permitHeld = permitHeld
             runner.environment = this.environment
             new Thread(runner).start()
             return runner
@@ -177,6 +187,7 @@ abstract class Agent extends TimerTask {
             // report the error upstream if we can
             AgentCommandRunner runner = new AgentCommandRunner(createConnection(), (Long)commandAttributes.id, e, outputMode, onRun)
             runner.concurrency = this.concurrency
+            runner.permitHeld = permitHeld
             runner.environment = this.environment
             ++this.errors
             new Thread(runner).start() 
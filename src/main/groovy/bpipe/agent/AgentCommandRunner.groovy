@@ -2,6 +2,7 @@ package bpipe.agent
 
 import java.nio.channels.FileLock
 import java.nio.channels.OverlappingFileLockException
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Semaphore
 
 import java.util.logging.Logger
@@ -40,6 +41,12 @@ class AgentCommandRunner implements Runnable {
     
     Semaphore concurrency
     
+    /**
+     * If true, the permit for this command was already acquired by the agent when it
+     * accepted the command, and is only released by this runner
+     */
+    boolean permitHeld = false
+    
     AgentCommandCompletionListener completionListener
     
     String outputMode = 'both'
@@ -50,6 +57,8 @@ class AgentCommandRunner implements Runnable {
     
     String environment = null
     
+    private final CountDownLatch finished = new CountDownLatch(1)
+    
     /**
      * When waiting for acquisition of a lock, this object will be notified to interrupt
      */
@@ -87,7 +96,7 @@ class AgentCommandRunner implements Runnable {
         
         runState = 1
         
-        if(concurrency != null) {
+        if(concurrency != null && !permitHeld) {
             concurrency.acquire()
             log.info "Gained concurrency permit (${concurrency.availablePermits()} remaining) to run command $worxCommandId"
         }
@@ -131,10 +140,8 @@ class AgentCommandRunner implements Runnable {
 
                     if(command instanceof RunPipelineCommand || command instanceof ClosurePipelineCommand) {
                         
-                        RunPipelineCommand rpc = (RunPipelineCommand)command
-                        
-                        if(this.environment != null && !rpc.args.contains("--env")) {
-                            rpc.args = (List<String>)["--env", this.environment, *rpc.args]
+                        if(this.environment != null && !command.args.contains("--env") && command instanceof RunPipelineCommand) {
+                            command.args = (List<String>)["--env", this.environment, *command.args]
                         }
                         
                         command.out = out
@@ -198,18 +205,30 @@ class AgentCommandRunner implements Runnable {
                 }
             }
             
-            if(this.completionListener != null) {
-                log.info "Completion listener set: sending completion notification for command $worxCommandId with exit code $exitCode"
-                this.completionListener.onFinish([
-                    command: worxCommandId,
-                    status: exitCode == 0 ? "ok" : "failed"
-                ])
+            try {
+                if(this.completionListener != null) {
+                    log.info "Completion listener set: sending completion notification for command $worxCommandId with exit code $exitCode"
+                    this.completionListener.onFinish([
+                        command: worxCommandId,
+                        status: exitCode == 0 ? "ok" : "failed"
+                    ])
+                }
+                else {
+                    log.info "Command $worxCommandId completed with exit code $exitCode (no completion listener set)"
+                }
             }
-            else {
-                log.info "Command $worxCommandId completed with exit code $exitCode (no completion listener set)"
+            finally {
+                finished.countDown()
             }
         }
     }
+    
+    /**
+     * Block until this runner has finished and released its concurrency permit
+     */
+    void awaitCompletion() {
+        finished.await()
+    }
 
     /**
      * Look for a run.pid file from a running pipeline. If one is found, 
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.agent
+
+import groovy.transform.CompileStatic
+
+/**
+ * Statistics about how long commands received by an agent wait before they are started.
+ * <p>
+ * The dispatch latency of a command is the time from when the agent received its message
+ * until the command was handed to a runner, which includes any time spent waiting for a
+ * concurrency permit.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class AgentDispatchMetrics {
+    
+    /**
+     * Number of recent latencies retained for percentiles
+     */
+    final static int WINDOW = 200
+    
+    private long dispatched = 0
+    
+    private long totalLatencyMs = 0
+    
+    private long maxLatencyMs = 0
+    
+    private final long [] recent = new long[WINDOW]
+    
+    synchronized void recordDispatch(long latencyMs) {
+        recent[(int)(dispatched % WINDOW)] = latencyMs
+        ++dispatched
+        totalLatencyMs += latencyMs
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs)
+    }
+    
+    synchronized long getDispatched() {
+        return dispatched
+    }
+    
+    /**
+     * @param queueDepth    messages received by the agent and waiting to be started
+     * @param permitsAvailable  free concurrency permits, or null if concurrency is not limited
+     */
+    synchronized Map<String,Object> toMap(int queueDepth, Integer permitsAvailable) {
+        long [] window = Arrays.copyOf(recent, (int)Math.min(dispatched, (long)WINDOW))
+        Arrays.sort(window)
+        return [
+            queueDepth: queueDepth,
+            permitsAvailable: permitsAvailable,
+            dispatched: dispatched,
+            meanLatencyMs: dispatched ? totalLatencyMs.intdiv(dispatched) : 0L,
+            medianLatencyMs: window.length ? window[window.length.intdiv(2)] : 0L,
+            p90LatencyMs: window.length ? window[(int)((window.length-1) * 0.9d)] : 0L,
+            maxLatencyMs: maxLatencyMs
+        ] as Map<String,Object>
+    }
+}
@@ -15,7 +15,10 @@ import groovy.json.JsonOutput
 import groovy.json.JsonSlurper
 import groovy.transform.CompileStatic
 import groovy.util.logging.Log
+import java.util.concurrent.TimeUnit
 import java.util.logging.Logger
+
+import bpipe.agent.MessagePrefetcher.ReceivedMessage
 import javax.jms.BytesMessage
 import javax.jms.Connection
 import javax.jms.Destination
@@ -49,6 +52,12 @@ class JMSAgent extends Agent {
     
     Session session
     
+    /**
+     * Session used only by the prefetch thread to receive messages, since a session
+     * may not be used by more than one thread at a time
+     */
+    Session prefetchSession
+    
     Connection connection
     
     MessageConsumer consumer
@@ -61,10 +70,41 @@ class JMSAgent extends Agent {
      */
     String acknowledgeMode
     
+    /**
+     * Number of messages the agent may receive ahead of having a concurrency permit to
+     * run them. Zero means a message is only received once a permit is available.
+     */
+    int prefetch = 0
+    
+    /**
+     * Receives messages in the background when prefetch is enabled
+     */
+    MessagePrefetcher prefetcher
+    
+    /**
+     * Whether a received message is currently waiting for a concurrency permit
+     */
+    volatile boolean awaitingPermit = false
+    
+    /**
+     * Whether the receive loop holds a concurrency permit while it waits for a message
+     */
+    volatile boolean permitIdle = false
+    
+    final AgentDispatchMetrics metrics = new AgentDispatchMetrics()
+    
     JMSAgent(ConfigObject config) {
         super(config)
         this.config = config
         this.acknowledgeMode = config.getOrDefault('acknowledgeMode', 'run')
+        this.prefetch = (config.getOrDefault('prefetch', 0) as Integer)
+        
+        // Prefetched messages must be acknowledged one by one as their commands start: in 
+        // acknowledge mode 'read' they are acknowledged on receipt, and with client 
+        // acknowledgement (SQS) acknowledging one message acknowledges every other message
+        // received before it, including ones still waiting to run
+        if(prefetch > 0 && (acknowledgeMode != 'run' || config.getOrDefault('type', 'activemq') != 'activemq'))
+            throw new PipelineError("Agent setting 'prefetch' is only supported for ActiveMQ queues with acknowledgeMode 'run'")
     }
     
     /**
@@ -74,7 +114,8 @@ class JMSAgent extends Agent {
         
         this.log = Logger.getLogger('JMSAgent:' + name)
 
-        log.info "Acknowledge mode is $acknowledgeMode"
+        log.info "Acknowledge mode is $acknowledgeMode, prefetch is $prefetch"
+
         while(true) {
             try {
                 connect()
@@ -85,15 +126,23 @@ class JMSAgent extends Agent {
             }
             catch(Exception e) {
                 log.severe("Failure in message connect/receive loop: " + e.message)
-                bpipe.Utils.closeQuietly(connection)
-                connection = null
+                disconnect()
                 Thread.sleep(15000)
             }
         }
         
+        disconnect()
         System.exit(0)
     }
     
+    void disconnect() {
+        prefetcher?.stop()
+        prefetcher = null
+        bpipe.Utils.closeQuietly(connection)
+        connection = null
+        prefetchSession = null
+    }
+    
     /**
      * Return true if the agent has been requested to stop via various
      * possible means.
@@ -130,14 +179,55 @@ class JMSAgent extends Agent {
         // Although the default behavior ensures that no more than the allowed 
         // number of commands run at the same time, we don't want our agent to 
         // gobble up the queued commands if it is sharing the queue.
-        // So we don't request another message until we know there is a permit
-        // available
-        waitForPermits()
+        // So unless prefetch is enabled, we don't request another message until 
+        // we hold a permit to run it
+        boolean permitHeld = false
+        if(prefetcher == null) {
+            if(!acquirePermit())
+                return
+            permitHeld = concurrency != null
+        }
+        
+        try {
+            permitIdle = permitHeld
+            ReceivedMessage received = receiveMessage()
+            permitIdle = false
+            if(received == null) // timed out
+                return
             
+            if(processMessage(received, permitHeld))
+                permitHeld = false
+        }
+        finally {
+            permitIdle = false
+            if(permitHeld)
+                concurrency.release()
+        }
+    }
+    
+    /**
+     * Read the next message, either from the prefetched messages or directly from the broker
+     */
+    ReceivedMessage receiveMessage() {
+        if(prefetcher != null)
+            return prefetcher.poll(MESSAGE_WAIT_TIMEOUT_MS)
+
         log.info "Waiting for next message ..."
         Message message = this.consumer.receive(MESSAGE_WAIT_TIMEOUT_MS)
-        if(message == null) // timed out
-            return
+        if(message == null)
+            return null
+        return new ReceivedMessage(message: message, receivedAt: System.currentTimeMillis())
+    }
+    
+    /**
+     * Handle a received message, starting a command for it if it is a command request
+     * 
+     * @param permitHeld    true if a concurrency permit was already acquired for the message
+     * @return  true if ownership of the permit passed to a command runner
+     */
+    boolean processMessage(ReceivedMessage received, boolean permitHeld) {
+        
+        Message message = received.message
         
         String text
         if(message instanceof TextMessage)
@@ -157,13 +247,13 @@ class JMSAgent extends Agent {
         if(text == "stop") {
             this.stopRequested = true
             acknowledgeRun(message)
-            return
+            return false
         }
         
         if(text.trim() == "ping") {
             this.respondToPing(message)
             acknowledgeRun(message)
-            return
+            return false
         }            
         
         String replyToValue = getMessageReplyTo(message)
@@ -174,21 +264,38 @@ class JMSAgent extends Agent {
         }
         catch(Exception e) {
             handleBadCommandMessage(e, message)
-            return
+            return false
         }
         
         if(config.containsKey('transform')) {
             commandAttributes = ((Closure)config.transform)(commandAttributes)
         }
         
-        log.info "Processing command: " + commandAttributes
+        // The message stays unacknowledged until the command starts, so if the agent
+        // stops while waiting here it is redelivered
+        if(!permitHeld) {
+            awaitingPermit = true
+            try {
+                while(!acquirePermit()) {
+                    if(checkStop())
+                        return false
+                }
+            }
+            finally {
+                awaitingPermit = false
+            }
+        }
+        
+        long latencyMs = System.currentTimeMillis() - received.receivedAt
+        metrics.recordDispatch(latencyMs)
+        log.info "Processing command after waiting ${latencyMs}ms (${queueDepth} waiting): " + commandAttributes
 
         // Declare runner before the closure so the closure can capture it by reference.
         // The closure runs on the runner thread, which is only scheduled after processCommand
         // returns and runner is assigned, so runner is guaranteed to be non-null when the
         // closure executes.
         AgentCommandRunner runner
-        runner = this.processCommand(commandAttributes) {
+        runner = this.processCommand(commandAttributes, concurrency != null) {
             // This onRun callback executes on the runner thread, before command.run() is called.
             // Reply setup (setupHookReply / setupDirectReply) MUST happen here rather than after
             // processCommand returns, because setupHookReply sets command.onDirectoryConfigured,
@@ -216,10 +323,9 @@ class JMSAgent extends Agent {
             log.info "Single shot command running : stop flag set and waiting for command completion"
             
             // Wait for current command to finish before exiting
-            while(runner.runState <2) {
-                Thread.sleep(3000)
-            }
+            runner?.awaitCompletion()
         }
+        return true
     }
 
     private void handleBadCommandMessage(Exception e, Message message) {
@@ -437,27 +543,47 @@ class JMSAgent extends Agent {
                     user: System.properties['user.name'],
                     dir: System.properties['user.dir'],
                     executed: executed,
-                    errors: errors
+                    errors: errors,
+                    dispatch: metrics.toMap(queueDepth, permitsAvailable)
                 ]
             ]
         ])) 
     }
     
-    void waitForPermits() {
+    /**
+     * @return the number of received commands waiting to be started
+     */
+    int getQueueDepth() {
+        return (prefetcher != null ? prefetcher.size() : 0) + (awaitingPermit ? 1 : 0)
+    }
+    
+    /**
+     * @return the number of commands that could be started now, counting the permit held 
+     *         by an idle receive loop as free, or null if concurrency is not limited
+     */
+    Integer getPermitsAvailable() {
+        if(concurrency == null)
+            return null
+        return concurrency.availablePermits() + (permitIdle ? 1 : 0)
+    }
+    
+    /**
+     * Wait for a concurrency permit. Permits are released by command runners as soon as
+     * their command completes, which wakes this immediately.
+     * 
+     * @return  true if a permit was acquired, false if none became available in 
+     *          {@link #MESSAGE_WAIT_TIMEOUT_MS}
+     */
+    boolean acquirePermit() {
         
         if(concurrency == null)
-            return
+            return true
             
-        int n = 0
-        long totalWaitedMs = 0
-        final long permitCheckWaitMs = 2000
-        while(concurrency.availablePermits()==0) {
-            Thread.sleep(permitCheckWaitMs)
-            totalWaitedMs+=permitCheckWaitMs
-            if(n++ % 5 == 0) {
-                log.info "Blocked waiting for $totalWaitedMs for current commands to complete ..."
-            }
-        }
+        if(concurrency.tryAcquire())
+            return true
+            
+        log.info "Blocked waiting for current commands to complete ($queueDepth waiting) ..."
+        return concurrency.tryAcquire(MESSAGE_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
     }
     
     void connect() {
@@ -489,14 +615,29 @@ class JMSAgent extends Agent {
         this.session = connection.createSession(false,
              acknowledgeMode == 'read' ? Session.AUTO_ACKNOWLEDGE  : (type == 'activemq' ? ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE : Session.CLIENT_ACKNOWLEDGE))
 
-        this.queue = session.createQueue((String)config.commandQueue)
+        String queueName = (String)config.commandQueue
+        Session consumerSession = session
+        if(prefetch > 0) {
+            // The agent holds prefetched messages itself, so stop the client library 
+            // also buffering messages for this consumer
+            queueName += '?consumer.prefetchSize=0'
+            
+            // The prefetch thread receives while this thread sends replies on the main session
+            this.prefetchSession = connection.createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE)
+            consumerSession = prefetchSession
+        }
+        this.queue = consumerSession.createQueue(queueName)
 
         if (config.containsKey('messageSelector')) {
             log.info("Creating consumer for queue=${queue.queueName} with messageSelector=${config.messageSelector}")
-            this.consumer = session.createConsumer(queue, (String)config.messageSelector)
+            this.consumer = consumerSession.createConsumer(queue, (String)config.messageSelector)
         } else {
             log.info("Creating consumer for queue=${queue.queueName}")
-            this.consumer = session.createConsumer(queue)
+            this.consumer = consumerSession.createConsumer(queue)
+        }
+
+        if(prefetch > 0) {
+            this.prefetcher = new MessagePrefetcher(consumer, prefetch).start()
         }
 
         log.info "Connected to queue $config.commandQueue @ $config.brokerURL"
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.agent
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.logging.Logger
+
+import groovy.transform.CompileStatic
+import javax.jms.JMSException
+import javax.jms.Message
+import javax.jms.MessageConsumer
+
+/**
+ * Receives messages from a consumer in the background and holds up to a fixed number of
+ * them locally, so that the agent can start a command the moment a concurrency permit
+ * becomes available instead of first waiting for the broker.
+ * <p>
+ * Messages are only received, never acknowledged, here. The consumer must belong to a
+ * session that is used by no other thread and that acknowledges messages individually, so
+ * that acknowledging a message when its command starts does not also acknowledge messages
+ * still held. Held messages return to the queue once the agent closes its connection, or
+ * the broker notices that the connection was lost.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class MessagePrefetcher implements Runnable {
+    
+    private static Logger log = Logger.getLogger('MessagePrefetcher')
+    
+    /**
+     * How long each receive call blocks before the stop flag is checked again
+     */
+    final static long RECEIVE_TIMEOUT_MS = 1000
+    
+    static class ReceivedMessage {
+        
+        Message message
+        
+        /**
+         * Time at which the agent received the message from the broker
+         */
+        long receivedAt
+    }
+    
+    final MessageConsumer consumer
+    
+    final int capacity
+    
+    /**
+     * One permit for each message that may be held but has not yet been handed out
+     */
+    private final Semaphore slots
+    
+    private final LinkedBlockingQueue<ReceivedMessage> messages = new LinkedBlockingQueue<ReceivedMessage>()
+    
+    private volatile boolean stopped = false
+    
+    private volatile Exception failure = null
+    
+    private Thread thread
+    
+    MessagePrefetcher(MessageConsumer consumer, int capacity) {
+        this.consumer = consumer
+        this.capacity = capacity
+        this.slots = new Semaphore(capacity)
+    }
+    
+    MessagePrefetcher start() {
+        thread = new Thread(this, 'bpipe-agent-prefetch')
+        thread.daemon = true
+        thread.start()
+        return this
+    }
+    
+    @Override
+    void run() {
+        try {
+            while(!stopped) {
+                if(!slots.tryAcquire(RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    continue
+
+                Message message = null
+                try {
+                    while(message == null && !stopped)
+                        message = consumer.receive(RECEIVE_TIMEOUT_MS)
+                }
+                finally {
+                    if(message == null)
+                        slots.release()
+                }
+
+                if(message != null)
+                    messages.put(new ReceivedMessage(message: message, receivedAt: System.currentTimeMillis()))
+            }
+        }
+        catch(InterruptedException e) {
+            // stopped
+        }
+        catch(Exception e) {
+            if(!stopped) {
+                log.severe "Failed to receive message: $e"
+                failure = e
+            }
+        }
+    }
+    
+    /**
+     * Take the next prefetched message, waiting up to the given time for one to arrive
+     * 
+     * @return the message, or null if none arrived in time
+     * @throws JMSException if the background receive failed, so that the caller reconnects
+     */
+    ReceivedMessage poll(long timeoutMs) {
+        ReceivedMessage received = messages.poll(timeoutMs, TimeUnit.MILLISECONDS)
+        if(received != null) {
+            slots.release()
+            return received
+        }
+        
+        if(failure != null) {
+            JMSException e = new JMSException("Prefetch of messages failed: " + failure.message)
+            e.linkedException = failure
+            throw e
+        }
+        return null
+    }
+    
+    /**
+     * @return the number of messages received but not yet handed out
+     */
+    int size() {
+        return messages.size()
+    }
+    
+    /**
+     * Stop receiving. Messages still held are discarded without being acknowledged.
+     */
+    void stop() {
+        stopped = true
+        thread?.interrupt()
+        messages.clear()
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) Murdoch Childrens Research Institute and Contributers
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice, this
+ * list of conditions and the following disclaimer in the documentation and/or
+ * other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package bpipe.ast
+
+import java.util.regex.Pattern
+
+import org.codehaus.groovy.ast.ClassCodeExpressionTransformer
+import org.codehaus.groovy.ast.ClassHelper
+import org.codehaus.groovy.ast.ClassNode
+import org.codehaus.groovy.ast.DynamicVariable
+import org.codehaus.groovy.ast.expr.ArgumentListExpression
+import org.codehaus.groovy.ast.expr.ArrayExpression
+import org.codehaus.groovy.ast.expr.BinaryExpression
+import org.codehaus.groovy.ast.expr.BooleanExpression
+import org.codehaus.groovy.ast.expr.ClosureExpression
+import org.codehaus.groovy.ast.expr.ConstantExpression
+import org.codehaus.groovy.ast.expr.Expression
+import org.codehaus.groovy.ast.expr.MethodCallExpression
+import org.codehaus.groovy.ast.expr.PostfixExpression
+import org.codehaus.groovy.ast.expr.PrefixExpression
+import org.codehaus.groovy.ast.expr.SpreadExpression
+import org.codehaus.groovy.ast.expr.SpreadMapExpression
+import org.codehaus.groovy.ast.expr.StaticMethodCallExpression
+import org.codehaus.groovy.ast.expr.TernaryExpression
+import org.codehaus.groovy.ast.expr.TupleExpression
+import org.codehaus.groovy.ast.expr.VariableExpression
+import org.codehaus.groovy.classgen.GeneratorContext
+import org.codehaus.groovy.control.CompilationFailedException
+import org.codehaus.groovy.control.CompilePhase
+import org.codehaus.groovy.control.SourceUnit
+import org.codehaus.groovy.control.customizers.CompilationCustomizer
+import org.codehaus.groovy.syntax.Types
+
+import groovy.transform.CompileStatic
+
+/**
+ * Rewrites the most common DSL calls and properties inside pipeline stages so that they 
+ * are forwarded straight to the {@link bpipe.PipelineDelegate} of the stage.
+ * <p>
+ * Without this, a call such as <code>exec "..."</code> or a reference to <code>$input</code> 
+ * inside a stage is first tried against the script, whose binding throws an exception for 
+ * it, and then forwarded to the <code>methodMissing</code> or <code>propertyMissing</code>
+ * method of the delegate through Groovy's dynamic dispatch. Inside closures in a pipeline
+ * script, this transformation replaces such a call with:
+ * <pre>
+ * PipelineDelegate.isDslTarget(delegate, this, 'exec') ? PipelineDelegate.invokeDsl(delegate, this, 'exec', [args] as Object[]) : exec(args)
+ * </pre>
+ * The check is cheap, and fails whenever the original call might have been resolved 
+ * somewhere other than the pipeline delegate (for example, a variable of the same name in 
+ * the binding), in which case the original call is made. Calls are not rewritten if the 
+ * script itself declares a method or property of the same name.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class DslCallTransformation extends CompilationCustomizer {
+    
+    /**
+     * DSL functions that are forwarded directly to the pipeline delegate
+     */
+    final static Set<String> METHODS = ['exec', 'produce', 'transform', 'filter', 'preserve', 'from', 'multi', 'forward'] as Set
+    
+    /**
+     * DSL properties that are forwarded directly to the pipeline delegate
+     */
+    final static Set<String> PROPERTIES = ['input', 'inputs', 'output', 'outputs', 'branch'] as Set
+    
+    final static Pattern NUMBERED_PROPERTY = ~'(input|output)[0-9]{1,}'
+    
+    final static ClassNode PIPELINE_DELEGATE = ClassHelper.make('bpipe.PipelineDelegate')
+    
+    DslCallTransformation() {
+        super(CompilePhase.CANONICALIZATION)
+    }
+    
+    @Override
+    void call(SourceUnit source, GeneratorContext context, ClassNode classNode) throws CompilationFailedException {
+        // Stages are only declared in the pipeline scripts themselves
+        if(classNode.isScript())
+            new Rewriter(sourceUnit: source, script: classNode).visitClass(classNode)
+    }
+    
+    static class Rewriter extends ClassCodeExpressionTransformer {
+        
+        SourceUnit sourceUnit
+        
+        ClassNode script
+        
+        int closureDepth = 0
+        
+        @Override
+        Expression transform(Expression expr) {
+            if(expr == null)
+                return null
+                
+            if(expr instanceof ClosureExpression) {
+                ++closureDepth
+                try {
+                    ((ClosureExpression)expr).code?.visit(this)
+                }
+                finally {
+                    --closureDepth
+                }
+                return expr
+            }
+            
+            // Never rewrite a variable that is assigned to
+            if(expr instanceof BinaryExpression && Types.ofType(((BinaryExpression)expr).operation.type, Types.ASSIGNMENT_OPERATOR)) {
+                BinaryExpression assignment = (BinaryExpression)expr
+                if(!(assignment.leftExpression instanceof VariableExpression))
+                    assignment.leftExpression = transform(assignment.leftExpression)
+                assignment.rightExpression = transform(assignment.rightExpression)
+                return assignment
+            }
+            
+            if((expr instanceof PostfixExpression && ((PostfixExpression)expr).expression instanceof VariableExpression) ||
+               (expr instanceof PrefixExpression && ((PrefixExpression)expr).expression instanceof VariableExpression))
+                return expr
+            
+            Expression result = expr.transformExpression(this)
+            if(closureDepth == 0)
+                return result
+            
+            if(result instanceof MethodCallExpression)
+                return rewriteCall((MethodCallExpression)result)
+            
+            if(result instanceof VariableExpression)
+                return rewriteProperty((VariableExpression)result)
+                
+            return result
+        }
+        
+        Expression rewriteCall(MethodCallExpression call) {
+            String name = call.methodAsString
+            if(!call.isImplicitThis() || !(name in METHODS) || declaredByScript(name))
+                return call
+                
+            if(!(call.arguments instanceof TupleExpression))
+                return call
+                
+            List<Expression> args = ((TupleExpression)call.arguments).expressions
+            if(args.any { it instanceof SpreadExpression || it instanceof SpreadMapExpression })
+                return call
+            
+            Expression direct = new StaticMethodCallExpression(PIPELINE_DELEGATE, 'invokeDsl', 
+                new ArgumentListExpression(delegateReference(call), thisReference(call), new ConstantExpression(name), 
+                    new ArrayExpression(ClassHelper.OBJECT_TYPE, args)))
+            
+            return guard(name, direct, call)
+        }
+        
+        Expression rewriteProperty(VariableExpression variable) {
+            String name = variable.name
+            if(!(variable.accessedVariable instanceof DynamicVariable))
+                return variable
+                
+            if(!(name in PROPERTIES) && !NUMBERED_PROPERTY.matcher(name).matches())
+                return variable
+                
+            if(declaredByScript(name))
+                return variable
+                
+            Expression direct = new StaticMethodCallExpression(PIPELINE_DELEGATE, 'getDslProperty',
+                new ArgumentListExpression(delegateReference(variable), thisReference(variable), new ConstantExpression(name)))
+            
+            return guard(name, direct, variable)
+        }
+        
+        /**
+         * @return  an expression that evaluates <code>direct</code> if the DSL call can go 
+         *          directly to a pipeline delegate, and <code>original</code> otherwise
+         */
+        Expression guard(String name, Expression direct, Expression original) {
+            StaticMethodCallExpression check = new StaticMethodCallExpression(PIPELINE_DELEGATE, 'isDslTarget', 
+                new ArgumentListExpression(delegateReference(original), thisReference(original), new ConstantExpression(name)))
+            
+            TernaryExpression result = new TernaryExpression(new BooleanExpression(check), direct, original)
+            for(Expression e in [check, direct, result])
+                e.setSourcePosition(original)
+            return result
+        }
+        
+        /**
+         * The delegate of the closure that the expression is in
+         */
+        VariableExpression delegateReference(Expression at) {
+            VariableExpression result = new VariableExpression('delegate')
+            result.accessedVariable = new DynamicVariable('delegate', false)
+            result.setSourcePosition(at)
+            return result
+        }
+        
+        /**
+         * The script that the closure that the expression is in belongs to
+         */
+        VariableExpression thisReference(Expression at) {
+            VariableExpression result = new VariableExpression('this')
+            result.setSourcePosition(at)
+            return result
+        }
+        
+        /**
+         * @return  true if the script or its base class declares a method or property with 
+         *          the given name, which would be found before the pipeline delegate
+         */
+        boolean declaredByScript(String name) {
+            String getter = 'get' + name.capitalize()
+            for(ClassNode cls = script; cls != null && cls.name != 'groovy.lang.Script'; cls = cls.superClass) {
+                if(cls.getMethods(name) || cls.getMethods(getter) || cls.getField(name) != null || cls.getProperty(name) != null)
+                    return true
+            }
+            return false
+        }
+    }
+}
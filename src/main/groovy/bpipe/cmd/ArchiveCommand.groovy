@@ -28,40 +28,43 @@ import java.io.Writer;
 import java.nio.file.Path
 import java.util.List
 import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
+import java.util.zip.ZipInputStream
 
-import javax.swing.colorchooser.CenterLayout
-
-import org.apache.ivy.util.FileUtil
-
-import bpipe.CommandManager;
-import bpipe.Config
-import bpipe.ExecutorFactory
-import bpipe.ExecutorPool
-import bpipe.PooledExecutor
-import bpipe.Runner
-import bpipe.Utils
 import groovy.io.FileType
 import groovy.transform.CompileStatic;
 import groovy.util.logging.Log;
 
 /**
- * Clean up all the temporary files and commands generated by the pipeline into an archive zip file
+ * Clean up all the temporary files and commands generated by the pipeline into an archive file.
+ * <p>
+ * The default format is a zip file whose entries are compressed in parallel by
+ * {@link ParallelZipWriter}. The many small files in <code>.bpipe/outputs</code> are stored
+ * as a single tar file entry. Alternatively, a <code>tar.zst</code> archive can be written
+ * by piping a tar stream through the <code>zstd</code> tool, which is faster for large runs.
+ * <p>
+ * When files are to be deleted, they are only deleted once the archive has been closed
+ * and read back successfully, so that a failed archive never loses any files.
  *   
  * @author Simon Sadedin
  */
 @Log
 class ArchiveCommand extends BpipeCommand {
     
+    final static List<String> FORMATS = ['zip', 'tar.zst']
+
+    final static String OUTPUTS_BUNDLE = '.bpipe/outputs.tar'
+
     public ArchiveCommand(List<String> args) {
         super("archive", args);
     }
 
     @Override
     public void run(Writer out) {
-        parse('archive <zip file>') {
+        parse('archive [-f zip|tar.zst] <archive file>') {
             d 'Remove archived files', longOpt:'delete'
             dir 'Directory of Bpipe run to archive', longOpt:'dir', args:1, required: false, type: File
+            f 'Format of archive: zip (default) or tar.zst', longOpt:'format', args:1, required: false
+            t 'Number of threads to use for compression (default: number of processors)', longOpt:'threads', args:1, required: false
         }
         
         String dir = (opts.dir ?: new File('.')).absolutePath
@@ -70,14 +73,18 @@ class ArchiveCommand extends BpipeCommand {
         if(!zipPath)
             throw new IllegalArgumentException("Please provide the path to a zip file to archive into")
         
-        if(!zipPath.endsWith('.zip')) {
+        String format = opts.f ?: FORMATS.find { zipPath.endsWith('.' + it) } ?: 'zip'
+        if(!(format in FORMATS))
+            throw new IllegalArgumentException("Unknown archive format $format: please use one of " + FORMATS.join(', '))
+
+        if(!FORMATS.any { zipPath.endsWith('.' + it) }) {
             new File(zipPath).mkdirs()
-            zipPath = computeZipPath(zipPath)
+            zipPath = computeZipPath(zipPath, format)
             println "MSG: Archiving to computed file path ${zipPath}"
         }
 
-        if(!zipPath.endsWith('.zip')) 
-            throw new IllegalArgumentException("The archive file name should end with .zip")
+        if(!zipPath.endsWith('.' + format)) 
+            throw new IllegalArgumentException("The archive file name should end with .$format")
 
         if(!new File(dir, '.bpipe').exists() || !new File(dir,'commandlog.txt').exists()) 
             throw new IllegalArgumentException("Could not find a .bpipe folder or commandlog.txt in  directory $dir - already archived or not a bpipe folder?")
@@ -85,20 +92,24 @@ class ArchiveCommand extends BpipeCommand {
         if(new File(zipPath).exists()) 
             throw new IllegalArgumentException("The path $zipPath already exists. Please provide a new path or delete the existing archive zip")
 
-        List archivedFiles 
-        new File(zipPath).withOutputStream { 
-            archivedFiles = createArchiveZip(dir, new ZipOutputStream(it))
-        }
+        int threads = opts.t ? ((String)opts.t).toInteger() : Runtime.runtime.availableProcessors()
+
+        File archiveFile = new File(zipPath)
+        List<File> archived = []
+        ArchiveStats stats 
+        if(format == 'zip')
+            stats = createArchiveZip(dir, archiveFile, threads, archived)
+        else
+            stats = createArchiveTarZst(dir, archiveFile, threads, archived)
         
-        out.println "MSG: Archived ${archivedFiles.size()} files"
-        List<File> dirs = []
+        out.println "MSG: Archived $stats"
+
         if(opts.d) {
-            for(File f in archivedFiles) {
-                if(!f.delete()) {
-                    out.println "WARNING: could not delete $f"
-                }
-                if(f.parentFile)
-                    dirs << f.parentFile
+            verifyArchive(archiveFile, format, stats)
+
+            for(File f in archived) {
+                if(!f.delete())
+                    out.println "WARNING: could not delete $f.path"
             }
             
             System.addShutdownHook { 
@@ -110,33 +121,145 @@ class ArchiveCommand extends BpipeCommand {
     }
     
     /**
-     * Archive the local bpipe commands into the given archive file and return
-     * the list of archived files
-     * @param zos
-     * @return
+     * Archive the local bpipe commands into the given zip file. The files in 
+     * <code>.bpipe/outputs</code> are bundled into a single uncompressed tar file 
+     * which is then added to the zip as one entry.
+     * 
+     * @param archived  files written to the archive are added to this list
+     * @return  statistics about the archive written
      */
     @CompileStatic
-    List<File> createArchiveZip(String dir, ZipOutputStream zos) {
-        List<File> toDelete = []
+    ArchiveStats createArchiveZip(String dir, File zipFile, int threads, List<File> archived) {
+        
         Path basePath = new File(dir).toPath()
-        new File(dir, '.bpipe').eachFileRecurse(FileType.FILES) { File f ->
-            String zipPath = basePath.relativize(f.toPath()).toString()
-            zos.putNextEntry(new ZipEntry(zipPath))
-            f.withInputStream { zos << it }
-            zos.closeEntry()
-            toDelete << f
+        File outputsDir = new File(dir, '.bpipe/outputs')
+        List<File> outputFiles = []
+        
+        File bundle = null
+        if(outputsDir.exists()) {
+            bundle = new File(new File(dir, '.bpipe'), 'outputs.tar.tmp')
+            new TarWriter(new BufferedOutputStream(new FileOutputStream(bundle), 1024*1024)).withCloseable { TarWriter tar ->
+                outputsDir.eachFileRecurse(FileType.FILES) { File f ->
+                    tar.add(basePath.relativize(f.toPath()).toString(), f)
+                    outputFiles << f
+                }
+            }
+        }
+
+        ParallelZipWriter zip = new ParallelZipWriter(zipFile, threads)
+        zip.onWritten = { String name, File f ->
+            if(f.is(bundle))
+                archived.addAll(outputFiles)
+            else
+                archived << f
         }
 
+        try {
+            if(bundle != null)
+                zip.add(OUTPUTS_BUNDLE, bundle)
+            
+            new File(dir, '.bpipe').eachFileRecurse(FileType.FILES) { File f ->
+                if(f == bundle || f.toPath().startsWith(outputsDir.toPath()))
+                    return
+                zip.add(basePath.relativize(f.toPath()).toString(), f)
+            }
 
-        File commandlog = new File(dir,"commandlog.txt")
-        zos.putNextEntry(new ZipEntry(basePath.relativize(commandlog.toPath()).toString()))
-        zos.write(commandlog.readBytes())
-        zos.close()
-        toDelete << commandlog
+            File commandlog = new File(dir,"commandlog.txt")
+            zip.add(basePath.relativize(commandlog.toPath()).toString(), commandlog)
+            
+            return zip.finish()
+        }
+        finally {
+            zip.close()
+            bundle?.delete()
+        }
+    }
+    
+    /**
+     * Archive the local bpipe commands as a tar stream compressed by the
+     * <code>zstd</code> tool, which must be available on the path.
+     */
+    @CompileStatic
+    ArchiveStats createArchiveTarZst(String dir, File archiveFile, int threads, List<File> archived) {
+        
+        long startTimeMs = System.currentTimeMillis()
+        Path basePath = new File(dir).toPath()
+        
+        Process zstd 
+        try {
+            zstd = new ProcessBuilder('zstd', '-q', '-T' + threads, '-o', archiveFile.absolutePath)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start()
+        }
+        catch(IOException e) {
+            throw new IllegalArgumentException("Unable to run zstd (${e.message}): please ensure zstd is installed or use the zip format")
+        }
+        
+        ArchiveStats stats = new ArchiveStats()
+        TarWriter tar = new TarWriter(new BufferedOutputStream(zstd.outputStream, 1024*1024))
+        try {
+            Closure addFile = { File f ->
+                tar.add(basePath.relativize(f.toPath()).toString(), f)
+                archived << f
+                ++stats.files
+            }
+            new File(dir, '.bpipe').eachFileRecurse(FileType.FILES, addFile)
+            addFile(new File(dir,"commandlog.txt"))
+        }
+        finally {
+            tar.close()
+        }
+        
+        int exitCode = zstd.waitFor()
+        if(exitCode != 0)
+            throw new IllegalStateException("zstd failed with exit code $exitCode while writing $archiveFile")
+        
+        stats.inputBytes = tar.contentBytes
+        stats.outputBytes = archiveFile.length()
+        stats.elapsedMs = System.currentTimeMillis() - startTimeMs
+        return stats
+    }
+    
+    /**
+     * Read back a completed archive, checking that it holds the expected number of
+     * entries and that their content is intact.
+     * 
+     * @throws IllegalStateException if the archive is incomplete or corrupt
+     */
+    @CompileStatic
+    void verifyArchive(File archiveFile, String format, ArchiveStats stats) {
+        if(format == 'zip') {
+            int entries = 0
+            byte [] buffer = new byte[64*1024]
+            try {
+                new ZipInputStream(new BufferedInputStream(new FileInputStream(archiveFile), 1024*1024)).withCloseable { ZipInputStream zip ->
+                    ZipEntry entry
+                    while((entry = zip.nextEntry) != null) {
+                        // Reading to the end of each entry checks its CRC
+                        while(zip.read(buffer) >= 0) {}
+                        ++entries
+                    }
+                }
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("Archive $archiveFile could not be read back (${e.message}): no files were deleted", e)
+            }
+            if(entries != stats.files)
+                throw new IllegalStateException("Archive $archiveFile contains $entries entries but $stats.files were written: no files were deleted")
+        }
+        else {
+            Process test = new ProcessBuilder('zstd', '-q', '-t', archiveFile.absolutePath)
+                                .redirectErrorStream(true)
+                                .start()
+            String output = test.inputStream.text
+            int exitCode = test.waitFor()
+            if(exitCode != 0)
+                throw new IllegalStateException("Archive $archiveFile failed zstd integrity check (${output.trim()}): no files were deleted")
+        }
     }
     
-    String computeZipPath(String dir) {
+    String computeZipPath(String dir, String format='zip') {
         Date now = new Date()
-        return new File(dir, "bpipe_archive_" + now.format('YMMdd_HHmmss') + '.zip').path
+        return new File(dir, "bpipe_archive_" + now.format('YMMdd_HHmmss') + '.' + format).path
     }
 }
@@ -11,6 +11,33 @@ import groovy.util.logging.Log;;
 @Log
 abstract class BpipeCommand {
     
+    /**
+     * Thrown in place of exiting the JVM when commands are run by a {@link CommandDaemon}
+     */
+    static class ExitException extends RuntimeException {
+        final int exitCode
+        
+        ExitException(int exitCode) {
+            super("Command exited with code $exitCode")
+            this.exitCode = exitCode
+        }
+    }
+    
+    /**
+     * Set when commands are running inside a resident {@link CommandDaemon}, which must 
+     * not be exited when a command finishes
+     */
+    static volatile boolean resident = false
+    
+    /**
+     * Finish the command with the given exit code: exits the JVM, unless running resident
+     */
+    static void exit(int exitCode) {
+        if(resident)
+            throw new ExitException(exitCode)
+        System.exit(exitCode)
+    }
+    
     String commandLine
     
     List<String> args = []
@@ -55,6 +82,16 @@ abstract class BpipeCommand {
     
     void shellExecute(String exe, String directory) {
         
+        // A daemon running in the directory can execute the command without starting a new JVM
+        if(exe == "bpipe") {
+            Integer exitCode = DaemonClient.execute(new File(directory), commandLine, args, out)
+            if(exitCode != null) {
+                if(exitCode != 0)
+                    throw new Exception("Command $commandLine failed with exit code $exitCode")
+                return
+            }
+        }
+        
         // Write the command to tmp directory
         if(!COMMAND_TMP.exists())
             COMMAND_TMP.mkdirs()
@@ -96,7 +133,7 @@ abstract class BpipeCommand {
         builder()
         opts = cli.parse(args) 
         if(!opts) {
-            System.exit(1)
+            exit(1)
         }
         return opts
     }
@@ -106,7 +143,7 @@ abstract class BpipeCommand {
     OptionAccessor parse() {
         opts = cli.parse(args) 
         if(!opts) {
-            System.exit(1)
+            exit(1)
         }
         return opts
     }
@@ -141,7 +178,7 @@ abstract class BpipeCommand {
                 
                 This may indicate that the Bpipe process was terminated in an unexpected manner, or that the pipeline is still running.
             """
-            System.exit(1)
+            exit(1)
         }
         return resultFile
     }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.cmd
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.SecureRandom
+import java.util.logging.Level
+
+import bpipe.ChecksCommand
+import bpipe.StatusCommand
+import bpipe.agent.NullOutputStream
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A resident process that runs short Bpipe commands (status, jobs, query, checks, stop) 
+ * for the directory it was started in, so that they do not each pay the cost of 
+ * starting a new JVM and loading Bpipe.
+ * <p>
+ * The daemon listens on a loopback port, which it records with a secret token in
+ * <code>.bpipe/daemon.properties</code> (readable only by the user). Each connection
+ * sends a single line: the token, the command and its arguments, separated by tabs.
+ * The daemon replies with a status line, then the output of the command, then a line 
+ * with the exit code of the command:
+ * <pre>
+ * BPIPE-DAEMON OK
+ * ... output ...
+ * BPIPE-DAEMON-EXIT 0
+ * </pre>
+ * If the status is not <code>OK</code> (for example, <code>UNSUPPORTED</code> for a command 
+ * the daemon does not run, such as interactive checks), the caller should run the command 
+ * itself. Both <code>bin/bpipe</code> and {@link DaemonClient} are clients.
+ * <p>
+ * Commands are run one at a time, with System.out redirected to the connection, since 
+ * many commands write there directly.
+ * <p>
+ * Commands resolve their files relative to the working directory of the JVM, which cannot
+ * be changed, so each daemon only serves the directory it was started in.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+class CommandDaemon {
+    
+    static final String STATUS_PREFIX = 'BPIPE-DAEMON '
+    
+    static final String EXIT_PREFIX = 'BPIPE-DAEMON-EXIT '
+    
+    static final String DAEMON_FILE_PATH = '.bpipe/daemon.properties'
+    
+    /**
+     * The commands run by the daemon, created from their arguments
+     */
+    static final Map<String,Closure> COMMANDS = [
+        status:   { List<String> args -> StatusCommand cmd = new StatusCommand(); cmd.args = args; cmd },
+        jobs:     { List<String> args -> new JobsCommand(args) },
+        query:    { List<String> args -> new QueryCommand(args) },
+        checks:   { List<String> args -> new ChecksCommand(args) },
+        override: { List<String> args -> new ChecksCommand(['-o'] + args) },
+        stop:     { List<String> args -> new Stop(args) }
+    ]
+    
+    /**
+     * Port to listen on: 0 to choose any free port
+     */
+    int port = 0
+    
+    /**
+     * Exit after this long without receiving a command
+     */
+    long idleTimeoutMs = 60 * 60 * 1000L
+    
+    File daemonFile = new File(DAEMON_FILE_PATH)
+    
+    String token
+    
+    int served = 0
+    
+    volatile boolean stopRequested = false
+    
+    private ServerSocket server
+    
+    /**
+     * Start the daemon with the given command line arguments, and serve commands
+     * until it is shut down or is idle for too long
+     */
+    static void main(List<String> args) {
+        CliBuilder cli = new CliBuilder(usage: 'bpipe daemon [-t <idle timeout minutes>] [-p <port>]')
+        cli.with {
+            t 'Exit after this many minutes without a command (default: 60)', args: 1
+            p 'Port to listen on (default: any free port)', args: 1
+        }
+        OptionAccessor opts = cli.parse(args)
+        if(!opts)
+            return
+            
+        CommandDaemon daemon = new CommandDaemon()
+        if(opts.t)
+            daemon.idleTimeoutMs = (long)(opts.t.toString().toDouble() * 60 * 1000)
+        if(opts.p)
+            daemon.port = opts.p.toInteger()
+            
+        daemon.start()
+        daemon.serve()
+    }
+    
+    /**
+     * Open the port and advertise it in the daemon file
+     */
+    void start() {
+        BpipeCommand.resident = true
+        
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())
+        server.soTimeout = (int)Math.min(idleTimeoutMs, Integer.MAX_VALUE)
+        
+        byte [] secret = new byte[16]
+        new SecureRandom().nextBytes(secret)
+        token = secret.encodeHex().toString()
+        
+        writeDaemonFile()
+        
+        warmUp()
+        
+        log.info "Bpipe daemon listening on port $server.localPort in ${new File('.').absoluteFile.parentFile}"
+        println "Bpipe daemon listening on port $server.localPort"
+    }
+    
+    /**
+     * Serve commands until shut down or idle for longer than the idle timeout
+     */
+    void serve() {
+        try {
+            while(!stopRequested) {
+                Socket socket
+                try {
+                    socket = server.accept()
+                }
+                catch(SocketTimeoutException e) {
+                    log.info "No commands received in ${idleTimeoutMs}ms: exiting"
+                    break
+                }
+                
+                try {
+                    handle(socket)
+                }
+                catch(Exception e) {
+                    log.log(Level.WARNING, "Failed to handle daemon connection", e)
+                }
+                finally {
+                    socket.close()
+                }
+            }
+        }
+        finally {
+            close()
+        }
+    }
+    
+    void close() {
+        server?.close()
+        
+        // Only remove the file if another daemon has not replaced it
+        if(daemonFile.exists() && daemonFile.text.contains("token=$token"))
+            daemonFile.delete()
+            
+        log.info "Bpipe daemon finished after serving $served commands"
+    }
+    
+    void handle(Socket socket) {
+        
+        socket.soTimeout = 10000
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.inputStream, StandardCharsets.UTF_8))
+        String request = reader.readLine()
+        if(request == null)
+            return
+            
+        LastByteOutputStream socketOut = new LastByteOutputStream(new BufferedOutputStream(socket.outputStream))
+        PrintStream out = new PrintStream(socketOut, true, 'UTF-8')
+        try {
+            List<String> fields = request.split('\t', -1) as List
+            if(fields.size() < 2 || fields[0] != token) {
+                log.warning "Rejected daemon request with invalid token"
+                out.println(STATUS_PREFIX + 'DENIED')
+                return
+            }
+            
+            String command = fields[1]
+            List<String> args = fields.drop(2)
+            
+            if(command == 'ping' || command == 'shutdown') {
+                out.println(STATUS_PREFIX + 'OK')
+                out.println "Bpipe daemon running in ${new File('.').absoluteFile.parentFile} (pid ${ProcessHandle.current().pid()}) has served $served commands"
+                if(command == 'shutdown') {
+                    out.println "Shutting down"
+                    stopRequested = true
+                }
+                out.print(EXIT_PREFIX + '0\n')
+                return
+            }
+            
+            if(!isSupported(command, args)) {
+                log.info "Command $command $args is not supported by daemon"
+                out.println(STATUS_PREFIX + 'UNSUPPORTED')
+                return
+            }
+            
+            out.println(STATUS_PREFIX + 'OK')
+            
+            long startTimeMs = System.currentTimeMillis()
+            int exitCode = runCommand(command, args, out)
+            ++served
+            log.info "Ran command $command $args with exit code $exitCode in ${System.currentTimeMillis() - startTimeMs}ms"
+            
+            if(socketOut.lastByte != ('\n' as char))
+                out.print('\n')
+            out.print(EXIT_PREFIX + exitCode + '\n')
+        }
+        finally {
+            out.flush()
+        }
+    }
+    
+    /**
+     * Commands that run indefinitely or read from the terminal are left to the caller to run
+     */
+    boolean isSupported(String command, List<String> args) {
+        if(!COMMANDS.containsKey(command))
+            return false
+            
+        if(command == 'checks')
+            return args.any { it in ['-l', '-o', '-f', '-h', '--help'] }
+            
+        if(command == 'jobs')
+            return !args.any { it.endsWith('-watch') }
+            
+        return true
+    }
+    
+    /**
+     * Run the given command with its output, and System.out, sent to the given stream
+     * 
+     * @return  the exit code of the command
+     */
+    int runCommand(String command, List<String> args, PrintStream out) {
+        PrintStream oldOut = System.out
+        PrintStream oldErr = System.err
+        System.setOut(out)
+        System.setErr(out)
+        try {
+            BpipeCommand cmd = (BpipeCommand)COMMANDS[command](args)
+            cmd.run(out)
+            return 0
+        }
+        catch(BpipeCommand.ExitException e) {
+            return e.exitCode
+        }
+        catch(Exception e) {
+            log.log(Level.SEVERE, "Command $command $args failed", e)
+            out.println "ERROR: $e"
+            return 1
+        }
+        finally {
+            out.flush()
+            System.setOut(oldOut)
+            System.setErr(oldErr)
+        }
+    }
+    
+    /**
+     * Load and compile the classes used by commands before the first command arrives
+     */
+    void warmUp() {
+        long startTimeMs = System.currentTimeMillis()
+        runCommand('status', [], new PrintStream(new NullOutputStream()))
+        log.info "Warmed up in ${System.currentTimeMillis() - startTimeMs}ms"
+    }
+    
+    private void writeDaemonFile() {
+        daemonFile.parentFile.mkdirs()
+        File tmpFile = new File(daemonFile.parentFile, daemonFile.name + '.tmp')
+        tmpFile.delete()
+        try {
+            Files.createFile(tmpFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString('rw-------')))
+        }
+        catch(UnsupportedOperationException e) {
+            // Not a POSIX file system
+            tmpFile.createNewFile()
+        }
+        tmpFile.text = "port=$server.localPort\ntoken=$token\npid=${ProcessHandle.current().pid()}\n"
+        Files.move(tmpFile.toPath(), daemonFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING)
+    }
+    
+    /**
+     * Remembers the last byte written, so that the exit line can always start on a new line
+     */
+    @CompileStatic
+    static class LastByteOutputStream extends FilterOutputStream {
+        
+        int lastByte = (int)('\n' as char)
+        
+        LastByteOutputStream(OutputStream out) {
+            super(out)
+        }
+        
+        @Override
+        void write(int b) throws IOException {
+            out.write(b)
+            lastByte = b & 0xFF
+        }
+
+        @Override
+        void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len)
+            if(len > 0)
+                lastByte = b[off + len - 1] & 0xFF
+        }
+    }
+}
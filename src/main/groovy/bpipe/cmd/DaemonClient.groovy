@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.cmd
+
+import java.nio.charset.StandardCharsets
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Runs commands in the {@link CommandDaemon} of a directory, if one is running there
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class DaemonClient {
+    
+    static int CONNECT_TIMEOUT_MS = 1000
+    
+    /**
+     * Longest time to wait for each line from the daemon. The daemon runs one command
+     * at a time, so this includes waiting for any command it is already running.
+     */
+    static int READ_TIMEOUT_MS = 30000
+    
+    /**
+     * Run the given command in the daemon for the given directory, writing its output to
+     * <code>out</code>
+     * <p>
+     * If the daemon does not respond within {@link #READ_TIMEOUT_MS}, or the connection fails,
+     * before any output is written, the command is left to the caller to run itself. Once output has been 
+     * written, the command is not run again, and fails instead.
+     * 
+     * @return  the exit code of the command, or null if the command was not run because there
+     *          is no daemon running in the directory, it does not run this command, or it 
+     *          did not respond in time
+     */
+    static Integer execute(File dir, String command, List<String> args, Writer out) {
+        
+        File daemonFile = new File(dir, CommandDaemon.DAEMON_FILE_PATH)
+        if(!daemonFile.exists())
+            return null
+            
+        // The protocol cannot carry these
+        if(([command] + args).any { String arg -> arg.contains('\t') || arg.contains('\n') })
+            return null
+            
+        Properties props = new Properties()
+        try {
+            daemonFile.withInputStream { InputStream i -> props.load(i) }
+        }
+        catch(IOException e) {
+            // The daemon removed the file as it exited
+            return null
+        }
+        
+        Socket socket = new Socket()
+        try {
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), props.getProperty('port').toInteger()), CONNECT_TIMEOUT_MS)
+            }
+            catch(IOException e) {
+                log.info "Unable to connect to daemon in $dir ($e): daemon may no longer be running"
+                return null
+            }
+            
+            socket.soTimeout = READ_TIMEOUT_MS
+            
+            boolean outputWritten = false
+            try {
+                Writer writer = new OutputStreamWriter(socket.outputStream, StandardCharsets.UTF_8)
+                writer.write(([props.getProperty('token'), command] + args).join('\t') + '\n')
+                writer.flush()
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.inputStream, StandardCharsets.UTF_8))
+                String status = reader.readLine()
+                if(status != CommandDaemon.STATUS_PREFIX + 'OK') {
+                    log.info "Daemon in $dir did not run command $command: $status"
+                    return null
+                }
+                
+                String line
+                while((line = reader.readLine()) != null) {
+                    if(line.startsWith(CommandDaemon.EXIT_PREFIX)) {
+                        out.flush()
+                        return line.substring(CommandDaemon.EXIT_PREFIX.size()).trim().toInteger()
+                    }
+                    out.write(line)
+                    out.write('\n')
+                    outputWritten = true
+                }
+            }
+            catch(IOException e) {
+                // Timed out, or the daemon exited or reset the connection
+                String problem = e instanceof SocketTimeoutException ? "did not respond within ${READ_TIMEOUT_MS}ms" : "failed ($e)"
+                if(!outputWritten) {
+                    log.warning "Daemon in $dir $problem: running command $command without daemon"
+                    return null
+                }
+                log.warning "Daemon in $dir $problem during command $command"
+                out.flush()
+                return 1
+            }
+            out.flush()
+            
+            if(!outputWritten) {
+                log.warning "Connection to daemon in $dir closed before command $command wrote any output: running command without daemon"
+                return null
+            }
+            log.warning "Connection to daemon in $dir closed before command $command completed"
+            return 1
+        }
+        finally {
+            socket.close()
+        }
+    }
+}
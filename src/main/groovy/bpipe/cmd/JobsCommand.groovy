@@ -102,7 +102,7 @@ class JobsCommand extends BpipeCommand {
         
         if(opts.h) {
             cli.usage()
-            System.exit(0)
+            exit(0)
         }
     }
 
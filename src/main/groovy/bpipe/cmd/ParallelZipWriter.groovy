@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.cmd
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import java.time.Instant
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * Summary of an archive that was written
+ */
+@CompileStatic
+class ArchiveStats {
+
+    int files
+
+    /**
+     * Total size of the files that were archived
+     */
+    long inputBytes
+
+    /**
+     * Size of the archive
+     */
+    long outputBytes
+
+    long elapsedMs
+
+    String toString() {
+        double inputMB = inputBytes / (1024.0d * 1024.0d)
+        double outputMB = outputBytes / (1024.0d * 1024.0d)
+        double seconds = Math.max(elapsedMs, 1L) / 1000.0d
+        double ratio = outputBytes > 0 ? inputBytes / (double)outputBytes : 0.0d
+        String.format("%d files, %.1f MB -> %.1f MB (compression ratio %.2f) in %.1fs (%.1f MB/s)",
+            files, inputMB, outputMB, ratio, seconds, inputMB / seconds)
+    }
+}
+
+/**
+ * A file that has been deflated, ready to be written to the zip file
+ */
+@CompileStatic
+class DeflatedEntry {
+    byte [] data
+    int length
+    long crc
+    long size
+}
+
+/**
+ * Counts bytes written through to an underlying stream, without closing it
+ */
+@CompileStatic
+class CountingOutputStream extends FilterOutputStream {
+
+    long count = 0L
+
+    CountingOutputStream(OutputStream out) {
+        super(out)
+    }
+
+    @Override
+    void write(byte [] b, int off, int len) {
+        out.write(b, off, len)
+        count += len
+    }
+
+    @Override
+    void write(int b) {
+        out.write(b)
+        ++count
+    }
+
+    @Override
+    void close() {
+        flush()
+    }
+}
+
+/**
+ * Writes a zip file, deflating entries in parallel in a pool of worker threads
+ * and writing them to the output in the order they were added.
+ * <p>
+ * Small files are read and compressed entirely by a worker thread, so that only
+ * assembly of the compressed entries is serialised. Files larger than
+ * {@link #inlineThreshold} are streamed through a deflater by the writing
+ * thread itself so that memory use stays bounded, and their header is patched
+ * with the CRC and sizes once they are written. The total size of the files
+ * compressed ahead of the writer is bounded by {@link #windowBytes}.
+ * <p>
+ * ZIP64 extensions are used where entries, offsets or the number of entries
+ * exceed the limits of the original zip format.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class ParallelZipWriter implements Closeable {
+
+    final static long ZIP64_MAGIC = 0xFFFFFFFFL
+
+    final static int ZIP64_MAGIC_COUNT = 0xFFFF
+
+    /**
+     * General purpose flag indicating entry names are UTF-8
+     */
+    final static int UTF8_FLAG = 0x0800
+
+    /**
+     * Files larger than this are compressed directly by the writing thread
+     */
+    long inlineThreshold = 16L * 1024 * 1024
+
+    /**
+     * Maximum total size of the files that may be compressed ahead of the writer,
+     * which bounds the memory holding compressed entries that are yet to be written
+     */
+    long windowBytes = 64L * 1024 * 1024
+
+    /**
+     * Size each compressed entry is counted as at least, so that many empty or tiny
+     * files cannot queue an unbounded number of entries
+     */
+    final static long MIN_ENTRY_BYTES = 1024
+
+    int level = Deflater.DEFAULT_COMPRESSION
+
+    /**
+     * Called with the entry name and source file after each entry
+     * has been written to the zip file
+     */
+    Closure onWritten = null
+
+    private final FileOutputStream fileOut
+
+    private final BufferedOutputStream out
+
+    private long position = 0L
+
+    private final ExecutorService pool
+
+    private final List<Map> centralDirectory = []
+
+    private final ArrayDeque<Map> pending = new ArrayDeque<Map>()
+
+    private long pendingBytes = 0L
+
+    private final ArchiveStats stats = new ArchiveStats()
+
+    private final long startTimeMs = System.currentTimeMillis()
+
+    ParallelZipWriter(File zipFile, int threads) {
+        this.fileOut = new FileOutputStream(zipFile)
+        this.out = new BufferedOutputStream(fileOut, 1024*1024)
+        this.pool = Executors.newFixedThreadPool(threads, { Runnable r ->
+            Thread t = new Thread(r)
+            t.daemon = true
+            return t
+        } as ThreadFactory)
+    }
+
+    /**
+     * Add the given file to the archive with the given entry name. The entry may be
+     * compressed in the background, but will be written after all previously added
+     * entries.
+     */
+    void add(String name, File file) {
+        // Large files are compressed as they are written, so they do not occupy the window
+        long bytes = file.length() <= inlineThreshold ? Math.max(file.length(), MIN_ENTRY_BYTES) : 0L
+
+        // Write out earlier entries until this one fits in the window
+        while(!pending.isEmpty() && pendingBytes + bytes > windowBytes)
+            writeNext()
+
+        Future<DeflatedEntry> future = null
+        if(bytes > 0) {
+            future = pool.submit({ deflate(file) } as java.util.concurrent.Callable<DeflatedEntry>)
+            pendingBytes += bytes
+        }
+
+        pending.add([name: name, file: file, future: future, modified: file.lastModified(), bytes: bytes])
+    }
+
+    /**
+     * Write all remaining entries and the central directory, and close the file
+     *
+     * @return  statistics about the archive that was written
+     */
+    ArchiveStats finish() {
+        try {
+            while(!pending.isEmpty())
+                writeNext()
+            writeCentralDirectory()
+            out.flush()
+        }
+        finally {
+            close()
+        }
+        stats.outputBytes = position
+        stats.elapsedMs = System.currentTimeMillis() - startTimeMs
+        return stats
+    }
+
+    @Override
+    void close() {
+        pool.shutdownNow()
+        out.close()
+    }
+
+    private DeflatedEntry deflate(File file) {
+        CRC32 crc = new CRC32()
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)Math.max(64L, file.length() >> 1))
+        Deflater deflater = new Deflater(level, true)
+        long size = 0L
+        try {
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(bytes, deflater, 64*1024)
+            byte [] buffer = new byte[64*1024]
+            file.withInputStream { InputStream input ->
+                int count
+                while((count = input.read(buffer)) >= 0) {
+                    crc.update(buffer, 0, count)
+                    deflaterOut.write(buffer, 0, count)
+                    size += count
+                }
+            }
+            deflaterOut.finish()
+        }
+        finally {
+            deflater.end()
+        }
+        return new DeflatedEntry(data: bytes.toByteArray(), length: bytes.size(), crc: crc.value, size: size)
+    }
+
+    private void writeNext() {
+        Map entry = pending.poll()
+        pendingBytes -= (long)entry.bytes
+        String name = (String)entry.name
+        File file = (File)entry.file
+        Future<DeflatedEntry> future = (Future<DeflatedEntry>)entry.future
+        byte [] nameBytes = name.getBytes(StandardCharsets.UTF_8)
+        long offset = position
+        int dosTime = toDosTime((long)entry.modified)
+
+        long crc
+        long size
+        long compressedSize
+        if(future != null) {
+            DeflatedEntry deflated = future.get()
+            crc = deflated.crc
+            size = deflated.size
+            compressedSize = deflated.length
+            writeLocalHeader(nameBytes, dosTime, crc, compressedSize, size, size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC)
+            write(deflated.data, deflated.length)
+        }
+        else {
+            // Large file: stream it through a deflater, and patch the header afterwards
+            boolean zip64 = file.length() >= (ZIP64_MAGIC - 1024*1024)
+            writeLocalHeader(nameBytes, dosTime, 0L, 0L, 0L, zip64)
+            CRC32 crc32 = new CRC32()
+            Deflater deflater = new Deflater(level, true)
+            size = 0L
+            CountingOutputStream counter = new CountingOutputStream(out)
+            try {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(counter, deflater, 64*1024)
+                byte [] buffer = new byte[64*1024]
+                file.withInputStream { InputStream input ->
+                    int count
+                    while((count = input.read(buffer)) >= 0) {
+                        crc32.update(buffer, 0, count)
+                        deflaterOut.write(buffer, 0, count)
+                        size += count
+                    }
+                }
+                deflaterOut.finish()
+            }
+            finally {
+                deflater.end()
+            }
+            crc = crc32.value
+            compressedSize = counter.count
+            position += compressedSize
+            patchLocalHeader(offset, nameBytes.length, crc, compressedSize, size, zip64)
+        }
+
+        centralDirectory << [name: nameBytes, dosTime: dosTime, crc: crc, compressedSize: compressedSize, size: size, offset: offset]
+
+        stats.files++
+        stats.inputBytes += size
+
+        if(onWritten != null)
+            onWritten(name, file)
+    }
+
+    private void writeLocalHeader(byte [] nameBytes, int dosTime, long crc, long compressedSize, long size, boolean zip64) {
+        ByteBuffer header = buffer(30 + nameBytes.length + (zip64 ? 20 : 0))
+        header.putInt(0x04034b50)
+        header.putShort((short)(zip64 ? 45 : 20))
+        header.putShort((short)UTF8_FLAG)
+        header.putShort((short)8)
+        header.putInt(dosTime)
+        header.putInt((int)crc)
+        header.putInt((int)(zip64 ? ZIP64_MAGIC : compressedSize))
+        header.putInt((int)(zip64 ? ZIP64_MAGIC : size))
+        header.putShort((short)nameBytes.length)
+        header.putShort((short)(zip64 ? 20 : 0))
+        header.put(nameBytes)
+        if(zip64) {
+            header.putShort((short)0x0001)
+            header.putShort((short)16)
+            header.putLong(size)
+            header.putLong(compressedSize)
+        }
+        write(header.array(), header.position())
+    }
+
+    private void patchLocalHeader(long offset, int nameLength, long crc, long compressedSize, long size, boolean zip64) {
+        out.flush()
+        ByteBuffer sizes = buffer(12)
+        sizes.putInt((int)crc)
+        sizes.putInt((int)(zip64 ? ZIP64_MAGIC : compressedSize))
+        sizes.putInt((int)(zip64 ? ZIP64_MAGIC : size))
+        sizes.flip()
+        fileOut.channel.write(sizes, offset + 14)
+        if(zip64) {
+            ByteBuffer extra = buffer(16)
+            extra.putLong(size)
+            extra.putLong(compressedSize)
+            extra.flip()
+            fileOut.channel.write(extra, offset + 30 + nameLength + 4)
+        }
+    }
+
+    private void writeCentralDirectory() {
+        long cdStart = position
+        for(Map entry in centralDirectory) {
+            byte [] nameBytes = (byte[])entry.name
+            long size = (long)entry.size
+            long compressedSize = (long)entry.compressedSize
+            long offset = (long)entry.offset
+
+            List<Long> zip64Fields = []
+            if(size >= ZIP64_MAGIC)
+                zip64Fields << size
+            if(compressedSize >= ZIP64_MAGIC)
+                zip64Fields << compressedSize
+            if(offset >= ZIP64_MAGIC)
+                zip64Fields << offset
+            int extraLength = zip64Fields ? 4 + 8 * zip64Fields.size() : 0
+
+            ByteBuffer header = buffer(46 + nameBytes.length + extraLength)
+            header.putInt(0x02014b50)
+            header.putShort((short)((3 << 8) | 45)) // made by unix
+            header.putShort((short)(zip64Fields ? 45 : 20))
+            header.putShort((short)UTF8_FLAG)
+            header.putShort((short)8)
+            header.putInt((int)entry.dosTime)
+            header.putInt((int)(long)entry.crc)
+            header.putInt((int)Math.min(compressedSize, ZIP64_MAGIC))
+            header.putInt((int)Math.min(size, ZIP64_MAGIC))
+            header.putShort((short)nameBytes.length)
+            header.putShort((short)extraLength)
+            header.putShort((short)0) // comment
+            header.putShort((short)0) // disk
+            header.putShort((short)0) // internal attributes
+            header.putInt((int)(0100644 << 16)) // external attributes: regular file, rw-r--r--
+            header.putInt((int)Math.min(offset, ZIP64_MAGIC))
+            header.put(nameBytes)
+            if(zip64Fields) {
+                header.putShort((short)0x0001)
+                header.putShort((short)(8 * zip64Fields.size()))
+                for(Long value in zip64Fields)
+                    header.putLong(value)
+            }
+            write(header.array(), header.position())
+        }
+        long cdSize = position - cdStart
+        int count = centralDirectory.size()
+
+        if(count >= ZIP64_MAGIC_COUNT || cdStart >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+            long zip64EndOffset = position
+            ByteBuffer end64 = buffer(56)
+            end64.putInt(0x06064b50)
+            end64.putLong(44L)
+            end64.putShort((short)((3 << 8) | 45))
+            end64.putShort((short)45)
+            end64.putInt(0)
+            end64.putInt(0)
+            end64.putLong((long)count)
+            end64.putLong((long)count)
+            end64.putLong(cdSize)
+            end64.putLong(cdStart)
+            write(end64.array(), end64.position())
+
+            ByteBuffer locator = buffer(20)
+            locator.putInt(0x07064b50)
+            locator.putInt(0)
+            locator.putLong(zip64EndOffset)
+            locator.putInt(1)
+            write(locator.array(), locator.position())
+        }
+
+        ByteBuffer end = buffer(22)
+        end.putInt(0x06054b50)
+        end.putShort((short)0)
+        end.putShort((short)0)
+        end.putShort((short)Math.min(count, ZIP64_MAGIC_COUNT))
+        end.putShort((short)Math.min(count, ZIP64_MAGIC_COUNT))
+        end.putInt((int)Math.min(cdSize, ZIP64_MAGIC))
+        end.putInt((int)Math.min(cdStart, ZIP64_MAGIC))
+        end.putShort((short)0)
+        write(end.array(), end.position())
+    }
+
+    private void write(byte [] bytes, int length) {
+        out.write(bytes, 0, length)
+        position += length
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+    }
+
+    static int toDosTime(long timeMs) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMs), ZoneId.systemDefault())
+        if(t.year < 1980)
+            return (1 << 21) | (1 << 16)
+        return ((t.year - 1980) << 25) | (t.monthValue << 21) | (t.dayOfMonth << 16) |
+               (t.hour << 11) | (t.minute << 5) | (t.second >> 1)
+    }
+}
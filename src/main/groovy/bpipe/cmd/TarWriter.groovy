@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.cmd
+
+import java.nio.charset.StandardCharsets
+
+import groovy.transform.CompileStatic
+
+/**
+ * Minimal streaming writer for POSIX (ustar) tar files.
+ * <p>
+ * Names longer than the ustar name field and files too large for the ustar size
+ * field are written using a PAX extended header, which all modern tar
+ * implementations understand.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class TarWriter implements Closeable {
+
+    final static int BLOCK_SIZE = 512
+
+    final static long MAX_USTAR_SIZE = 077777777777L
+
+    final static byte TYPE_FILE = (byte)0x30 // '0'
+
+    final static byte TYPE_PAX = (byte)0x78 // 'x'
+
+    final static byte SPACE = (byte)0x20
+
+    private final OutputStream out
+
+    /**
+     * Total bytes of file content written
+     */
+    long contentBytes = 0L
+
+    TarWriter(OutputStream out) {
+        this.out = out
+    }
+
+    void add(String name, File file) {
+        long size = file.length()
+        byte [] nameBytes = name.getBytes(StandardCharsets.UTF_8)
+
+        Map<String,String> paxRecords = [:]
+        if(nameBytes.length > 100)
+            paxRecords.put('path', name)
+        if(size > MAX_USTAR_SIZE)
+            paxRecords.put('size', String.valueOf(size))
+
+        if(paxRecords)
+            writePaxHeader(paxRecords)
+
+        writeHeader(nameBytes.length > 100 ? Arrays.copyOf(nameBytes, 100) : nameBytes,
+                    size > MAX_USTAR_SIZE ? 0L : size,
+                    file.lastModified().intdiv(1000).longValue(), TYPE_FILE)
+
+        long written = 0L
+        byte [] buffer = new byte[64*1024]
+        file.withInputStream { InputStream input ->
+            int count
+            while((count = input.read(buffer)) >= 0 && written < size) {
+                count = (int)Math.min((long)count, size - written)
+                out.write(buffer, 0, count)
+                written += count
+            }
+        }
+
+        // The file may have shrunk while we read it: keep the archive consistent with the header
+        while(written < size) {
+            int count = (int)Math.min((long)buffer.length, size - written)
+            Arrays.fill(buffer, 0, count, (byte)0)
+            out.write(buffer, 0, count)
+            written += count
+        }
+        pad(size)
+        contentBytes += size
+    }
+
+    private void writePaxHeader(Map<String,String> records) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream()
+        records.each { String key, String value ->
+            String body = " $key=$value\n"
+            int bodyLength = body.getBytes(StandardCharsets.UTF_8).length
+
+            // The length prefix includes its own digits
+            int length = bodyLength + String.valueOf(bodyLength).length()
+            if(String.valueOf(length).length() != String.valueOf(bodyLength).length())
+                ++length
+            content.write((String.valueOf(length) + body).getBytes(StandardCharsets.UTF_8))
+        }
+        byte [] bytes = content.toByteArray()
+        writeHeader('././@PaxHeader'.getBytes(StandardCharsets.US_ASCII), bytes.length, System.currentTimeMillis().intdiv(1000).longValue(), TYPE_PAX)
+        out.write(bytes)
+        pad(bytes.length)
+    }
+
+    private void writeHeader(byte [] name, long size, long mtime, byte type) {
+        byte [] header = new byte[BLOCK_SIZE]
+        System.arraycopy(name, 0, header, 0, name.length)
+        octal(header, 100, 8, 0644L)
+        octal(header, 108, 8, 0L)
+        octal(header, 116, 8, 0L)
+        octal(header, 124, 12, size)
+        octal(header, 136, 12, mtime)
+        header[156] = type
+        byte [] magic = 'ustar\u000000'.getBytes(StandardCharsets.US_ASCII)
+        System.arraycopy(magic, 0, header, 257, magic.length)
+
+        // Checksum is computed with the checksum field set to spaces
+        Arrays.fill(header, 148, 156, SPACE)
+        long checksum = 0L
+        for(byte b in header)
+            checksum += (b & 0xFF)
+        octal(header, 148, 7, checksum)
+        header[155] = SPACE
+
+        out.write(header)
+    }
+
+    private static void octal(byte [] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value).padLeft(length - 1, '0')
+        byte [] bytes = digits.getBytes(StandardCharsets.US_ASCII)
+        System.arraycopy(bytes, 0, header, offset, length - 1)
+        header[offset + length - 1] = 0
+    }
+
+    private void pad(long size) {
+        int remainder = (int)(size % BLOCK_SIZE)
+        if(remainder > 0)
+            out.write(new byte[BLOCK_SIZE - remainder])
+    }
+
+    /**
+     * Write the end of archive marker and close the underlying stream
+     */
+    @Override
+    void close() {
+        out.write(new byte[BLOCK_SIZE * 2])
+        out.close()
+    }
+}
@@ -217,6 +217,9 @@ class AWSEC2CommandExecutor extends CloudExecutor {
         // Must be done before termination to get cloud output files back
         super.cleanup()
         
+        if(releasePooledInstance())
+            return
+        
         if(autoStop) {
             // by shutting down this way, the instance will live long enough that the user can log in to debug something
             // or otherwise capture the state
@@ -225,21 +228,26 @@ class AWSEC2CommandExecutor extends CloudExecutor {
         }
         else
         if(autoShutdown) {
-            if(instanceId) {
-                log.info "Terminating instance $instanceId for executor $this"
-                
-                if(ec2 == null) {
-                    this.createClient(this.command.getConfig(this.command.inputs))
-                }
-                
-                ec2.terminateInstances(new TerminateInstancesRequest([instanceId]))
-            }
+            terminateInstance()
         }
         else {
             log.info "Instance $instanceId will not be terminated because autoShutdown = $autoShutdown"
         }
     }
     
+    @Override
+    void terminateInstance() {
+        if(instanceId) {
+            log.info "Terminating instance $instanceId for executor $this"
+            
+            if(ec2 == null) {
+                this.createClient(this.command.getConfig(this.command.inputs))
+            }
+            
+            ec2.terminateInstances(new TerminateInstancesRequest([instanceId]))
+        }
+    }
+    
     @Override
     public String localPath(String storageName) {
         return '.';
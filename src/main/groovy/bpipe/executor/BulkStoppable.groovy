@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.executor
+
+/**
+ * An executor for a job in a scheduler whose stop command accepts many job ids at once,
+ * so that many jobs can be stopped with a single command (see {@link bpipe.CommandStopper}).
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+interface BulkStoppable extends CommandExecutor {
+    
+    /**
+     * @return the command line, without job ids, that stops a list of jobs, eg: <code>['scancel']</code>.
+     *         Jobs with the same command are stopped together.
+     */
+    List<String> getBulkStopCommand()
+    
+    /**
+     * @return the id of the job in the scheduler
+     */
+    String getJobId()
+    
+    /**
+     * @return true if the given message, printed by the stop command about this job, shows that the 
+     *         job was stopped or had already finished, rather than that it could not be stopped
+     */
+    boolean isStoppedMessage(String message)
+}
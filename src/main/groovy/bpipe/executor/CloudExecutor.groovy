@@ -94,6 +94,16 @@ abstract class CloudExecutor implements PersistentExecutor, ForwardHost {
      * Whether the executor is currently in the process of acquiring its instance
      */
     boolean acquiring = false
+    
+    /**
+     * If the instance was allocated from a {@link CloudInstancePool}, the name of the pool
+     */
+    String poolName
+    
+    /**
+     * Set after a pooled instance has been returned to its pool
+     */
+    boolean instanceReleased = false
 
     public void start(Map cfg, Command cmd, Appendable outputLog, Appendable errorLog) {
         
@@ -119,10 +129,19 @@ abstract class CloudExecutor implements PersistentExecutor, ForwardHost {
                 else {
                     log.info "Cloud executor is not connected to running instance via $cfg: acquiring instance"
                     
+                    CloudInstancePool pool = CloudInstancePool.forConfig(cfg, this)
+                    
                     int attempts = 0
                     while(true) {
                         try {
-                            this.acquireInstance(cfg, image, cmd.id)
+                            if(pool != null) {
+                                CloudInstancePool.Lease lease = pool.acquire(cmd.id, cfg)
+                                this.poolName = pool.name
+                                this.instanceId = lease.instanceId
+                                this.connectInstance(cfg)
+                            }
+                            else
+                                this.acquireInstance(cfg, image, cmd.id)
                             log.info("Acquired instance $instanceId")
                             break
                         }
@@ -166,6 +185,11 @@ abstract class CloudExecutor implements PersistentExecutor, ForwardHost {
         }
         catch(Exception e) {
             log.info "Error occurred starting command $command.id ($e) : cleaning up associated instance"
+            if(poolName) {
+                // The instance may be in an unknown state, so it should not be used again
+                CloudInstancePool.pools[poolName]?.release(command.id, true)
+                this.instanceReleased = true
+            }
             this.cleanup()
             throw e
         }
@@ -217,6 +241,11 @@ abstract class CloudExecutor implements PersistentExecutor, ForwardHost {
     
     abstract void connectInstance(Map config)
     
+    /**
+     * Terminate the instance this executor is attached to
+     */
+    abstract void terminateInstance()
+    
     /**
      * Implementation specific method to execute a raw command over SSH
      * <p>
@@ -290,6 +319,30 @@ abstract class CloudExecutor implements PersistentExecutor, ForwardHost {
         }
     }
     
+    /**
+     * If the instance was allocated from a pool, return it to the pool for use by other commands.
+     * 
+     * @return  true if the instance belongs to a pool, and so should not be terminated by this executor
+     */
+    protected boolean releasePooledInstance() {
+        if(!poolName)
+            return false
+            
+        if(instanceReleased)
+            return true
+            
+        CloudInstancePool pool = CloudInstancePool.pools[poolName]
+        if(pool == null || !pool.release(command?.id ?: commandId)) {
+            // The pool is not known in this process (eg: the pipeline was restarted), 
+            // so the instance can only be cleaned up by this executor
+            log.info "Pool $poolName does not hold instance $instanceId: it will be cleaned up by executor $this"
+            return false
+        }
+        log.info "Returned instance $instanceId to pool $poolName"
+        this.instanceReleased = true
+        return true
+    }
+    
     boolean canSSH() {
         ssh(timeout:5, 'true')
         
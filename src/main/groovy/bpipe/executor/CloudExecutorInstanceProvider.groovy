@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.executor
+
+import java.util.concurrent.ConcurrentHashMap
+
+import bpipe.Command
+import groovy.util.logging.Log
+
+/**
+ * Starts and terminates pooled instances using the same code that a {@link CloudExecutor}
+ * uses to start an instance for a single command.
+ * <p>
+ * A separate executor is created to start each instance, and is kept so that it can
+ * terminate the instance when the pool no longer needs it.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+class CloudExecutorInstanceProvider implements CloudInstanceProvider {
+    
+    final Class<? extends CloudExecutor> executorClass
+    
+    /**
+     * The executors that started each instance, indexed by instance id
+     */
+    final Map<String,CloudExecutor> executors = new ConcurrentHashMap<String,CloudExecutor>()
+    
+    CloudExecutorInstanceProvider(Class<? extends CloudExecutor> executorClass) {
+        this.executorClass = executorClass
+    }
+
+    @Override
+    String launch(Map config, String name) {
+        CloudExecutor executor = executorClass.newInstance()
+        executor.command = new Command(id: name, name: name)
+        executor.project = config.getOrDefault('project', null)
+        
+        // A walltime applies to a command, not to an instance that outlives it
+        Map instanceConfig = new HashMap(config)
+        instanceConfig.remove('walltime')
+        
+        executor.acquireInstance(instanceConfig, (String)config.image, name)
+        try {
+            executor.waitForSSHAccess()
+        }
+        catch(Exception e) {
+            executor.terminateInstance()
+            throw e
+        }
+        executors[executor.instanceId] = executor
+        return executor.instanceId
+    }
+
+    @Override
+    void terminate(String instanceId) {
+        CloudExecutor executor = executors.remove(instanceId)
+        if(executor == null) {
+            log.warning "Instance $instanceId was not started by this provider: it will not be terminated"
+            return
+        }
+        executor.terminateInstance()
+    }
+}
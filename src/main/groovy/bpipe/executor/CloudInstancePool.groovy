@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.executor
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import bpipe.PipelineError
+import bpipe.Poller
+import bpipe.ResourceUnit
+import bpipe.Utils
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A bounded pool of running cloud instances that are reused by the commands of a 
+ * {@link CloudExecutor}, rather than starting and terminating an instance for every command.
+ * <p>
+ * Each instance has a fixed capacity of procs and memory, and commands are packed onto
+ * the instance that they fit most tightly (best fit), so that as many instances as possible 
+ * are left free to be scaled down. When no instance has room for a command, a new one is 
+ * started, up to <code>maxInstances</code>; after that, commands wait for room to become 
+ * free. Instances that have been idle for longer than the idle timeout are terminated, 
+ * down to <code>minInstances</code>, which are started when the pool is created.
+ * <p>
+ * A pool is configured by adding an <code>instancePool</code> section to the configuration
+ * of commands using a cloud executor:
+ * <pre>
+ * instancePool {
+ *     maxInstances = 4     // at most this many instances at once (default: 4)
+ *     minInstances = 1     // instances kept running even when idle (default: 0)
+ *     procs = 16           // procs available on each instance (default: 1)
+ *     memory = '64GB'      // memory available on each instance (default: not limited)
+ *     idleTimeout = 10     // minutes before an idle instance is terminated (default: 10)
+ * }
+ * </pre>
+ * Commands sharing the same executor, image and instance type share a pool, regardless of 
+ * which stage they belong to, unless the pool is given an explicit <code>name</code>.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class CloudInstancePool {
+    
+    /**
+     * A running instance, and the resources of it allocated to commands
+     */
+    static class PooledInstance {
+        
+        String instanceId
+        
+        int usedProcs = 0
+        
+        long usedMemoryMB = 0
+        
+        Set<String> commandIds = new HashSet<String>()
+        
+        long idleSinceMs
+        
+        /**
+         * Set when the instance is removed from the pool: it is terminated when the
+         * last command running on it finishes
+         */
+        boolean retired = false
+        
+        String toString() {
+            "$instanceId (${commandIds.size()} commands, $usedProcs procs, ${usedMemoryMB}MB)"
+        }
+    }
+    
+    /**
+     * The allocation of part of an instance to a command
+     */
+    static class Lease {
+        
+        PooledInstance instance
+        
+        String commandId
+        
+        int procs
+        
+        long memoryMB
+        
+        String getInstanceId() {
+            return instance.instanceId
+        }
+    }
+    
+    /**
+     * Active pools, indexed by name
+     */
+    static Map<String,CloudInstancePool> pools = new ConcurrentHashMap<String,CloudInstancePool>()
+    
+    final String name
+    
+    final CloudInstanceProvider provider
+    
+    /**
+     * Configuration passed to the provider to start instances
+     */
+    final Map launchConfig
+    
+    int maxInstances = 4
+    
+    int minInstances = 0
+    
+    /**
+     * Procs available to commands on each instance
+     */
+    int procs = 1
+    
+    /**
+     * Memory available to commands on each instance, or 0 if memory is not considered
+     */
+    long memoryMB = 0
+    
+    long idleTimeoutMs = 10 * Utils.ONE_MINUTE_MS
+    
+    final List<PooledInstance> instances = []
+    
+    final Map<String,Lease> leases = [:]
+    
+    /**
+     * Number of instances being started
+     */
+    int launching = 0
+    
+    private final AtomicInteger instanceCount = new AtomicInteger()
+    
+    private ScheduledFuture reaper
+    
+    CloudInstancePool(String name, Map poolConfig, Map launchConfig, CloudInstanceProvider provider) {
+        this.name = name
+        this.launchConfig = launchConfig
+        this.provider = provider
+        this.maxInstances = (int)poolConfig.getOrDefault('maxInstances', maxInstances)
+        this.minInstances = Math.min((int)poolConfig.getOrDefault('minInstances', minInstances), maxInstances)
+        this.procs = (int)poolConfig.getOrDefault('procs', procs)
+        if(poolConfig.containsKey('memory'))
+            this.memoryMB = ResourceUnit.memory(poolConfig.memory).amount
+        if(poolConfig.containsKey('idleTimeout'))
+            this.idleTimeoutMs = (long)(((Number)poolConfig.idleTimeout).doubleValue() * Utils.ONE_MINUTE_MS)
+    }
+    
+    /**
+     * Return the pool that the given command configuration should use, creating and starting it
+     * if necessary.
+     * 
+     * @return the pool, or null if the configuration does not have an <code>instancePool</code> section
+     */
+    static CloudInstancePool forConfig(Map cfg, CloudExecutor executor) {
+        Object poolConfig = cfg.get('instancePool')
+        if(!(poolConfig instanceof Map))
+            return null
+            
+        String poolName = ((Map)poolConfig).get('name') ?: 
+            [executor.class.simpleName, cfg.image, cfg.instanceType ?: cfg.machineType, cfg.region].join(':')
+            
+        return pools.computeIfAbsent(poolName) {
+            CloudInstancePool pool = new CloudInstancePool(poolName, (Map)poolConfig, cfg, new CloudExecutorInstanceProvider(executor.class))
+            pool.start()
+            return pool
+        }
+    }
+    
+    /**
+     * Start the minimum number of instances in the background, and schedule idle instances to 
+     * be terminated
+     */
+    void start() {
+        log.info "Starting cloud instance pool $name with $minInstances to $maxInstances instances of $procs procs, ${memoryMB}MB"
+        for(int i=0; i<minInstances; ++i) {
+            synchronized(this) {
+                ++launching
+            }
+            Thread t = new Thread({ 
+                try {
+                    addInstance(null, 0, 0L)
+                }
+                catch(Exception e) {
+                    log.warning "Failed to start instance for pool $name: $e"
+                }
+            }, "bpipe-cloud-pool-$name")
+            t.daemon = true
+            t.start()
+        }
+        
+        long checkIntervalMs = Math.max(1000L, Math.min(idleTimeoutMs.intdiv(2), Utils.ONE_MINUTE_MS))
+        reaper = Poller.instance.executor.scheduleAtFixedRate({
+            reapIdle(System.currentTimeMillis())
+        }, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS)
+    }
+    
+    /**
+     * Allocate room on an instance for a command with the given config, starting an instance
+     * or waiting for room on one if necessary.
+     */
+    Lease acquire(String commandId, Map cfg) {
+        return acquire(commandId, commandProcs(cfg), cfg.containsKey('memory') ? ResourceUnit.memory(cfg.memory).amount : 0L)
+    }
+    
+    Lease acquire(String commandId, int procs, long memoryMB) {
+        
+        if(procs > this.procs || (this.memoryMB > 0 && memoryMB > this.memoryMB))
+            throw new PipelineError("Command $commandId requires $procs procs and ${memoryMB}MB of memory, but instances in pool $name have only ${this.procs} procs and ${this.memoryMB}MB")
+        
+        synchronized(this) {
+            while(true) {
+                Lease lease = allocate(commandId, procs, memoryMB)
+                if(lease != null)
+                    return lease
+                    
+                if(instances.size() + launching < maxInstances)
+                    break
+                    
+                log.info "Command $commandId waiting for room in pool $name (${instances.size()} instances)"
+                this.wait()
+            }
+            ++launching
+        }
+        
+        // Start the instance outside the lock: it is slow, and other commands
+        // should be able to use room that becomes free in the meantime
+        return addInstance(commandId, procs, memoryMB)
+    }
+    
+    /**
+     * Return the room allocated to the given command to the pool.
+     * 
+     * @param discard   if true, the instance is assumed to be unusable and is terminated
+     * @return  true if the command had room allocated in this pool
+     */
+    boolean release(String commandId, boolean discard=false) {
+        PooledInstance toTerminate = null
+        synchronized(this) {
+            Lease lease = leases.remove(commandId)
+            if(lease == null)
+                return false
+                
+            PooledInstance instance = lease.instance
+            instance.usedProcs -= lease.procs
+            instance.usedMemoryMB -= lease.memoryMB
+            instance.commandIds.remove(commandId)
+            if(instance.commandIds.isEmpty())
+                instance.idleSinceMs = System.currentTimeMillis()
+                
+            if(discard && !instance.retired) {
+                log.info "Removing instance $instance.instanceId from pool $name"
+                instance.retired = true
+                instances.remove(instance)
+            }
+            
+            if(instance.retired && instance.commandIds.isEmpty())
+                toTerminate = instance
+            this.notifyAll()
+        }
+        
+        if(toTerminate != null)
+            terminate(toTerminate)
+        return true
+    }
+    
+    /**
+     * Terminate instances that have been idle for longer than the idle timeout, 
+     * keeping at least the minimum number of instances
+     */
+    void reapIdle(long nowMs) {
+        List<PooledInstance> idle
+        synchronized(this) {
+            int removable = instances.size() - minInstances
+            idle = instances.findAll { PooledInstance instance ->
+                instance.commandIds.isEmpty() && nowMs - instance.idleSinceMs >= idleTimeoutMs
+            }.sort { PooledInstance instance -> 
+                instance.idleSinceMs 
+            }.take(Math.max(removable, 0))
+            
+            instances.removeAll(idle)
+        }
+        
+        for(PooledInstance instance in idle) {
+            log.info "Terminating instance $instance.instanceId in pool $name after being idle for ${nowMs - instance.idleSinceMs}ms"
+            terminate(instance)
+        }
+    }
+    
+    /**
+     * Terminate all the instances in the pool
+     */
+    void shutdown() {
+        reaper?.cancel(false)
+        
+        List<PooledInstance> all
+        synchronized(this) {
+            all = new ArrayList<PooledInstance>(instances)
+            instances.clear()
+            leases.clear()
+        }
+        log.info "Shutting down ${all.size()} instances in pool $name"
+        all.each { terminate(it) }
+    }
+    
+    /**
+     * Shut down all the cloud instance pools
+     */
+    static void shutdownAll() {
+        for(CloudInstancePool pool in pools.values()) {
+            try {
+                pool.shutdown()
+            }
+            catch(Exception e) {
+                log.warning "Failed to shut down cloud instance pool $pool.name: $e"
+            }
+        }
+        pools.clear()
+    }
+    
+    /**
+     * Find the instance that the command fits onto most tightly, and allocate room for it there
+     * 
+     * @return  the lease, or null if no instance has room
+     */
+    private Lease allocate(String commandId, int procs, long memoryMB) {
+        PooledInstance best = null
+        for(PooledInstance instance in instances) {
+            int freeProcs = this.procs - instance.usedProcs
+            long freeMemoryMB = this.memoryMB - instance.usedMemoryMB
+            if(freeProcs < procs || (this.memoryMB > 0 && freeMemoryMB < memoryMB))
+                continue
+                
+            if(best == null || freeProcs < this.procs - best.usedProcs || 
+               (freeProcs == this.procs - best.usedProcs && freeMemoryMB < this.memoryMB - best.usedMemoryMB)) {
+                best = instance
+            }
+        }
+        
+        if(best == null)
+            return null
+            
+        return lease(best, commandId, procs, memoryMB)
+    }
+    
+    private Lease lease(PooledInstance instance, String commandId, int procs, long memoryMB) {
+        instance.usedProcs += procs
+        instance.usedMemoryMB += memoryMB
+        instance.commandIds.add(commandId)
+        Lease lease = new Lease(instance: instance, commandId: commandId, procs: procs, memoryMB: memoryMB)
+        leases[commandId] = lease
+        log.info "Allocated $procs procs, ${memoryMB}MB on instance $instance for command $commandId"
+        return lease
+    }
+    
+    /**
+     * Start a new instance and add it to the pool. The caller must already have counted it
+     * in {@link #launching}.
+     * 
+     * @param commandId if not null, room for this command is allocated on the new instance
+     *                  before any other command can use it
+     */
+    private Lease addInstance(String commandId, int procs, long memoryMB) {
+        String instanceId
+        try {
+            instanceId = launchInstance()
+        }
+        catch(Exception e) {
+            synchronized(this) {
+                --launching
+                this.notifyAll()
+            }
+            throw e
+        }
+        
+        synchronized(this) {
+            --launching
+            PooledInstance instance = new PooledInstance(instanceId: instanceId, idleSinceMs: System.currentTimeMillis())
+            instances.add(instance)
+            this.notifyAll()
+            return commandId != null ? lease(instance, commandId, procs, memoryMB) : null
+        }
+    }
+    
+    private String launchInstance() {
+        String instanceName = "pool-" + name.toLowerCase().replaceAll('[^a-z0-9]+','-').take(30) + '-' + instanceCount.incrementAndGet()
+        log.info "Starting instance $instanceName for pool $name"
+        long startMs = System.currentTimeMillis()
+        String instanceId = provider.launch(launchConfig, instanceName)
+        log.info "Instance $instanceId started for pool $name in ${System.currentTimeMillis() - startMs}ms"
+        return instanceId
+    }
+    
+    private void terminate(PooledInstance instance) {
+        try {
+            provider.terminate(instance.instanceId)
+        }
+        catch(Exception e) {
+            log.warning "Failed to terminate instance $instance.instanceId of pool $name: $e"
+        }
+    }
+    
+    /**
+     * @return  the number of procs a command with the given config needs. Where a range of procs
+     *          is allowed, the minimum is used.
+     */
+    static int commandProcs(Map cfg) {
+        Object value = cfg.get('procs')
+        if(value == null)
+            return 1
+        if(value instanceof Number)
+            return ((Number)value).intValue()
+        return String.valueOf(value).tokenize('-')[0].trim().toInteger()
+    }
+}
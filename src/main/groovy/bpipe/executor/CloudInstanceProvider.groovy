@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.executor
+
+/**
+ * Starts and terminates cloud instances for a {@link CloudInstancePool}, so that the 
+ * pool does not depend on the API of any particular cloud provider.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+interface CloudInstanceProvider {
+    
+    /**
+     * Start a new instance, and wait until it is able to run commands
+     * 
+     * @param config    the configuration of the commands that will run on the instance
+     * @param name      a name for the instance that is unique within the pipeline
+     * @return          the id of the instance
+     */
+    String launch(Map config, String name)
+    
+    /**
+     * Terminate an instance previously started by {@link #launch}
+     */
+    void terminate(String instanceId)
+}
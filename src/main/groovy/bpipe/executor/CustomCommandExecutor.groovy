@@ -107,6 +107,12 @@ class CustomCommandExecutor implements PersistentExecutor, ForwardHost {
      */
     transient Command command
     
+    /**
+     * For restoring saved commands, which set the fields afterwards
+     */
+    protected CustomCommandExecutor() {
+    }
+    
     /**
      * Create a custom command with the specified script as its
      * management script.  The script must exist and be an 
@@ -210,6 +216,15 @@ class CustomCommandExecutor implements PersistentExecutor, ForwardHost {
         else {
             env.COMMAND = '( ' + shell + ' ' + commandScriptFile.path + ') > .bpipe/commandtmp/'+command.id+'/'+command.id+'.out 2>  .bpipe/commandtmp/'+command.id+'/'+command.id+'.err'
         }
+        
+        // Have the job write its exit code as soon as the command finishes, so that
+        // we can find out it completed without asking the queuing system
+        File marker = getCompletionMarker()
+        if(marker != null) {
+            marker.delete()
+            env.COMMAND = 'if ' + env.COMMAND + '; then echo 0 > ' + marker.path + '; else bpipe_exit=$?; echo $bpipe_exit > ' + 
+                          marker.path + '; exit $bpipe_exit; fi'
+        }
             
         if(config == null) {
             return
@@ -359,88 +374,175 @@ class CustomCommandExecutor implements PersistentExecutor, ForwardHost {
         
 		// Calculate an exponential backoff factor
 		double factor = Math.log(maxSleep - minSleep) / backoffPeriod
+        
+        // Completion markers and batch status calls are handled by a monitor shared by all jobs
+        CustomCommandStatusMonitor monitor = CustomCommandStatusMonitor.theInstance
+        CustomJobState jobState = monitor.register(this, getCompletionMarker(), isBatchStatus())
 		
 		long startTimeMillis = System.currentTimeMillis()
+        long lastPollMillis = startTimeMillis
+        Long runningSinceMillis = null
 		int currentSleep = minSleep
         String lastStatus = "NONE" 
-        while(true) {
-            
-            log.fine "Polling status of job $commandId with command $cmd with sleep for $currentSleep with $statusRetries"
-            
-            String result = Utils.withRetries(statusRetries, message: "polling command $commandId") {
-                StringBuilder out = new StringBuilder()
-                StringBuilder err = new StringBuilder()
-                int exitValue = withLock {
-                    Process p = Runtime.runtime.exec(cmd)
-                    Utils.withStreams(p) {
-                        p.waitForProcessOutput(out, err)
-                        p.waitFor()
-                    }
-                }
-                if(exitValue > 0)  {
-                    String msg = "Attempt to poll status for job $commandId return status $exitValue using command $cmd:\n\n  $out"
-                    throw new PipelineError(msg)
-                }
-                return out.toString()
-            }
-           
-//            log.info "Poll returned output: $result"
-            def parts = result.split()
-            String status = parts[0]
-            
-            if(status != lastStatus)
-                log.info "Poll returned new status for command $commandId: $status"
+        try {
+            while(true) {
                 
-            if(this.command)
-                this.command.status = status
+                log.fine "Polling status of job $commandId with command $cmd with sleep for $currentSleep with $statusRetries"
                 
-            lastStatus = status
-            
-            if(status == CommandStatus.COMPLETE.name()) {
-	            if(parts.size() != 2)
-	                throw new PipelineError("Unexpected format in output of job status command [$cmd]:  $result")
+                String result = null
+                if(jobState.markerExitCode != null)
+                    result = CommandStatus.COMPLETE.name() + ' ' + jobState.markerExitCode
+                else
+                if(jobState.batch)
+                    result = monitor.batchStatus(jobState)
+                
+                if(result == null)
+                    result = pollStatus(cmd, statusRetries)
+               
+                def parts = result.split()
+                String status = parts[0]
+                long nowMillis = System.currentTimeMillis()
+                
+                if(status != lastStatus)
+                    log.info "Poll returned new status for command $commandId: $status"
                     
+                if(this.command)
+                    this.command.status = status
                     
-                if(!this.cleanedUp) {
-                    this.cleanedUp = true
-                    cleanup()
+                if(status == CommandStatus.RUNNING.name() && runningSinceMillis == null) {
+                    runningSinceMillis = nowMillis
+                    monitor.recordTimes(name, nowMillis - startTimeMillis, null)
                 }
+                    
+                lastStatus = status
                 
-	            int exitCode = Integer.parseInt(parts[1])
-                if(exitCode != 0) {
-                    String warningString = this.getErrorWarning(exitCode) 
-                    if(warningString) {
-                        println "WARNING: $warningString"
+                if(status == CommandStatus.COMPLETE.name()) {
+    	            if(parts.size() != 2)
+    	                throw new PipelineError("Unexpected format in output of job status command [$cmd]:  $result")
+                        
+                    recordCompletion(monitor, jobState, runningSinceMillis, lastPollMillis, nowMillis)
+                        
+                    if(!this.cleanedUp) {
+                        this.cleanedUp = true
+                        cleanup()
+                    }
+                    
+    	            int exitCode = Integer.parseInt(parts[1])
+                    if(exitCode != 0) {
+                        String warningString = this.getErrorWarning(exitCode) 
+                        if(warningString) {
+                            println "WARNING: $warningString"
+                        }
                     }
+                    return exitCode
                 }
-                return exitCode
-            }
-            else 
-            if(status == CommandStatus.UNKNOWN.name()) {
-                if(errorCount > MAX_STATUS_ERROR) {
-                    throw new PipelineError(
-                        """
-                            Job ${commandId} (command $command.id) returned UNKNOWN status prior to completion.\n
-                            This may indicate your job queue is configured to time out jobs too quickly, or that a job configuration option stops your job from executing once started.\n
-                            You can check the files in .bpipe/commandtmp/${command.id} to see the submitted job directly.
-                        """.stripIndent())
+                else 
+                if(status == CommandStatus.UNKNOWN.name()) {
+                    if(errorCount > MAX_STATUS_ERROR) {
+                        throw new PipelineError(
+                            """
+                                Job ${commandId} (command $command.id) returned UNKNOWN status prior to completion.\n
+                                This may indicate your job queue is configured to time out jobs too quickly, or that a job configuration option stops your job from executing once started.\n
+                                You can check the files in .bpipe/commandtmp/${command.id} to see the submitted job directly.
+                            """.stripIndent())
+                    }
+                    else
+                      log.warning "Job status query returned UNKNOWN for job ${commandId}. Will retry."
+    
+                    ++errorCount
                 }
                 else
-                  log.warning "Job status query returned UNKNOWN for job ${commandId}. Will retry."
-
-                ++errorCount
+                    errorCount = 0
+                    
+                lastPollMillis = nowMillis
+                
+                // Job not complete, keep waiting, unless the monitor finds that it completes
+                monitor.await(jobState, currentSleep)
+                
+                // Once we know how long jobs usually wait in the queue and run for, we can poll
+                // more often as the job approaches the time it is expected to finish
+                Long typicalMillis = null
+                if(status == CommandStatus.RUNNING.name())
+                    typicalMillis = monitor.getTypicalRunTime(name)
+                else
+                if(status == CommandStatus.QUEUEING.name() || status == CommandStatus.WAITING.name())
+                    typicalMillis = monitor.typicalQueueTime
+                
+                if(typicalMillis != null) {
+                    long elapsedMillis = System.currentTimeMillis() - (runningSinceMillis ?: startTimeMillis)
+                    currentSleep = (int)CustomCommandStatusMonitor.adaptiveInterval(elapsedMillis, typicalMillis, minSleep, maxSleep)
+                }
+                else
+                    currentSleep = minSleep + Math.min(maxSleep, Math.exp(factor * (System.currentTimeMillis() - startTimeMillis)))
             }
-            else
-                errorCount = 0
-            
-//            log.fine "Wait $currentSleep before next poll"
-            
-            // Job not complete, keep waiting
-            Thread.sleep(currentSleep)
-            
-			
-			currentSleep = minSleep + Math.min(maxSleep, Math.exp(factor * (System.currentTimeMillis() - startTimeMillis)))
         }
+        finally {
+            monitor.unregister(jobState)
+        }
+    }
+    
+    /**
+     * Call the management script to find the status of the job
+     * 
+     * @return  the output of the status command
+     */
+    String pollStatus(String cmd, int statusRetries) {
+        Utils.withRetries(statusRetries, message: "polling command $commandId") {
+            StringBuilder out = new StringBuilder()
+            StringBuilder err = new StringBuilder()
+            int exitValue = withLock {
+                Process p = Runtime.runtime.exec(cmd)
+                Utils.withStreams(p) {
+                    p.waitForProcessOutput(out, err)
+                    p.waitFor()
+                }
+            }
+            if(exitValue > 0)  {
+                String msg = "Attempt to poll status for job $commandId return status $exitValue using command $cmd:\n\n  $out"
+                throw new PipelineError(msg)
+            }
+            return out.toString()
+        }
+    }
+    
+    /**
+     * Record how long the job ran for, and how long after it finished that we found out
+     */
+    @CompileStatic
+    void recordCompletion(CustomCommandStatusMonitor monitor, CustomJobState jobState, Long runningSinceMillis, long lastPollMillis, long nowMillis) {
+        long finishedMillis = nowMillis
+        if(jobState.markerExitCode != null) {
+            finishedMillis = Math.min(jobState.markerTimeMs, nowMillis)
+            monitor.markerLatency.record(nowMillis - finishedMillis)
+            log.info "Completion of job $commandId found ${nowMillis - finishedMillis}ms after it finished from completion marker"
+        }
+        else {
+            monitor.pollLatency.record(nowMillis - lastPollMillis)
+            log.info "Completion of job $commandId found within ${nowMillis - lastPollMillis}ms after it finished by polling"
+        }
+        
+        if(runningSinceMillis != null)
+            monitor.recordTimes(name, null, Math.max(0L, finishedMillis - runningSinceMillis))
+    }
+    
+    /**
+     * @return  the file that the job writes its exit code to when it finishes, if enabled 
+     *          with <code>completion_marker</code> in the command configuration, otherwise null
+     */
+    @CompileStatic
+    File getCompletionMarker() {
+        if(!config?.completion_marker)
+            return null
+        return new File(jobDir ?: '.bpipe/commandtmp/' + command.id, CMD_EXIT_FILENAME)
+    }
+    
+    /**
+     * @return  true if the management script is declared to implement the <code>status_batch</code>
+     *          command with <code>batch_status</code> in the command configuration
+     */
+    @CompileStatic
+    boolean isBatchStatus() {
+        return config?.batch_status as boolean
     }
     
     /**
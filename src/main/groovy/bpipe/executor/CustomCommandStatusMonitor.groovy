@@ -0,0 +1,475 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.executor
+
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
+import bpipe.CommandStatus
+import bpipe.Config
+import bpipe.ExecutedProcess
+import bpipe.OSResourceThrottle
+import bpipe.Utils
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * The state of a job that a {@link CustomCommandExecutor} is waiting for
+ */
+@CompileStatic
+class CustomJobState {
+    
+    CustomCommandExecutor executor
+    
+    /**
+     * The id assigned to the job by the queuing system
+     */
+    String jobId
+    
+    /**
+     * File that the job writes its exit code to when it finishes, or null if 
+     * completion markers are not enabled
+     */
+    File marker
+    
+    /**
+     * True if the management script for the job implements the <code>status_batch</code> command
+     */
+    boolean batch
+    
+    /**
+     * Set by the waiting thread when it needs a result from the next batch status call
+     */
+    boolean statusRequested
+    
+    /**
+     * Status of the job (eg: <code>RUNNING</code> or <code>COMPLETE 0</code>) from the last 
+     * batch status call, if not yet consumed by the waiting thread
+     */
+    String batchResult
+    
+    /**
+     * Set if the last batch status call did not report on this job
+     */
+    boolean batchFailed
+    
+    /**
+     * Exit code read from the completion marker, once it has appeared
+     */
+    Integer markerExitCode
+    
+    /**
+     * Modification time of the completion marker, which is when the job finished
+     */
+    long markerTimeMs
+    
+    boolean isComplete() {
+        markerExitCode != null || batchResult?.startsWith(CommandStatus.COMPLETE.name())
+    }
+    
+    /**
+     * Job ids are only unique within one queuing system, so jobs are identified by
+     * their management script as well
+     */
+    String getKey() {
+        executor.managementScript + ':' + jobId
+    }
+}
+
+/**
+ * Statistics about how long after a job finished Bpipe noticed that it had finished
+ */
+@CompileStatic
+class CompletionLatency {
+    
+    /**
+     * Number of recent latencies retained for percentiles
+     */
+    final static int WINDOW = 200
+    
+    private long completions = 0
+    
+    private long totalLatencyMs = 0
+    
+    private long maxLatencyMs = 0
+    
+    private final long [] recent = new long[WINDOW]
+    
+    synchronized void record(long latencyMs) {
+        recent[(int)(completions % WINDOW)] = latencyMs
+        ++completions
+        totalLatencyMs += latencyMs
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs)
+    }
+    
+    synchronized long getCompletions() {
+        return completions
+    }
+    
+    synchronized Map<String,Object> toMap() {
+        long [] window = Arrays.copyOf(recent, (int)Math.min(completions, (long)WINDOW))
+        Arrays.sort(window)
+        return [
+            completions: completions,
+            meanLatencyMs: completions ? totalLatencyMs.intdiv(completions) : 0L,
+            medianLatencyMs: window.length ? window[window.length.intdiv(2)] : 0L,
+            p90LatencyMs: window.length ? window[(int)((window.length-1) * 0.9d)] : 0L,
+            maxLatencyMs: maxLatencyMs
+        ] as Map<String,Object>
+    }
+}
+
+/**
+ * Shares the work of waiting for jobs run by {@link CustomCommandExecutor} executors 
+ * between all the jobs of a pipeline.
+ * <p>
+ * Every <code>commandStatusMonitorInterval</code> milliseconds (default: 1000), the monitor:
+ * <ul>
+ * <li>checks for the completion markers of jobs that write them 
+ *     (<code>completion_marker=true</code> in the command configuration), and wakes the
+ *     threads waiting for jobs that have finished
+ * <li>makes one <code>status_batch</code> call to the management script for up to 
+ *     <code>commandStatusBatchSize</code> jobs (default: 200) for which a status has been 
+ *     requested (<code>batch_status=true</code> in the command configuration). The call
+ *     includes other jobs of the same management script, so that jobs which finished 
+ *     early are found without waiting for their own next poll.
+ * </ul>
+ * The monitor also keeps the recent queue and run times of jobs, which waiting threads use
+ * to decide how long to wait between polls, and statistics about how long after they
+ * finish that jobs are found to be complete.
+ * <p>
+ * Batch status calls can take a long time, so the monitor runs in its own thread rather
+ * than the shared {@link bpipe.Poller}.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+@Singleton(strict=false)
+class CustomCommandStatusMonitor extends TimerTask {
+    
+    final static String BATCH_STATUS_COMMAND = 'status_batch'
+    
+    /**
+     * Number of recent jobs used to estimate typical queue and run times
+     */
+    final static int HISTORY = 20
+    
+    /**
+     * The longest a waiting thread waits for a batch status call before polling 
+     * individually
+     */
+    final static long MAX_BATCH_WAIT_MS = 60000L
+    
+    /**
+     * Jobs being waited for, keyed by {@link CustomJobState#getKey}
+     */
+    final Map<String, CustomJobState> jobs = [:]
+    
+    long intervalMs = 1000L
+    
+    int batchSize = 200
+    
+    /**
+     * Latencies of completions found through completion markers. These are the time
+     * from when the marker was written until it was seen.
+     */
+    final CompletionLatency markerLatency = new CompletionLatency()
+    
+    /**
+     * Latencies of completions found by polling status. The exact time that the job finished is not
+     * known, so these are the time since the previous poll, which is an upper bound.
+     */
+    final CompletionLatency pollLatency = new CompletionLatency()
+    
+    private final LinkedList<Long> queueTimes = new LinkedList<Long>()
+    
+    private final Map<String,LinkedList<Long>> runTimes = [:]
+    
+    private ScheduledExecutorService scheduler
+    
+    CustomCommandStatusMonitor() {
+        this.intervalMs = (long)Config.userConfig.getOrDefault('commandStatusMonitorInterval', intervalMs)
+        this.batchSize = (int)Config.userConfig.getOrDefault('commandStatusBatchSize', batchSize)
+    }
+    
+    /**
+     * Add a job to be monitored, starting the monitor if necessary
+     */
+    CustomJobState register(CustomCommandExecutor executor, File marker, boolean batch) {
+        CustomJobState state = new CustomJobState(executor: executor, jobId: executor.commandId, marker: marker, batch: batch)
+        synchronized(jobs) {
+            jobs[state.key] = state
+            if(scheduler == null && (marker != null || batch)) {
+                log.info "Starting custom command status monitor with interval ${intervalMs}ms"
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, 'bpipe-custom-command-status')
+                        t.daemon = true
+                        return t
+                    }
+                })
+                scheduler.scheduleWithFixedDelay(this, intervalMs, intervalMs, TimeUnit.MILLISECONDS)
+            }
+        }
+        return state
+    }
+    
+    void unregister(CustomJobState state) {
+        boolean idle
+        synchronized(jobs) {
+            jobs.remove(state.key)
+            idle = jobs.isEmpty()
+        }
+        
+        if(idle && (markerLatency.completions || pollLatency.completions))
+            log.info "Completion latency of custom commands: completion markers: ${markerLatency.toMap()}, polling: ${pollLatency.toMap()}"
+    }
+    
+    /**
+     * Wait until the given time has passed, or the job is found to have completed
+     */
+    void await(CustomJobState state, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs
+        synchronized(jobs) {
+            while(!state.isComplete()) {
+                long remainingMs = deadline - System.currentTimeMillis()
+                if(remainingMs <= 0)
+                    return
+                jobs.wait(remainingMs)
+            }
+        }
+    }
+    
+    /**
+     * Wait for the next batch status call to report on the given job
+     * 
+     * @return  the status reported for the job, or null if it should be polled individually
+     */
+    String batchStatus(CustomJobState state) {
+        long deadline = System.currentTimeMillis() + MAX_BATCH_WAIT_MS
+        synchronized(jobs) {
+            if(state.batchResult == null) {
+                state.statusRequested = true
+                state.batchFailed = false
+                while(state.batchResult == null && !state.batchFailed && state.markerExitCode == null) {
+                    long remainingMs = deadline - System.currentTimeMillis()
+                    if(remainingMs <= 0) {
+                        log.warning "Timed out waiting for batch status of job $state.jobId"
+                        break
+                    }
+                    jobs.wait(remainingMs)
+                }
+            }
+            String result = state.batchResult
+            state.batchResult = null
+            state.statusRequested = false
+            return result
+        }
+    }
+    
+    @Override
+    void run() {
+        try {
+            checkMarkers()
+            pollBatches()
+        }
+        catch(Throwable t) {
+            log.warning("Error occurred in monitoring custom command status: $t")
+        }
+    }
+    
+    void checkMarkers() {
+        List<CustomJobState> waiting
+        synchronized(jobs) {
+            waiting = jobs.values().findAll { it.marker != null && it.markerExitCode == null }.toList()
+        }
+        
+        boolean found = false
+        for(CustomJobState state in waiting) {
+            if(!state.marker.exists())
+                continue
+                
+            // An empty marker is still being written
+            String exitCode = state.marker.text.trim()
+            if(!exitCode.isInteger())
+                continue
+            
+            log.info "Completion marker $state.marker for job $state.jobId has exit code $exitCode"
+            synchronized(jobs) {
+                state.markerTimeMs = state.marker.lastModified()
+                state.markerExitCode = exitCode.toInteger()
+            }
+            found = true
+        }
+        
+        if(found) {
+            synchronized(jobs) {
+                jobs.notifyAll()
+            }
+        }
+    }
+    
+    /**
+     * Query status for all the jobs that have requested it with a batch call. Jobs that have not
+     * requested status are added to the batch calls, up to the batch size.
+     */
+    void pollBatches() {
+        Map<String,List<CustomJobState>> byScript
+        synchronized(jobs) {
+            byScript = jobs.values().findAll { it.batch && !it.isComplete() }.groupBy { it.executor.managementScript }
+        }
+        
+        byScript.each { String script, List<CustomJobState> scriptJobs ->
+            List<CustomJobState> requested = scriptJobs.findAll { it.statusRequested }
+            if(!requested)
+                return
+                
+            List<CustomJobState> ordered = requested + scriptJobs.findAll { !it.statusRequested }
+            int batches = (int)Math.ceil(requested.size() / (double)batchSize)
+            ordered.collate(batchSize).take(batches).each { List<CustomJobState> batch ->
+                pollBatch(script, batch)
+            }
+        }
+    }
+    
+    void pollBatch(String script, List<CustomJobState> batch) {
+        List<String> jobIds = batch*.jobId
+        Map<String,String> results = [:]
+        try {
+            ExecutedProcess result = (ExecutedProcess)OSResourceThrottle.theInstance.withLock(null) {
+                Utils.executeCommand((List<Object>)(['bash', script, BATCH_STATUS_COMMAND] + jobIds))
+            }
+            if(result.exitValue == 0)
+                results = parseBatchStatus(result.out.toString())
+            else
+                log.warning "Batch status call for ${jobIds.size()} jobs using $script returned exit code $result.exitValue: $result.err"
+        }
+        catch(Exception e) {
+            log.warning "Failed to query status of ${jobIds.size()} jobs using $script: $e"
+        }
+        
+        synchronized(jobs) {
+            for(CustomJobState state in batch) {
+                String status = results[state.jobId]
+                if(status && (state.statusRequested || status.startsWith(CommandStatus.COMPLETE.name()))) {
+                    state.batchResult = status
+                }
+                else
+                if(state.statusRequested) {
+                    state.batchFailed = true
+                }
+            }
+            jobs.notifyAll()
+        }
+    }
+    
+    /**
+     * Parse the output of a batch status call, which has one line for each job in the form:
+     * <pre>
+     * &lt;job id&gt; &lt;status&gt; [&lt;exit code&gt;]
+     * </pre>
+     * where the status and exit code are as printed by the <code>status</code> command.
+     * 
+     * @return  map of job id to status and exit code
+     */
+    static Map<String,String> parseBatchStatus(String output) {
+        Map<String,String> results = [:]
+        for(String line in output.readLines()) {
+            List<String> parts = line.trim().tokenize()
+            if(parts.size() < 2)
+                continue
+            results[parts[0]] = parts[1..-1].join(' ')
+        }
+        return results
+    }
+    
+    /**
+     * Record how long a job waited to start, and how long it ran
+     * 
+     * @param name      name of the command, which is usually the name of the stage
+     * @param queueMs   time from submission until the job was seen running, or null if unknown
+     * @param runMs     time from the job being seen running until it completed, or null if unknown
+     */
+    void recordTimes(String name, Long queueMs, Long runMs) {
+        synchronized(queueTimes) {
+            if(queueMs != null)
+                addSample(queueTimes, queueMs)
+            if(runMs != null)
+                addSample(runTimes.computeIfAbsent(name) { new LinkedList<Long>() }, runMs)
+        }
+    }
+    
+    /**
+     * @return the median time recent jobs waited to start, or null if none has been recorded
+     */
+    Long getTypicalQueueTime() {
+        synchronized(queueTimes) {
+            return median(queueTimes)
+        }
+    }
+    
+    /**
+     * @return the median run time of recent jobs with the given name, or null if none has been recorded
+     */
+    Long getTypicalRunTime(String name) {
+        synchronized(queueTimes) {
+            return median(runTimes[name])
+        }
+    }
+    
+    /**
+     * Choose how long to wait before polling a job again, so that a job is polled rarely while it
+     * is far from the typical time it spends in its current state, and often as it approaches 
+     * that time. Once a job has exceeded the typical time, the interval grows again.
+     * 
+     * @param elapsedMs time the job has spent in its current state
+     * @param typicalMs typical time spent in the state
+     */
+    static long adaptiveInterval(long elapsedMs, long typicalMs, long minSleep, long maxSleep) {
+        long remainingMs = typicalMs - elapsedMs
+        long interval = remainingMs > 0 ? remainingMs.intdiv(2) : (-remainingMs).intdiv(4)
+        return Math.max(minSleep, Math.min(maxSleep, interval))
+    }
+    
+    private static void addSample(LinkedList<Long> samples, long value) {
+        samples.add(value)
+        if(samples.size() > HISTORY)
+            samples.removeFirst()
+    }
+    
+    private static Long median(List<Long> samples) {
+        if(!samples)
+            return null
+        List<Long> sorted = samples.sort(false)
+        return sorted[sorted.size().intdiv(2)]
+    }
+    
+    static CustomCommandStatusMonitor getTheInstance() {
+        return CustomCommandStatusMonitor.instance
+    }
+}
@@ -122,7 +122,14 @@ class GoogleCloudCommandExecutor extends CloudExecutor {
 
     @Override
     public void cleanup() {
-        
+        if(releasePooledInstance())
+            return
+            
+        terminateInstance()
+    }
+    
+    @Override
+    void terminateInstance() {
         String sdkHome = getSDKHome()
         List<String> deleteCommand = ["$sdkHome/bin/gcloud","compute","instances","delete"] + projectArguments + zoneFlag + ["--quiet",instanceId]
         log.info "Executing delete command: " + deleteCommand.join(' ')
@@ -399,6 +406,8 @@ class GoogleCloudCommandExecutor extends CloudExecutor {
 
     @Override
     public void connectInstance(Map config) {
-        assert false : 'GoogleCloudCommandExecutor does not support connection to running instances'
+        // Only instances started by bpipe in the configured zone, such as those 
+        // in an instance pool, can be connected to
+        this.zone = getRegion(config)
     }
 }
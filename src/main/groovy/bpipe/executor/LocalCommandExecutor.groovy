@@ -31,6 +31,7 @@ import groovy.util.logging.Log
 import java.beans.PropertyChangeEvent
 import java.lang.ProcessBuilder.Redirect;
 import java.util.concurrent.Semaphore
+import java.util.stream.Collectors
 
 import bpipe.Command;
 import bpipe.OutputLog;
@@ -48,7 +49,7 @@ import bpipe.CommandManager;
  * @author simon.sadedin@mcri.edu.au
  */
 @Log
-class LocalCommandExecutor implements CommandExecutor, ForwardHost {
+class LocalCommandExecutor implements CommandExecutor, ForwardHost, UtilisationCapturingExecutor {
     
     public static final long serialVersionUID = 0L
     
@@ -80,6 +81,12 @@ class LocalCommandExecutor implements CommandExecutor, ForwardHost {
     
     String jobDir
     
+    /**
+     * Peak RSS of the process tree of the command, if it was sampled
+     * by the {@link bpipe.LocalMemoryScheduler}
+     */
+    Long peakRssBytes = null
+    
     LocalCommandExecutor() {
     }
     
@@ -241,7 +248,7 @@ class LocalCommandExecutor implements CommandExecutor, ForwardHost {
     private CommandStatus getStatusOfSavedProcess() {
         try {
 
-            String info = "ps -o ppid,ruser -p ${this.pid}".execute().text
+            String info = Utils.executeCommand((List<Object>)['ps', '-o', 'ppid,ruser', '-p', this.pid]).out.toString()
 
             def lines = info.split("\n")*.trim()
             if(lines.size()>1)  {
@@ -344,6 +351,22 @@ class LocalCommandExecutor implements CommandExecutor, ForwardHost {
         return null;
     }
     
+    /**
+     * Local commands only have utilisation available when their memory use
+     * was sampled by the {@link bpipe.LocalMemoryScheduler}
+     */
+    @Override
+    CommandUtilisation captureUtilisation() {
+        if(peakRssBytes == null)
+            return null
+            
+        return new CommandUtilisation(
+            maxRssBytes: peakRssBytes,
+            source: 'proc',
+            capturedAtMs: System.currentTimeMillis()
+        )
+    }
+    
     void stop() {
         
         // There are scenarios where we could try to stop a command before it got to read
@@ -357,14 +380,7 @@ class LocalCommandExecutor implements CommandExecutor, ForwardHost {
         
         log.info "Shutting down local job $id with pid $pid"
         
-        List<String> shell = command.shell ?: ['bash']
-        
-        List killCmd = [*shell,"-c","source ${bpipe.Runner.BPIPE_HOME}/bin/bpipe-utils.sh; killtree $pid"]
-        ExecutedProcess killResult = Utils.executeCommand(killCmd)
-        if(killResult.exitValue != 0) {
-            throw new RuntimeException("Attempt to kill process returned exit code " + 
-                "$killResult.exitValue using command:\n\n$killCmd\n\nOutput:\n\n$killResult.out\n\n$killResult.err")
-        }
+        killTree(pid)
         
         // Store an exit code so that future status calls will know that the command 
         // exited via a normal process and not abruptly killed
@@ -372,6 +388,30 @@ class LocalCommandExecutor implements CommandExecutor, ForwardHost {
         exitFile.text = "-1"
     }
     
+    /**
+     * Terminate the given process and all of its descendants, including those that 
+     * were started in a new session with <code>setsid</code>.
+     * <p>
+     * The processes are signalled directly, rather than by running <code>killtree</code>
+     * from <code>bpipe-utils.sh</code>, which needs a shell and a <code>ps</code> for each 
+     * process in the tree.
+     */
+    @CompileStatic
+    static void killTree(long pid) {
+        Optional<ProcessHandle> handle = ProcessHandle.of(pid)
+        if(!handle.isPresent()) {
+            log.info "Process $pid is not running"
+            return
+        }
+        
+        // Descendants first, as killtree does
+        List<ProcessHandle> descendants = handle.get().descendants().collect(Collectors.toList())
+        for(ProcessHandle descendant in descendants) {
+            descendant.destroy()
+        }
+        handle.get().destroy()
+    }
+    
     @Override
     void cleanup() {
         
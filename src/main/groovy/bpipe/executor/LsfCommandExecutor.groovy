@@ -46,7 +46,7 @@ import bpipe.CommandStatus
  */
 @Mixin(ForwardHost)
 @Log
-class LsfCommandExecutor implements CommandExecutor {
+class LsfCommandExecutor implements CommandExecutor, BulkStoppable {
 
     private Map config;
 
@@ -332,7 +332,7 @@ class LsfCommandExecutor implements CommandExecutor {
             exitValue = p.waitFor()
         }
         
-        if( !exitValue ) {
+        if( exitValue ) {
             
             def msg = "LSF failed to stop command $id, returned exit code $exitValue from command line: $cmd"
             log.severe "Failed stop command produced output: \n$out\n$err"
@@ -347,6 +347,21 @@ class LsfCommandExecutor implements CommandExecutor {
         log.info "Successfully called script to stop command $id"
     }
 
+    @Override
+    List<String> getBulkStopCommand() {
+        return ['bkill']
+    }
+    
+    @Override
+    String getJobId() {
+        return commandId
+    }
+    
+    @Override
+    boolean isStoppedMessage(String message) {
+        return message.contains("is being terminated") || message.contains("Job has already finished") || message.contains("No matching job found")
+    }
+
     @Override
     void cleanup() {
         this.forwarders*.cancel()
@@ -43,7 +43,7 @@ import bpipe.Utils;
  */
 @Mixin(ForwardHost)
 @Log
-class PbsproCommandExecutor extends CustomCommandExecutor implements CommandExecutor {
+class PbsproCommandExecutor extends CustomCommandExecutor implements CommandExecutor, BulkStoppable {
 
     public static final long serialVersionUID = 0L
 
@@ -141,6 +141,21 @@ class PbsproCommandExecutor extends CustomCommandExecutor implements CommandExec
         cleanup()
     }
 
+    @Override
+    List<String> getBulkStopCommand() {
+        return ['qdel']
+    }
+    
+    @Override
+    String getJobId() {
+        return commandId
+    }
+    
+    @Override
+    boolean isStoppedMessage(String message) {
+        return message.contains("Unknown Job Id") || message.contains("Job has finished") || message.contains("invalid state for job")
+    }
+    
 	void cleanup() {
 		this.forwarders*.cancel()
 		File of = new File(this.name+".o"+this.commandId)
@@ -45,7 +45,7 @@ import bpipe.ExecutedProcess
  * @author Paolo Di Tommaso <paolo.ditommaso@gmail.com>
  */
 @Log
-class SgeCommandExecutor implements CommandExecutor, ForwardHost {
+class SgeCommandExecutor implements CommandExecutor, ForwardHost, BulkStoppable {
     
     public static final long serialVersionUID = 520230130470104528L;
 
@@ -345,6 +345,21 @@ class SgeCommandExecutor implements CommandExecutor, ForwardHost {
         log.info "Successfully called script to stop command $id"
     }
 
+    @Override
+    List<String> getBulkStopCommand() {
+        return ['qdel']
+    }
+    
+    @Override
+    String getJobId() {
+        return commandId
+    }
+    
+    @Override
+    boolean isStoppedMessage(String message) {
+        return message.contains("for deletion") || message.contains("has deleted job") || message.contains("does not exist")
+    }
+
     @Override
     void cleanup() {
         this.forwarders*.cancel()
@@ -99,6 +99,16 @@ class SlurmCommandExecutor extends TorqueCommandExecutor implements CommandExecu
        }
     }
 
+    @Override
+    List<String> getBulkStopCommand() {
+        return ['scancel']
+    }
+    
+    @Override
+    boolean isStoppedMessage(String message) {
+        return message.contains("already completing or completed") || message.contains("Invalid job id specified")
+    }
+    
     void cleanup() {
         this.stopForwarding()
         // slurm12 is stdout and stderr
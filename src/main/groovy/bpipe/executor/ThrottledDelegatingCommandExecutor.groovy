@@ -13,6 +13,8 @@ import bpipe.Command;
 import bpipe.CommandProcessor
 import bpipe.Concurrency;
 import bpipe.Config
+import bpipe.CriticalPathPlanner
+import bpipe.LocalMemoryScheduler
 import bpipe.Pipeline
 import bpipe.PipelineContext;
 import bpipe.PipelineDevRetry
@@ -20,6 +22,7 @@ import bpipe.ResourceUnit;
 import bpipe.Runner
 import bpipe.Utils
 import bpipe.processors.CondaEnvContainerWrapper
+import bpipe.processors.ContainerPool
 import bpipe.processors.DockerContainerWrapper
 import bpipe.processors.EnvironmentVariableSetter
 import bpipe.processors.UvEnvWrapper
@@ -88,6 +91,12 @@ class ThrottledDelegatingCommandExecutor implements CommandExecutor {
     Map cfg
     Command command
     
+    /**
+     * For restoring saved commands, which set the fields afterwards
+     */
+    protected ThrottledDelegatingCommandExecutor() {
+    }
+    
     ThrottledDelegatingCommandExecutor(CommandExecutor delegateTo, Map resources) {
         
         // Note that the sort here is vital to avoid deadlocks - it ensures 
@@ -136,7 +145,11 @@ class ThrottledDelegatingCommandExecutor implements CommandExecutor {
         }
         
         Semaphore lock = commandExecutor.getLaunchLock() ?: jobLaunchLock        
-        lock.acquire()
+        CriticalPathPlanner planner = CriticalPathPlanner.theInstance
+        if(planner.enabled)
+            planner.acquire(lock, 1, planner.priorityOf(cmd))
+        else
+            lock.acquire()
         try {
             if(cfg.containsKey('jobLaunchSeparationMs')) {
                 Thread.sleep((int)cfg.jobLaunchSeparationMs)
@@ -153,6 +166,7 @@ class ThrottledDelegatingCommandExecutor implements CommandExecutor {
         }
         finally {
             lock.release()
+            planner.released()
         }
         
         this.command.save()
@@ -237,7 +251,7 @@ class ThrottledDelegatingCommandExecutor implements CommandExecutor {
             else
             if(containerType == "singularity") {
                 log.info "Configuring command with singularity shell wrapper for command $cmd.id"
-                processors << new SingularityContainerWrapper()
+                processors << new SingularityContainerWrapper(commandExecutor)
             }
             else 
                 throw new IllegalArgumentException("Unknown container type $containerType configured")
@@ -332,6 +346,11 @@ class ThrottledDelegatingCommandExecutor implements CommandExecutor {
                 log.warning("Error reported while releasing $resource.amount $resource.key : " + t.toString())
             }
         }
+        
+        if(command != null) {
+            LocalMemoryScheduler.theInstance.commandFinished(command)
+            ContainerPool.releaseCommand(command.id)
+        }
     }
     
     String status() {
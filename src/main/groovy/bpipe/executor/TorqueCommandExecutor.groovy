@@ -46,7 +46,7 @@ import bpipe.Utils
  */
 @Log
 @CompileStatic
-class TorqueCommandExecutor extends CustomCommandExecutor implements CommandExecutor {
+class TorqueCommandExecutor extends CustomCommandExecutor implements CommandExecutor, BulkStoppable {
 
     public static final long serialVersionUID = 0L
     
@@ -116,6 +116,21 @@ class TorqueCommandExecutor extends CustomCommandExecutor implements CommandExec
         cleanup()
     }
 
+    @Override
+    List<String> getBulkStopCommand() {
+        return ['qdel']
+    }
+    
+    @Override
+    String getJobId() {
+        return commandId
+    }
+    
+    @Override
+    boolean isStoppedMessage(String message) {
+        return message.contains("Unknown Job Id") || message.contains("invalid state for job - COMPLETE")
+    }
+    
 	void cleanup() {
         this.stopForwarding()
 		File of = new File(this.name+".o"+this.commandId)
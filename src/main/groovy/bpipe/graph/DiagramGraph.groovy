@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.graph
+
+import groovy.transform.CompileStatic
+
+/**
+ * A compact representation of the structure of a pipeline for drawing diagrams.
+ * <p>
+ * Nodes and edges are stored in arrays indexed by position, so that pipelines with hundreds
+ * of thousands of stage instances can be represented, collapsed, laid out and written without
+ * the memory of a Swing or JGraphX model. A node may stand for more than one instance
+ * of a stage: {@link #collapse} replaces the instances of a stage that run in repeated 
+ * branches with a single group, recording the number of instances in {@link #counts}
+ * and their ids in {@link #members}.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class DiagramGraph {
+    
+    int nodeCount = 0
+    
+    String [] ids = new String[16]
+    
+    String [] names = new String[16]
+    
+    String [] types = new String[16]
+    
+    /**
+     * Number of stage instances represented by each node
+     */
+    int [] counts = new int[16]
+    
+    /**
+     * The ids of the instances represented by each node, for collapsed graphs only
+     */
+    List<List<String>> members = null
+    
+    int edgeCount = 0
+    
+    int [] edgeFrom = new int[16]
+    
+    int [] edgeTo = new int[16]
+    
+    String [] edgeTypes = new String[16]
+    
+    /**
+     * Number of edges between instances represented by each edge
+     */
+    int [] edgeCounts = new int[16]
+    
+    private Map<String,Integer> indexById = new HashMap<String,Integer>()
+    
+    /**
+     * Create a graph from the structure created by {@link bpipe.Pipeline#diagram}
+     */
+    static DiagramGraph fromStructure(Map structure) {
+        DiagramGraph graph = new DiagramGraph()
+        ((Map<String,Node>)structure.nodes).each { String id, Node node ->
+            graph.addNode(id, (String)node.name(), (String)node.attributes().type)
+        }
+        for(Map edge in (List<Map>)structure.edges) {
+            Integer from = graph.indexOf((String)edge.from)
+            Integer to = graph.indexOf((String)edge.to)
+            if(from != null && to != null)
+                graph.addEdge(from, to, (String)edge.type)
+        }
+        return graph
+    }
+    
+    int addNode(String id, String name, String type, int count=1) {
+        if(nodeCount == ids.length) {
+            int size = nodeCount * 2
+            ids = Arrays.copyOf(ids, size)
+            names = Arrays.copyOf(names, size)
+            types = Arrays.copyOf(types, size)
+            counts = Arrays.copyOf(counts, size)
+        }
+        ids[nodeCount] = id
+        names[nodeCount] = name
+        types[nodeCount] = type
+        counts[nodeCount] = count
+        indexById.put(id, nodeCount)
+        return nodeCount++
+    }
+    
+    int addEdge(int from, int to, String type, int count=1) {
+        if(edgeCount == edgeFrom.length) {
+            int size = edgeCount * 2
+            edgeFrom = Arrays.copyOf(edgeFrom, size)
+            edgeTo = Arrays.copyOf(edgeTo, size)
+            edgeTypes = Arrays.copyOf(edgeTypes, size)
+            edgeCounts = Arrays.copyOf(edgeCounts, size)
+        }
+        edgeFrom[edgeCount] = from
+        edgeTo[edgeCount] = to
+        edgeTypes[edgeCount] = type
+        edgeCounts[edgeCount] = count
+        return edgeCount++
+    }
+    
+    /**
+     * @return  the index of the node with the given id, or null if there is none
+     */
+    Integer indexOf(String id) {
+        return indexById.get(id)
+    }
+    
+    /**
+     * @return  the label to show for the given node, including the number of instances
+     *          it represents if it is more than one
+     */
+    String label(int node) {
+        counts[node] > 1 ? names[node] + ' (x' + counts[node] + ')' : names[node]
+    }
+    
+    /**
+     * @return  the nodes in an order where every node comes after all of its predecessors. Nodes
+     *          that are part of a cycle, which should not occur in a pipeline, come last.
+     */
+    int [] topologicalOrder() {
+        int [] inDegree = new int[nodeCount]
+        for(int e=0; e<edgeCount; ++e)
+            ++inDegree[edgeTo[e]]
+        
+        int [][] successors = adjacency(edgeFrom, edgeTo)
+        
+        int [] order = new int[nodeCount]
+        int head = 0
+        int tail = 0
+        for(int n=0; n<nodeCount; ++n) {
+            if(inDegree[n] == 0)
+                order[tail++] = n
+        }
+        
+        while(head < tail) {
+            int n = order[head++]
+            for(int s in successors[n]) {
+                if(--inDegree[s] == 0)
+                    order[tail++] = s
+            }
+        }
+        
+        // Anything left is in a cycle
+        if(tail < nodeCount) {
+            for(int n=0; n<nodeCount; ++n) {
+                if(inDegree[n] > 0)
+                    order[tail++] = n
+            }
+        }
+        return order
+    }
+    
+    /**
+     * @return  for each node, the nodes connected to it by an edge from <code>from</code> to <code>to</code>
+     */
+    int [][] adjacency(int [] from, int [] to) {
+        int [] degree = new int[nodeCount]
+        for(int e=0; e<edgeCount; ++e)
+            ++degree[from[e]]
+        
+        int [][] result = new int[nodeCount][]
+        for(int n=0; n<nodeCount; ++n)
+            result[n] = new int[degree[n]]
+        
+        Arrays.fill(degree, 0)
+        for(int e=0; e<edgeCount; ++e) {
+            int n = from[e]
+            result[n][degree[n]++] = to[e]
+        }
+        return result
+    }
+    
+    /**
+     * @return  the predecessors of each node
+     */
+    int [][] predecessors() {
+        adjacency(edgeTo, edgeFrom)
+    }
+    
+    /**
+     * Create a graph where stage instances that run in repeated branches are replaced by a single
+     * group.
+     * <p>
+     * Nodes are visited in topological order, and two nodes are grouped if they are instances of
+     * the same stage whose predecessors are in the same groups. Thus the stages of a branch that 
+     * is repeated for many samples or regions are grouped with the same stages in the other 
+     * branches, however deeply the branches are nested, while repeated uses of the same stage in
+     * sequence remain separate. Edges between the instances of two groups become a single edge.
+     * 
+     * @return  the collapsed graph, with the number of instances of each group in {@link #counts}
+     *          and the ids of the instances in {@link #members}
+     */
+    DiagramGraph collapse() {
+        
+        DiagramGraph result = new DiagramGraph()
+        result.members = []
+        
+        int [][] predecessors = predecessors()
+        int [] groups = new int[nodeCount]
+        Arrays.fill(groups, -1)
+        
+        Map<String,Integer> groupsByKey = new HashMap<String,Integer>()
+        StringBuilder key = new StringBuilder()
+        for(int n in topologicalOrder()) {
+            key.setLength(0)
+            key.append(names[n]).append('\u0000').append(types[n])
+            
+            int [] predecessorGroups = new int[predecessors[n].length]
+            int count = 0
+            for(int p in predecessors[n]) {
+                if(groups[p] < 0) { // cycle: keep the node on its own
+                    key.append('\u0000#').append(n)
+                    continue
+                }
+                predecessorGroups[count++] = groups[p]
+            }
+            Arrays.sort(predecessorGroups, 0, count)
+            for(int i=0; i<count; ++i) {
+                if(i == 0 || predecessorGroups[i] != predecessorGroups[i-1])
+                    key.append('\u0000').append(predecessorGroups[i])
+            }
+            
+            String groupKey = key.toString()
+            Integer group = groupsByKey.get(groupKey)
+            if(group == null) {
+                group = result.addNode(ids[n], names[n], types[n], 0)
+                result.members << new ArrayList<String>(1)
+                groupsByKey.put(groupKey, group)
+            }
+            result.counts[group] += counts[n]
+            result.members[group].add(ids[n])
+            groups[n] = group
+        }
+        
+        Map<String,Integer> edgesByKey = new HashMap<String,Integer>()
+        for(int e=0; e<edgeCount; ++e) {
+            int from = groups[edgeFrom[e]]
+            int to = groups[edgeTo[e]]
+            String edgeKey = String.valueOf(from) + ':' + to + ':' + edgeTypes[e]
+            Integer edge = edgesByKey.get(edgeKey)
+            if(edge == null)
+                edgesByKey.put(edgeKey, result.addEdge(from, to, edgeTypes[e], edgeCounts[e]))
+            else
+                result.edgeCounts[edge] += edgeCounts[e]
+        }
+        
+        return result
+    }
+}
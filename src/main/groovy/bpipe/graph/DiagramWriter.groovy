@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.graph
+
+import groovy.transform.CompileStatic
+
+/**
+ * Writes a {@link DiagramGraph} as a diagram in DOT, SVG or JSON format.
+ * <p>
+ * Each node and edge is written directly to the output as it is visited, so the only memory
+ * needed beyond the graph itself is that of the layout, which is a few integers per node.
+ * SVG and JSON output include the position of each node from a {@link LayeredLayout}, so that
+ * a viewer of the JSON can draw the diagram, and add to it, without laying it out again.
+ * DOT output is left for Graphviz to lay out.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class DiagramWriter {
+    
+    final static List<String> FORMATS = ['dot', 'svg', 'json']
+    
+    /**
+     * Approximate width of a character of the labels in SVG output
+     */
+    final static int CHAR_WIDTH = 7
+    
+    final static String FILL = '#C3D9FF'
+    
+    final static String STROKE = '#6482B9'
+    
+    DiagramGraph graph
+    
+    boolean vertical = false
+    
+    private LayeredLayout layout
+    
+    /**
+     * Write the graph in the given format, which must be one of {@link #FORMATS}
+     */
+    void write(String format, Writer w) {
+        if(format == 'dot')
+            writeDot(w)
+        else
+        if(format == 'svg')
+            writeSvg(w)
+        else
+        if(format == 'json')
+            writeJson(w)
+        else
+            throw new IllegalArgumentException("Diagram format $format is not supported: please use one of ${FORMATS.join(', ')}")
+        w.flush()
+    }
+    
+    LayeredLayout getLayout() {
+        if(layout == null) {
+            int longest = 0
+            for(int n=0; n<graph.nodeCount; ++n)
+                longest = Math.max(longest, graph.label(n).length())
+            layout = LayeredLayout.layout(graph, Math.max(80, longest * CHAR_WIDTH + 16), vertical)
+        }
+        return layout
+    }
+    
+    void writeDot(Writer w) {
+        w.write('digraph pipeline {\n')
+        w.write(vertical ? '  rankdir=TB;\n' : '  rankdir=LR;\n')
+        w.write('  node [shape=box, style=filled, fillcolor="' + FILL + '", color="' + STROKE + '", fontname="Helvetica"];\n')
+        for(int n=0; n<graph.nodeCount; ++n) {
+            w.write('  "')
+            w.write(escapeDot(graph.ids[n]))
+            w.write('" [label="')
+            w.write(escapeDot(graph.label(n)))
+            w.write('"')
+            if(graph.types[n] == 'merge')
+                w.write(', shape=point, width=0.1')
+            else
+            if(graph.types[n] == 'segment')
+                w.write(', style="filled,dashed"')
+            w.write('];\n')
+        }
+        for(int e=0; e<graph.edgeCount; ++e) {
+            w.write('  "')
+            w.write(escapeDot(graph.ids[graph.edgeFrom[e]]))
+            w.write('" -> "')
+            w.write(escapeDot(graph.ids[graph.edgeTo[e]]))
+            w.write('";\n')
+        }
+        w.write('}\n')
+    }
+    
+    void writeSvg(Writer w) {
+        LayeredLayout layout = getLayout()
+        int width = layout.width
+        int height = layout.height
+        
+        w.write('<?xml version="1.0" encoding="UTF-8"?>\n')
+        w.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"$width\" height=\"$height\" viewBox=\"0 0 $width $height\">\n")
+        w.write('<defs><marker id="arrow" viewBox="0 0 10 10" refX="10" refY="5" markerWidth="6" markerHeight="6" orient="auto">' + 
+                '<path d="M 0 0 L 10 5 L 0 10 z" fill="' + STROKE + '"/></marker></defs>\n')
+        w.write("<g stroke=\"$STROKE\" fill=\"none\" marker-end=\"url(#arrow)\">\n")
+        
+        // Edges are drawn first so that the boxes are drawn over them
+        int halfWidth = layout.boxWidth.intdiv(2)
+        int halfHeight = layout.boxHeight.intdiv(2)
+        for(int e=0; e<graph.edgeCount; ++e) {
+            int from = graph.edgeFrom[e]
+            int to = graph.edgeTo[e]
+            if(vertical) 
+                writeLine(w, layout.x(from) + halfWidth, layout.y(from) + layout.boxHeight, layout.x(to) + halfWidth, layout.y(to))
+            else
+                writeLine(w, layout.x(from) + layout.boxWidth, layout.y(from) + halfHeight, layout.x(to), layout.y(to) + halfHeight)
+        }
+        w.write('</g>\n')
+        
+        w.write("<g font-family=\"Helvetica, Arial, sans-serif\" font-size=\"12\" text-anchor=\"middle\" fill=\"$FILL\" stroke=\"$STROKE\">\n")
+        for(int n=0; n<graph.nodeCount; ++n) {
+            int x = layout.x(n)
+            int y = layout.y(n)
+            w.write('<g id="')
+            w.write(escapeXml(graph.ids[n]))
+            w.write('">')
+            if(graph.types[n] == 'merge') {
+                w.write("<circle cx=\"${x + halfWidth}\" cy=\"${y + halfHeight}\" r=\"4\"/>")
+            }
+            else {
+                w.write("<rect x=\"$x\" y=\"$y\" width=\"$layout.boxWidth\" height=\"$layout.boxHeight\" rx=\"4\"")
+                if(graph.types[n] == 'segment')
+                    w.write(' stroke-dasharray="4,2"')
+                w.write("/><text x=\"${x + halfWidth}\" y=\"${y + halfHeight + 4}\" fill=\"black\" stroke=\"none\">")
+                w.write(escapeXml(graph.label(n)))
+                w.write('</text>')
+            }
+            w.write('</g>\n')
+        }
+        w.write('</g>\n</svg>\n')
+    }
+    
+    private static void writeLine(Writer w, int x1, int y1, int x2, int y2) {
+        w.write("<line x1=\"$x1\" y1=\"$y1\" x2=\"$x2\" y2=\"$y2\"/>\n")
+    }
+    
+    /**
+     * Write the graph in the same form as {@link bpipe.Pipeline#getNodeGraph}, with the
+     * position of each node, and the number of instances and edges that each node and edge
+     * represents
+     */
+    void writeJson(Writer w) {
+        LayeredLayout layout = getLayout()
+        w.write('{"nodes":[')
+        for(int n=0; n<graph.nodeCount; ++n) {
+            if(n > 0)
+                w.write(',')
+            w.write('\n{"name":')
+            writeJsonString(w, graph.names[n])
+            w.write(',"id":')
+            writeJsonString(w, graph.ids[n])
+            w.write(',"type":')
+            writeJsonString(w, graph.types[n])
+            w.write(',"x":')
+            w.write(String.valueOf(layout.x(n)))
+            w.write(',"y":')
+            w.write(String.valueOf(layout.y(n)))
+            w.write(',"count":')
+            w.write(String.valueOf(graph.counts[n]))
+            if(graph.members != null && graph.counts[n] > 1) {
+                w.write(',"members":[')
+                List<String> members = graph.members[n]
+                for(int i=0; i<members.size(); ++i) {
+                    if(i > 0)
+                        w.write(',')
+                    writeJsonString(w, members[i])
+                }
+                w.write(']')
+            }
+            w.write('}')
+        }
+        w.write('\n],"edges":[')
+        for(int e=0; e<graph.edgeCount; ++e) {
+            if(e > 0)
+                w.write(',')
+            w.write('\n{"from":')
+            writeJsonString(w, graph.ids[graph.edgeFrom[e]])
+            w.write(',"to":')
+            writeJsonString(w, graph.ids[graph.edgeTo[e]])
+            w.write(',"type":')
+            writeJsonString(w, graph.edgeTypes[e])
+            w.write(',"count":')
+            w.write(String.valueOf(graph.edgeCounts[e]))
+            w.write('}')
+        }
+        w.write('\n],"width":' + layout.width + ',"height":' + layout.height + '}\n')
+    }
+    
+    static void writeJsonString(Writer w, String value) {
+        if(value == null) {
+            w.write('null')
+            return
+        }
+        w.write('"')
+        int length = value.length()
+        for(int i=0; i<length; ++i) {
+            char c = value.charAt(i)
+            if(c == (char)'"' || c == (char)'\\') {
+                w.write('\\')
+                w.write((int)c)
+            }
+            else
+            if(c < (char)0x20) 
+                w.write(String.format('\\u%04x', (int)c))
+            else
+                w.write((int)c)
+        }
+        w.write('"')
+    }
+    
+    static String escapeDot(String value) {
+        value.replace('\\', '\\\\').replace('"', '\\"')
+    }
+    
+    static String escapeXml(String value) {
+        value.replace('&', '&amp;').replace('<', '&lt;').replace('>', '&gt;').replace('"', '&quot;')
+    }
+}
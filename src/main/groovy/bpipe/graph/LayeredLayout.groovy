@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.graph
+
+import groovy.transform.CompileStatic
+
+/**
+ * An incremental layered layout for pipeline diagrams.
+ * <p>
+ * Each node is placed in the layer after the last of its predecessors, and in the first free
+ * row of that layer at or below the row of its first predecessor, so that the stages of a branch
+ * line up in a row. Placing a node never moves the nodes placed before it, so nodes can be added 
+ * one at a time as a pipeline is defined or run, and a live view only needs to draw the new 
+ * nodes. Placing a node costs time proportional to its number of predecessors, so very large
+ * graphs are laid out in linear time, unlike the hierarchical layout used by {@link Graph}.
+ *
+ * @author simon.sadedin@mcri.edu.au
+ */
+@CompileStatic
+class LayeredLayout {
+    
+    int boxWidth = 80
+    
+    int boxHeight = 30
+    
+    /**
+     * Space between layers, and between rows within a layer
+     */
+    int layerGap = 60
+    
+    int rowGap = 20
+    
+    int margin = 20
+    
+    boolean vertical = false
+    
+    int [] layers = grow(new int[0], 16)
+    
+    int [] rows = grow(new int[0], 16)
+    
+    /**
+     * The next free row in each layer
+     */
+    int [] nextRows = new int[16]
+    
+    int layerCount = 0
+    
+    int rowCount = 0
+    
+    /**
+     * Place the given node after its predecessors. Predecessors that have not been placed yet
+     * are ignored.
+     * 
+     * @return  the layer the node was placed in
+     */
+    int add(int node, int [] predecessors) {
+        
+        if(node >= layers.length) {
+            int size = Math.max(node + 1, layers.length * 2)
+            layers = grow(layers, size)
+            rows = grow(rows, size)
+        }
+        
+        int layer = 0
+        int row = -1
+        for(int p in predecessors) {
+            if(p >= layers.length || layers[p] < 0)
+                continue
+            layer = Math.max(layer, layers[p] + 1)
+            if(row < 0)
+                row = rows[p]
+        }
+        
+        if(layer >= nextRows.length)
+            nextRows = Arrays.copyOf(nextRows, Math.max(layer + 1, nextRows.length * 2))
+        
+        row = Math.max(row, nextRows[layer])
+        nextRows[layer] = row + 1
+        
+        layers[node] = layer
+        rows[node] = row
+        layerCount = Math.max(layerCount, layer + 1)
+        rowCount = Math.max(rowCount, row + 1)
+        return layer
+    }
+    
+    /**
+     * Lay out a whole graph, placing its nodes in topological order
+     */
+    static LayeredLayout layout(DiagramGraph graph, int boxWidth, boolean vertical) {
+        LayeredLayout layout = new LayeredLayout(boxWidth: boxWidth, vertical: vertical)
+        layout.layers = grow(new int[0], Math.max(graph.nodeCount, 1))
+        layout.rows = grow(new int[0], layout.layers.length)
+        
+        int [][] predecessors = graph.predecessors()
+        for(int n in graph.topologicalOrder())
+            layout.add(n, predecessors[n])
+        return layout
+    }
+    
+    int x(int node) {
+        margin + (vertical ? rows[node] * (boxWidth + rowGap) : layers[node] * (boxWidth + layerGap))
+    }
+    
+    int y(int node) {
+        margin + (vertical ? layers[node] * (boxHeight + layerGap) : rows[node] * (boxHeight + rowGap))
+    }
+    
+    int getWidth() {
+        int across = vertical ? rowCount : layerCount
+        2 * margin + across * boxWidth + Math.max(across - 1, 0) * (vertical ? rowGap : layerGap)
+    }
+    
+    int getHeight() {
+        int down = vertical ? layerCount : rowCount
+        2 * margin + down * boxHeight + Math.max(down - 1, 0) * (vertical ? layerGap : rowGap)
+    }
+    
+    private static int [] grow(int [] values, int size) {
+        int oldSize = values.length
+        int [] result = Arrays.copyOf(values, size)
+        Arrays.fill(result, oldSize, size, -1)
+        return result
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.processors
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import bpipe.Config
+import bpipe.ExecutedProcess
+import bpipe.PipelineError
+import bpipe.Poller
+import bpipe.Runner
+import bpipe.Utils
+import bpipe.executor.CommandExecutor
+import bpipe.executor.LocalCommandExecutor
+import groovy.transform.CompileStatic
+import groovy.util.logging.Log
+
+/**
+ * A bounded pool of long running containers that commands are run inside, rather than 
+ * creating a new container for every command.
+ * <p>
+ * Starting a container means creating it, setting up its mounts and resolving its image, 
+ * which for short commands can take longer than the command itself. Commands using a pool
+ * are instead run inside an existing container (with <code>docker exec</code> or 
+ * <code>singularity exec instance://</code>). Each container runs at most 
+ * <code>maxCommands</code> commands at once, and commands are packed into the busiest
+ * container with room, so that the others become idle and are stopped after the idle timeout.
+ * When no container has room, a new one is started, up to <code>maxContainers</code>; after 
+ * that, commands wait for room to become free.
+ * <p>
+ * A pool is used by adding a <code>pool</code> section to the container configuration:
+ * <pre>
+ * container {
+ *     type = 'docker'
+ *     image = 'ubuntu:22.04'
+ *     pool {
+ *         maxContainers = 4    // at most this many containers at once (default: 4)
+ *         maxCommands = 4      // commands run at once in each container (default: 4)
+ *         idleTimeout = 5      // minutes before an idle container is stopped (default: 5)
+ *     }
+ * }
+ * </pre>
+ * Commands share a pool when their containers would be started with the same image, 
+ * volumes, user and options. Since pooled containers run on the same computer as Bpipe,
+ * pools are only used for commands run by the local executor.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+@CompileStatic
+class ContainerPool {
+    
+    /**
+     * A running container, and the number of commands running in it
+     */
+    static class PooledContainer {
+        
+        String name
+        
+        int commands = 0
+        
+        long idleSinceMs
+        
+        String toString() {
+            "$name ($commands commands)"
+        }
+    }
+    
+    /**
+     * Active pools, indexed by the arguments their containers are started with
+     */
+    static Map<String,ContainerPool> pools = new ConcurrentHashMap<String,ContainerPool>()
+    
+    /**
+     * Used to give every container started by this Bpipe process a unique name
+     */
+    private static AtomicInteger containerCount = new AtomicInteger()
+    
+    final String key
+    
+    /**
+     * Returns the command that starts a long running container with the given name
+     */
+    final Closure<List<String>> startCommand
+    
+    /**
+     * Returns the command that stops the container with the given name
+     */
+    final Closure<List<String>> stopCommand
+    
+    int maxContainers = 4
+    
+    int maxCommands = 4
+    
+    long idleTimeoutMs = 5 * Utils.ONE_MINUTE_MS
+    
+    final List<PooledContainer> containers = []
+    
+    /**
+     * Containers that commands are running in, indexed by command id
+     */
+    final Map<String,PooledContainer> leases = [:]
+    
+    /**
+     * Number of containers being started
+     */
+    int launching = 0
+    
+    private ScheduledFuture reaper
+    
+    ContainerPool(String key, Map poolConfig, Closure<List<String>> startCommand, Closure<List<String>> stopCommand) {
+        this.key = key
+        this.startCommand = startCommand
+        this.stopCommand = stopCommand
+        this.maxContainers = (int)poolConfig.getOrDefault('maxContainers', maxContainers)
+        this.maxCommands = (int)poolConfig.getOrDefault('maxCommands', maxCommands)
+        if(poolConfig.containsKey('idleTimeout'))
+            this.idleTimeoutMs = (long)(((Number)poolConfig.idleTimeout).doubleValue() * Utils.ONE_MINUTE_MS)
+    }
+    
+    /**
+     * @return  true if commands with the given container configuration, run by the given
+     *          executor, should run in a pooled container. Containers are not started for
+     *          commands that are only being tested.
+     */
+    static boolean isPooled(Map containerConfig, CommandExecutor executor) {
+        Object poolConfig = containerConfig.get('pool')
+        return (poolConfig instanceof Map || poolConfig == true) && executor instanceof LocalCommandExecutor && !Runner.testMode
+    }
+    
+    /**
+     * Return the pool for containers started with the given arguments, creating it if necessary
+     */
+    static ContainerPool forKey(String key, Map containerConfig, Closure<List<String>> startCommand, Closure<List<String>> stopCommand) {
+        return pools.computeIfAbsent(key) {
+            Object poolConfig = containerConfig.get('pool')
+            ContainerPool pool = new ContainerPool(key, poolConfig instanceof Map ? (Map)poolConfig : [:], startCommand, stopCommand)
+            pool.start()
+            return pool
+        }
+    }
+    
+    /**
+     * Schedule idle containers to be stopped
+     */
+    void start() {
+        log.info "Starting container pool of up to $maxContainers containers running $maxCommands commands each for $key"
+        long checkIntervalMs = Math.max(1000L, Math.min(idleTimeoutMs.intdiv(2), Utils.ONE_MINUTE_MS))
+        reaper = Poller.instance.executor.scheduleAtFixedRate({
+            reapIdle(System.currentTimeMillis())
+        }, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS)
+    }
+    
+    /**
+     * Allocate room in a container for the given command, starting a container or waiting
+     * for room in one if necessary.
+     * 
+     * @return  the name of the container the command should run in
+     */
+    String acquire(String commandId) {
+        synchronized(this) {
+            while(true) {
+                PooledContainer container = allocate(commandId)
+                if(container != null)
+                    return container.name
+                    
+                if(containers.size() + launching < maxContainers)
+                    break
+                    
+                log.info "Command $commandId waiting for room in container pool (${containers.size()} containers)"
+                this.wait()
+            }
+            ++launching
+        }
+        
+        // Start the container outside the lock: it is slow, and other commands
+        // should be able to use room that becomes free in the meantime
+        return addContainer(commandId).name
+    }
+    
+    /**
+     * Return the room used by the given command to the pool
+     * 
+     * @return  true if the command was running in a container of this pool
+     */
+    synchronized boolean release(String commandId) {
+        PooledContainer container = leases.remove(commandId)
+        if(container == null)
+            return false
+            
+        --container.commands
+        if(container.commands == 0)
+            container.idleSinceMs = System.currentTimeMillis()
+        this.notifyAll()
+        return true
+    }
+    
+    /**
+     * Return the room used by the given command to whichever pool it was allocated in
+     */
+    static void releaseCommand(String commandId) {
+        if(commandId == null)
+            return
+        for(ContainerPool pool in pools.values()) {
+            if(pool.release(commandId))
+                return
+        }
+    }
+    
+    /**
+     * Stop containers that have been idle for longer than the idle timeout
+     */
+    void reapIdle(long nowMs) {
+        List<PooledContainer> idle
+        synchronized(this) {
+            idle = containers.findAll { PooledContainer container ->
+                container.commands == 0 && nowMs - container.idleSinceMs >= idleTimeoutMs
+            }
+            containers.removeAll(idle)
+        }
+        
+        for(PooledContainer container in idle) {
+            log.info "Stopping container $container.name after being idle for ${nowMs - container.idleSinceMs}ms"
+            stop(container)
+        }
+    }
+    
+    /**
+     * Stop all the containers in the pool, including any that commands are still running in
+     */
+    void shutdown() {
+        reaper?.cancel(false)
+        
+        List<PooledContainer> all
+        synchronized(this) {
+            all = new ArrayList<PooledContainer>(containers)
+            containers.clear()
+            leases.clear()
+        }
+        log.info "Stopping ${all.size()} containers in pool for $key"
+        all.each { stop(it) }
+    }
+    
+    /**
+     * Shut down all the container pools
+     */
+    static void shutdownAll() {
+        for(ContainerPool pool in pools.values()) {
+            try {
+                pool.shutdown()
+            }
+            catch(Exception e) {
+                log.warning "Failed to shut down container pool for $pool.key: $e"
+            }
+        }
+        pools.clear()
+    }
+    
+    /**
+     * Find the busiest container with room for another command, and allocate room in it
+     * 
+     * @return  the container, or null if no container has room
+     */
+    private PooledContainer allocate(String commandId) {
+        PooledContainer best = null
+        for(PooledContainer container in containers) {
+            if(container.commands < maxCommands && (best == null || container.commands > best.commands))
+                best = container
+        }
+        
+        if(best != null)
+            lease(best, commandId)
+        return best
+    }
+    
+    private void lease(PooledContainer container, String commandId) {
+        ++container.commands
+        leases[commandId] = container
+        log.info "Allocated room in container $container for command $commandId"
+    }
+    
+    /**
+     * Start a new container and add it to the pool, with room allocated for the given command.
+     * The caller must already have counted it in {@link #launching}.
+     */
+    private PooledContainer addContainer(String commandId) {
+        String name = "bpipe-${Config.config.pid ?: 'pool'}-${containerCount.incrementAndGet()}"
+        try {
+            log.info "Starting container $name for pool $key"
+            long startMs = System.currentTimeMillis()
+            ExecutedProcess result = Utils.executeCommand((List<Object>)startCommand.call(name))
+            if(result.exitValue != 0)
+                throw new PipelineError("Unable to start container $name (exit code $result.exitValue): $result.err")
+            log.info "Container $name started in ${System.currentTimeMillis() - startMs}ms"
+        }
+        catch(Exception e) {
+            synchronized(this) {
+                --launching
+                this.notifyAll()
+            }
+            throw e
+        }
+        
+        synchronized(this) {
+            --launching
+            PooledContainer container = new PooledContainer(name: name, idleSinceMs: System.currentTimeMillis())
+            containers.add(container)
+            lease(container, commandId)
+            this.notifyAll()
+            return container
+        }
+    }
+    
+    private void stop(PooledContainer container) {
+        try {
+            ExecutedProcess result = Utils.executeCommand((List<Object>)stopCommand.call(container.name))
+            if(result.exitValue != 0)
+                log.warning "Stopping container $container.name returned exit code $result.exitValue: $result.err"
+        }
+        catch(Exception e) {
+            log.warning "Failed to stop container $container.name: $e"
+        }
+    }
+}
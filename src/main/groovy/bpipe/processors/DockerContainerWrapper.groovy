@@ -98,20 +98,33 @@ class DockerContainerWrapper implements CommandProcessor {
             additionalArgs.addAll(["--user", userAttribute])
         }
 
-        command.shell = 
-            [
-                "docker",
-                "run",
-                "-i",
-                *additionalArgs,
-                *dockerRunOptions,
-                *entryPointArg,
-                "-w", Runner.runDirectory, 
-                "-v", "$Runner.runDirectory:$Runner.runDirectory",
-                *extraVolumes,
-                config.image,
-                *dockerCommand
-            ]  
+        String docker = config.getOrDefault('dockerExecutable', 'docker')
+        
+        List<String> containerArgs = [
+            *additionalArgs,
+            *dockerRunOptions,
+            *entryPointArg,
+            "-w", Runner.runDirectory, 
+            "-v", "$Runner.runDirectory:$Runner.runDirectory",
+            *extraVolumes,
+            config.image
+        ]*.toString()
+        
+        if(ContainerPool.isPooled(config, commandExecutor)) {
+            List<String> keepAlive = Config.listValue(config.pool instanceof Map ? config.pool : [:], 'keepAlive') ?: ['sleep', 'infinity']
+            ContainerPool pool = ContainerPool.forKey(
+                "docker:" + containerArgs.join(' '), 
+                config,
+                { String name -> [docker, "run", "-d", "--name", name, *containerArgs, *keepAlive] },
+                { String name -> [docker, "rm", "-f", name] }
+            )
+            
+            String containerName = pool.acquire(command.id)
+            command.shell = [docker, "exec", "-i", "-w", Runner.runDirectory, containerName, *dockerCommand]*.toString()
+        }
+        else {
+            command.shell = [docker, "run", "-i", *containerArgs, *dockerCommand]
+        }
             
        log.info "Configured docker shell command as: " + (command.shell.join(' '))
     }
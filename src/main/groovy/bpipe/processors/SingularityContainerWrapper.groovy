@@ -25,6 +25,7 @@
 package bpipe.processors
 
 import bpipe.*
+import bpipe.executor.CommandExecutor
 import bpipe.storage.BindStorageLayer
 import bpipe.storage.StorageLayer
 import groovy.util.logging.Log
@@ -36,6 +37,12 @@ import groovy.util.logging.Log
  */
 @Log
 class SingularityContainerWrapper implements CommandProcessor {
+    
+    CommandExecutor commandExecutor
+    
+    SingularityContainerWrapper(CommandExecutor commandExecutor=null) {
+        this.commandExecutor = commandExecutor
+    }
 
     @Override
     public void transform(Command command, List<ResourceUnit> resources) {
@@ -72,13 +79,31 @@ class SingularityContainerWrapper implements CommandProcessor {
 
         String execOptions = config.execOptions ?: ''
         
-        command.shell = 
-            [
-                singularityCommand,
-                "exec", execOptions,
-                "-B", Runner.runDirectory,
-                "--pwd", bpipe.Runner.runDirectory,
-            ] + extraVolumes + [imagePath, shell, '-e']
+        if(ContainerPool.isPooled(config, commandExecutor)) {
+            
+            // Options and mounts are set when the instance starts, and shared by all commands run in it
+            List<String> instanceArgs = 
+                (execOptions.tokenize() + ["-B", Runner.runDirectory] + extraVolumes + [imagePath])*.toString()
+                
+            ContainerPool pool = ContainerPool.forKey(
+                "singularity:" + instanceArgs.join(' '), 
+                config,
+                { String name -> [singularityCommand, "instance", "start", *instanceArgs, name] },
+                { String name -> [singularityCommand, "instance", "stop", name] }
+            )
+            
+            String instanceName = pool.acquire(command.id)
+            command.shell = [singularityCommand, "exec", "--pwd", Runner.runDirectory, "instance://$instanceName", shell, '-e']*.toString()
+        }
+        else {
+            command.shell = 
+                [
+                    singularityCommand,
+                    "exec", execOptions,
+                    "-B", Runner.runDirectory,
+                    "--pwd", bpipe.Runner.runDirectory,
+                ] + extraVolumes + [imagePath, shell, '-e']
+        }
             
         log.info "Singularity command prefix: " + command.shell.join(' ')
     }
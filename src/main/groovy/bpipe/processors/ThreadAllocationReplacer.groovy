@@ -20,7 +20,7 @@ class ThreadAllocationReplacer implements CommandProcessor {
         if(isUnlimited(command, cfg,threadResource))
             threadResource.amount = ResourceUnit.UNLIMITED
 
-        resources.each { Concurrency.theInstance.acquire(it) }
+        Concurrency.theInstance.acquireAll(command, resources)
 
         int threadCount = threadResource?threadResource.amount:1
         String threadAmount = String.valueOf(threadCount)
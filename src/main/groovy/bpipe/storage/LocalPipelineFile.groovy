@@ -5,6 +5,9 @@ import groovy.transform.CompileStatic
 
 class LocalPipelineFile extends PipelineFile {
 
+    protected LocalPipelineFile() {
+    }
+    
     LocalPipelineFile(String path) {
         super(path, new LocalFileSystemStorageLayer())
     }
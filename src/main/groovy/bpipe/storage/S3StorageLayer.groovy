@@ -24,7 +24,14 @@
  */
  package bpipe.storage
 
+import com.amazonaws.services.s3.AmazonS3
+import com.amazonaws.services.s3.model.ListObjectsRequest
+import com.amazonaws.services.s3.model.ObjectListing
+import com.amazonaws.services.s3.model.S3ObjectSummary
 import com.upplication.s3fs.AmazonS3Factory
+import com.upplication.s3fs.S3FileSystem
+import com.upplication.s3fs.S3Path
+
 import static com.upplication.s3fs.AmazonS3Factory.*
 
 import java.nio.file.FileSystem
@@ -88,6 +95,34 @@ class S3StorageLayer extends StorageLayer {
         fileSystem.getPath("/$bucket/" + path)
     }
 
+    /**
+     * Lists the whole tree with a single (paged) prefix listing of the bucket,
+     * rather than one listing per directory
+     */
+    @Override
+    List<Path> listRecursive(Path dir) {
+        init()
+        
+        String prefix = ((S3Path)dir).key
+        if(prefix && !prefix.endsWith('/'))
+            prefix = prefix + '/'
+        
+        AmazonS3 client = ((S3FileSystem)fileSystem).client
+        ObjectListing listing = client.listObjects(new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix))
+        List<Path> result = []
+        while(true) {
+            for(S3ObjectSummary summary in listing.objectSummaries) {
+                // Keys ending in / are placeholders for empty directories
+                if(!summary.key.endsWith('/'))
+                    result.add(fileSystem.getPath("/$bucket/" + summary.key))
+            }
+            if(!listing.truncated)
+                break
+            listing = client.listNextBatchOfObjects(listing)
+        }
+        return result
+    }
+
     @Override
     public String getMountCommand(CommandExecutor executor) {
         """
@@ -75,6 +75,18 @@ abstract class StorageLayer implements Serializable {
     
     abstract String getMountCommand(CommandExecutor executor)
     
+    /**
+     * List all the files beneath the given directory in a single operation, for
+     * storage where this is much cheaper than listing each directory in turn 
+     * (eg: a prefix listing of an object store).
+     * 
+     * @return  the paths of all files beneath dir, or null if the storage does not
+     *          support listing a directory tree directly
+     */
+    List<Path> listRecursive(Path dir) {
+        return null
+    }
+    
     @Memoized
     static StorageLayer create(String name) {
         
@@ -30,6 +30,9 @@ class UnknownFileStorageLayer extends StorageLayer {
 @Log
 class UnknownStoragePipelineFile extends PipelineFile {  
 	
+    protected UnknownStoragePipelineFile() {
+    }
+    
     UnknownStoragePipelineFile(String thePath) {
         super(thePath, new UnknownFileStorageLayer())
         
@@ -1,65 +1,82 @@
 package bpipe.worx
 
+import java.util.zip.GZIPOutputStream
+
 import bpipe.Config
 import groovy.json.JsonOutput;
 import groovy.json.JsonSlurper;
 import groovy.util.logging.Log;
 
 /**
- * Convenience wrapper that gives a few useful additional methods for
- * sending HTTP protocol constructs.
- * 
- * @author Simon
+ * Thrown when the Worx server responds with an HTTP error status
  */
-class HttpWriter {
-    @Delegate
-    Writer wrapped
+class WorxHttpException extends IOException {
     
-    /**
-     * Sends the output termintaed by an appropriate newline
-     */
-    HttpWriter headerLine(String line) {
-      wrapped.print(line + "\r\n")
-      return this
-    }
+    int statusCode
     
-    /**
-     * Necessary because default print method comes from Object
-     * and prints to stdout.
-     * 
-     * @param obj
-     */
-    void print(Object obj) {
-        this.wrapped.print(obj)
+    WorxHttpException(int statusCode, String message) {
+        super(message)
+        this.statusCode = statusCode
     }
 }
-
-
-@Log
-class HttpWorxConnection extends WorxConnection {
+
+/**
+ * A connection to a Worx server over HTTP. 
+ * <p>
+ * The connection is closed after each response unless {@link #closeAfterRead} is cleared, 
+ * in which case it is kept open for further requests until the server asks for it to 
+ * be closed. Request bodies larger than {@link #gzipThresholdBytes} are compressed if 
+ * <code>worx.gzip</code> is set.
+ * 
+ * @author Simon
+ */
+@Log
+class HttpWorxConnection extends WorxConnection {
+    
     /**
      * Underlying socket for connection to Worx server.
-     * This is wrapped by #socketReader and #socketWriter.
+     * This is wrapped by #socketInput and #socketOutput.
      */
     Socket socket 
     
-    /**
-     * Reader for reading the socket
-     */
-    Reader socketReader
+    InputStream socketInput
+    
+    OutputStream socketOutput
     
     /**
-     * Writer for writing to socket
+     * URL of the Worx server - read from the <code>worx.url</code> setting if not set
      */
-    HttpWriter socketWriter
+    String url
     
     /**
      * Count of number of times this connection failed
      */
     int failures = 0
     
-    boolean closeAfterRead = false
-   
+    /**
+     * If true, the connection is closed after every response
+     */
+    boolean closeAfterRead = true
+    
+    /**
+     * Whether to compress large request bodies with gzip
+     */
+    boolean gzip = setting('gzip', false)
+    
+    int gzipThresholdBytes = 1024
+    
+    /**
+     * Number of times to try a request with {@link #post} before giving up
+     */
+    int maxAttempts = setting('maxAttempts', 5)
+    
+    /**
+     * Delay before the first retry by {@link #post}: doubled for each further retry
+     */
+    long retryDelayMs = setting('retryDelayMs', 500L)
+    
+    long maxRetryDelayMs = 10000L
+    
     void sendJson(String path, Object payload) {
         sendJson(path, JsonOutput.toJson(payload))
     }
@@ -72,169 +89,228 @@ class HttpWorxConnection extends WorxConnection {
         if(socket == null)
             return
             
-        byte [] jsonBytes = eventJson.getBytes("UTF-8")
+        byte [] body = eventJson.getBytes("UTF-8")
+        boolean compressed = gzip && body.length >= gzipThresholdBytes
+        if(compressed) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, body.length.intdiv(4)))
+            new GZIPOutputStream(bytes).withStream { it.write(body) }
+            body = bytes.toByteArray()
+        }
         
-        log.info "POST $path" 
+        log.info "POST $path (${body.length} bytes${compressed ? ', compressed' : ''})" 
         
-//        HttpWriter f = new HttpWriter(wrapped:new FileWriter("http.log"))
-//        
-//        f.headerLine("POST $path HTTP/1.1")
-//                    .headerLine("Host: localhost:8080")
-//                    .headerLine("Content-Type: application/json;charset=utf-8")
-//                    .headerLine("Accept: */*")
-//                    .headerLine("User-Agent: curl/7.50.0")
-//                    .headerLine("Content-Length: " + jsonBytes.size()) // encoding?
-//                    .headerLine("")
-//                    .flush()
-//  
-//        f.print(eventJson+"\r\n") // note that encoding was set in creation of underlying Writer
-//        f.headerLine("")
-//         .flush()
-//         
-        
-        socketWriter.headerLine("POST $path HTTP/1.1")
-                    .headerLine("Host: localhost:8080")
-                    .headerLine("Content-Type: application/json;charset=utf-8")
-                    .headerLine("Accept: */*")
-                    .headerLine("User-Agent: curl/7.50.0")
-                    .headerLine("Content-Length: " + jsonBytes.size()) // encoding?
-                    .headerLine("")
-                    .flush()
+        URL serverURL = new URL(getServerURL())
+        StringBuilder headers = new StringBuilder()
+        headers.append("POST $path HTTP/1.1\r\n")
+               .append("Host: ${serverURL.host}:${serverURL.port}\r\n")
+               .append("Content-Type: application/json;charset=utf-8\r\n")
+               .append("Accept: */*\r\n")
+               .append("User-Agent: bpipe\r\n")
+               .append("Connection: ${closeAfterRead ? 'close' : 'keep-alive'}\r\n")
+        if(compressed)
+            headers.append("Content-Encoding: gzip\r\n")
+        headers.append("Content-Length: ${body.length}\r\n")
+               .append("\r\n")
         
-        socketWriter.print(eventJson+"\r\n") // note that encoding was set in creation of underlying Writer
-        socketWriter.headerLine("")
-                    .flush()
+        socketOutput.write(headers.toString().getBytes("US-ASCII"))
+        socketOutput.write(body)
+        socketOutput.flush()
     }
     
     /**
-     * Read the HTTP response from the given reader.
+     * Send the given JSON and return the response, retrying with increasing delays if
+     * the request fails or the server returns an error (5xx) status.
+     * 
+     * @return  the parsed response
+     * @throws  IOException if the request did not succeed after {@link #maxAttempts} attempts
+     */
+    Object post(String path, String json) {
+        long delayMs = retryDelayMs
+        for(int attempt=1; true; ++attempt) {
+            boolean reused = socket != null && !socket.isClosed()
+            try {
+                sendJson(path, json)
+                if(socket == null)
+                    throw new IOException("Unable to connect to Worx server at ${getServerURL()}")
+                return readResponse()
+            }
+            catch(IOException e) {
+                closeSocket()
+                
+                boolean retryable = !(e instanceof WorxHttpException) || ((WorxHttpException)e).statusCode >= 500
+                if(!retryable || attempt >= maxAttempts)
+                    throw e
+                    
+                // The server may have closed an idle connection: try again straight away on a new one
+                if(reused && !(e instanceof WorxHttpException)) {
+                    log.info "Request to $path on existing connection failed ($e): retrying on new connection"
+                    continue
+                }
+                    
+                log.warning "Request to $path failed (attempt $attempt of $maxAttempts): $e. Retrying in ${delayMs}ms"
+                Thread.sleep(delayMs)
+                delayMs = Math.min(delayMs * 2, maxRetryDelayMs)
+            }
+        }
+    }
+    
+    /**
+     * Read the HTTP response to the last request.
      * First reads headers and observes content length header to 
-     * then load the body. Requires content length to be set!
+     * then load the body, which must either have its length set or be chunked.
      * 
-     * @param reader
-     * @return
+     * @return  the parsed JSON response, or an empty map if there was no response body
      */
     Object readResponse() {
         
-        if(this.socketReader == null)
+        if(this.socketInput == null)
             return null
         
         log.info "Starting to read response"
         
-        // Read headers
-        String line
-        int blankCount=0
-        Map headers = [:]
-        
+        boolean keepOpen = false
         try {
-            List<String> nonHeaderLines = []
-            while(true) {
-              line = socketReader.readLine()
-//              log.fine "GOT RESPONSE line: " + line
-              if(!line) {
-                  break
-              }
-              if(line)
-                  blankCount = 0
-              List<String> header = line.tokenize(':')*.trim()
-              if(header.size()>1)
-                headers[header[0]] = header[1]
-              else
-                nonHeaderLines << line
+            String statusLine = readLine()
+            if(!statusLine)
+                throw new IOException("No HTTP response code returned from server!")
+                
+            Map<String,String> headers = [:]
+            String line
+            while((line = readLine())) {
+                int colon = line.indexOf(':')
+                if(colon > 0)
+                    headers[line.substring(0, colon).trim().toLowerCase()] = line.substring(colon+1).trim()
             }
             
-            // First non-header line should have HTTP status
-            if(nonHeaderLines.isEmpty())
-                throw new Exception("No HTTP response code returned from server!")
-    
-            List<String> statusLineFields = nonHeaderLines[0].tokenize()
+            List<String> statusLineFields = statusLine.tokenize()
             if(statusLineFields.size()<2)
-                throw new Exception("HTTP status line does not have expected format: " + nonHeaderLines[0])
+                throw new IOException("HTTP status line does not have expected format: " + statusLine)
             
-            Integer statusCode = statusLineFields[1].toInteger()
+            byte [] body
+            if(headers['transfer-encoding']?.equalsIgnoreCase('chunked')) 
+                body = readChunkedBody()
+            else
+                body = readBytes(headers['content-length']?.toInteger()?:0)
+            
+            int statusCode = statusLineFields[1].toInteger()
             if(statusCode >= 400)
-                throw new Exception("Event post returned status code ${statusCode}:\n" + nonHeaderLines.join('\n'))
+                throw new WorxHttpException(statusCode, "Event post returned status code ${statusCode}:\n" + statusLine + '\n' + new String(body, "UTF-8"))
                 
-            Integer contentLength = headers['Content-Length']?.toInteger()?:0
-            log.info "Content Length = " + contentLength
-        
-            if(contentLength > 0) {
-                char [] buffer = new char[contentLength+1]
-                socketReader.read(buffer)
-                log.info "RAW REPONSE: \n" + buffer
-                
-                Object result = new JsonSlurper().parse(new StringReader(new String(buffer)))
-                return result
-            }
-            else
-            if(headers['Transfer-Encoding'] == 'chunked') {
-                
-                // Read the chunk length
-                String chunkLengthValue = socketReader.readLine()
-                Long chunkSize = Long.decode("0x" + chunkLengthValue)
-                log.info "Chunk size in bytes: $chunkSize"
-                
-                char [] buffer = new char[chunkSize]
-                socketReader.read(buffer)
-                
-                String payload = new String(buffer)
-                
-                String newLine = socketReader.readLine()
-                String nextChunk = socketReader.readLine()
-                if(nextChunk != "0")
-                    log.warning("next chunk length has unexpected value: $nextChunk")
-                
-                socketReader.readLine() // consume final empty line
-                
-                return new JsonSlurper().parse(new StringReader(payload))
-            }
-            else {
+            // The whole response has been consumed, so the connection can be reused
+            keepOpen = !closeAfterRead && 
+                       !headers['connection']?.equalsIgnoreCase('close') && 
+                       !statusLine.startsWith('HTTP/1.0')
+            
+            log.info "Content Length = " + body.length
+            if(body.length == 0) {
                 log.info "No response data"
                 return [:]
             }
+            
+            return new JsonSlurper().parse(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"))
         }
         finally {
-            if(this.socket) {
-                log.info "Closing Worx connection by server request"
-                this.socket.close()
-                this.socket = null
+            if(!keepOpen) {
+                log.info "Closing Worx connection"
+                closeSocket()
             }
         }
     }
+    
+    private String readLine() {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128)
+        int c
+        while((c = socketInput.read()) >= 0) {
+            if(c == 10) // '\n'
+                break
+            if(c != 13) // '\r'
+                line.write(c)
+        }
+        if(c < 0 && line.size() == 0)
+            return null
+        return line.toString("US-ASCII")
+    }
+    
+    private byte [] readBytes(int count) {
+        byte [] buffer = new byte[count]
+        int offset = 0
+        while(offset < count) {
+            int read = socketInput.read(buffer, offset, count - offset)
+            if(read < 0)
+                throw new EOFException("Connection closed after $offset of $count bytes of response")
+            offset += read
+        }
+        return buffer
+    }
+    
+    private byte [] readChunkedBody() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream()
+        while(true) {
+            String chunkLengthValue = readLine()
+            if(chunkLengthValue == null)
+                throw new EOFException("Connection closed while reading chunked response")
+            
+            // Ignore any chunk extensions
+            int chunkSize = Integer.parseInt(chunkLengthValue.tokenize(';')[0].trim(), 16)
+            if(chunkSize == 0)
+                break
+            body.write(readBytes(chunkSize))
+            readLine() // end of chunk
+        }
+        
+        // Skip any trailers up to the final empty line
+        String line
+        while((line = readLine()))
+            log.fine "Ignoring trailer: $line"
+            
+        return body.toByteArray()
+    }
+    
+    /**
+     * @return  the value of the given setting in the <code>worx</code> section of the configuration
+     */
+    static Object setting(String name, Object defaultValue) {
+        Map worxConfig = (Map)Config.userConfig?.getOrDefault('worx', null)
+        return worxConfig?.containsKey(name) ? worxConfig[name] : defaultValue
+    }
+    
+    String getServerURL() {
+        return url ?: (Config.userConfig["worx"]?.url?:"http://127.0.0.1:8888/")
+    }
     
     void resetSocket() {
         
         log.info "Resetting Worx connection ..."
-        try {
-            socket.close()
-        }
-        catch(Exception e) {
-            // Ignore
-        }
-        
-//        log.info "Config is ${Config.userConfig}"
+        closeSocket()
         
-        String configUrl = Config.userConfig["worx"]?.url?:"http://127.0.0.1:8888/"
+        String configUrl = getServerURL()
         log.info "Connecting to $configUrl"
         
         URL url = new URL(configUrl)
         try {
             socket = new Socket(url.host, url.port) 
+            socket.tcpNoDelay = true
         
-            socketReader = new BufferedReader(new InputStreamReader(socket.inputStream))
-            socketWriter = new HttpWriter(wrapped: new PrintWriter(new OutputStreamWriter(socket.outputStream, "US-ASCII")))
+            socketInput = new BufferedInputStream(socket.inputStream)
+            socketOutput = new BufferedOutputStream(socket.outputStream)
             
         } catch (Exception e) {
             if((failures%20) == 0) {
                println "WARNING: Worx connection to " + configUrl + " unsuccessful: " +  e.message
             }
             this.failures++
+            socket = null
         }
     }
     
+    private void closeSocket() {
+        try { socket?.close() } catch(Exception e) { }
+        socket = null
+        socketInput = null
+        socketOutput = null
+    }
+    
     void close() {
-        try { socketReader.close() } catch(Exception e) { }
-        try { socketWriter.close() } catch(Exception e) { }
-        try { socket.close() } catch(Exception e) { }
+        closeSocket()
     }
 }
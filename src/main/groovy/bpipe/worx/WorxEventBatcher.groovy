@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) MCRI, authors
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use,
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following
+ * conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR
+ * THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package bpipe.worx
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import groovy.json.JsonOutput
+import groovy.util.logging.Log
+
+/**
+ * Sends events to a Worx server in batches, from a background thread.
+ * <p>
+ * When an event arrives, events that follow it within {@link #windowMs} are sent 
+ * together with it in a single request, up to {@link #maxBatchSize} events. Events are
+ * sent in the order they were added. A batch that cannot be sent after the retries made
+ * by {@link HttpWorxConnection#post} is dropped.
+ * <p>
+ * Events can be added in any form and converted to the details that are sent by
+ * {@link #prepare} in the background thread, so that the threads adding them are
+ * not slowed down by the conversion.
+ * 
+ * @author simon.sadedin@mcri.edu.au
+ */
+@Log
+class WorxEventBatcher {
+    
+    /**
+     * Marks the end of the events, when shutting down
+     */
+    private final static Object END = new Object()
+    
+    HttpWorxConnection worx
+    
+    long windowMs = 100
+    
+    int maxBatchSize = 500
+    
+    /**
+     * Called with the response to each batch that is sent
+     */
+    Closure onResponse
+    
+    /**
+     * Called with each event that was added to convert it to the Map that is sent. If
+     * not set, events must be added as Maps.
+     */
+    Closure<Map> prepare
+    
+    final AtomicLong sentEvents = new AtomicLong()
+    
+    final AtomicLong sentBatches = new AtomicLong()
+    
+    final AtomicLong failedEvents = new AtomicLong()
+    
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>()
+    
+    private Thread thread
+    
+    void start() {
+        thread = new Thread({ processEvents() }, 'bpipe-worx-events')
+        thread.daemon = true
+        thread.start()
+    }
+    
+    void add(Object event) {
+        queue.add(event)
+    }
+    
+    private void processEvents() {
+        List<Map> batch = new ArrayList<Map>(maxBatchSize)
+        boolean ended = false
+        while(!ended) {
+            Object event = queue.take()
+            long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs)
+            while(true) {
+                if(event.is(END)) {
+                    ended = true
+                    break
+                }
+                Map details = toDetails(event)
+                if(details != null)
+                    batch.add(details)
+                if(batch.size() >= maxBatchSize)
+                    break
+                    
+                event = queue.poll(deadlineNs - System.nanoTime(), TimeUnit.NANOSECONDS)
+                if(event == null)
+                    break
+            }
+            
+            if(!batch.isEmpty()) {
+                send(batch)
+                batch = new ArrayList<Map>(maxBatchSize)
+            }
+        }
+        log.info "Worx event sender finished: sent $sentEvents events in $sentBatches batches ($failedEvents failed)"
+    }
+    
+    /**
+     * @return  the details to send for the given event, or null if it could not be converted
+     */
+    private Map toDetails(Object event) {
+        if(prepare == null)
+            return (Map)event
+        try {
+            return prepare(event)
+        }
+        catch(Exception e) {
+            failedEvents.incrementAndGet()
+            log.severe "Failed to convert event $event to send to remote worx host: $e"
+            return null
+        }
+    }
+    
+    private void send(List<Map> batch) {
+        try {
+            log.info "Sending ${batch.size()} events"
+            Object response = worx.post("/events", JsonOutput.toJson([events: batch]))
+            sentEvents.addAndGet(batch.size())
+            sentBatches.incrementAndGet()
+            
+            log.info "Response: $response"
+            if(response != null && onResponse != null)
+                onResponse(response)
+        }
+        catch(Exception e) {
+            failedEvents.addAndGet(batch.size())
+            log.severe "Failed to send ${batch.size()} events to remote worx host: $e"
+        }
+    }
+    
+    /**
+     * Send any events that are still waiting and stop
+     * 
+     * @return  true if all events were sent (or failed) within the given time
+     */
+    boolean shutdown(long timeoutMs) {
+        if(thread == null)
+            return true
+        queue.add(END)
+        thread.join(timeoutMs)
+        return !thread.isAlive()
+    }
+}
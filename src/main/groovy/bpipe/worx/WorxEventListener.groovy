@@ -24,11 +24,6 @@
  */
 package bpipe.worx
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
-
 import bpipe.Config;
 import bpipe.EventManager;
 import bpipe.NodeListCategory;
@@ -39,8 +34,6 @@ import bpipe.PipelineEventListener;
 import bpipe.PipelineStage;
 import bpipe.Runner
 import bpipe.cmd.Stop;
-import groovy.json.JsonOutput;
-import groovy.json.JsonSlurper
 import groovy.util.logging.Log;
 import static bpipe.PipelineEvent.*
 
@@ -48,6 +41,17 @@ import static bpipe.PipelineEvent.*
 /**
  * Event listener that forwards pipeline events to a remote
  * PipeWorx server.
+ * <p>
+ * Events are sent in batches by a {@link WorxEventBatcher}, configured by the 
+ * <code>worx</code> section of the configuration:
+ * <ul>
+ * <li><code>batchWindowMs</code> - how long to wait for further events to send with an event (default 100)
+ * <li><code>maxBatchSize</code> - the most events to send in one request (default 500)
+ * <li><code>gzip</code> - compress requests (default false: the server must support gzip encoded requests)
+ * <li><code>keepAlive</code> - reuse the connection between requests (default true)
+ * <li><code>maxAttempts</code>, <code>retryDelayMs</code> - how many times to try sending events, 
+ *     and the initial delay between attempts, which doubles for each further attempt (default 5, 500)
+ * </ul>
  * 
  * @author Simon Sadedin
  */
@@ -55,88 +59,64 @@ import static bpipe.PipelineEvent.*
 class WorxEventListener implements PipelineEventListener {
     
     /**
-     * Background thread that sends the events asynchronously
+     * Sends the events asynchronously, in batches
      */
-    ExecutorService service 
+    WorxEventBatcher batcher
     
     /**
      * Low level connection to worx server
      */
     HttpWorxConnection worx
     
-    @Log
-    class WorxEventJob implements Runnable {
-        
-        Date date = new Date()
+    /**
+     * An event waiting to be sent
+     */
+    static class WorxEvent {
         PipelineEvent event
-        Map properties = [:]
-        
-        void run() {
-            sendEvent(this)
-        }
+        Map properties
         
         String toString() {
             "${event.name()} : " + properties
         }
     }
-
-    void sendEvent(WorxEventJob job) {
-                   
-        try {
-            log.info "Sending event " + job.toString()
-            
-            Map eventDetails = bpipe.Utils.sanitizeForSerialization(job.properties)
-                    
-            eventDetails.time = System.currentTimeMillis() 
-            eventDetails.event = job.event.name()
-            eventDetails += [
-                pid: Config.config.pid,
-                script: eventDetails.script ?: Config.config.script,
-                pguid: eventDetails.pguid ?: Config.config.pguid
-            ]
-            
-            /*
-            println "EVENT DETAILS: "
-            eventDetails.each { e ->
-                println e.key + " : " + e.value
-            }
-            */
-            
-            eventDetails.commands = null
-            
-            try {
-                String json = JsonOutput.toJson([events: [eventDetails]])
-                log.info "Send: $json"
-                worx.sendJson("/events", json)
-                log.info "Sent json OK"
-            }
-            catch(Throwable e) {
-                e.printStackTrace()
-            }
-            
-            log.info "Read response ..."
-            def response = worx.readResponse()
-            log.info "Response: $response"
-            
-            if(response == null)
-                return;
-            
-            for(Map cmd in response.commands) {
-                if(cmd.command == "stop") {
-                    new Stop().run(System.out, cmd.arguments)
-                }
+    
+    /**
+     * Convert the details of an event to the form sent to the Worx server. This is called by
+     * the thread that sends the events, rather than the thread that raised the event.
+     */
+    Map eventDetails(WorxEvent job) {
+        
+        log.info "Sending event " + job.toString()
+        
+        Map eventDetails = bpipe.Utils.sanitizeForSerialization(job.properties)
+                
+        eventDetails.time = job.properties.timeMs
+        eventDetails.event = job.event.name()
+        eventDetails += [
+            pid: Config.config.pid,
+            script: eventDetails.script ?: Config.config.script,
+            pguid: eventDetails.pguid ?: Config.config.pguid
+        ]
+        
+        eventDetails.commands = null
+        
+        return eventDetails
+    }
+    
+    /**
+     * Carry out any commands returned by the Worx server in response to events
+     */
+    void processResponse(Object response) {
+        for(Map cmd in response.commands) {
+            if(cmd.command == "stop") {
+                new Stop().run(System.out, cmd.arguments)
             }
         }
-        catch(Exception e) {
-            log.info "Error sending event ($e)"
-            log.severe "Failed to send event to remote worx host: $e"
-            e.printStackTrace()
-        }
     }
     
     void start() {
         
-        this.worx = new HttpWorxConnection()
+        this.worx = new HttpWorxConnection(closeAfterRead: !HttpWorxConnection.setting('keepAlive', true))
         
         [
              PipelineEvent.STARTED,
@@ -152,14 +132,14 @@ class WorxEventListener implements PipelineEventListener {
              PipelineEvent.SHUTDOWN
         ].each { EventManager.instance.addListener(it,this) } 
         
-        this.service = Executors.newSingleThreadExecutor(
-            new ThreadFactory() {
-                Thread newThread(Runnable r) {
-                    Thread t=new Thread(r);
-                    t.setDaemon(true);
-                    return t;
-                }
-        })
+        this.batcher = new WorxEventBatcher(
+            worx: worx,
+            windowMs: HttpWorxConnection.setting('batchWindowMs', 100L),
+            maxBatchSize: HttpWorxConnection.setting('maxBatchSize', 500),
+            onResponse: this.&processResponse,
+            prepare: this.&eventDetails
+        )
+        this.batcher.start()
     }
     
     @Override
@@ -207,8 +187,9 @@ class WorxEventListener implements PipelineEventListener {
         // All events
         details.host = InetAddress.getLocalHost().hostName
             
-        WorxEventJob job = new WorxEventJob(event:eventType, properties: [desc: desc, timeMs: System.currentTimeMillis()] + details)
-        this.service.submit(job);
+        Map properties = [desc: desc, timeMs: System.currentTimeMillis()] + details
+        log.info "Queueing event ${eventType.name()}"
+        this.batcher.add(new WorxEvent(event: eventType, properties: properties))
         
         /*
         switch(eventType) {
@@ -226,9 +207,8 @@ class WorxEventListener implements PipelineEventListener {
     
     void shutdown() {
         // Try to wait for any notifications that are still pending to get out
-        if(this.service) {
-            this.service.shutdown()
-            if(!this.service.awaitTermination(10, TimeUnit.SECONDS))
+        if(this.batcher) {
+            if(!this.batcher.shutdown(10000))
                 System.err.println "WARNING: Worx queue timed out before shutting down. Events may have been lost."
         }
     }
@@ -0,0 +1,159 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import java.nio.file.Files
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class CheckJournalTest {
+    
+    File dir
+    
+    @Before
+    void setUp() {
+        dir = Files.createTempDirectory('bpipe_checks').toFile()
+    }
+    
+    @After
+    void tearDown() {
+        dir.deleteDir()
+    }
+    
+    Check check(String stage, String branch, String state, boolean passed=false) {
+        new Check(stage: stage, name: 'qc', branch: branch, branchHash: branch, state: state, passed: passed, executed: new Date())
+    }
+    
+    @Test
+    void testLatestStateWins() {
+        CheckJournal journal = new CheckJournal(dir)
+        journal.save(check('align', 's1', 'review'))
+        journal.save(check('align', 's2', 'review'))
+        journal.save(check('align', 's1', 'pass', true))
+        
+        // Another reader sees the same state, in the order the checks were first saved
+        CheckJournal reader = new CheckJournal(dir)
+        reader.refresh()
+        List<Check> checks = reader.all
+        assert checks*.branch == ['s1', 's2']
+        assert checks*.state == ['pass', 'review']
+        assert checks[0].passed
+        assert checks[0].executed != null
+        
+        assert dir.listFiles()*.name == [CheckJournal.JOURNAL_FILE_NAME]
+    }
+    
+    @Test
+    void testPaged() {
+        CheckJournal journal = new CheckJournal(dir)
+        (1..25).each { journal.save(check('align', "s$it", 'review')) }
+        journal.save(check('align', 's3', 'pass', true))
+        
+        PagedList<Check> checks = journal.getPaged(10)
+        assert checks.size() == 25
+        assert checks*.branch == (1..25).collect { "s$it".toString() }
+        assert checks[2].state == 'pass'
+        assert journal.getPage(20, 10)*.branch == (21..25).collect { "s$it".toString() }
+        assert journal.getPage(30, 10).isEmpty()
+    }
+    
+    @Test
+    void testFind() {
+        CheckJournal journal = new CheckJournal(dir)
+        journal.save(check('align', 's1', 'review'))
+        journal.save(check('align', 's2', 'pass', true))
+        journal.save(check('call', 's1', 'review'))
+        
+        assert journal.find('align', null, null)*.branch == ['s1', 's2']
+        assert journal.find(null, 's1', null)*.stage == ['align', 'call']
+        assert journal.find(null, null, 'review').size() == 2
+        assert journal.find('call', 's1', 'review').size() == 1
+        assert journal.find('call', 's2', null).isEmpty()
+        assert journal.find('sort', null, null).isEmpty()
+        
+        // Overriding moves the check to its new state
+        journal.save(check('call', 's1', 'pass', true))
+        assert journal.find(null, null, 'review')*.stage == ['align']
+        assert journal.find(null, null, 'pass')*.stage.sort() == ['align', 'call']
+    }
+    
+    @Test
+    void testIncrementalRefresh() {
+        CheckJournal reader = new CheckJournal(dir)
+        CheckJournal writer = new CheckJournal(dir)
+        
+        writer.save(check('align', 's1', 'review'))
+        reader.refresh()
+        assert reader.all.size() == 1
+        
+        writer.save(check('align', 's2', 'review'))
+        
+        // A line that is still being written is not read until it is complete
+        File file = new File(dir, CheckJournal.JOURNAL_FILE_NAME)
+        file << '{"key":"s3.align.qc.properties","stage":"al'
+        reader.refresh()
+        assert reader.all*.branch == ['s1', 's2']
+        
+        file << 'ign","branch":"s3","state":"review","passed":"false"}\n'
+        reader.refresh()
+        assert reader.all*.branch == ['s1', 's2', 's3']
+    }
+    
+    @Test
+    void testCompaction() {
+        CheckJournal journal = new CheckJournal(dir)
+        journal.compactThreshold = 10
+        
+        CheckJournal reader = new CheckJournal(dir)
+        journal.save(check('align', 's1', 'review'))
+        journal.save(check('align', 's2', 'review'))
+        reader.refresh()
+        
+        (1..20).each { journal.save(check('align', "s${it%3}", it%2 ? 'review' : 'pass', it%2 == 0)) }
+        
+        File file = new File(dir, CheckJournal.JOURNAL_FILE_NAME)
+        assert file.readLines().size() < 10
+        assert journal.all*.branch == ['s1', 's2', 's0']
+        assert journal.all*.state == ['review', 'pass', 'pass']
+        
+        // A reader that read the journal before it was rewritten reads it again
+        reader.refresh()
+        assert reader.all*.branch == ['s1', 's2', 's0']
+        assert reader.all*.state == ['review', 'pass', 'pass']
+        assert reader.size() == 3
+        
+        journal.save(check('align', 's1', 'pass', true))
+        reader.refresh()
+        assert reader.all*.state == ['pass', 'pass', 'pass']
+        
+        assert dir.listFiles()*.name == [CheckJournal.JOURNAL_FILE_NAME]
+    }
+    
+    @Test
+    void testMigratePropertiesFiles() {
+        Properties p = new Properties()
+        p.stage = 'align'
+        p.branch = 's1'
+        p.name = 'qc'
+        p.passed = 'false'
+        p.message = 'Too few reads'
+        File legacy = new File(dir, 's1.align.qc.properties')
+        legacy.withWriter { p.store(it, 'Bpipe Check Properties') }
+        new File(dir, 'empty.align.qc.properties').createNewFile()
+        
+        List<Check> checks = CheckJournal.forDirectory(dir).all
+        assert checks.size() == 1
+        assert checks[0].message == 'Too few reads'
+        assert checks[0].state == 'failed'
+        
+        // The properties file is kept since it records when the check executed
+        assert legacy.exists()
+        assert new File(dir, CheckJournal.JOURNAL_FILE_NAME).exists()
+        
+        CheckJournal reader = new CheckJournal(dir)
+        reader.refresh()
+        assert reader.get('s1.align.qc.properties').message == 'Too few reads'
+    }
+}
@@ -0,0 +1,121 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import bpipe.storage.LocalPipelineFile
+
+class CommandConfigResolverTest {
+    
+    CommandConfigResolver resolver = CommandConfigResolver.theInstance
+    
+    Map<String,Object> savedConfig
+    
+    @Before
+    void setUp() {
+        savedConfig = Config.userConfig
+        Config.userConfig = new ConfigSlurper().parse('''
+            executor='local'
+            memory='4g'
+            walltime=3600
+            env {
+                LANG='C'
+            }
+            stages {
+                align { memory='16g'; walltime=7200 }
+                genotype { procs = { inputs, cfg -> cfg.memory == '8g' ? 2 : 1 } }
+            }
+            commands {
+                bwa { procs = { inputs -> inputs.size() }; walltime = { inputs -> inputs.size() * 60 } }
+                gatk { memory = '8g'; container = 'gatk' }
+                other { container = 'missing' }
+            }
+            containers {
+                gatk { type='docker'; image='broadinstitute/gatk' }
+            }
+        ''')
+        resolver.invalidate()
+    }
+    
+    @After
+    void tearDown() {
+        Config.userConfig = savedConfig
+        resolver.invalidate()
+    }
+    
+    List<PipelineFile> files(int n) {
+        (1..n).collect { new LocalPipelineFile("file_${it}.txt") }
+    }
+    
+    @Test
+    void testSameAsDirectResolution() {
+        for(String stage in ['align', 'genotype', 'sort']) {
+            for(String command in ['bwa mem ref.fa', 'gatk HaplotypeCaller', 'samtools sort']) {
+                Map compiled = resolver.resolve(null, stage, command, files(3))
+                Map direct = CommandConfigResolver.resolveDirect(null, stage, command, files(3))
+                assert compiled == direct
+            }
+        }
+        
+        Map cfg = resolver.resolve(null, 'genotype', 'gatk HaplotypeCaller', [])
+        assert cfg.name == 'gatk'
+        assert cfg.procs == 2
+        assert cfg.walltime == '01:00:00'
+        assert cfg.container.image == 'broadinstitute/gatk'
+        assert cfg.env == [LANG: 'C']
+    }
+    
+    @Test
+    void testCompiledOncePerStageAndCommand() {
+        int compilations = resolver.compilations
+        
+        Map first = resolver.resolve(null, 'align', 'bwa mem ref.fa', files(2))
+        Map second = resolver.resolve(null, 'align', 'bwa   aln ref.fa', files(5))
+        
+        assert resolver.compilations == compilations + 1
+        
+        // Values depending on the inputs are evaluated for each command
+        assert first.procs == 2 && first.walltime == '00:02:00'
+        assert second.procs == 5 && second.walltime == '00:05:00'
+        
+        // Each command gets its own configuration
+        first.memory = '1g'
+        assert resolver.resolve(null, 'align', 'bwa mem ref.fa', files(1)).memory == '16g'
+        
+        resolver.resolve(null, 'sort', 'bwa mem ref.fa', files(1))
+        assert resolver.compilations == compilations + 2
+    }
+    
+    @Test
+    void testChangedConfigRecompiled() {
+        assert resolver.resolve('gatk', 'align', null, []).memory == '8g'
+        
+        Config.userConfig = new ConfigSlurper().parse("commands { gatk { memory = '32g' } }")
+        assert resolver.resolve('gatk', 'align', null, []).memory == '32g'
+        
+        Config.userConfig.commands.gatk.memory = '64g'
+        resolver.invalidate()
+        assert resolver.resolve('gatk', 'align', null, []).memory == '64g'
+    }
+    
+    @Test
+    void testUnknownContainer() {
+        try {
+            resolver.resolve(null, 'align', 'other command', [])
+            fail("Expected an error for an unknown container")
+        }
+        catch(PipelineError e) {
+            assert e.message.contains('missing')
+        }
+    }
+    
+    @Test
+    void testCommandName() {
+        assert CommandConfigResolver.commandName('  bwa mem ref.fa') == 'bwa'
+        assert CommandConfigResolver.commandName('samtools\tsort') == 'samtools'
+        assert CommandConfigResolver.commandName('ls') == 'ls'
+    }
+}
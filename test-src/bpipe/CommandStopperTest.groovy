@@ -0,0 +1,142 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import java.nio.file.Files
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import bpipe.CommandStopper.StopRequest
+import bpipe.executor.BulkStoppable
+import bpipe.executor.CommandExecutor
+
+class CommandStopperTest {
+    
+    File dir
+    
+    File log
+    
+    List<String> stoppedIndividually = Collections.synchronizedList([])
+    
+    ExecutorService pool = Executors.newFixedThreadPool(4)
+    
+    CommandStopper stopper
+    
+    ByteArrayOutputStream output = new ByteArrayOutputStream()
+    
+    @Before
+    void setUp() {
+        Config.userConfig = new ConfigObject()
+        dir = Files.createTempDirectory('bpipe_stop_test').toFile()
+        log = new File(dir, 'scancel.log')
+        
+        // Stub scancel: logs its arguments, and reports errors for jobs 102 and 103 like slurm does
+        File scancel = new File(dir, 'scancel')
+        scancel.text = """#!/bin/bash
+            echo "\$@" >> $log.absolutePath
+            for id in "\$@"; do
+                if [ "\$id" == "102" ]; then
+                    echo "scancel: error: Kill job error on job id 102: Job/step already completing or completed" >&2
+                    STATUS=1
+                fi
+                if [ "\$id" == "103" ]; then
+                    echo "scancel: error: Kill job error on job id 103: Access/permission denied" >&2
+                    STATUS=1
+                fi
+            done
+            exit \$STATUS
+        """.stripIndent().trim()
+        scancel.setExecutable(true)
+        
+        stopper = new CommandStopper(null)
+        stopper.staggerMs = 0
+        stopper.stopCommands = [scancel: scancel.absolutePath]
+        stopper.out = new PrintStream(output)
+    }
+    
+    @After
+    void tearDown() {
+        pool.shutdown()
+        dir.deleteDir()
+    }
+    
+    StopRequest slurmJob(String id, boolean stoppable=true) {
+        CommandExecutor exec = [
+            getBulkStopCommand: { ['scancel'] },
+            getJobId: { id },
+            isStoppedMessage: { String msg -> msg.contains('already completing or completed') },
+            stop: { 
+                stoppedIndividually << id
+                if(!stoppable)
+                    throw new PipelineError("Job $id could not be stopped")
+            },
+            cleanup: { }
+        ] as BulkStoppable
+        new StopRequest(command: new Command(id: id), executor: exec)
+    }
+    
+    StopRequest localJob(String id) {
+        CommandExecutor exec = [
+            stop: { stoppedIndividually << id },
+            cleanup: { }
+        ] as CommandExecutor
+        new StopRequest(command: new Command(id: id), executor: exec)
+    }
+
+    @Test
+    void testAllJobsStoppedWithOneCommand() {
+        List<StopRequest> requests = (104..110).collect { slurmJob(String.valueOf(it)) }
+        
+        stopper.stop(requests, pool)
+        
+        assert log.readLines() == ['104 105 106 107 108 109 110']
+        assert requests.every { it.stopped }
+        assert stoppedIndividually.isEmpty()
+    }
+    
+    @Test
+    void testBatchSize() {
+        stopper.batchSize = 3
+        List<StopRequest> requests = (104..110).collect { slurmJob(String.valueOf(it)) }
+        
+        stopper.stop(requests, pool)
+        
+        assert log.readLines().sort() == ['104 105 106', '107 108 109', '110']
+        assert requests.every { it.stopped }
+    }
+    
+    @Test
+    void testFailedJobsRetriedIndividually() {
+        List<StopRequest> requests = (101..105).collect { slurmJob(String.valueOf(it), it != 103) }
+        requests << localJob('local1')
+        
+        stopper.stop(requests, pool)
+        stopper.report(requests)
+        
+        assert log.readLines() == ['101 102 103 104 105']
+        
+        // 102 had already finished, so only 103 needs to be stopped again
+        assert stoppedIndividually.sort() == ['103', 'local1']
+        assert requests.findAll { !it.stopped }*.commandId == ['103']
+        
+        String report = output.toString()
+        assert report.contains('Could Not Be Stopped')
+        assert report.contains('Job 103 could not be stopped')
+        assert report.contains('Stopped 5 / 6 commands (1 failed)')
+    }
+    
+    @Test
+    void testSchedulerFailure() {
+        stopper.stopCommands = [scancel: '/bin/false']
+        List<StopRequest> requests = (101..102).collect { slurmJob(String.valueOf(it)) }
+        
+        stopper.stop(requests, pool)
+        
+        assert stoppedIndividually.sort() == ['101', '102']
+        assert requests.every { it.stopped }
+    }
+}
@@ -0,0 +1,135 @@
+package bpipe
+
+import bpipe.executor.LocalCommandExecutor
+import bpipe.storage.LocalFileSystemStorageLayer
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class SettableRecord implements Serializable {
+    String name
+    List<SettableRecord> children = []
+}
+
+class ConstructedRecord implements Serializable {
+    final String name
+    final SettableRecord child
+    
+    ConstructedRecord(String name, SettableRecord child) {
+        this.name = name
+        this.child = child
+    }
+}
+
+class CommandStoreTest {
+    
+    File dir = new File("tests/commandstore.tmp")
+    
+    @Before
+    void before() {
+        Config.userConfig = new ConfigObject()
+        dir.mkdirs()
+    }
+    
+    @After
+    void after() {
+        dir.deleteDir()
+    }
+    
+    Command testCommand() {
+        Branch branch = new Branch(name:'sample1')
+        Command cmd = new Command(
+            id: '42', 
+            stageId: 'align_0', 
+            name: 'align',
+            branch: branch,
+            command: 'bwa mem ref.fa in.fq > out.bam',
+            outputs: [new PipelineFile('out.bam', new LocalFileSystemStorageLayer(), branch)],
+            status: CommandStatus.RUNNING,
+            createTimeMs: 1000L,
+            exitCode: 0,
+            dir: dir
+        )
+        cmd.rawProcessedConfig = [procs: 4, walltime: '01:00:00', env: [FOO: 'bar']]
+        return cmd
+    }
+    
+    @Test
+    void testRoundTrip() {
+        Command cmd = testCommand()
+        LocalCommandExecutor exec = new LocalCommandExecutor(id: 7, runningCommand: cmd.command, startedAt: new Date(5000))
+        
+        File f = new File(dir, cmd.id)
+        CommandStore.theInstance.write(f, exec, cmd)
+        
+        assert CommandStore.isCompact(f.bytes)
+        assert !new File(dir, cmd.id + '.tmp').exists()
+        
+        CommandRecord record = CommandStore.theInstance.read(f)
+        
+        assert record.executor instanceof LocalCommandExecutor
+        assert record.executor.id == 7
+        assert record.executor.startedAt == new Date(5000)
+        
+        Command cmd2 = record.command
+        assert cmd2.id == '42'
+        assert cmd2.command == cmd.command
+        assert cmd2.status == CommandStatus.RUNNING
+        assert cmd2.outputs*.path == ['out.bam']
+        assert cmd2.outputs[0].storage instanceof LocalFileSystemStorageLayer
+        assert cmd2.outputs[0].sourceBranch.is(cmd2.branch)
+        assert cmd2.branch.name == 'sample1'
+        assert cmd2.rawProcessedConfig == [procs: 4, walltime: '01:00:00', env: [FOO: 'bar']]
+        assert cmd2.dir == dir
+    }
+    
+    @Test
+    void testReadLegacyFormat() {
+        Command cmd = testCommand()
+        File f = new File(dir, cmd.id)
+        f.withObjectOutputStream { oos ->
+            oos.writeObject(new LocalCommandExecutor(id: 3))
+            oos.writeObject(cmd)
+        }
+        
+        CommandRecord record = CommandStore.theInstance.read(f)
+        assert record.executor.id == 3
+        assert record.command.name == 'align'
+        assert record.command.outputs*.path == ['out.bam']
+    }
+    
+    @Test
+    void testJavaFormatOption() {
+        Config.userConfig.commandStore = [format: 'java']
+        
+        Command cmd = testCommand()
+        File f = new File(dir, cmd.id)
+        CommandStore.theInstance.write(f, new LocalCommandExecutor(id: 3), cmd)
+        
+        assert !CommandStore.isCompact(f.bytes)
+        assert CommandStore.theInstance.read(f).command.id == '42'
+    }
+    
+    @Test
+    void testClassesWithoutNoArgConstructorAreSerialized() {
+        assert CompactRecordCodec.isRecordClass(SettableRecord)
+        assert !CompactRecordCodec.isRecordClass(ConstructedRecord)
+        
+        SettableRecord child = new SettableRecord(name: 'child')
+        SettableRecord parent = new SettableRecord(name: 'parent', children: [child])
+        ConstructedRecord constructed = new ConstructedRecord('constructed', child)
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        CompactRecordWriter writer = new CompactRecordWriter(bytes)
+        writer.writeValue([parent, constructed])
+        writer.flush()
+        
+        List values = (List)new CompactRecordReader(new ByteArrayInputStream(bytes.toByteArray())).readValue()
+        assert values[0].name == 'parent'
+        assert values[0].children*.name == ['child']
+        assert values[1] instanceof ConstructedRecord
+        assert values[1].name == 'constructed'
+        assert values[1].child.name == 'child'
+    }
+}
@@ -0,0 +1,165 @@
+package bpipe
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class ConfigCacheTest {
+
+    File dir = new File("tests/configcache.tmp")
+
+    File configFile = new File(dir, 'bpipe.config')
+
+    ConfigCache cache = ConfigCache.theInstance
+
+    Map binding = [scriptPath: '/data/pipeline.groovy']
+
+    @Before
+    void before() {
+        dir.mkdirs()
+        cache.dir = new File(dir, 'cache')
+        cache.dir.mkdirs()
+        cache.enabled = true
+        cache.maxEntries = 1000
+    }
+
+    @After
+    void after() {
+        dir.deleteDir()
+    }
+
+    ConfigLoad load(String environment = 'default') {
+        ConfigSlurper slurper = environment == 'default' ? new ConfigSlurper() : new ConfigSlurper(environment)
+        slurper.binding = binding
+        return cache.load(slurper, configFile, binding, environment)
+    }
+
+    @Test
+    void testCachedConfigIsSame() {
+        configFile.text = '''
+            executor="slurm"
+            procs=4
+            memory=8.5
+            modules = ["bwa", "samtools"]
+            env = [FOO: 'bar']
+            scriptDir = "${scriptPath}"
+            limits {
+                walltime = "01:00:00"
+                queue = "batch".toUpperCase()
+            }
+            desc = """
+                A description
+            """.stripIndent()
+        '''
+
+        ConfigLoad first = load()
+        assert !first.cached
+        assert first.reason == null
+
+        ConfigLoad second = load()
+        assert second.cached
+        assert second.config == first.config
+        assert second.config.limits.queue == 'BATCH'
+        assert second.config.scriptDir instanceof GString
+        assert second.config.scriptDir == '/data/pipeline.groovy'
+        assert second.config.limits.configFile == configFile.toURI().toURL()
+        assert second.config.flatten() == first.config.flatten()
+
+        // The cached configuration is not shared with earlier loads
+        second.config.procs = 2
+        assert load().config.procs == 4
+    }
+
+    @Test
+    void testChangedFileIsParsed() {
+        configFile.text = 'procs=4'
+        load()
+        assert load().cached
+
+        configFile.text = 'procs=5'
+        ConfigLoad changed = load()
+        assert !changed.cached
+        assert changed.config.procs == 5
+    }
+
+    @Test
+    void testBindingIsPartOfKey() {
+        configFile.text = 'dir="$scriptPath"'
+        load()
+        assert load().cached
+
+        binding.scriptPath = '/other/pipeline.groovy'
+        ConfigLoad changed = load()
+        assert !changed.cached
+        assert changed.config.dir == '/other/pipeline.groovy'
+        assert load().cached
+    }
+
+    @Test
+    void testEnvironmentIsPartOfKey() {
+        configFile.text = '''
+            queue="batch"
+            environments {
+                test {
+                    queue="short"
+                }
+            }
+        '''
+        load()
+        assert load().config.queue == 'batch'
+
+        ConfigLoad test = load('test')
+        assert !test.cached
+        assert test.config.queue == 'short'
+        assert load('test').cached
+    }
+
+    @Test
+    void testDynamicConfigIsNotCached() {
+        for(String text in ['home=System.getenv("HOME")', 'f=new File("x").path', 'procs = { inputs -> inputs.size() }', 'x="ls".execute()']) {
+            configFile.text = text
+            load()
+            ConfigLoad second = load()
+            assert !second.cached
+            assert second.reason != null
+        }
+    }
+
+    @Test
+    void testPruneKeepsIndexOfUsedConfig() {
+        cache.maxEntries = 8
+
+        configFile.text = 'procs=1'
+        load()
+        List<File> used = cache.dir.listFiles().toList()
+        assert used.size() == 2
+
+        for(i in 2..4) {
+            configFile.text = "procs=$i"
+            load()
+        }
+
+        // Everything was last used long ago, except the first config
+        cache.dir.listFiles().each { it.setLastModified(System.currentTimeMillis() - 100000) }
+        configFile.text = 'procs=1'
+        assert load().cached
+
+        configFile.text = 'procs=5'
+        load()
+
+        assert cache.dir.listFiles().size() == 4
+        assert used.every { it.exists() }
+    }
+
+    @Test
+    void testCorruptEntryIsIgnored() {
+        configFile.text = 'procs=4'
+        load()
+        cache.dir.listFiles().each { it.bytes = (ConfigCache.MAGIC.toList() + [(byte)99]) as byte[] }
+
+        ConfigLoad reread = load()
+        assert !reread.cached
+        assert reread.config.procs == 4
+        assert load().cached
+    }
+}
@@ -0,0 +1,192 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import java.nio.file.Files
+import java.util.concurrent.Semaphore
+
+import org.junit.Test
+
+class CriticalPathPlannerTest {
+    
+    static final long MINUTE = 60000L
+    
+    int nextId = 0
+    
+    /**
+     * A recorded run that splits into the given samples, runs stages a and b in each
+     * and then merges them. Samples run one after another, as if only one thread was available.
+     */
+    List<CommandTiming> recordRun(Map<String,Long> sampleStageMinutes) {
+        List<CommandTiming> timings = []
+        long now = 0L
+        Closure run = { String stage, String path, long minutes ->
+            timings << new CommandTiming(id: String.valueOf(++nextId), stage: stage, branchPath: path, startMs: now, endMs: now + minutes*MINUTE)
+            now += minutes*MINUTE
+        }
+        run('split', '', 1L)
+        sampleStageMinutes.each { String sample, Long minutes ->
+            run('a', sample, minutes)
+            run('b', sample, minutes)
+        }
+        run('merge', '', 1L)
+        return timings
+    }
+    
+    @Test
+    void testInferDependencies() {
+        List<CommandTiming> timings = recordRun([s1: 10L, s2: 10L])
+        Map<CommandTiming,List<CommandTiming>> deps = PathHistory.inferDependencies(timings)
+        Map<String,CommandTiming> byName = timings.collectEntries { [(it.branchPath + ':' + it.stage): it] }
+        
+        assert deps[byName[':split']].isEmpty()
+        assert deps[byName['s1:a']]*.id == [byName[':split'].id]
+        assert deps[byName['s1:b']]*.id.sort() == [byName[':split'].id, byName['s1:a'].id].sort()
+        
+        // Branches run in parallel, so s2 does not depend on s1 even though it started after it
+        assert !(byName['s1:b'] in deps[byName['s2:a']])
+        
+        assert deps[byName[':merge']]*.id.sort() == [byName[':split'].id, byName['s1:b'].id, byName['s2:b'].id].sort()
+    }
+    
+    @Test
+    void testRemainingPaths() {
+        PathHistory history = new PathHistory()
+        history.addRun(recordRun([s1: 10L, long: 60L]))
+        
+        // The remaining path of a stage includes the rest of the branch and the merge
+        assert history.remainingMs('long', 'a', 0L) == 121 * MINUTE
+        assert history.remainingMs('long', 'b', 0L) == 61 * MINUTE
+        assert history.remainingMs('s1', 'a', 0L) == 21 * MINUTE
+        assert history.branchMs('long', 0L) == 121 * MINUTE
+        
+        // Stages in branches not seen before use the mean over all branches
+        assert history.remainingMs('s3', 'a', 0L) == 71 * MINUTE
+        assert history.remainingMs('s3', 'c', 0L) == -1L
+        assert history.branchMs('s3', 0L) == -1L
+    }
+    
+    @Test
+    void testEstimateFromInputSize() {
+        List<CommandTiming> timings = recordRun([s1: 10L, s2: 20L])
+        timings.find { it.branchPath == 's1' && it.stage == 'a' }.inputBytes = 1000L
+        timings.find { it.branchPath == 's2' && it.stage == 'a' }.inputBytes = 2000L
+        
+        PathHistory history = new PathHistory()
+        history.addRun(timings)
+        
+        // A new branch with twice the inputs of the average is expected to take twice as long
+        assert history.remainingMs('s3', 'a', 3000L) == 2 * history.remainingMs('s3', 'a', 0L)
+        assert history.branchMs('s3', 3000L) > history.branchMs('s2', 0L)
+        assert history.branchMs('s3', 0L) == -1L
+    }
+    
+    @Test
+    void testSelectGrants() {
+        List<PermitRequest> requests = [
+            new PermitRequest(amount: 4, priorityMs: 100, requestTimeMs: 0, sequence: 1),
+            new PermitRequest(amount: 2, priorityMs: 500, requestTimeMs: 0, sequence: 2),
+            new PermitRequest(amount: 2, priorityMs: 0, requestTimeMs: 0, sequence: 3),
+            new PermitRequest(amount: 1, priorityMs: 0, requestTimeMs: 0, sequence: 4),
+        ]
+        
+        // Highest priority first, then smaller requests fill the remaining permits
+        assert CriticalPathPlanner.selectGrants(requests, 5, 1000, 60000)*.sequence == [2, 3, 4]
+        
+        // Once it has waited too long, the large request cannot be overtaken
+        assert CriticalPathPlanner.selectGrants(requests, 3, 70000, 60000)*.sequence == []
+        assert CriticalPathPlanner.selectGrants(requests, 4, 70000, 60000)*.sequence == [1]
+    }
+    
+    @Test
+    void testSimulateLongBranchStartedLast() {
+        Map<String,Long> samples = (1..10).collectEntries { ["s$it".toString(), 10L] }
+        samples.long = 60L
+        List<CommandTiming> timings = recordRun(samples)
+        
+        CriticalPathSimulator simulator = new CriticalPathSimulator(threads: 4)
+        CriticalPathSimulator.Result fifo = simulator.simulate(timings, false)
+        CriticalPathSimulator.Result critical = simulator.simulate(timings, true)
+        
+        // FIFO: the long sample starts after the first 8 short stages finish
+        assert fifo.makespanMs == (1 + 20 + 120 + 1) * MINUTE
+        
+        // Critical path: the long sample starts immediately and the short ones run alongside it
+        assert critical.makespanMs == (1 + 120 + 1) * MINUTE
+    }
+    
+    @Test
+    void testInterruptedRequestIsRemoved() {
+        CriticalPathPlanner planner = CriticalPathPlanner.theInstance
+        Semaphore semaphore = new Semaphore(0)
+        
+        Throwable error = null
+        Thread waiter = Thread.start {
+            try {
+                planner.acquire(semaphore, 2, 0L)
+            }
+            catch(Throwable t) {
+                error = t
+            }
+        }
+        
+        Closure isWaiting = { ->
+            synchronized(planner.waiting) {
+                planner.waiting.any { it.semaphore.is(semaphore) }
+            }
+        }
+        
+        while(!isWaiting())
+            Thread.sleep(10)
+        
+        waiter.interrupt()
+        waiter.join(10000)
+        
+        assert error instanceof InterruptedException
+        assert !isWaiting()
+        
+        // The permits are not granted to the request that is no longer waiting
+        semaphore.release(2)
+        planner.released()
+        assert semaphore.availablePermits() == 2
+        
+        planner.acquire(semaphore, 2, 0L)
+        assert semaphore.availablePermits() == 0
+    }
+    
+    @Test
+    void testReadResultFile() {
+        File dir = Files.createTempDirectory('bpipe_critical_path').toFile()
+        try {
+            File xml = new File(dir, '123.xml')
+            xml.text = """
+                <job id="123">
+                  <succeeded>true</succeeded>
+                  <commands>
+                    <command>
+                      <id>7</id><stage>align</stage><branch>chr1</branch><branchPath>s1/chr1</branchPath>
+                      <start>2024-01-01 10:00:00</start><end>2024-01-01 10:30:00</end>
+                      <resources><procs>4</procs><memory>8g</memory></resources>
+                      <inputs><input path="s1.bam" bytes="1000"/><input path="s1.bai" bytes="24"/></inputs>
+                    </command>
+                    <command>
+                      <id>8</id><stage>call</stage><branch>s2</branch>
+                      <start>2024-01-01 10:00:00</start><end>2024-01-01 10:10:00</end>
+                      <resources><procs></procs><memory></memory></resources>
+                    </command>
+                  </commands>
+                </job>
+            """.stripIndent().trim()
+            
+            List<CommandTiming> timings = PathHistory.readResultFile(xml)
+            assert timings*.branchPath == ['s1/chr1', 's2']
+            assert timings[0].durationMs == 30 * MINUTE
+            assert timings[0].threads == 4
+            assert timings[0].inputBytes == 1024L
+            assert timings[1].threads == 1
+        }
+        finally {
+            dir.deleteDir()
+        }
+    }
+}
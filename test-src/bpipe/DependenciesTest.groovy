@@ -278,4 +278,65 @@ class DependenciesTest {
        assert c.upToDate
        assert d.upToDate
     }
+
+    /**
+     * The linear graph builder must produce the same graph, timestamps and up-to-date 
+     * flags as the recursive algorithm
+     */
+    @Test
+    void testBuildOutputGraphMatchesRecursive() {
+        for(int seed=0; seed<20; ++seed) {
+            List<OutputMetaData> expected = randomOutputs(new Random(seed), 150)
+            List<OutputMetaData> actual = randomOutputs(new Random(seed), 150)
+            
+            String expectedGraph = describe(Dependencies.instance.computeOutputGraphRecursive(expected))
+            String actualGraph = describe(Dependencies.instance.buildOutputGraph(actual))
+            
+            assert actualGraph == expectedGraph
+        }
+    }
+    
+    @Test(expected=PipelineError)
+    void testBuildOutputGraphCircular() {
+        a.inputs = ['d.txt']
+        Dependencies.instance.buildOutputGraph([a,b,c,d])
+    }
+    
+    List<OutputMetaData> randomOutputs(Random random, int count) {
+        List<OutputMetaData> outputs = []
+        for(int i=0; i<count; ++i) {
+            List inputs = (0..<random.nextInt(4)).collect {
+                (outputs && random.nextInt(5) > 0) ? outputs[random.nextInt(outputs.size())] : "input${random.nextInt(3)}.txt".toString()
+            }.unique()
+            OutputMetaData out = testFile("out${i}.txt", inputs)
+            out.timestamp = random.nextInt(count)
+            out.outputFile.existsOverride = random.nextInt(4) > 0
+            out.cleaned = random.nextBoolean()
+            outputs << out
+        }
+        Collections.shuffle(outputs, random)
+        return outputs
+    }
+    
+    /**
+     * Render every entry reachable from the root, numbered in the order first reached
+     */
+    String describe(GraphEntry root) {
+        Map<GraphEntry,Integer> ids = new IdentityHashMap()
+        List<GraphEntry> order = []
+        def visit
+        visit = { GraphEntry e ->
+            if(ids.containsKey(e))
+                return
+            ids[e] = order.size()
+            order << e
+            e.children.each { visit(it) }
+        }
+        visit(root)
+        
+        order.collect { GraphEntry e ->
+            "${ids[e]}: " + e.values?.collect { "$it.outputPath max=$it.maxTimestamp upToDate=$it.upToDate" } + 
+                " parents=" + e.parents.collect { ids[it] } + " children=" + e.children.collect { ids[it] }
+        }.join('\n')
+    }
 }
@@ -2,7 +2,9 @@ package bpipe
 
 import bpipe.storage.LocalFileSystemStorageLayer
 import bpipe.storage.StorageLayer
+import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.attribute.FileTime
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
@@ -31,6 +33,66 @@ class FileGlobberTest {
         assert globber.glob(".globtest/*.txt") == [".globtest/foo.txt"]        
     }
     
+    @Test
+    void testWildcardDirectory() {
+        new File(dir, "a").mkdirs()
+        new File(dir, "b").mkdirs()
+        new File(dir, "a/x.txt").text = "x"
+        new File(dir, "b/y.txt").text = "y"
+        new File(dir, "b/y.csv").text = "y"
+        
+        assert globber.glob(".globtest/*/*.txt") == [".globtest/a/x.txt", ".globtest/b/y.txt"]
+    }
+    
+    @Test
+    void testRecursiveGlob() {
+        new File(dir, "a/b/c").mkdirs()
+        new File(dir, "a/b/c/deep.txt").text = "deep"
+        new File(dir, "a/mid.txt").text = "mid"
+        new File(dir, "a/b/c/deep.csv").text = "deep"
+        
+        assert globber.glob(".globtest/**/*.txt").sort() == 
+            [".globtest/a/b/c/deep.txt", ".globtest/a/mid.txt", ".globtest/foo.txt"]
+            
+        assert globber.glob(".globtest/**/c/*.csv") == [".globtest/a/b/c/deep.csv"]
+    }
+    
+    @Test
+    void testRecursiveGlobInParallel() {
+        (1..40).each { new File(dir, "d$it/e").mkdirs(); new File(dir, "d$it/e/f${it}.txt").text = "x" }
+        
+        FileGlobber parallelGlobber = new FileGlobber(storage:new LocalFileSystemStorageLayer(), parallelThreshold: 4) 
+        
+        assert parallelGlobber.glob(".globtest/**/f[0-9]*.txt").size() == 40
+    }
+    
+    @Test
+    void testCachedListingUpdated() {
+        
+        DirectoryListingCache cache = DirectoryListingCache.theInstance
+        cache.clear()
+        
+        // Make the directory look old enough for its listing to be cached
+        Path dirPath = dir.toPath()
+        Files.setLastModifiedTime(dirPath, FileTime.fromMillis(System.currentTimeMillis() - 60000))
+        
+        assert globber.glob(".globtest/*.txt") == [".globtest/foo.txt"]
+        assert globber.glob(".globtest/*.txt") == [".globtest/foo.txt"]
+        assert cache.hits.get() == 1
+        
+        // Adding a file changes the directory timestamp, so the cached listing is not used
+        new File(dir, "bar.txt").text = "foo"
+        assert globber.glob(".globtest/*.txt") == [".globtest/bar.txt", ".globtest/foo.txt"]
+        
+        // A cached listing is also dropped when a watcher sees a change
+        Files.setLastModifiedTime(dirPath, FileTime.fromMillis(System.currentTimeMillis() - 60000))
+        globber.glob(".globtest/*.txt")
+        long misses = cache.misses.get()
+        cache.invalidate(dirPath)
+        globber.glob(".globtest/*.txt")
+        assert cache.misses.get() == misses + 1
+    }
+    
     @After
     void after() {
         dir.deleteDir()
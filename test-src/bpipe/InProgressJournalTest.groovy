@@ -0,0 +1,182 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class InProgressJournalTest {
+    
+    /**
+     * Runs stages on several threads, each adding outputs to the journal and then clearing
+     * them, and reports each step on stdout once the journal has acknowledged it. Runs 
+     * until it is killed.
+     */
+    static class StageSimulator {
+        static void main(String [] args) {
+            InProgressJournal journal = new InProgressJournal(new File(args[0]))
+            journal.sync = true
+            int threads = args[1].toInteger()
+            (1..threads).collect { int t ->
+                Thread.start {
+                    for(int stage=0; ; ++stage) {
+                        journal.add(t, (1..3).collect { "t$t/s$stage/out${it}.txt".toString() })
+                        println "ADD $t $stage"
+                        journal.clear(t)
+                        println "CLEAR $t $stage"
+                    }
+                }
+            }*.join()
+        }
+    }
+    
+    File dir
+    
+    File file
+    
+    @Before
+    void setUp() {
+        dir = Files.createTempDirectory('bpipe_inprogress').toFile()
+        file = new File(dir, 'journal')
+    }
+    
+    @After
+    void tearDown() {
+        dir.deleteDir()
+    }
+    
+    @Test
+    void testReplay() {
+        InProgressJournal journal = new InProgressJournal(file)
+        journal.sync = true
+        
+        journal.add(1, ['a.bam', 'a.bai'])
+        journal.add(2, ['b.bam'])
+        journal.add(1, ['a.vcf'])
+        journal.clear(2)
+        journal.add(3, ['c.bam'])
+        
+        assert InProgressJournal.replay(file) == ['a.bam', 'a.bai', 'a.vcf', 'c.bam']
+        assert journal.paths == ['a.bam', 'a.bai', 'a.vcf', 'c.bam']
+        
+        journal.clear(1)
+        journal.clear(3)
+        assert InProgressJournal.replay(file).isEmpty()
+    }
+    
+    @Test
+    void testClearWithoutOutputsDoesNotWrite() {
+        InProgressJournal journal = new InProgressJournal(file)
+        journal.clear(1)
+        assert !file.exists()
+    }
+    
+    @Test
+    void testPartialRecordIgnored() {
+        file.text = '+1\ta.bam\n+2\tb.bam\n-1\n+2\tc.b'
+        assert InProgressJournal.replay(file) == ['b.bam']
+    }
+    
+    @Test
+    void testCompaction() {
+        long compactBytes = InProgressJournal.COMPACT_BYTES
+        InProgressJournal.COMPACT_BYTES = 16 * 1024
+        try {
+            InProgressJournal journal = new InProgressJournal(file)
+            journal.sync = false
+            
+            journal.add(0, ['kept.bam'])
+            int records = 0
+            long size = 0
+            while(file.length() >= size) {
+                size = file.length()
+                journal.add(1, ["out_${records++}.bam".toString()])
+                journal.clear(1)
+                assert size <= InProgressJournal.COMPACT_BYTES
+            }
+            journal.add(1, ['last.bam'])
+            journal.add(1, ['last2.bam'])
+            
+            assert file.length() < 100
+            assert InProgressJournal.replay(file) == ['kept.bam', 'last.bam', 'last2.bam']
+        }
+        finally {
+            InProgressJournal.COMPACT_BYTES = compactBytes
+        }
+    }
+    
+    @Test
+    void testConcurrentStages() {
+        InProgressJournal journal = new InProgressJournal(file)
+        journal.sync = true
+        
+        (1..16).collect { int t ->
+            Thread.start {
+                for(int stage=0; stage<200; ++stage) {
+                    journal.add(t, ["t$t/s$stage".toString()])
+                    if(stage < 199)
+                        journal.clear(t)
+                }
+            }
+        }*.join()
+        
+        assert InProgressJournal.replay(file) as Set == (1..16).collect { "t$it/s199".toString() } as Set
+    }
+    
+    /**
+     * Kill a process that is running stages, and check that the journal records the 
+     * outputs of exactly the stages that were in progress on each thread
+     */
+    @Test
+    void testKillDuringRun() {
+        int threads = 8
+        Process process = new ProcessBuilder(
+            new File(System.getProperty('java.home'), 'bin/java').path, 
+            '-cp', System.getProperty('java.class.path'), 
+            StageSimulator.name, file.path, String.valueOf(threads)
+        ).redirectErrorStream(true).start()
+        
+        List<String> lines = []
+        BufferedReader reader = process.inputStream.newReader()
+        while(lines.size() < 2000) {
+            String line = reader.readLine()
+            assert line != null : "Simulator exited early: " + lines.join('\n')
+            lines << line
+        }
+        // Kill via the handle, as destroying the Process would close its output
+        process.toHandle().destroyForcibly()
+        assert process.waitFor(30, TimeUnit.SECONDS)
+        
+        // Output that was already reported before the process died
+        String line
+        while((line = reader.readLine()) != null)
+            lines << line
+            
+        Map<Integer,List<String>> lastEvent = [:]
+        for(String event in lines.findAll { it.startsWith('ADD') || it.startsWith('CLEAR') }) {
+            List<String> fields = event.tokenize(' ')
+            lastEvent[fields[1].toInteger()] = [fields[0], fields[2]]
+        }
+        
+        List<String> recovered = InProgressJournal.replay(file)
+        Map<Integer, List<String>> recoveredByThread = recovered.groupBy { it.tokenize('/')[0].substring(1).toInteger() }
+        
+        assert lastEvent.size() == threads
+        lastEvent.each { int t, List<String> event ->
+            int stage = event[1].toInteger()
+            Closure<List<String>> outputs = { int s -> (1..3).collect { "t$t/s$s/out${it}.txt".toString() } }
+            List<String> threadRecovered = recoveredByThread[t] ?: []
+            
+            // The process may have been killed after the journal acknowledged the next step,
+            // but before that was reported
+            if(event[0] == 'ADD')
+                assert threadRecovered == outputs(stage) || threadRecovered.isEmpty()
+            else
+                assert threadRecovered.isEmpty() || threadRecovered == outputs(stage+1)
+        }
+    }
+}
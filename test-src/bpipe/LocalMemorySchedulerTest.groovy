@@ -0,0 +1,226 @@
+package bpipe
+
+import java.util.concurrent.Semaphore
+
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+
+class LocalMemorySchedulerTest {
+
+    LocalMemoryScheduler scheduler = LocalMemoryScheduler.theInstance
+
+    @Before
+    void before() {
+        Config.userConfig = new ConfigObject()
+        Config.userConfig.localScheduler = [enabled: true, memoryReserveMB: 0, historyRuns: 3, rssHeadroom: 1.5]
+        scheduler.stagePeakRssMB = [:]
+    }
+
+    SchedulingRequest req(String id, int threads, long memoryMB, long requestTimeMs=0L) {
+        new SchedulingRequest(commandId: id, stage: id, threads: threads, memoryMB: memoryMB, requestTimeMs: requestTimeMs)
+    }
+
+    /**
+     * Admit a command declaring the given memory in a separate thread
+     */
+    Thread admitInBackground(Command command, ResourceUnit memoryUnit, Semaphore threads, Semaphore memory, Integer memoryLimitMB, List<Throwable> errors) {
+        Thread.start {
+            try {
+                scheduler.admit(command, new ResourceUnit(key: 'threads', amount: 1), memoryUnit, threads, memory, memoryLimitMB)
+            }
+            catch(Throwable t) {
+                errors << t
+            }
+        }
+    }
+
+    @Test
+    void testPacksLargestFirst() {
+        def waiting = [req('a', 1, 1000), req('b', 1, 6000), req('c', 1, 3000)]
+
+        def admitted = LocalMemoryScheduler.selectAdmissible(waiting, 4, 8000, false, 0L, 10000L)
+
+        assert admitted*.commandId == ['b', 'a']
+    }
+
+    @Test
+    void testRespectsThreads() {
+        def waiting = [req('a', 4, 1000), req('b', 2, 1000), req('c', 1, 1000)]
+
+        def admitted = LocalMemoryScheduler.selectAdmissible(waiting, 3, 8000, false, 0L, 10000L)
+
+        assert admitted*.commandId == ['b', 'c']
+    }
+
+    @Test
+    void testStarvingRequestIsNotOvertaken() {
+        def waiting = [req('small', 1, 1000, 19000L), req('big', 1, 6000, 0L)]
+
+        // big has waited too long: small must not be let in ahead of it
+        def admitted = LocalMemoryScheduler.selectAdmissible(waiting, 4, 4000, false, 20000L, 10000L)
+        assert admitted.isEmpty()
+
+        // Before it starves, small is admitted into the gap
+        admitted = LocalMemoryScheduler.selectAdmissible(waiting, 4, 4000, false, 5000L, 10000L)
+        assert admitted*.commandId == ['small']
+    }
+
+    @Test
+    void testOversizedRequestAdmittedWhenIdle() {
+        def waiting = [req('huge', 1, 64000)]
+
+        assert LocalMemoryScheduler.selectAdmissible(waiting, 4, 8000, false, 0L, 10000L).isEmpty()
+        assert LocalMemoryScheduler.selectAdmissible(waiting, 4, 8000, true, 0L, 10000L)*.commandId == ['huge']
+    }
+
+    @Test
+    void testIdleOverrideRequiresFreeThreads() {
+        def waiting = [req('huge', 4, 64000)]
+
+        assert LocalMemoryScheduler.selectAdmissible(waiting, 2, 8000, true, 0L, 10000L).isEmpty()
+        assert LocalMemoryScheduler.selectAdmissible(waiting, 4, 8000, true, 0L, 10000L)*.commandId == ['huge']
+    }
+
+    @Test
+    void testFullReservationIsWaitedFor() {
+        Semaphore threads = new Semaphore(4)
+        Semaphore memory = new Semaphore(4000)
+
+        // Memory held by a command that is not managed by the scheduler
+        memory.acquire(1000)
+
+        Command command = new Command(id: 'fullreservation', name: 'fullreservation')
+        ResourceUnit memoryUnit = new ResourceUnit(key: 'memory', amount: 4000)
+        List<Throwable> errors = []
+        Thread admitting = admitInBackground(command, memoryUnit, threads, memory, 4000, errors)
+
+        admitting.join(3000)
+        assert admitting.alive
+        assert memory.availablePermits() == 3000
+        assert threads.availablePermits() == 4
+
+        memory.release(1000)
+        scheduler.commandFinished(new Command(id: 'other'))
+        admitting.join(10000)
+
+        assert !admitting.alive
+        assert errors.isEmpty()
+        assert memoryUnit.amount == 4000
+        assert memory.availablePermits() == 0
+        assert threads.availablePermits() == 3
+
+        scheduler.commandFinished(command)
+    }
+
+    @Test
+    void testInterruptedRequestIsRemoved() {
+        Semaphore threads = new Semaphore(4)
+        Semaphore memory = new Semaphore(4000)
+        memory.acquire(1000)
+
+        Command command = new Command(id: 'interrupted', name: 'interrupted')
+        List<Throwable> errors = []
+        Thread admitting = admitInBackground(command, new ResourceUnit(key: 'memory', amount: 4000), threads, memory, 4000, errors)
+
+        Closure isWaiting = { ->
+            synchronized(scheduler.waiting) {
+                scheduler.waiting.any { it.commandId == 'interrupted' }
+            }
+        }
+
+        while(!isWaiting())
+            Thread.sleep(10)
+
+        admitting.interrupt()
+        admitting.join(10000)
+
+        assert errors.size() == 1
+        assert errors[0] instanceof InterruptedException
+        assert !isWaiting()
+
+        // The permits are not acquired for the request that is no longer waiting
+        memory.release(1000)
+        Command next = new Command(id: 'afterinterrupted', name: 'afterinterrupted')
+        errors.clear()
+        admitInBackground(next, new ResourceUnit(key: 'memory', amount: 4000), threads, memory, 4000, errors).join(10000)
+        assert errors.isEmpty()
+        assert memory.availablePermits() == 0
+        assert threads.availablePermits() == 3
+
+        scheduler.commandFinished(next)
+    }
+
+    @Test
+    void testReservationAboveLimit() {
+        Semaphore threads = new Semaphore(4)
+        Semaphore memory = new Semaphore(4000)
+
+        // Declared memory that can never be reserved fails
+        List<Throwable> errors = []
+        Command declared = new Command(id: 'declaredabovelimit', name: 'declaredabovelimit')
+        admitInBackground(declared, new ResourceUnit(key: 'memory', amount: 5000), threads, memory, 4000, errors).join(10000)
+        assert errors.size() == 1
+        assert errors[0] instanceof PipelineError
+
+        // An estimate above the limit reserves the whole limit
+        scheduler.stagePeakRssMB = [estimatedabovelimit: [10000L]]
+        Command estimated = new Command(id: 'estimatedabovelimit', name: 'estimatedabovelimit')
+        ResourceUnit memoryUnit = new ResourceUnit(key: 'memory', amount: 1000)
+        errors.clear()
+        admitInBackground(estimated, memoryUnit, threads, memory, 4000, errors).join(10000)
+        assert errors.isEmpty()
+        assert memoryUnit.amount == 4000
+        assert memory.availablePermits() == 0
+
+        scheduler.commandFinished(estimated)
+    }
+
+    @Test
+    void testHistoryFollowsRecentPeaks() {
+        scheduler.recordPeakRss('recentpeaks', 8000)
+        scheduler.recordPeakRss('recentpeaks', 2000)
+        assert scheduler.getStagePeakRssMB('recentpeaks') == 8000
+
+        scheduler.recordPeakRss('recentpeaks', 3000)
+        scheduler.recordPeakRss('recentpeaks', 2000)
+        assert scheduler.getStagePeakRssMB('recentpeaks') == 3000
+        assert scheduler.estimateMemoryMB('recentpeaks', 0) == 4500
+    }
+
+    @Test
+    void testProcessTableRssMatchesStatus() {
+        Assume.assumeTrue(new File('/proc/self/status').exists())
+
+        int pid = new File('/proc/self').canonicalFile.name.toInteger()
+        long rssBytes = ProcessTable.read().rssBytes[pid]
+        long statusBytes = new File('/proc/self/status').readLines().find { it.startsWith('VmRSS:') }.tokenize()[1].toLong() * 1024L
+
+        // RSS changes between the two reads, but not by as much as a wrong page size would
+        assert Math.abs(rssBytes - statusBytes) < statusBytes / 4
+    }
+
+    @Test
+    void testSimulationAvoidsOverCommit() {
+
+        // A burst of commands that declare no memory but actually use a lot,
+        // mixed with commands that declare much more than they use
+        List<SimulatedCommand> commands = []
+        (1..4).each { i ->
+            commands << new SimulatedCommand(id: "greedy$i", stage: 'greedy', readyMs: 0, durationMs: 10000, threads: 1, declaredMemoryMB: 0, peakRssMB: 6000)
+        }
+        (1..8).each { i ->
+            commands << new SimulatedCommand(id: "cautious$i", stage: 'cautious', readyMs: 0, durationMs: 10000, threads: 1, declaredMemoryMB: 8000, peakRssMB: 1000)
+        }
+
+        def simulator = new LocalSchedulingSimulator(cores: 8, memoryMB: 16000)
+
+        SimulationResult fifo = simulator.simulate(commands, false)
+        SimulationResult packed = simulator.simulate(commands, true)
+
+        assert fifo.oomEvents > 0
+        assert packed.oomEvents == 0
+        assert packed.peakRssMB <= 16000
+        assert packed.makespanMs < fifo.makespanMs
+    }
+}
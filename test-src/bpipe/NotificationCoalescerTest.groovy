@@ -0,0 +1,123 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import java.nio.file.Files
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import groovy.text.Template
+
+class NotificationCoalescerTest {
+    
+    List<PendingNotification> delivered = Collections.synchronizedList([])
+    
+    NotificationRateLimiter rateLimiter = new NotificationRateLimiter()
+    
+    NotificationCoalescer coalescer = new NotificationCoalescer(rateLimiter: rateLimiter, deliver: { delivered << it })
+    
+    File dir
+    
+    Template template
+    
+    @Before
+    void setUp() {
+        dir = Files.createTempDirectory('bpipe_notification_test').toFile()
+        template = new TemplateCache().getTemplate(templateFile('Stage $description completed'))
+    }
+    
+    @After
+    void tearDown() {
+        coalescer.shutdown()
+        dir.deleteDir()
+    }
+    
+    PendingNotification notification(String desc) {
+        new PendingNotification(
+            event: PipelineEvent.STAGE_COMPLETED, 
+            description: desc, 
+            template: template,
+            detail: [description: desc]
+        )
+    }
+    
+    File templateFile(String text) {
+        File f = new File(dir, 'test.template.txt')
+        f.text = text
+        return f
+    }
+    
+    @Test
+    void testTemplateCache() {
+        TemplateCache cache = new TemplateCache()
+        File f = templateFile('Hello $name')
+        
+        assert cache.getTemplate(f).make(name: 'world').toString() == 'Hello world'
+        assert cache.getTemplate(f).make(name: 'there').toString() == 'Hello there'
+        assert cache.compilations.get() == 1
+        
+        f.text = 'Goodbye $name'
+        f.setLastModified(f.lastModified() + 2000)
+        assert cache.getTemplate(f).make(name: 'world').toString() == 'Goodbye world'
+        assert cache.compilations.get() == 2
+    }
+    
+    @Test
+    void testRateLimiter() {
+        // A burst of 2 then one each 1000ms
+        assert rateLimiter.tryAcquire('a', 1000, 2, 0) == 0
+        assert rateLimiter.tryAcquire('a', 1000, 2, 10) == 0
+        assert rateLimiter.tryAcquire('a', 1000, 2, 20) == 980
+        assert rateLimiter.tryAcquire('a', 1000, 2, 1000) == 0
+        assert rateLimiter.tryAcquire('a', 1000, 2, 1500) == 500
+        
+        // Categories are independent
+        assert rateLimiter.tryAcquire('b', 1000, 1, 20) == 0
+        
+        // No interval: no limit
+        assert (1..100).every { rateLimiter.tryAcquire('c', 0, 1, 0) == 0 }
+    }
+    
+    @Test
+    void testCoalesce() {
+        (1..5).each { coalescer.add('smtp.STAGE_COMPLETED', 200, 0, 1, notification("s$it")) }
+        coalescer.add('smtp.STAGE_FAILED', 200, 0, 1, notification("f1"))
+        
+        assert delivered.isEmpty()
+        Thread.sleep(500)
+        
+        assert delivered.size() == 2
+        
+        PendingNotification digest = delivered.find { it.description.startsWith('s1') }
+        assert digest.description == 's1 (and 4 more)'
+        assert digest.detail.digest*.description == ['s1', 's2', 's3', 's4', 's5']
+        assert digest.template.make(digest.detail).toString() == (1..5).collect { "Stage s$it completed" }.join('\n\n')
+        
+        // A single notification is sent as it is
+        assert delivered.find { it.description == 'f1' }.template.make([description: 'f1']).toString() == 'Stage f1 completed'
+    }
+    
+    @Test
+    void testRateLimitDelaysDigest() {
+        rateLimiter.tryAcquire('smtp.STAGE_COMPLETED', 600, 1, System.currentTimeMillis())
+        
+        coalescer.add('smtp.STAGE_COMPLETED', 50, 600, 1, notification("s1"))
+        Thread.sleep(200)
+        coalescer.add('smtp.STAGE_COMPLETED', 50, 600, 1, notification("s2"))
+        
+        // Held back by the rate limit, not dropped
+        assert delivered.isEmpty()
+        
+        Thread.sleep(800)
+        assert delivered*.description == ['s1 (and 1 more)']
+    }
+    
+    @Test
+    void testShutdownSendsWaiting() {
+        coalescer.add('smtp.STAGE_COMPLETED', 60000, 0, 1, notification("s1"))
+        coalescer.shutdown()
+        assert delivered*.description == ['s1']
+    }
+}
@@ -0,0 +1,109 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+import org.junit.Before
+import org.junit.Test
+
+import bpipe.OutputFileRegistry.FileRegistration
+import bpipe.storage.LocalPipelineFile
+
+class OutputFileRegistryTest {
+
+    OutputFileRegistry registry = OutputFileRegistry.theInstance
+
+    @Before
+    void setUp() {
+        registry.outputFiles.clear()
+    }
+
+    @Test
+    void testRegister() {
+        List<FileRegistration> conflicts = registry.registerIfAbsent('align', [new LocalPipelineFile('a.bam'), new LocalPipelineFile('b.bam')])
+        assert conflicts.isEmpty()
+        assert registry.isRegistered('a.bam')
+        assert registry.getRegistration('b.bam').stageName == 'align'
+        assert !registry.isRegistered('c.bam')
+        assert registry.getRegistration('c.bam') == null
+    }
+
+    @Test
+    void testDuplicateRegistersNothing() {
+        registry.registerIfAbsent('align', [new LocalPipelineFile('a.bam')])
+
+        List<FileRegistration> conflicts = registry.registerIfAbsent('sort', [new LocalPipelineFile('b.bam'), new LocalPipelineFile('a.bam')])
+
+        assert conflicts*.stageName == ['align']
+        assert registry.getRegistration('a.bam').stageName == 'align'
+        assert !registry.isRegistered('b.bam')
+    }
+
+    @Test
+    void testSameFileTwiceIsNotDuplicate() {
+        def f = new LocalPipelineFile('a.bam')
+        assert registry.registerIfAbsent('align', [f, f]).isEmpty()
+        assert registry.isRegistered('a.bam')
+    }
+
+    /**
+     * Many branches registering overlapping sets of files at the same time: each path must
+     * be won by exactly one branch, and a branch that lost any path must have registered none.
+     */
+    @Test
+    void testConcurrentRegistration() {
+
+        int threads = 16
+        int branches = 2000
+        int filesPerBranch = 5
+        int distinctPaths = 3000
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads)
+        CountDownLatch start = new CountDownLatch(1)
+        try {
+            Random random = new Random(42)
+            Map<String,List<String>> branchPaths = (1..branches).collectEntries { int i ->
+                ["branch_$i".toString(), (1..filesPerBranch).collect { "out_${random.nextInt(distinctPaths)}.txt".toString() }.unique()]
+            }
+
+            Map<String,Future<List<FileRegistration>>> results = branchPaths.collectEntries { String branch, List<String> paths ->
+                [branch, pool.submit({
+                    start.await()
+                    registry.registerIfAbsent(branch, paths.collect { new LocalPipelineFile(it) })
+                } as java.util.concurrent.Callable)]
+            }
+            start.countDown()
+
+            Set<String> succeeded = results.findAll { it.value.get().isEmpty() }*.key as Set
+
+            assert !succeeded.isEmpty()
+
+            // Every registration belongs to a branch that succeeded and listed that path
+            registry.outputFiles.each { String path, FileRegistration reg ->
+                assert reg.stageName in succeeded
+                assert path in branchPaths[reg.stageName]
+            }
+
+            // Every branch that succeeded owns all of its paths
+            for(String branch in succeeded) {
+                for(String path in branchPaths[branch]) {
+                    assert registry.getRegistration(path).stageName == branch
+                }
+            }
+
+            // A branch never conflicts with its own files
+            results.each { String branch, Future<List<FileRegistration>> result ->
+                if(!(branch in succeeded)) {
+                    assert result.get().every { it.stageName != branch }
+                }
+            }
+        }
+        finally {
+            pool.shutdown()
+        }
+    }
+}
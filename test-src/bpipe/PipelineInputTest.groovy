@@ -15,5 +15,91 @@ class PipelineInputTest {
         println( inp + ".bar")
 
     }
+    
+    @Test
+    void testResolveFromExtension() {
+        List<List<PipelineFile>> stack = [
+            LocalPipelineFile.from(['out/sample.sorted.bam', 'out/sample.vcf']),
+            LocalPipelineFile.from(['sample.bam', 'bam', 'other.txt', 'more.txt'])
+        ]
+        
+        PipelineInput inp = new PipelineInput([], [], new Aliases())
+        assert inp.resolveInputFromRawExtension('bam$', 'bam', stack)*.path == ['out/sample.sorted.bam']
+        assert inp.resolveInputFromRawExtension('sorted\\.bam$', 'sorted.bam', stack)*.path == ['out/sample.sorted.bam']
+        assert inp.resolveInputFromRawExtension('txt$', 'txt', stack)*.path == ['other.txt', 'more.txt']
+        assert inp.resolveInputFromRawExtension('csv$', 'csv', stack) == null
+        
+        // An exact match on the whole name takes precedence over an extension
+        assert inp.resolveInputFromRawExtension('bam$', 'bam', stack.reverse())*.path == ['bam']
+    }
+    
+    @Test
+    void testResolveFromExtensionWithAlias() {
+        List<PipelineFile> files = LocalPipelineFile.from(['sample.bam', 'sample.txt'])
+        Aliases aliases = new Aliases()
+        PipelineInput inp = new PipelineInput([], [], aliases)
+        Map<List<PipelineFile>,PipelineFileIndex> indexes = new IdentityHashMap()
+        
+        assert inp.resolveInputFromRawExtension('cram$', 'cram', [files], indexes) == null
+        
+        // Index must notice the new alias
+        aliases.add('renamed/sample.cram', files[0])
+        assert !indexes[files].isCurrent(files, aliases)
+        assert inp.resolveInputFromRawExtension('cram$', 'cram', [files], [:])*.path == ['sample.bam']
+    }
+    
+    @Test
+    void testIndexNoticesChangesInPlace() {
+        Aliases aliases = new Aliases()
+        List<PipelineFile> replacement = LocalPipelineFile.from(['sample.cram', 'other.vcf'])
+
+        for(List<PipelineFile> files in [LocalPipelineFile.from(['sample.bam', 'sample.txt']), new PipelineFileList(LocalPipelineFile.from(['sample.bam', 'sample.txt']))]) {
+            PipelineFileIndex index = new PipelineFileIndex(files, aliases)
+            assert index.isCurrent(files, aliases)
+
+            files.set(0, replacement[0])
+            assert !index.isCurrent(files, aliases)
+
+            index = new PipelineFileIndex(files, aliases)
+            files.remove(1)
+            files.add(replacement[1])
+            assert !index.isCurrent(files, aliases)
+
+            index = new PipelineFileIndex(files, aliases)
+            files.subList(0, 1).set(0, replacement[1])
+            assert !index.isCurrent(files, aliases)
+        }
+    }
+
+    /**
+     * Extensions resolved by the index must give the same result as resolving the
+     * equivalent regular expression against every file
+     */
+    @Test
+    void testIndexedResolutionMatchesRegex() {
+        Random random = new Random(7)
+        def randomName = { ->
+            (1..(1+random.nextInt(4))).collect { ['a','b','ab','x'][random.nextInt(4)] }.join('.')
+        }
+        
+        Aliases aliases = new Aliases()
+        List<List<PipelineFile>> stack = (1..10).collect {
+            LocalPipelineFile.from((1..random.nextInt(5)).collect { (random.nextBoolean() ? 'dir.a/' : '') + randomName() })
+        }
+        stack.flatten().each { PipelineFile f ->
+            if(random.nextInt(4) == 0)
+                aliases.add('alias/' + randomName(), f)
+        }
+        
+        PipelineInput inp = new PipelineInput([], [], aliases)
+        for(int i=0; i<200; ++i) {
+            String ext = randomName()
+            String literal = ext.replace('.','\\.') + '$'
+            String equivalentRegex = '[' + ext[0] + ']' + ext.substring(1).replace('.','\\.') + '$'
+            assert PipelineFileIndex.literalExtension(literal) == ext
+            assert PipelineFileIndex.literalExtension(equivalentRegex) == null
+            assert inp.resolveInputFromRawExtension(literal, ext, stack) == inp.resolveInputFromRawExtension(equivalentRegex, ext, stack)
+        }
+    }
 
 }
@@ -0,0 +1,102 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import java.nio.file.Files
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class ReportGeneratorTest {
+    
+    File dir
+    
+    @Before
+    void setUp() {
+        dir = Files.createTempDirectory('bpipe_report_test').toFile()
+    }
+    
+    @After
+    void tearDown() {
+        dir.deleteDir()
+    }
+    
+    File templateFile(String text) {
+        File f = new File(dir, 'test.html')
+        f.text = text
+        return f
+    }
+    
+    @Test
+    void testPagedList() {
+        List<Integer> loaded = []
+        PagedList<Integer> list = new PagedList<Integer>(1050, 100, { int offset, int count ->
+            loaded << offset
+            (offset..<offset+count).toList()
+        })
+        
+        assert list.size() == 1050
+        assert list.sum() == (0..<1050).sum()
+        assert loaded == (0..1000).step(100)
+        
+        // Only the current page is held
+        assert list[1049] == 1049
+        assert list[5] == 5
+        assert list.loads == 12
+        assert list.findAll { it % 500 == 0 } == [0, 500, 1000]
+    }
+    
+    @Test
+    void testPagedListOfGrowingList() {
+        List<Integer> source = Collections.synchronizedList((1..10).toList())
+        PagedList<Integer> list = PagedList.of(source, 3)
+        source.addAll(11..20)
+        
+        assert list.size() == 10
+        assert list.toList() == (1..10).toList()
+    }
+    
+    @Test
+    void testStreamToFile() {
+        File template = templateFile('<% items.each { %>${it},<% } %>')
+        File outputFile = new File(dir, 'report.html')
+        int compilations = ReportGenerator.templates.compilations.get()
+        
+        ReportGenerator generator = new ReportGenerator(reportBinding: [items: PagedList.collect((1..5).toList(), 2) { it * 2 }])
+        generator.generateFromGStringTemplate(template, dir.path, outputFile)
+        generator.generateFromGStringTemplate(template, dir.path, outputFile)
+        
+        assert outputFile.text == '2,4,6,8,10,'
+        assert ReportGenerator.templates.compilations.get() == compilations + 1
+        assert dir.listFiles()*.name.sort() == ['report.html', 'test.html']
+    }
+    
+    @Test
+    void testIncrementalSections() {
+        File template = templateFile('<% stages.each { s -> section(s.name, s.done ? s.version : null) { %>${s.name}:${s.count};<% }} %>')
+        File outputFile = new File(dir, 'report.html')
+        
+        List<Map> stages = [[name: 'align', count: 1, version: 1, done: true], [name: 'call', count: 1, version: 1, done: false]]
+        
+        ReportGenerator generator = new ReportGenerator(incremental: true, reportBinding: [stages: stages])
+        generator.bindSections(outputFile)
+        generator.generateFromGStringTemplate(template, dir.path, outputFile)
+        assert outputFile.text == 'align:1;call:1;'
+        
+        ReportGenerator.SectionCache cache = ReportGenerator.sectionCaches[outputFile.canonicalPath]
+        assert cache.renders == 2
+        
+        // A finished stage is not rendered again, but a running one is
+        stages.each { it.count = 2 }
+        generator.generateFromGStringTemplate(template, dir.path, outputFile)
+        assert outputFile.text == 'align:1;call:2;'
+        assert cache.renders == 3
+        
+        // Changing the version renders the section again
+        stages[0].version = 2
+        generator.generateFromGStringTemplate(template, dir.path, outputFile)
+        assert outputFile.text == 'align:2;call:2;'
+        assert cache.renders == 5
+    }
+}
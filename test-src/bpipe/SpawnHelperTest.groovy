@@ -0,0 +1,118 @@
+package bpipe
+
+import static org.junit.Assert.*
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class SpawnHelperTest {
+    
+    SpawnHelper helper = SpawnHelper.theInstance
+    
+    @Before
+    void setUp() {
+        assert helper.start()
+    }
+    
+    @After
+    void tearDown() {
+        helper.stop()
+    }
+    
+    @Test
+    void testExecute() {
+        ExecutedProcess result = helper.execute(['bash', '-c', 'echo "hello world"; echo oops >&2; exit 3'], null, 0L)
+        assert result.exitValue == 3
+        assert result.out.toString() == 'hello world\n'
+        assert result.err.toString() == 'oops\n'
+        assert !result.timedOut
+    }
+    
+    @Test
+    void testArgumentsPassedUnchanged() {
+        List<String> args = ['with space', 'quote\'s "double"', 'line\nbreak', '$HOME', '*', '']
+        ExecutedProcess result = helper.execute(['printf', '%s|'] + args, null, 0L)
+        assert result.exitValue == 0
+        assert result.out.toString() == args.join('|') + '|'
+    }
+    
+    @Test
+    void testDirectory() {
+        File dir = new File('/tmp').canonicalFile
+        ExecutedProcess result = helper.execute(['pwd'], dir, 0L)
+        assert result.out.toString().trim() == dir.path
+    }
+    
+    @Test
+    void testNotFound() {
+        try {
+            helper.execute(['bpipe_no_such_command_exists'], null, 0L)
+            fail('Running a command that does not exist should fail')
+        }
+        catch(IOException e) {
+            assert e.message.contains('bpipe_no_such_command_exists')
+        }
+    }
+    
+    @Test
+    void testTimeout() {
+        long startMs = System.currentTimeMillis()
+        ExecutedProcess result = helper.execute(['sleep', '30'], null, 500L)
+        assert result.timedOut
+        assert result.exitValue == -1
+        assert System.currentTimeMillis() - startMs < 5000
+    }
+    
+    @Test
+    void testConcurrent() {
+        List<Thread> threads = (1..8).collect { int t ->
+            Thread.start {
+                for(int i=0; i<20; ++i) {
+                    assert helper.execute(['echo', "$t:$i".toString()], null, 0L).out.toString() == "$t:$i\n"
+                }
+            }
+        }
+        threads*.join()
+        assert helper.spawns.get() >= 160
+    }
+    
+    @Test
+    void testFallbackWhenStopped() {
+        helper.stop()
+        assert helper.execute(['true'], null, 0L) == null
+        
+        long spawns = helper.spawns.get()
+        ExecutedProcess result = Utils.executeCommand(['echo', 'direct'])
+        assert result.out.toString() == 'direct\n'
+        assert helper.spawns.get() == spawns
+    }
+    
+    @Test
+    void testExecuteCommandUsesHelper() {
+        Config.userConfig = new ConfigObject()
+        Config.userConfig.spawnHelper = true
+        
+        long spawns = helper.spawns.get()
+        ExecutedProcess result = Utils.executeCommand(['echo', 'helped'])
+        assert result.out.toString() == 'helped\n'
+        assert helper.spawns.get() == spawns + 1
+        
+        // Output sent to a stream is written as it is produced, so is not run by the helper
+        StringBuilder out = new StringBuilder()
+        Utils.executeCommand(['echo', 'streamed'], out: out)
+        assert out.toString() == 'streamed\n'
+        assert helper.spawns.get() == spawns + 1
+    }
+    
+    @Test
+    void testHelperIsOptIn() {
+        Config.userConfig = new ConfigObject()
+        assert !SpawnHelper.enabled
+        
+        long spawns = helper.spawns.get()
+        assert Utils.executeCommand(['echo', 'direct']).out.toString() == 'direct\n'
+        assert Utils.executeCommand(['echo', 'quiet'], quiet: true).out.toString() == 'quiet\n'
+        assert helper.spawns.get() == spawns
+    }
+}
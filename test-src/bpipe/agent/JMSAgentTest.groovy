@@ -0,0 +1,182 @@
+package bpipe.agent
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Semaphore
+import java.util.logging.Logger
+
+import javax.jms.Connection
+import javax.jms.Message
+import javax.jms.MessageConsumer
+import javax.jms.Session
+import javax.jms.TextMessage
+
+import org.apache.activemq.ActiveMQConnectionFactory
+import org.apache.activemq.broker.BrokerService
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import bpipe.PipelineError
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+/**
+ * Runs the agent receive loop against an embedded broker
+ */
+class JMSAgentTest {
+    
+    final static String BROKER_URL = 'vm://jmsagenttest?create=false'
+    
+    final static String QUEUE = 'test.commands'
+    
+    BrokerService broker
+    
+    JMSAgent agent
+    
+    Thread loop
+    
+    Map<String,Long> started = new ConcurrentHashMap()
+    
+    Map<String,Long> finished = new ConcurrentHashMap()
+    
+    CountDownLatch release = new CountDownLatch(0)
+    
+    @Before
+    void setUp() {
+        broker = new BrokerService(brokerName: 'jmsagenttest', persistent: false, useJmx: false)
+        broker.start()
+        broker.waitUntilStarted()
+    }
+    
+    @After
+    void tearDown() {
+        release.countDown()
+        if(agent != null) {
+            agent.stopRequested = true
+            loop?.interrupt()
+            loop?.join(5000)
+            agent.disconnect()
+        }
+        broker.stop()
+        broker.waitUntilStopped()
+    }
+    
+    void startAgent(Map settings) {
+        ConfigObject cfg = new ConfigObject()
+        cfg.putAll([brokerURL: BROKER_URL, commandQueue: QUEUE] + settings)
+        agent = new JMSAgent(cfg)
+        agent.log = Logger.getLogger('JMSAgentTest')
+        agent.concurrency = new Semaphore(1)
+        agent.COMMANDS.work = { dir, args, out ->
+            started[args[0]] = System.currentTimeMillis()
+            release.await()
+            Thread.sleep(args[1] as Long)
+            finished[args[0]] = System.currentTimeMillis()
+        }
+        agent.connect()
+        loop = new Thread({
+            try {
+                while(!agent.stopRequested)
+                    agent.receive()
+            }
+            catch(Exception e) {
+                // connection closed by test
+            }
+        })
+        loop.start()
+    }
+    
+    void send(String name, long sleepMs) {
+        withSession { Session session ->
+            Map command = [id: 5000000000L + name.hashCode(), command: 'work', arguments: [name, sleepMs], directory: System.getProperty('java.io.tmpdir')]
+            session.createProducer(session.createQueue(QUEUE)).send(session.createTextMessage(JsonOutput.toJson(command)))
+        }
+    }
+    
+    def withSession(Closure c) {
+        Connection connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection()
+        try {
+            connection.start()
+            return c(connection.createSession(false, Session.AUTO_ACKNOWLEDGE))
+        }
+        finally {
+            connection.close()
+        }
+    }
+    
+    void waitFor(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 10000
+        while(!condition()) {
+            assert System.currentTimeMillis() < deadline : 'Timed out waiting for condition'
+            Thread.sleep(10)
+        }
+    }
+    
+    @Test
+    void testCommandStartsWhenPermitReleased() {
+        startAgent([:])
+        
+        send('a', 300)
+        send('b', 0)
+        
+        waitFor { finished.size() == 2 }
+        
+        assert started.b >= finished.a
+        assert started.b - finished.a < 1000
+        
+        assert agent.metrics.dispatched == 2
+        
+        // b's runner releases its permit after the command finishes
+        waitFor { agent.permitsAvailable == 1 }
+        Map dispatch = new JsonSlurper().parseText(agent.formatPingResponse())[0].details.dispatch
+        assert dispatch.dispatched == 2
+        assert dispatch.queueDepth == 0
+        assert dispatch.permitsAvailable == 1
+        assert dispatch.maxLatencyMs >= 0
+    }
+    
+    @Test
+    void testPrefetchedMessagesAreRedeliveredIfNotRun() {
+        release = new CountDownLatch(1)
+        startAgent(prefetch: 2)
+        
+        send('a', 0)
+        send('b', 0)
+        send('c', 0)
+        
+        // a is running, b is waiting for the permit and c is prefetched
+        waitFor { started.containsKey('a') && agent.queueDepth == 2 }
+        assert !started.containsKey('b')
+        
+        // Losing the agent must leave only the messages it did not run on the broker
+        agent.disconnect()
+        
+        List<String> redelivered = withSession { Session session ->
+            MessageConsumer consumer = session.createConsumer(session.createQueue(QUEUE))
+            List<String> names = []
+            Message message
+            while((message = consumer.receive(2000)) != null) {
+                names << new JsonSlurper().parseText(((TextMessage)message).text).arguments[0]
+            }
+            return names
+        }
+        
+        assert redelivered.sort() == ['b', 'c']
+    }
+    
+    @Test
+    void testPrefetchRequiresIndividualAcknowledge() {
+        for(Map settings in [[acknowledgeMode: 'read'], [type: 'sqs']]) {
+            ConfigObject cfg = new ConfigObject()
+            cfg.putAll([brokerURL: BROKER_URL, commandQueue: QUEUE, prefetch: 2] + settings)
+            try {
+                new JMSAgent(cfg)
+                assert false : "Prefetch accepted with $settings"
+            }
+            catch(PipelineError e) {
+                assert e.message.contains('prefetch')
+            }
+        }
+    }
+}
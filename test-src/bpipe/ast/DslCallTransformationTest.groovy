@@ -0,0 +1,213 @@
+package bpipe.ast
+
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+
+import bpipe.Branch
+import bpipe.CommandDependency
+import bpipe.Config
+import bpipe.Pipeline
+import bpipe.PipelineContext
+import bpipe.PipelineDelegate
+import bpipe.PipelineStage
+import bpipe.Utils
+
+/**
+ * Records commands instead of running them
+ */
+class RecordingPipelineContext extends PipelineContext {
+
+    List<String> commands = []
+
+    RecordingPipelineContext(Branch branch) {
+        super(null, [new PipelineStage(null)], Collections.emptySet(), branch)
+    }
+
+    @Override
+    void exec(String cmd, boolean joinNewLines, String config, List<CommandDependency> dependencies) {
+        commands << cmd
+    }
+
+    @Override
+    Object produceImpl(Object rawOut, Closure body, boolean explicit) {
+        return body()
+    }
+}
+
+/**
+ * Counts the DSL calls that reach the delegate through compiled and dynamic dispatch
+ */
+class CountingPipelineDelegate extends PipelineDelegate {
+
+    int compiled = 0
+
+    int dynamic = 0
+
+    CountingPipelineDelegate(PipelineContext ctx) {
+        super(ctx)
+    }
+
+    @Override
+    Object dispatch(String name, Object[] args) {
+        ++compiled
+        return super.dispatch(name, args)
+    }
+
+    @Override
+    Object dslProperty(String name) {
+        ++compiled
+        return super.dslProperty(name)
+    }
+
+    @Override
+    def methodMissing(String name, args) {
+        ++dynamic
+        return super.methodMissing(name, args)
+    }
+
+    @Override
+    def propertyMissing(String name) {
+        ++dynamic
+        return super.propertyMissing(name)
+    }
+}
+
+class DslCallTransformationTest {
+
+    Branch branch = new Branch(name:"testbranch")
+
+    RecordingPipelineContext ctx
+
+    CountingPipelineDelegate delegate
+
+    Binding binding = new Binding()
+
+    @BeforeClass
+    static void setConfig() {
+        Utils.configureTestLogging()
+        Config.userConfig = new ConfigObject()
+        Config.userConfig.storage = 'local'
+    }
+
+    @Before
+    void setup() {
+        Pipeline.currentRuntimePipeline.set(new Pipeline())
+        ctx = new RecordingPipelineContext(branch)
+        delegate = new CountingPipelineDelegate(ctx)
+        ctx.myDelegate = delegate
+    }
+
+    /**
+     * Run the script, then the stage that it assigns to the <code>stage</code> variable
+     */
+    def runStage(String script, boolean compileDslCalls=true) {
+        CompilerConfiguration config = new CompilerConfiguration()
+        if(compileDslCalls)
+            config.addCompilationCustomizers(new DslCallTransformation())
+        new GroovyShell(binding, config).evaluate(script)
+
+        Closure stage = binding.getVariable('stage')
+        stage.delegate = delegate
+        return stage()
+    }
+
+    @Test
+    void testExecIsCompiled() {
+        runStage('''
+            stage = {
+                exec "echo hello"
+                exec "echo ${'world'}"
+            }
+        ''')
+
+        assert ctx.commands == ['echo hello', 'echo world']
+        assert delegate.compiled == 2
+        assert delegate.dynamic == 0
+    }
+
+    @Test
+    void testSameResultWithoutTransformation() {
+        runStage('''
+            stage = {
+                exec "echo hello"
+                exec "echo ${'world'}"
+            }
+        ''', false)
+
+        assert ctx.commands == ['echo hello', 'echo world']
+        assert delegate.compiled == 0
+        assert delegate.dynamic == 2
+    }
+
+    @Test
+    void testPropertyIsCompiled() {
+        def result = runStage('''
+            stage = {
+                branch.name
+            }
+        ''')
+
+        assert result == 'testbranch'
+        assert delegate.compiled == 1
+        assert delegate.dynamic == 0
+    }
+
+    @Test
+    void testNestedClosure() {
+        runStage('''
+            stage = {
+                produce('out.txt') {
+                    exec "echo inner"
+                }
+            }
+        ''')
+
+        assert ctx.commands == ['echo inner']
+        assert delegate.compiled == 2
+        assert delegate.dynamic == 0
+    }
+
+    @Test
+    void testBindingVariableTakesPrecedence() {
+        binding.setVariable('branch', 'from binding')
+        def result = runStage('''
+            stage = {
+                branch
+            }
+        ''')
+
+        assert result == 'from binding'
+        assert delegate.compiled == 0
+    }
+
+    @Test
+    void testScriptMethodTakesPrecedence() {
+        def result = runStage('''
+            def exec(String cmd) {
+                'script ' + cmd
+            }
+            stage = {
+                exec 'echo hello'
+            }
+        ''')
+
+        assert result == 'script echo hello'
+        assert ctx.commands.isEmpty()
+        assert delegate.compiled == 0
+    }
+
+    @Test
+    void testUnsupportedArgumentsFallBack() {
+        runStage('''
+            stage = {
+                exec 'echo hello', false
+            }
+        ''')
+
+        assert ctx.commands == ['echo hello']
+        assert delegate.compiled == 1
+        assert delegate.dynamic == 1
+    }
+}
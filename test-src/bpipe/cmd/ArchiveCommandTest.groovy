@@ -0,0 +1,141 @@
+package bpipe.cmd
+
+import java.util.zip.ZipFile
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class ArchiveCommandTest {
+
+    File dir
+
+    File runDir
+
+    Map<String,String> contents = [:]
+
+    @Before
+    void before() {
+        dir = File.createTempDir()
+        runDir = new File(dir, 'run')
+
+        Random random = new Random(1)
+        Map<String,String> files = [
+            'commandlog.txt': 'bpipe run test.groovy\n',
+            '.bpipe/commands/1': 'echo hello\n',
+            '.bpipe/logs/1.log': (1..2000).collect { "line $it\n" }.join(''),
+            '.bpipe/outputs/test.hello.txt.properties': 'outputFile=test.hello.txt\n',
+            ('.bpipe/outputs/sub/' + ('x' * 120) + '.properties'): 'outputFile=long\n',
+            '.bpipe/outputs/random.properties': (1..20000).collect { random.nextInt() }.join(',')
+        ]
+        files.each { String name, String text ->
+            File f = new File(runDir, name)
+            f.parentFile.mkdirs()
+            f.text = text
+            contents[name] = text
+        }
+    }
+
+    @After
+    void after() {
+        dir.deleteDir()
+    }
+
+    String archive(String format, List<String> options, ArchiveCommand command = new ArchiveCommand([])) {
+        File archiveFile = new File(dir, 'archive.' + format)
+        command.args = options + ['-t', '2', '--dir', runDir.path, archiveFile.path]
+        StringWriter out = new StringWriter()
+        command.run(new PrintWriter(out))
+        return out.toString()
+    }
+
+    /**
+     * Extract a tar file with the system tar tool and return the contents of each file in it
+     */
+    Map<String,String> untar(File tarFile) {
+        File extractDir = new File(dir, 'extracted')
+        extractDir.deleteDir()
+        extractDir.mkdirs()
+        Process p = new ProcessBuilder('tar', '-xf', tarFile.absolutePath, '-C', extractDir.absolutePath).redirectErrorStream(true).start()
+        String output = p.inputStream.text
+        assert p.waitFor() == 0 : output
+
+        Map<String,String> files = [:]
+        extractDir.eachFileRecurse(groovy.io.FileType.FILES) { File f ->
+            files[extractDir.toPath().relativize(f.toPath()).toString()] = f.text
+        }
+        return files
+    }
+
+    boolean hasZstd() {
+        try {
+            return new ProcessBuilder('zstd', '--version').start().waitFor() == 0
+        }
+        catch(IOException e) {
+            return false
+        }
+    }
+
+    @Test
+    void testZipRoundTrip() {
+        String output = archive('zip', ['-d'])
+        assert output.contains('MSG: Archived 4 files')
+
+        File bundle = new File(dir, 'outputs.tar')
+        new ZipFile(new File(dir, 'archive.zip')).withCloseable { ZipFile zip ->
+            assert zip.entries()*.name.sort() == ['.bpipe/commands/1', '.bpipe/logs/1.log', '.bpipe/outputs.tar', 'commandlog.txt']
+            ['.bpipe/commands/1', '.bpipe/logs/1.log', 'commandlog.txt'].each { String name ->
+                assert zip.getInputStream(zip.getEntry(name)).text == contents[name]
+            }
+            bundle.bytes = zip.getInputStream(zip.getEntry(ArchiveCommand.OUTPUTS_BUNDLE)).bytes
+        }
+
+        assert untar(bundle) == contents.findAll { it.key.startsWith('.bpipe/outputs/') }
+
+        // Archived files are removed, as is the temporary bundle
+        contents.keySet().each { assert !new File(runDir, it).exists() }
+        assert !new File(runDir, '.bpipe/outputs.tar.tmp').exists()
+    }
+
+    @Test
+    void testTarZstRoundTrip() {
+        if(!hasZstd())
+            return
+
+        archive('tar.zst', ['-d'])
+
+        File tarFile = new File(dir, 'archive.tar')
+        Process p = new ProcessBuilder('zstd', '-q', '-d', new File(dir, 'archive.tar.zst').absolutePath, '-o', tarFile.absolutePath).start()
+        assert p.waitFor() == 0
+        assert untar(tarFile) == contents
+
+        contents.keySet().each { assert !new File(runDir, it).exists() }
+    }
+
+    @Test
+    void testFailedArchiveKeepsFiles() {
+        // Corrupt the archive after it is written, as a failing disk might
+        ArchiveCommand command = new ArchiveCommand([]) {
+            ArchiveStats createArchiveZip(String dir, File zipFile, int threads, List<File> archived) {
+                ArchiveStats stats = super.createArchiveZip(dir, zipFile, threads, archived)
+                new RandomAccessFile(zipFile, 'rw').withCloseable { RandomAccessFile raf ->
+                    raf.seek(100)
+                    raf.write(new byte[64])
+                }
+                return stats
+            }
+        }
+
+        try {
+            archive('zip', ['-d'], command)
+            assert false : 'Corrupt archive was not detected'
+        }
+        catch(IllegalStateException e) {
+            assert e.message.contains('no files were deleted')
+        }
+
+        contents.each { String name, String text ->
+            assert new File(runDir, name).text == text
+        }
+    }
+}
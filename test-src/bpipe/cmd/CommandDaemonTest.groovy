@@ -0,0 +1,177 @@
+package bpipe.cmd
+
+import java.nio.charset.StandardCharsets
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Prints its arguments, except for <code>exit:n</code>, which exits with code n, and
+ * <code>sleep:n</code>, which waits n milliseconds
+ */
+class EchoCommand extends BpipeCommand {
+
+    EchoCommand(List<String> args) {
+        super('echo', args)
+    }
+
+    @Override
+    void run(PrintStream out) {
+        PrintWriter writer = new PrintWriter(out, true)
+        run(writer)
+        writer.flush()
+    }
+
+    @Override
+    void run(Writer out) {
+        for(String arg in args) {
+            if(arg.startsWith('exit:')) {
+                out.flush()
+                exit(arg.substring(5).toInteger())
+            }
+            else
+            if(arg.startsWith('sleep:'))
+                Thread.sleep(arg.substring(6).toLong())
+            else {
+                out.write(arg + '\n')
+                out.flush()
+            }
+        }
+    }
+}
+
+class CommandDaemonTest {
+
+    File dir
+
+    CommandDaemon daemon
+
+    Thread serveThread
+
+    int readTimeoutMs = DaemonClient.READ_TIMEOUT_MS
+
+    @Before
+    void before() {
+        dir = File.createTempDir()
+        CommandDaemon.COMMANDS.echo = { List<String> args -> new EchoCommand(args) }
+
+        daemon = new CommandDaemon() {
+            void warmUp() { }
+        }
+        daemon.daemonFile = new File(dir, CommandDaemon.DAEMON_FILE_PATH)
+        daemon.start()
+        serveThread = new Thread({ daemon.serve() })
+        serveThread.start()
+    }
+
+    @After
+    void after() {
+        DaemonClient.READ_TIMEOUT_MS = readTimeoutMs
+        daemon.stopRequested = true
+        DaemonClient.execute(dir, 'ping', [], new StringWriter())
+        serveThread.join(10000)
+        CommandDaemon.COMMANDS.remove('echo')
+        BpipeCommand.resident = false
+        dir.deleteDir()
+    }
+
+    @Test
+    void testCommandOutputAndExitCode() {
+        StringWriter out = new StringWriter()
+        assert DaemonClient.execute(dir, 'echo', ['hello', 'world'], out) == 0
+        assert out.toString() == 'hello\nworld\n'
+
+        out = new StringWriter()
+        assert DaemonClient.execute(dir, 'echo', ['failing', 'exit:3', 'not printed'], out) == 3
+        assert out.toString() == 'failing\n'
+
+        assert daemon.served == 2
+    }
+
+    @Test
+    void testUnsupportedCommandIsLeftToCaller() {
+        assert DaemonClient.execute(dir, 'run', ['test.groovy'], new StringWriter()) == null
+        assert daemon.served == 0
+    }
+
+    @Test
+    void testInvalidTokenIsRejected() {
+        Properties props = new Properties()
+        daemon.daemonFile.withInputStream { props.load(it) }
+
+        new Socket(InetAddress.getLoopbackAddress(), props.getProperty('port').toInteger()).withCloseable { Socket socket ->
+            socket.outputStream.write("0123456789abcdef\techo\thello\n".getBytes(StandardCharsets.UTF_8))
+            socket.outputStream.flush()
+            List<String> lines = socket.inputStream.readLines()
+            assert lines == [CommandDaemon.STATUS_PREFIX + 'DENIED']
+        }
+
+        // The client runs the command itself when the daemon refuses it
+        daemon.daemonFile.text = daemon.daemonFile.text.replace('token=', 'token=x')
+        assert DaemonClient.execute(dir, 'echo', ['hello'], new StringWriter()) == null
+        assert daemon.served == 0
+    }
+
+    @Test
+    void testNoResponseIsLeftToCaller() {
+        DaemonClient.READ_TIMEOUT_MS = 200
+
+        StringWriter out = new StringWriter()
+        assert DaemonClient.execute(dir, 'echo', ['sleep:1000', 'late'], out) == null
+        assert out.toString() == ''
+        
+        // Let the daemon finish the command before sending the next
+        Thread.sleep(1500)
+
+        // Once output is written, the command is not left to the caller to run again
+        out = new StringWriter()
+        assert DaemonClient.execute(dir, 'echo', ['early', 'sleep:1000', 'late'], out) == 1
+        assert out.toString() == 'early\n'
+    }
+
+    @Test
+    void testConnectionResetIsLeftToCaller() {
+        String daemonFileText = daemon.daemonFile.text
+
+        // A daemon that resets the connection once the request starts to arrive
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+        Thread resetThread = new Thread({
+            Socket socket = server.accept()
+            socket.inputStream.read()
+            socket.setSoLinger(true, 0)
+            socket.close()
+        })
+        resetThread.start()
+        try {
+            daemon.daemonFile.text = daemonFileText.replaceAll(/port=[0-9]+/, "port=$server.localPort")
+
+            // The request is too large to be buffered, so the reset arrives while it is written
+            StringWriter out = new StringWriter()
+            assert DaemonClient.execute(dir, 'echo', ['x' * 32 * 1024 * 1024], out) == null
+            assert out.toString() == ''
+        }
+        finally {
+            resetThread.join(10000)
+            server.close()
+            daemon.daemonFile.text = daemonFileText
+        }
+        assert daemon.served == 0
+    }
+
+    @Test
+    void testDaemonGone() {
+        String daemonFileText = daemon.daemonFile.text
+
+        daemon.stopRequested = true
+        DaemonClient.execute(dir, 'ping', [], new StringWriter())
+        serveThread.join(10000)
+        assert !daemon.daemonFile.exists()
+
+        assert DaemonClient.execute(dir, 'echo', ['hello'], new StringWriter()) == null
+
+        // A daemon that died without removing its file
+        daemon.daemonFile.text = daemonFileText
+        assert DaemonClient.execute(dir, 'echo', ['hello'], new StringWriter()) == null
+    }
+}
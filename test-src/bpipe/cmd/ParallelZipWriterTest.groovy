@@ -0,0 +1,64 @@
+package bpipe.cmd
+
+import java.util.zip.ZipFile
+
+import org.junit.Test
+
+class ParallelZipWriterTest {
+    
+    @Test
+    void 'test entries readable in order'() {
+        File dir = File.createTempDir()
+        File zipFile = new File(dir, 'test.zip')
+        
+        List<File> files = (1..50).collect { i ->
+            File f = new File(dir, "f${i}.txt")
+            f.text = "hello $i\n" * i
+            return f
+        }
+        
+        // Force some entries through the inline path as well
+        File large = new File(dir, 'large.txt')
+        large.text = 'x' * 100000
+
+        List<String> written = []
+        ParallelZipWriter zip = new ParallelZipWriter(zipFile, 4)
+        zip.inlineThreshold = 50000
+        zip.onWritten = { String name, File f -> written << name }
+        files.each { zip.add('files/' + it.name, it) }
+        zip.add('large.txt', large)
+        ArchiveStats stats = zip.finish()
+        
+        assert written == files.collect { 'files/' + it.name } + ['large.txt']
+        assert stats.files == 51
+        assert stats.outputBytes == zipFile.length()
+        
+        new ZipFile(zipFile).withCloseable { ZipFile z ->
+            assert z.entries()*.name == written
+            files.each { f ->
+                assert z.getInputStream(z.getEntry('files/' + f.name)).text == f.text
+            }
+            assert z.getInputStream(z.getEntry('large.txt')).text == large.text
+        }
+        
+        dir.deleteDir()
+    }
+    
+    @Test
+    void 'test compressed entries bounded by size'() {
+        File dir = File.createTempDir()
+        File zipFile = new File(dir, 'test.zip')
+        
+        ParallelZipWriter zip = new ParallelZipWriter(zipFile, 4)
+        zip.windowBytes = 10000
+        (1..20).each { i ->
+            File f = new File(dir, "f${i}.txt")
+            f.text = 'x' * (1000 * (i % 5))
+            zip.add(f.name, f)
+            assert zip.pendingBytes <= zip.windowBytes
+        }
+        assert zip.finish().files == 20
+        
+        dir.deleteDir()
+    }
+}
@@ -0,0 +1,53 @@
+package bpipe.cmd
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class TarWriterTest {
+
+    File dir
+
+    @Before
+    void before() {
+        dir = File.createTempDir()
+    }
+
+    @After
+    void after() {
+        dir.deleteDir()
+    }
+
+    @Test
+    void testReadableByTar() {
+        Map<String,String> contents = [
+            'empty.txt': '',
+            'block.txt': 'x' * TarWriter.BLOCK_SIZE,
+            'odd.txt': 'hello world\n' * 101,
+            ('long/' + ('y' * 150) + '.txt'): 'long name\n'
+        ]
+
+        File tarFile = new File(dir, 'test.tar')
+        TarWriter tar = new TarWriter(new FileOutputStream(tarFile))
+        tar.withCloseable {
+            contents.each { String name, String text ->
+                File f = new File(dir, 'source.tmp')
+                f.text = text
+                tar.add(name, f)
+            }
+        }
+
+        assert tar.contentBytes == contents.values()*.length().sum()
+        assert tarFile.length() % TarWriter.BLOCK_SIZE == 0
+
+        File extractDir = new File(dir, 'extracted')
+        extractDir.mkdirs()
+        Process p = new ProcessBuilder('tar', '-xf', tarFile.absolutePath, '-C', extractDir.absolutePath).redirectErrorStream(true).start()
+        String output = p.inputStream.text
+        assert p.waitFor() == 0 : output
+
+        contents.each { String name, String text ->
+            assert new File(extractDir, name).text == text
+        }
+    }
+}
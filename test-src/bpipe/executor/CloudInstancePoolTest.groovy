@@ -0,0 +1,161 @@
+package bpipe.executor
+
+import static org.junit.Assert.*
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.junit.Test
+
+import bpipe.PipelineError
+
+class CloudInstancePoolTest {
+    
+    /**
+     * Starts instances instantly, and records what was started and terminated
+     */
+    static class FakeProvider implements CloudInstanceProvider {
+        
+        List<String> launched = Collections.synchronizedList([])
+        
+        List<String> terminated = Collections.synchronizedList([])
+
+        @Override
+        String launch(Map config, String name) {
+            launched << name
+            return name
+        }
+
+        @Override
+        void terminate(String instanceId) {
+            terminated << instanceId
+        }
+    }
+    
+    FakeProvider provider = new FakeProvider()
+    
+    CloudInstancePool pool(Map poolConfig) {
+        new CloudInstancePool('test', poolConfig, [image: 'test'], provider)
+    }
+    
+    @Test
+    void testPacksCommandsOntoInstance() {
+        CloudInstancePool pool = pool(procs: 8, memory: '16GB', maxInstances: 4)
+        
+        def leases = (1..4).collect { pool.acquire("cmd$it", 2, 4000L) }
+        
+        assert provider.launched.size() == 1
+        assert leases*.instanceId.unique().size() == 1
+        
+        // Fifth does not fit by procs or memory: a second instance is started
+        def fifth = pool.acquire('cmd5', 1, 1000L)
+        assert provider.launched.size() == 2
+        assert fifth.instanceId != leases[0].instanceId
+    }
+    
+    @Test
+    void testBestFit() {
+        CloudInstancePool pool = pool(procs: 8, maxInstances: 4)
+        
+        pool.acquire('a', 6, 0L)
+        pool.acquire('b', 6, 0L)
+        pool.release('a')
+        pool.acquire('c', 4, 0L) // only fits on the instance that 'a' was using
+        
+        // Fits on both instances: should go where it leaves the least room free
+        def lease = pool.acquire('d', 2, 0L)
+        assert lease.instance.usedProcs == 8
+        assert lease.instanceId == pool.leases['b'].instanceId
+        assert provider.launched.size() == 2
+    }
+    
+    @Test
+    void testRecyclesInstances() {
+        CloudInstancePool pool = pool(procs: 4)
+        
+        for(int i=0; i<20; ++i) {
+            pool.acquire("cmd$i", 4, 0L)
+            assert pool.release("cmd$i")
+        }
+        
+        assert provider.launched.size() == 1
+        assert provider.terminated.isEmpty()
+        assert !pool.release('cmd0')
+    }
+    
+    @Test
+    void testWaitsAtMaxInstances() {
+        CloudInstancePool pool = pool(procs: 2, maxInstances: 2)
+        
+        pool.acquire('a', 2, 0L)
+        pool.acquire('b', 2, 0L)
+        
+        CountDownLatch acquired = new CountDownLatch(1)
+        Thread.start {
+            pool.acquire('c', 1, 0L)
+            acquired.countDown()
+        }
+        
+        assert !acquired.await(200, TimeUnit.MILLISECONDS)
+        
+        pool.release('a')
+        
+        assert acquired.await(5, TimeUnit.SECONDS)
+        assert provider.launched.size() == 2
+        assert pool.leases['c'].instanceId == 'pool-test-1'
+    }
+    
+    @Test
+    void testReapsIdleInstances() {
+        CloudInstancePool pool = pool(procs: 1, maxInstances: 3, minInstances: 1, idleTimeout: 1)
+        
+        (1..3).each { pool.acquire("cmd$it", 1, 0L) }
+        (1..2).each { pool.release("cmd$it") }
+        
+        long now = System.currentTimeMillis()
+        
+        pool.reapIdle(now)
+        assert provider.terminated.isEmpty()
+        
+        // Idle instances past the timeout are terminated, but the busy one is kept
+        // and counts towards the minimum
+        pool.reapIdle(now + 60001)
+        assert provider.terminated.size() == 2
+        assert pool.instances*.instanceId == [pool.leases['cmd3'].instanceId]
+        
+        pool.release('cmd3')
+        pool.reapIdle(now + 120001)
+        assert provider.terminated.size() == 2
+        assert pool.instances.size() == 1
+    }
+    
+    @Test
+    void testDiscardTerminatesWhenEmpty() {
+        CloudInstancePool pool = pool(procs: 2)
+        
+        pool.acquire('a', 1, 0L)
+        pool.acquire('b', 1, 0L)
+        
+        pool.release('a', true)
+        assert pool.instances.isEmpty()
+        assert provider.terminated.isEmpty()
+        
+        pool.release('b')
+        assert provider.terminated == ['pool-test-1']
+        
+        pool.acquire('c', 1, 0L)
+        assert provider.launched.size() == 2
+    }
+    
+    @Test(expected = PipelineError)
+    void testCommandTooLarge() {
+        pool(procs: 4).acquire('a', 8, 0L)
+    }
+    
+    @Test
+    void testCommandProcs() {
+        assert CloudInstancePool.commandProcs([:]) == 1
+        assert CloudInstancePool.commandProcs([procs: 4]) == 4
+        assert CloudInstancePool.commandProcs([procs: '2-8']) == 2
+    }
+}
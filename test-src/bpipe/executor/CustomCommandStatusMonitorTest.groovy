@@ -0,0 +1,153 @@
+package bpipe.executor
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import bpipe.Command
+
+class CustomCommandStatusMonitorTest {
+
+    File dir = new File("tests/customstatus.tmp")
+
+    File script = new File(dir, "executor.sh")
+
+    List<File> jobDirs = []
+
+    @Before
+    void before() {
+        bpipe.Config.userConfig = new ConfigObject()
+
+        // Polling alone would take much longer than the tests allow
+        bpipe.Config.userConfig.minimumCommandStatusPollInterval = 60000
+        bpipe.Config.userConfig.maxCommandStatusPollInterval = 120000
+        bpipe.Config.userConfig.commandStatusMonitorInterval = 100
+
+        dir.mkdirs()
+    }
+
+    @After
+    void after() {
+        dir.deleteDir()
+        jobDirs*.deleteDir()
+    }
+
+    /**
+     * Write a management script that runs jobs in the background and uses the given
+     * functions to report their status
+     */
+    void writeScript(String statusFunctions) {
+        script.text = """
+            start() {
+                bash -c "\$COMMAND" > /dev/null 2>&1 &
+                echo "job-\$NAME"
+            }
+            $statusFunctions
+            cmd=\$1
+            shift
+            \$cmd "\$@"
+        """.stripIndent()
+    }
+
+    CustomCommandExecutor startJob(String name, String command, Map cfg) {
+        Command cmd = new Command(id: 'customstatus' + name, name: name, command: command)
+        jobDirs << new File(".bpipe/commandtmp/$cmd.id")
+        CustomCommandExecutor executor = new CustomCommandExecutor(script)
+        executor.start(cfg, cmd, new StringBuilder(), new StringBuilder())
+        return executor
+    }
+
+    @Test
+    void testCompletionMarkerWakesWaiter() {
+        writeScript('status() { echo RUNNING; }')
+
+        CustomCommandExecutor executor = startJob('marker', 'sleep 0.5; exit 3', [completion_marker: true])
+
+        long startMs = System.currentTimeMillis()
+        assert executor.waitFor() == 3
+        assert System.currentTimeMillis() - startMs < 30000
+        assert new File(executor.jobDir, CommandExecutor.CMD_EXIT_FILENAME).text.trim() == '3'
+    }
+
+    @Test
+    void testBatchStatus() {
+        writeScript('''
+            status() { exit 1; }
+            status_batch() {
+                for id in "$@"; do
+                    if [ -e tests/customstatus.tmp/$id.done ]; then echo "$id COMPLETE 0"; else echo "$id RUNNING"; fi
+                done
+            }
+        ''')
+
+        List<CustomCommandExecutor> executors = (1..3).collect {
+            startJob("batch$it", "touch tests/customstatus.tmp/job-batch${it}.done", [batch_status: true])
+        }
+
+        long startMs = System.currentTimeMillis()
+        assert executors.collect { it.waitFor() } == [0,0,0]
+        assert System.currentTimeMillis() - startMs < 30000
+    }
+
+    @Test
+    void testSameJobIdFromDifferentScripts() {
+        writeScript('status() { echo RUNNING; }')
+        File otherScript = new File(dir, "other.sh")
+        otherScript.text = script.text
+
+        CustomCommandStatusMonitor monitor = new CustomCommandStatusMonitor()
+        List<CustomJobState> states = [script, otherScript].collect { File f ->
+            CustomCommandExecutor executor = new CustomCommandExecutor(f)
+            executor.commandId = '1234'
+            monitor.register(executor, null, false)
+        }
+
+        assert monitor.jobs.size() == 2
+
+        monitor.unregister(states[0])
+        assert monitor.jobs.values().toList() == [states[1]]
+    }
+
+    @Test
+    void testParseBatchStatus() {
+        Map<String,String> result = CustomCommandStatusMonitor.parseBatchStatus('''
+            1001 RUNNING
+            1002 COMPLETE 1
+
+            1003
+        ''')
+
+        assert result == ['1001': 'RUNNING', '1002': 'COMPLETE 1']
+    }
+
+    @Test
+    void testAdaptiveInterval() {
+        // Far from the typical time: wait half the remaining time, up to the maximum
+        assert CustomCommandStatusMonitor.adaptiveInterval(0, 60000, 2000, 20000) == 20000
+        assert CustomCommandStatusMonitor.adaptiveInterval(40000, 60000, 2000, 20000) == 10000
+
+        // Close to the typical time: poll as often as allowed
+        assert CustomCommandStatusMonitor.adaptiveInterval(59000, 60000, 2000, 20000) == 2000
+
+        // Overdue jobs are polled less often the longer they are overdue
+        assert CustomCommandStatusMonitor.adaptiveInterval(80000, 60000, 2000, 20000) == 5000
+    }
+
+    @Test
+    void testTypicalTimes() {
+        CustomCommandStatusMonitor monitor = new CustomCommandStatusMonitor()
+        assert monitor.typicalQueueTime == null
+        assert monitor.getTypicalRunTime('align') == null
+
+        monitor.recordTimes('align', 1000, null)
+        monitor.recordTimes('align', null, 50000)
+        monitor.recordTimes('align', 3000, null)
+        monitor.recordTimes('align', 2000, 70000)
+        monitor.recordTimes('sort', null, 10)
+        monitor.recordTimes('align', null, 60000)
+
+        assert monitor.typicalQueueTime == 2000
+        assert monitor.getTypicalRunTime('align') == 60000
+        assert monitor.getTypicalRunTime('sort') == 10
+    }
+}
@@ -0,0 +1,194 @@
+package bpipe.graph
+
+import static org.junit.Assert.*
+
+import groovy.json.JsonSlurper
+import org.junit.Test
+
+class DiagramGraphTest {
+    
+    /**
+     * input => [align + call] * branches => merge => report
+     */
+    DiagramGraph createBranches(int branches) {
+        DiagramGraph graph = new DiagramGraph()
+        int input = graph.addNode('input', 'input', 'resource')
+        int merge = graph.addNode('2', '.', 'merge')
+        for(int b=0; b<branches; ++b) {
+            int align = graph.addNode("1_$b-0".toString(), 'align', 'stage')
+            int call = graph.addNode("1_$b-1".toString(), 'call', 'stage')
+            graph.addEdge(input, align, 'stage')
+            graph.addEdge(align, call, 'stage')
+            graph.addEdge(call, merge, 'stage')
+        }
+        graph.addEdge(merge, graph.addNode('3', 'report', 'stage'), 'stage')
+        return graph
+    }
+    
+    @Test
+    void testCollapseBranches() {
+        DiagramGraph graph = createBranches(50).collapse()
+        
+        assert graph.nodeCount == 5
+        assert graph.names[0..<graph.nodeCount] == ['input', 'align', 'call', '.', 'report']
+        assert graph.counts[0..<graph.nodeCount] == [1, 50, 50, 1, 1]
+        assert graph.members[1].size() == 50
+        assert graph.members[1][0] == '1_0-0'
+        assert graph.label(1) == 'align (x50)'
+        assert graph.label(4) == 'report'
+        
+        assert graph.edgeCount == 4
+        assert (0..<graph.edgeCount).collect { graph.edgeCounts[it] } == [50, 50, 50, 1]
+    }
+    
+    @Test
+    void testRepeatedStagesInSequenceAreNotCollapsed() {
+        DiagramGraph graph = new DiagramGraph()
+        int input = graph.addNode('input', 'input', 'resource')
+        int first = graph.addNode('0', 'trim', 'stage')
+        int second = graph.addNode('1', 'trim', 'stage')
+        graph.addEdge(input, first, 'stage')
+        graph.addEdge(first, second, 'stage')
+        
+        DiagramGraph collapsed = graph.collapse()
+        assert collapsed.nodeCount == 3
+        assert collapsed.counts[0..<3] == [1, 1, 1]
+    }
+    
+    @Test
+    void testBranchesWithDifferentStagesAreNotCollapsed() {
+        DiagramGraph graph = createBranches(3)
+        int input = graph.indexOf('input')
+        int other = graph.addNode('1_3-0', 'realign', 'stage')
+        graph.addEdge(input, other, 'stage')
+        int call = graph.addNode('1_3-1', 'call', 'stage')
+        graph.addEdge(other, call, 'stage')
+        
+        DiagramGraph collapsed = graph.collapse()
+        assert collapsed.nodeCount == 7
+        assert (0..<collapsed.nodeCount).collect { collapsed.label(it) }.sort() == 
+            ['.', 'align (x3)', 'call', 'call (x3)', 'input', 'realign', 'report']
+    }
+    
+    @Test
+    void testCycleDoesNotFail() {
+        DiagramGraph graph = new DiagramGraph()
+        int a = graph.addNode('0', 'a', 'stage')
+        int b = graph.addNode('1', 'b', 'stage')
+        graph.addEdge(a, b, 'stage')
+        graph.addEdge(b, a, 'stage')
+        
+        assert graph.topologicalOrder().toList().sort() == [0, 1]
+        assert graph.collapse().nodeCount == 2
+        assert LayeredLayout.layout(graph, 80, false).layerCount > 0
+    }
+    
+    @Test
+    void testFromStructure() {
+        Node input = new Node(null, 'input', [id: 'input'])
+        Node align = new Node(null, 'align', [id: '0', type: 'stage'])
+        DiagramGraph graph = DiagramGraph.fromStructure(
+            nodes: [input: input, '0': align], 
+            edges: [[from: 'input', to: '0', type: 'stage']]
+        )
+        
+        assert graph.nodeCount == 2
+        assert graph.types[0] == null
+        assert graph.types[1] == 'stage'
+        assert graph.edgeCount == 1
+        assert graph.ids[graph.edgeTo[0]] == '0'
+    }
+    
+    @Test
+    void testLayout() {
+        DiagramGraph graph = createBranches(3)
+        LayeredLayout layout = LayeredLayout.layout(graph, 80, false)
+        
+        assert layout.layers[graph.indexOf('input')] == 0
+        assert layout.layers[graph.indexOf('1_2-1')] == 2
+        assert layout.layers[graph.indexOf('3')] == 4
+        assert layout.layerCount == 5
+        assert layout.rowCount == 3
+        
+        // The stages of each branch are in the same row
+        (0..2).each { b ->
+            assert layout.rows[graph.indexOf("1_$b-0".toString())] == layout.rows[graph.indexOf("1_$b-1".toString())]
+        }
+        
+        assert layout.x(graph.indexOf('1_0-0')) > layout.x(graph.indexOf('input'))
+        assert layout.y(graph.indexOf('1_1-0')) > layout.y(graph.indexOf('1_0-0'))
+        assert layout.width == 2 * 20 + 5 * 80 + 4 * 60
+    }
+    
+    @Test
+    void testIncrementalLayoutDoesNotMoveNodes() {
+        DiagramGraph graph = createBranches(3)
+        LayeredLayout layout = LayeredLayout.layout(graph, 80, true)
+        List positions = (0..<graph.nodeCount).collect { [layout.x(it), layout.y(it)] }
+        
+        int align = graph.addNode('1_3-0', 'align', 'stage')
+        graph.addEdge(graph.indexOf('input'), align, 'stage')
+        assert layout.add(align, [graph.indexOf('input')] as int[]) == 1
+        
+        assert (0..<positions.size()).collect { [layout.x(it), layout.y(it)] } == positions
+        assert layout.rows[align] == 3
+        assert layout.y(align) > layout.y(graph.indexOf('input'))
+    }
+    
+    @Test
+    void testWriteJson() {
+        StringWriter w = new StringWriter()
+        new DiagramWriter(graph: createBranches(4).collapse()).write('json', w)
+        
+        Map result = new JsonSlurper().parseText(w.toString())
+        assert result.nodes*.name == ['input', 'align', 'call', '.', 'report']
+        assert result.nodes[1].id == '1_0-0'
+        assert result.nodes[1].count == 4
+        assert result.nodes[1].members == ['1_0-0', '1_1-0', '1_2-0', '1_3-0']
+        assert result.nodes[0].members == null
+        assert result.nodes[1].x > result.nodes[0].x
+        assert result.edges[0] == [from: 'input', to: '1_0-0', type: 'stage', count: 4]
+        assert result.width > 0
+    }
+    
+    @Test
+    void testWriteJsonEscapes() {
+        DiagramGraph graph = new DiagramGraph()
+        graph.addNode('0', 'say "hello"\\\n', 'stage')
+        StringWriter w = new StringWriter()
+        new DiagramWriter(graph: graph).write('json', w)
+        assert new JsonSlurper().parseText(w.toString()).nodes[0].name == 'say "hello"\\\n'
+    }
+    
+    @Test
+    void testWriteDot() {
+        StringWriter w = new StringWriter()
+        new DiagramWriter(graph: createBranches(2).collapse()).write('dot', w)
+        String dot = w.toString()
+        
+        assert dot.startsWith('digraph pipeline {')
+        assert dot.contains('"1_0-0" [label="align (x2)"];')
+        assert dot.contains('"input" -> "1_0-0";')
+        assert dot.contains('"2" [label=".", shape=point, width=0.1];')
+        assert dot.trim().endsWith('}')
+    }
+    
+    @Test
+    void testWriteSvg() {
+        DiagramGraph graph = createBranches(3)
+        graph.addNode('4', '<b&b>', 'stage')
+        StringWriter w = new StringWriter()
+        new DiagramWriter(graph: graph).write('svg', w)
+        
+        def svg = new XmlSlurper().parseText(w.toString())
+        assert svg.@width.toInteger() > 0
+        assert svg.'**'.findAll { it.name() == 'rect' }.size() == graph.nodeCount - 1 // the merge is a circle
+        assert svg.'**'.findAll { it.name() == 'line' }.size() == graph.edgeCount
+        assert svg.'**'.find { it.name() == 'text' && it.text() == '<b&b>' }
+    }
+    
+    @Test(expected=IllegalArgumentException)
+    void testUnknownFormat() {
+        new DiagramWriter(graph: createBranches(1)).write('gif', new StringWriter())
+    }
+}
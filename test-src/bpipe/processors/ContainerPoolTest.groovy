@@ -0,0 +1,147 @@
+package bpipe.processors
+
+import java.nio.file.Files
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import bpipe.Command
+import bpipe.executor.LocalCommandExecutor
+
+class ContainerPoolTest {
+    
+    File dir
+    
+    File log
+    
+    File stub
+    
+    @Before
+    void setUp() {
+        dir = Files.createTempDirectory('bpipe_container_pool').toFile()
+        log = new File(dir, 'calls.log')
+        
+        // Stands in for both docker and singularity: records each call
+        stub = new File(dir, 'container')
+        stub.text = """#!/bin/bash
+echo "\$@" >> $log.absolutePath
+"""
+        stub.setExecutable(true)
+    }
+    
+    @After
+    void tearDown() {
+        ContainerPool.shutdownAll()
+        dir.deleteDir()
+    }
+    
+    List<String> calls() {
+        log.exists() ? log.readLines() : []
+    }
+    
+    ContainerPool createPool(Map poolConfig) {
+        new ContainerPool('test', poolConfig,
+            { String name -> [stub.absolutePath, 'start', name] },
+            { String name -> [stub.absolutePath, 'stop', name] }
+        )
+    }
+    
+    @Test
+    void testCommandsSharePooledContainers() {
+        ContainerPool pool = createPool(maxContainers: 2, maxCommands: 2)
+        
+        String first = pool.acquire('1')
+        assert pool.acquire('2') == first
+        String second = pool.acquire('3')
+        assert second != first
+        assert pool.acquire('4') == second
+        assert calls() == ["start $first", "start $second"]*.toString()
+        
+        // The pool is full: the next command waits for room
+        String waited = null
+        Thread t = Thread.start { waited = pool.acquire('5') }
+        Thread.sleep(200)
+        assert waited == null
+        
+        assert pool.release('1')
+        t.join(5000)
+        assert waited == first
+        assert calls().size() == 2
+        
+        assert !pool.release('1')
+    }
+    
+    @Test
+    void testIdleContainersStopped() {
+        ContainerPool pool = createPool(maxContainers: 2, maxCommands: 1, idleTimeout: 1)
+        String first = pool.acquire('1')
+        String second = pool.acquire('2')
+        pool.release('1')
+        
+        long nowMs = System.currentTimeMillis()
+        pool.reapIdle(nowMs)
+        assert pool.containers.size() == 2
+        
+        pool.reapIdle(nowMs + 60000)
+        assert pool.containers*.name == [second]
+        assert calls()[-1] == "stop $first".toString()
+        
+        // A new container is started when needed again
+        assert pool.acquire('3') != first
+    }
+    
+    @Test
+    void testDockerCommandsRunInPool() {
+        DockerContainerWrapper wrapper = new DockerContainerWrapper(new LocalCommandExecutor())
+        Map config = [container: [type: 'docker', image: 'testImage', dockerExecutable: stub.absolutePath, pool: [maxCommands: 2]]]
+        
+        List<Command> commands = (1..2).collect { 
+            Command cmd = new Command(id: String.valueOf(it), command: 'echo hello')
+            cmd.rawProcessedConfig = config
+            wrapper.transform(cmd, [])
+            return cmd
+        }
+        
+        assert calls().size() == 1
+        assert calls()[0].startsWith('run -d --name bpipe-')
+        assert calls()[0].endsWith('testImage sleep infinity')
+        
+        String name = calls()[0].tokenize(' ')[3]
+        commands.each { Command cmd ->
+            assert cmd.shell[0..2] == [stub.absolutePath, 'exec', '-i']
+            assert cmd.shell[5] == name
+            assert cmd.shell[-1] == '/bin/bash'
+        }
+        
+        // Without a local executor, each command runs in its own container
+        Command remote = new Command(id: '3', command: 'echo hello')
+        remote.rawProcessedConfig = config
+        new DockerContainerWrapper(null).transform(remote, [])
+        assert remote.shell[1] == 'run'
+        
+        ContainerPool.releaseCommand('1')
+        ContainerPool.releaseCommand('2')
+        ContainerPool.shutdownAll()
+        assert calls()[-1] == "rm -f $name".toString()
+    }
+    
+    @Test
+    void testSingularityCommandsRunInInstance() {
+        SingularityContainerWrapper wrapper = new SingularityContainerWrapper(new LocalCommandExecutor())
+        Command cmd = new Command(id: '1', command: 'echo hello')
+        cmd.rawProcessedConfig = [container: [type: 'singularity', image: 'test.sif', singularityExecutable: stub.absolutePath, execOptions: '--nv', pool: true]]
+        wrapper.transform(cmd, [])
+        
+        List<String> start = calls()[0].tokenize(' ')
+        assert start[0..2] == ['instance', 'start', '--nv']
+        assert start[-2] == 'test.sif'
+        
+        String name = start[-1]
+        assert cmd.shell[1] == 'exec'
+        assert cmd.shell[-3..-1] == ["instance://$name".toString(), '/bin/bash', '-e']
+        
+        ContainerPool.shutdownAll()
+        assert calls()[-1] == "instance stop $name".toString()
+    }
+}
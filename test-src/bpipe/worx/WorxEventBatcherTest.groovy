@@ -0,0 +1,142 @@
+package bpipe.worx
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPInputStream
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+
+import groovy.json.JsonSlurper
+
+class WorxEventBatcherTest {
+    
+    HttpServer server
+    
+    /**
+     * Events received by the server, in each request
+     */
+    List<List<Map>> requests = new CopyOnWriteArrayList()
+    
+    Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet())
+    
+    List<String> encodings = new CopyOnWriteArrayList()
+    
+    /**
+     * Number of requests to fail before succeeding
+     */
+    AtomicInteger failures = new AtomicInteger(0)
+    
+    @Before
+    void setUp() {
+        server = HttpServer.create(new InetSocketAddress('127.0.0.1', 0), 0)
+        server.createContext('/events') { HttpExchange exchange ->
+            clientPorts << exchange.remoteAddress.port
+            
+            String encoding = exchange.requestHeaders.getFirst('Content-Encoding')
+            encodings << encoding
+            InputStream body = encoding == 'gzip' ? new GZIPInputStream(exchange.requestBody) : exchange.requestBody
+            Map payload = new JsonSlurper().parse(body, 'UTF-8')
+            
+            byte [] response
+            if(failures.getAndDecrement() > 0) {
+                response = '{"status":"unavailable"}'.bytes
+                exchange.sendResponseHeaders(503, response.length)
+            }
+            else {
+                requests << payload.events
+                response = '{"status":"ok","commands":[]}'.bytes
+                exchange.sendResponseHeaders(200, response.length)
+            }
+            exchange.responseBody.write(response)
+            exchange.close()
+        }
+        server.start()
+    }
+    
+    @After
+    void tearDown() {
+        server.stop(0)
+    }
+    
+    HttpWorxConnection connect() {
+        new HttpWorxConnection(url: "http://127.0.0.1:${server.address.port}/", closeAfterRead: false, gzip: true, retryDelayMs: 10)
+    }
+    
+    @Test
+    void testEventsAreBatched() {
+        List responses = new CopyOnWriteArrayList()
+        WorxEventBatcher batcher = new WorxEventBatcher(worx: connect(), windowMs: 200, maxBatchSize: 100, onResponse: { responses << it })
+        batcher.start()
+        
+        for(int i=0; i<250; ++i) 
+            batcher.add([event: 'STAGE_COMPLETED', id: i, desc: "Stage ñ $i"])
+            
+        assert batcher.shutdown(10000)
+        
+        List<Map> received = requests.flatten()
+        assert received*.id == (0..<250).collect { it }
+        assert received[1].desc == 'Stage ñ 1'
+        
+        // Events that arrive together are sent together, and no batch is too big
+        assert requests.size() >= 3 && requests.size() < 10
+        assert requests.every { it.size() <= 100 }
+        assert responses.size() == requests.size()
+        assert batcher.sentEvents.get() == 250
+        
+        // All batches are large enough to compress, and are sent on the same connection
+        assert encodings.every { it == 'gzip' }
+        assert clientPorts.size() == 1
+    }
+    
+    @Test
+    void testEventsArePreparedBySender() {
+        Set<String> threads = Collections.synchronizedSet(new HashSet())
+        WorxEventBatcher batcher = new WorxEventBatcher(worx: connect(), windowMs: 10, prepare: { int id ->
+            threads << Thread.currentThread().name
+            if(id == 2)
+                throw new IllegalStateException('Unable to convert')
+            [event: 'STAGE_COMPLETED', id: id]
+        })
+        batcher.start()
+        (1..3).each { batcher.add(it) }
+        assert batcher.shutdown(10000)
+        
+        assert threads == ['bpipe-worx-events'] as Set
+        assert requests.flatten()*.id == [1, 3]
+        assert batcher.failedEvents.get() == 1
+    }
+    
+    @Test
+    void testRetry() {
+        failures.set(2)
+        
+        WorxEventBatcher batcher = new WorxEventBatcher(worx: connect(), windowMs: 10)
+        batcher.start()
+        batcher.add([event: 'STARTED', id: 1])
+        assert batcher.shutdown(10000)
+        
+        assert requests*.getAt(0)*.id == [1]
+        assert batcher.failedEvents.get() == 0
+    }
+    
+    @Test
+    void testGiveUpAfterMaxAttempts() {
+        failures.set(100)
+        
+        HttpWorxConnection worx = connect()
+        worx.maxAttempts = 3
+        WorxEventBatcher batcher = new WorxEventBatcher(worx: worx, windowMs: 10)
+        batcher.start()
+        batcher.add([event: 'STARTED', id: 1])
+        assert batcher.shutdown(10000)
+        
+        assert requests.isEmpty()
+        assert batcher.failedEvents.get() == 1
+        assert failures.get() == 97
+    }
+}